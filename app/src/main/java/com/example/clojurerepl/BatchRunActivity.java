@@ -0,0 +1,129 @@
+package com.example.clojurerepl;
+
+import android.content.Intent;
+import android.graphics.Typeface;
+import android.os.Bundle;
+import android.util.Log;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import com.example.clojurerepl.pipeline.StartupBaseline;
+import com.example.clojurerepl.session.SessionManager;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Runs a batch of programs headlessly and shows progress. Started from adb,
+ * see batch-run.sh:
+ *
+ * adb shell am start -n com.example.clojurerepl/.BatchRunActivity \
+ *     [--es dir /path/to/programs] [--ez sessions true] \
+ *     [--ez screenshots true] [--el timeout_ms 30000] [--el settle_ms 1500] \
+ *     [--es baseline /path/to/baseline.json] [--ei threshold_percent 20] \
+ *     [--el min_delta_ms 25] [--ez update_baseline true]
+ *
+ * Without "dir" or "sessions", the .clj files in the batch_programs directory
+ * under the app's external files directory are run. With "baseline", phase
+ * timings are compared against it (see StartupBaseline) and regressions are
+ * listed in the report.
+ */
+public class BatchRunActivity extends AppCompatActivity {
+    private static final String TAG = "BatchRunActivity";
+    private static final String DEFAULT_PROGRAM_DIR = "batch_programs";
+
+    public static final String EXTRA_DIR = "dir";
+    public static final String EXTRA_SESSIONS = "sessions";
+    public static final String EXTRA_SCREENSHOTS = "screenshots";
+    public static final String EXTRA_TIMEOUT_MS = "timeout_ms";
+    public static final String EXTRA_SETTLE_MS = "settle_ms";
+    public static final String EXTRA_BASELINE = "baseline";
+    public static final String EXTRA_THRESHOLD_PERCENT = "threshold_percent";
+    public static final String EXTRA_MIN_DELTA_MS = "min_delta_ms";
+    public static final String EXTRA_UPDATE_BASELINE = "update_baseline";
+
+    private TextView statusView;
+    private final StringBuilder status = new StringBuilder();
+    private boolean started = false;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        statusView = new TextView(this);
+        statusView.setTypeface(Typeface.MONOSPACE);
+        statusView.setTextSize(12);
+        statusView.setPadding(16, 16, 16, 16);
+        ScrollView scrollView = new ScrollView(this);
+        scrollView.addView(statusView);
+        setContentView(scrollView);
+
+        if (savedInstanceState == null) {
+            startBatch(getIntent());
+        }
+    }
+
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        // RenderActivity returns here after a crash; results already arrived
+        // over the result channel.
+        Log.d(TAG, "Ignoring new intent while batch is " + (started ? "running" : "idle"));
+    }
+
+    private void startBatch(Intent intent) {
+        started = true;
+        boolean enableScreenshots = intent.getBooleanExtra(EXTRA_SCREENSHOTS, false);
+        long timeoutMs = intent.getLongExtra(EXTRA_TIMEOUT_MS, BatchRunner.DEFAULT_TIMEOUT_MS);
+        long settleMs = intent.getLongExtra(EXTRA_SETTLE_MS, BatchRunner.DEFAULT_SETTLE_MS);
+        BatchRunner runner = new BatchRunner(this, enableScreenshots, timeoutMs, settleMs);
+        String baselinePath = intent.getStringExtra(EXTRA_BASELINE);
+        if (baselinePath != null) {
+            runner.setBaseline(new File(baselinePath),
+                    intent.getIntExtra(EXTRA_THRESHOLD_PERCENT, StartupBaseline.DEFAULT_THRESHOLD_PERCENT),
+                    intent.getLongExtra(EXTRA_MIN_DELTA_MS, StartupBaseline.DEFAULT_MIN_DELTA_MS),
+                    intent.getBooleanExtra(EXTRA_UPDATE_BASELINE, false));
+        }
+
+        if (intent.getBooleanExtra(EXTRA_SESSIONS, false)) {
+            appendStatus("Loading sessions...");
+            SessionManager.getInstance(this).loadSessionsAsync()
+                    .thenAccept(sessions -> runOnUiThread(
+                            () -> run(runner, BatchRunner.fromSessions(sessions))));
+        } else {
+            String dirPath = intent.getStringExtra(EXTRA_DIR);
+            File dir = dirPath != null ? new File(dirPath) : new File(getExternalFilesDir(null), DEFAULT_PROGRAM_DIR);
+            appendStatus("Reading programs from " + dir.getAbsolutePath());
+            run(runner, BatchRunner.loadDirectory(dir));
+        }
+    }
+
+    private void run(BatchRunner runner, List<BatchRunner.Program> programs) {
+        appendStatus("Running " + programs.size() + " programs");
+        runner.start(programs, new BatchRunner.ProgressListener() {
+            @Override
+            public void onProgramFinished(int index, int total, BatchRunner.Result result) {
+                appendStatus(String.format("[%d/%d] %s: %s, %dms", index + 1, total, result.name,
+                        result.getStatus(), result.wallTimeMs));
+            }
+
+            @Override
+            public void onBatchFinished(List<BatchRunner.Result> results, File reportFile,
+                    List<String> regressions) {
+                started = false;
+                for (String regression : regressions) {
+                    appendStatus("REGRESSION " + regression);
+                }
+                appendStatus("Done. Report: " + (reportFile != null ? reportFile.getAbsolutePath() : "not written"));
+            }
+        });
+    }
+
+    private void appendStatus(String line) {
+        Log.i(TAG, line);
+        status.append(line).append('\n');
+        statusView.setText(status.toString());
+    }
+}
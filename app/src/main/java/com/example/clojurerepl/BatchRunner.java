@@ -0,0 +1,446 @@
+package com.example.clojurerepl;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.clojurerepl.pipeline.StartupBaseline;
+import com.example.clojurerepl.session.DesignSession;
+import com.example.clojurerepl.session.SessionManager;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs a list of programs one after another in the render process without
+ * user interaction and writes their phase timings, errors and class counts to
+ * a CSV and a JSON report.
+ *
+ * Each program is launched with auto exit enabled, so the render process
+ * finishes on its own shortly after evaluation. A program that does not exit
+ * within the timeout has its process killed and is reported as timed out.
+ */
+public class BatchRunner {
+    private static final String TAG = "BatchRunner";
+    private static final String REPORT_DIR = "batch_reports";
+
+    public static final long DEFAULT_TIMEOUT_MS = 30000;
+    // Time the program runs after evaluation; leaves room for the initial
+    // screenshot, which is taken 500ms after rendering
+    public static final long DEFAULT_SETTLE_MS = 1500;
+
+    public static final String STATUS_OK = StartupBaseline.STATUS_OK;
+    public static final String STATUS_ERROR = "error";
+    public static final String STATUS_TIMEOUT = "timeout";
+
+    /**
+     * A program to run.
+     */
+    public static class Program {
+        public final String name;
+        public final String code;
+        public final String sessionId;
+
+        public Program(String name, String code, String sessionId) {
+            this.name = name;
+            this.code = code;
+            this.sessionId = sessionId;
+        }
+    }
+
+    /**
+     * What was observed while running one program.
+     */
+    public static class Result implements StartupBaseline.Result {
+        public final String name;
+        public final String codeHash;
+        // Phase timings in the order they were reported
+        public final Map<String, Long> timings = new LinkedHashMap<>();
+        public final Map<String, Long> metrics = new LinkedHashMap<>();
+        public String error;
+        public boolean timedOut;
+        public int screenshotCount;
+        public long wallTimeMs;
+
+        Result(Program program) {
+            this.name = program.name;
+            this.codeHash = RenderActivity.getCodeHash(program.code);
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getStatus() {
+            if (timedOut) {
+                return STATUS_TIMEOUT;
+            }
+            return error != null ? STATUS_ERROR : STATUS_OK;
+        }
+
+        @Override
+        public Map<String, Long> getTimings() {
+            return timings;
+        }
+    }
+
+    public interface ProgressListener {
+        void onProgramFinished(int index, int total, Result result);
+
+        /**
+         * @param reportFile  The JSON report, or null if it could not be written
+         * @param regressions Phases slower than the baseline; empty if no
+         *                    baseline was set
+         */
+        void onBatchFinished(List<Result> results, File reportFile, List<String> regressions);
+    }
+
+    private final Activity activity;
+    private final boolean enableScreenshots;
+    private final long timeoutMs;
+    private final long settleMs;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Optional regression check against recorded phase timings
+    private File baselineFile;
+    private int thresholdPercent = StartupBaseline.DEFAULT_THRESHOLD_PERCENT;
+    private long minDeltaMs = StartupBaseline.DEFAULT_MIN_DELTA_MS;
+    private boolean updateBaseline = false;
+    // Process reuse setting to restore after a baseline batch
+    private boolean reuseBeforeBatch;
+
+    // All fields below are only accessed on the main thread
+    private List<Program> programs;
+    private final List<Result> results = new ArrayList<>();
+    private ProgressListener listener;
+    private int currentIndex = -1;
+    private Result currentResult;
+    private long currentStartTime;
+    private int currentPid = -1;
+    private Runnable currentTimeout;
+
+    public BatchRunner(Activity activity, boolean enableScreenshots, long timeoutMs, long settleMs) {
+        this.activity = activity;
+        this.enableScreenshots = enableScreenshots;
+        this.timeoutMs = timeoutMs;
+        this.settleMs = settleMs;
+    }
+
+    /**
+     * Compares the phase timings of the batch against the baseline file when
+     * it finishes. With update set, the file is rewritten from this batch
+     * instead. Either way every program starts cold: in a new render process,
+     * without its DEX cache and with an empty DEX memo, so the timings do not
+     * depend on what ran before.
+     */
+    public void setBaseline(File baselineFile, int thresholdPercent, long minDeltaMs, boolean update) {
+        this.baselineFile = baselineFile;
+        this.thresholdPercent = thresholdPercent;
+        this.minDeltaMs = minDeltaMs;
+        this.updateBaseline = update;
+    }
+
+    /**
+     * Reads every .clj file in the directory, sorted by name.
+     */
+    public static List<Program> loadDirectory(File dir) {
+        List<Program> programs = new ArrayList<>();
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".clj"));
+        if (files == null) {
+            Log.e(TAG, "Cannot list directory: " + dir.getAbsolutePath());
+            return programs;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            try {
+                String code = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+                programs.add(new Program(file.getName(), code, null));
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading " + file.getAbsolutePath(), e);
+            }
+        }
+        return programs;
+    }
+
+    /**
+     * Returns the latest code of every session that has any. Sessions are
+     * loaded with {@link SessionManager#loadSessionsAsync()}.
+     */
+    public static List<Program> fromSessions(List<DesignSession> sessions) {
+        List<Program> programs = new ArrayList<>();
+        for (DesignSession session : sessions) {
+            String code = session.getCurrentCode();
+            if (code == null || code.trim().isEmpty()) {
+                continue;
+            }
+            String description = session.getDescription() != null ? session.getDescription() : "";
+            String name = description.length() > 40 ? description.substring(0, 40) + "..." : description;
+            programs.add(new Program(name, code, session.getId().toString()));
+        }
+        return programs;
+    }
+
+    /**
+     * Starts running the programs in order. Must be called on the main thread.
+     */
+    public void start(List<Program> programs, ProgressListener listener) {
+        this.programs = new ArrayList<>(programs);
+        this.listener = listener;
+        results.clear();
+        currentIndex = -1;
+        if (baselineFile != null) {
+            // A reused process has RT and clojure.core loaded already
+            reuseBeforeBatch = RenderActivity.isProcessReuseEnabled();
+            RenderActivity.setProcessReuseEnabled(false);
+        }
+        Log.d(TAG, "Starting batch of " + programs.size() + " programs");
+        runNext();
+    }
+
+    private void runNext() {
+        currentIndex++;
+        if (currentIndex >= programs.size()) {
+            if (baselineFile != null) {
+                RenderActivity.setProcessReuseEnabled(reuseBeforeBatch);
+            }
+            List<String> regressions = checkBaseline();
+            File reportFile = writeReports(regressions);
+            listener.onBatchFinished(new ArrayList<>(results), reportFile, regressions);
+            return;
+        }
+
+        Program program = programs.get(currentIndex);
+        Result result = new Result(program);
+        currentResult = result;
+        currentPid = -1;
+        currentStartTime = System.currentTimeMillis();
+        final int runIndex = currentIndex;
+        Log.d(TAG, "Running " + (runIndex + 1) + "/" + programs.size() + ": " + program.name);
+        if (baselineFile != null) {
+            clearCaches(result.codeHash);
+        }
+
+        RenderResultChannel.Listener resultListener = new RenderResultChannel.Listener() {
+            @Override
+            public void onStarted(int pid, android.os.IBinder liveness) {
+                if (runIndex == currentIndex) {
+                    currentPid = pid;
+                }
+            }
+
+            @Override
+            public void onTiming(String stage, long timeMs) {
+                result.timings.put(stage, timeMs);
+            }
+
+            @Override
+            public void onError(String error) {
+                if (result.error == null) {
+                    result.error = error;
+                }
+            }
+
+            @Override
+            public void onScreenshot(String path) {
+                result.screenshotCount++;
+            }
+
+            @Override
+            public void onMetric(String name, long value) {
+                result.metrics.put(name, value);
+            }
+        };
+
+        String sessionId = program.sessionId != null ? program.sessionId : "batch-" + runIndex;
+        boolean launched = RenderActivity.launch(activity, activity.getClass(),
+                logcat -> handler.post(() -> finishProgram(runIndex)),
+                resultListener, program.code, sessionId, 0, 0,
+                enableScreenshots, false, settleMs);
+        if (!launched) {
+            result.error = "Failed to launch render activity";
+            finishProgram(runIndex);
+            return;
+        }
+
+        currentTimeout = () -> {
+            Log.w(TAG, "Program " + program.name + " timed out after " + timeoutMs + "ms");
+            result.timedOut = true;
+            if (currentPid > 0) {
+                // The exit callback advances the batch once the process is gone
+                android.os.Process.killProcess(currentPid);
+            } else {
+                finishProgram(runIndex);
+            }
+        };
+        handler.postDelayed(currentTimeout, timeoutMs);
+    }
+
+    private void finishProgram(int runIndex) {
+        // Ignore late exits of a program that already timed out
+        if (runIndex != currentIndex) {
+            return;
+        }
+        handler.removeCallbacks(currentTimeout);
+        currentResult.wallTimeMs = System.currentTimeMillis() - currentStartTime;
+        results.add(currentResult);
+        Log.d(TAG, "Finished " + currentResult.name + ": " + currentResult.getStatus() + " in "
+                + currentResult.wallTimeMs + "ms");
+        listener.onProgramFinished(runIndex, programs.size(), currentResult);
+        runNext();
+    }
+
+    /**
+     * Removes the DEX a previous run left for the program, so its phases are
+     * measured cold.
+     */
+    private void clearCaches(String codeHash) {
+        BytecodeCache.getInstance(activity, codeHash).clearCacheForHash(codeHash);
+        BytecodeCache.getDexMemo(activity).clear();
+    }
+
+    private List<String> checkBaseline() {
+        if (baselineFile == null) {
+            return new ArrayList<>();
+        }
+        if (updateBaseline) {
+            try {
+                StartupBaseline.fromResults(results).write(baselineFile);
+                Log.d(TAG, "Baseline updated: " + baselineFile.getAbsolutePath());
+            } catch (IOException e) {
+                Log.e(TAG, "Error writing baseline", e);
+            }
+            return new ArrayList<>();
+        }
+        List<String> regressions = StartupBaseline.load(baselineFile)
+                .findRegressions(results, thresholdPercent, minDeltaMs);
+        for (String regression : regressions) {
+            Log.w(TAG, "Regression: " + regression);
+        }
+        return regressions;
+    }
+
+    private File writeReports(List<String> regressions) {
+        File reportDir = new File(activity.getExternalFilesDir(null), REPORT_DIR);
+        if (!reportDir.exists() && !reportDir.mkdirs()) {
+            Log.e(TAG, "Failed to create report directory: " + reportDir.getAbsolutePath());
+            return null;
+        }
+        String baseName = "batch_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+        File csvFile = new File(reportDir, baseName + ".csv");
+        File jsonFile = new File(reportDir, baseName + ".json");
+        try (FileWriter writer = new FileWriter(csvFile)) {
+            writer.write(toCsv(results));
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing CSV report", e);
+        }
+        try (FileWriter writer = new FileWriter(jsonFile)) {
+            JSONObject report = toJson(results);
+            if (baselineFile != null && !updateBaseline) {
+                report.put("thresholdPercent", thresholdPercent);
+                report.put("regressionCount", regressions.size());
+                report.put("regressions", new JSONArray(regressions));
+            }
+            writer.write(report.toString(2));
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Error writing JSON report", e);
+            return null;
+        }
+        Log.d(TAG, "Batch reports written to " + reportDir.getAbsolutePath() + "/" + baseName + ".{csv,json}");
+        return jsonFile;
+    }
+
+    /**
+     * One row per program. Timing and metric columns are the union of the
+     * names reported by all programs, in first-seen order.
+     */
+    public static String toCsv(List<Result> results) {
+        Set<String> timingNames = new LinkedHashSet<>();
+        Set<String> metricNames = new LinkedHashSet<>();
+        for (Result result : results) {
+            timingNames.addAll(result.timings.keySet());
+            metricNames.addAll(result.metrics.keySet());
+        }
+
+        StringBuilder csv = new StringBuilder("name,code_hash,status,wall_ms");
+        for (String name : timingNames) {
+            csv.append(',').append(csvField(name + " ms"));
+        }
+        for (String name : metricNames) {
+            csv.append(',').append(csvField(name));
+        }
+        csv.append(",screenshots,error\n");
+
+        for (Result result : results) {
+            csv.append(csvField(result.name)).append(',')
+                    .append(result.codeHash).append(',')
+                    .append(result.getStatus()).append(',')
+                    .append(result.wallTimeMs);
+            for (String name : timingNames) {
+                Long value = result.timings.get(name);
+                csv.append(',').append(value != null ? value.toString() : "");
+            }
+            for (String name : metricNames) {
+                Long value = result.metrics.get(name);
+                csv.append(',').append(value != null ? value.toString() : "");
+            }
+            csv.append(',').append(result.screenshotCount)
+                    .append(',').append(csvField(result.error != null ? result.error : ""))
+                    .append('\n');
+        }
+        return csv.toString();
+    }
+
+    public static JSONObject toJson(List<Result> results) throws JSONException {
+        JSONArray programs = new JSONArray();
+        int failures = 0;
+        for (Result result : results) {
+            JSONObject program = new JSONObject();
+            program.put("name", result.name);
+            program.put("codeHash", result.codeHash);
+            program.put("status", result.getStatus());
+            program.put("wallTimeMs", result.wallTimeMs);
+            program.put("timings", new JSONObject(result.timings));
+            program.put("metrics", new JSONObject(result.metrics));
+            program.put("screenshots", result.screenshotCount);
+            if (result.error != null) {
+                program.put("error", result.error);
+            }
+            if (!STATUS_OK.equals(result.getStatus())) {
+                failures++;
+            }
+            programs.put(program);
+        }
+        JSONObject report = new JSONObject();
+        report.put("total", results.size());
+        report.put("failures", failures);
+        report.put("programs", programs);
+        return report;
+    }
+
+    private static String csvField(String value) {
+        if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+}
@@ -2,176 +2,105 @@ package com.example.clojurerepl;
 
 import android.content.Context;
 import android.util.Log;
+import com.example.clojurerepl.pipeline.DexCacheStore;
+import com.example.clojurerepl.pipeline.DexMemo;
+import com.example.clojurerepl.pipeline.PipelineLog;
 import dalvik.system.InMemoryDexClassLoader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.HashSet;
-import java.io.BufferedReader;
-import java.io.FileReader;
 
+/**
+ * Per-program DEX cache in the app's cache directory. The file layout and
+ * manifest handling live in DexCacheStore so they can also run on a plain
+ * JVM; this class adds the Android class loading and logcat logging.
+ */
 public class BytecodeCache {
     private static final String TAG = "BytecodeCache";
     private static final String CACHE_DIR = "clojure_bytecode";
-    // This name must not change. It's the output of the D8 tool that we
-    // configure to generate classes directly into the cache.
-    private static final String DEX_FILENAME = "classes.dex";
-    private static final String MANIFEST_FILENAME = "classes.manifest";
+    private static final String MEMO_DIR = "dex_memo";
+    // About 10 MB of DEX for typical generated classes
+    private static final int MAX_MEMO_ENTRIES = 5000;
     private static final Map<String, BytecodeCache> instances = new HashMap<>();
 
+    static {
+        // Route pipeline logging to logcat
+        PipelineLog.setSink(new PipelineLog.Sink() {
+            @Override
+            public void d(String tag, String message) {
+                Log.d(tag, message);
+            }
+
+            @Override
+            public void w(String tag, String message) {
+                Log.w(tag, message);
+            }
+
+            @Override
+            public void e(String tag, String message, Throwable throwable) {
+                Log.e(tag, message, throwable);
+            }
+        });
+    }
+
     private final Context context;
-    private final File cacheDir;
-    private final String codeHash;
+    private final DexCacheStore store;
 
     // Private constructor
-    private BytecodeCache(Context context, String codeHash) {
+    private BytecodeCache(Context context, String cacheDirName, String codeHash) {
         this.context = context.getApplicationContext(); // Use application context
-        this.cacheDir = new File(context.getCacheDir(), CACHE_DIR);
-        this.codeHash = codeHash;
-        if (!cacheDir.exists()) {
-            cacheDir.mkdirs();
-        }
-        Log.d(TAG, "BytecodeCache initialized at: " + cacheDir.getAbsolutePath());
+        this.store = new DexCacheStore(new File(context.getCacheDir(), cacheDirName), codeHash);
+        Log.d(TAG, "BytecodeCache initialized at: " + store.getCacheDir().getAbsolutePath());
     }
 
     // Updated getInstance to return different instances for different codeHashes
-    public static synchronized BytecodeCache getInstance(Context context, String codeHash) {
-        if (!instances.containsKey(codeHash)) {
-            instances.put(codeHash, new BytecodeCache(context.getApplicationContext(), codeHash));
-        }
-        return instances.get(codeHash);
+    public static BytecodeCache getInstance(Context context, String codeHash) {
+        return getInstance(context, codeHash, 0);
     }
 
-    public File createPathToDexFile(String className) {
-        File hashDir = new File(cacheDir, codeHash);
-        File classDir = new File(hashDir, className);
-        File dexFile = new File(classDir, DEX_FILENAME);
-
-        if (dexFile.exists()) {
-            throw new IllegalStateException("DEX file already exists at: " + dexFile.getAbsolutePath());
-        }
-
-        if (!classDir.exists()) {
-            classDir.mkdirs();
-        }
-        return classDir;
+    /**
+     * Returns the cache of a render process slot. Each parallel slot has its
+     * own directory so two processes never write the same hash directory.
+     */
+    public static synchronized BytecodeCache getInstance(Context context, String codeHash, int slot) {
+        String cacheDirName = slot > 0 ? CACHE_DIR + "_" + slot : CACHE_DIR;
+        String key = cacheDirName + "/" + codeHash;
+        if (!instances.containsKey(key)) {
+            instances.put(key, new BytecodeCache(context.getApplicationContext(), cacheDirName, codeHash));
+        }
+        return instances.get(key);
     }
 
-    private boolean hasDexCacheInternal(File hashDir, String codeHash) {
-        File manifestFile = new File(hashDir, MANIFEST_FILENAME);
-        if (!manifestFile.exists()) {
-            Log.w(TAG, "Hash directory '" + hashDir.getAbsolutePath() + "' exists but no manifest file found for: "
-                    + codeHash);
-            return false;
-        }
-        // Read manifest file and verify all classes exist
-        try {
-            Set<String> manifestClasses = new HashSet<>();
-            BufferedReader reader = new BufferedReader(new FileReader(manifestFile));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                manifestClasses.add(line.trim());
-            }
-            reader.close();
+    DexCacheStore getStore() {
+        return store;
+    }
 
-            // Get actual class directories
-            Set<String> actualClasses = new HashSet<>();
-            File[] classDirs = hashDir.listFiles(File::isDirectory);
-            if (classDirs != null) {
-                for (File classDir : classDirs) {
-                    // Verify each class directory has exactly one file - DEX_FILENAME
-                    File[] files = classDir.listFiles();
-                    if (files == null || files.length != 1 || !files[0].getName().equals(DEX_FILENAME)) {
-                        Log.w(TAG, "Class directory " + classDir.getName() + " does not contain exactly one "
-                                + DEX_FILENAME + " file");
-                        return false;
-                    }
-                    actualClasses.add(classDir.getName());
-                }
-            }
+    /**
+     * Returns the DEX memo shared by all programs and render processes, see
+     * SpeculativeCompileService.
+     */
+    public static DexMemo getDexMemo(Context context) {
+        return new DexMemo(new File(context.getCacheDir(), MEMO_DIR));
+    }
 
-            // Verify manifest classes exist in directory
-            for (String className : manifestClasses) {
-                if (!actualClasses.contains(className)) {
-                    Log.w(TAG, "Class " + className + " in manifest but missing from directory");
-                    return false;
-                }
-            }
+    public static void pruneDexMemo(Context context) {
+        getDexMemo(context).prune(MAX_MEMO_ENTRIES);
+    }
 
-            // Verify directory classes exist in manifest
-            for (String className : actualClasses) {
-                if (!manifestClasses.contains(className)) {
-                    Log.w(TAG, "Class " + className + " in directory but missing from manifest");
-                    return false;
-                }
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Error reading manifest file", e);
-            return false;
-        }
-        return true;
+    public File createPathToDexFile(String className) {
+        return store.createPathToDexFile(className);
     }
 
     // Check if a DEX cache exists for this code hash
     boolean hasDexCache(String codeHash) {
-        File hashDir = new File(cacheDir, codeHash);
-        if (hashDir.exists() && hashDir.isDirectory()) {
-            if (hasDexCacheInternal(hashDir, codeHash)) {
-                return true;
-            }
-
-            // Clear the cache for this hash and return false. This way we will
-            // force a re-generation of the cache.
-            clearCacheForHash(codeHash);
-            return false;
-        }
-        Log.d(TAG, "Hash directory '" + hashDir.getAbsolutePath() + "' does not exist for: " + codeHash);
-        return false;
+        return store.hasDexCache(codeHash);
     }
 
     // Load DEX from cache
     public ByteBuffer[] loadDexCaches(String codeHash) {
-        File hashDir = new File(cacheDir, codeHash);
-        if (hashDir.exists() && hashDir.isDirectory()) {
-            File[] classDirs = hashDir.listFiles(File::isDirectory);
-            if (classDirs != null && classDirs.length > 0) {
-                List<ByteBuffer> bufferList = new ArrayList<>();
-
-                for (File classDir : classDirs) {
-                    File dexFile = new File(classDir, DEX_FILENAME);
-                    if (dexFile.exists()) {
-                        try (FileInputStream fis = new FileInputStream(dexFile)) {
-                            byte[] buffer = new byte[(int) dexFile.length()];
-                            fis.read(buffer);
-
-                            ByteBuffer byteBuffer = ByteBuffer.allocateDirect(buffer.length);
-                            byteBuffer.put(buffer);
-                            byteBuffer.rewind();
-
-                            bufferList.add(byteBuffer);
-                            Log.d(TAG, "Loaded DEX file for class " + classDir.getName() +
-                                    ", size: " + buffer.length);
-                        } catch (IOException e) {
-                            Log.e(TAG, "Error loading DEX file: " + dexFile.getAbsolutePath(), e);
-                        }
-                    }
-                }
-
-                if (!bufferList.isEmpty()) {
-                    return bufferList.toArray(new ByteBuffer[0]);
-                }
-            }
-        }
-
-        Log.e(TAG, "No DEX files found for hash: " + codeHash);
-        return null;
+        return store.loadDexCaches(codeHash);
     }
 
     // Create a ClassLoader from a cached DEX
@@ -190,98 +119,24 @@ public class BytecodeCache {
     // Generate a manifest file for the given code hash and a list of generated
     // classes
     public void generateManifest(String codeHash, List<String> generatedClasses) {
-        // The path is cacheDir/codeHash/classes.manifest
-        Log.d(TAG, "Generating manifest for code hash: " + codeHash);
-        File hashDir = new File(cacheDir, codeHash);
-        File manifestFile = new File(hashDir, MANIFEST_FILENAME);
-        try (FileOutputStream fos = new FileOutputStream(manifestFile)) {
-            for (String className : generatedClasses) {
-                fos.write((className + "\n").getBytes());
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Error writing manifest file: " + manifestFile.getAbsolutePath(), e);
-        }
-    }
-
-    // Helper method to recursively delete directories
-    private boolean deleteRecursive(File fileOrDir) {
-        if (fileOrDir.isDirectory()) {
-            File[] children = fileOrDir.listFiles();
-            if (children != null) {
-                for (File child : children) {
-                    deleteRecursive(child);
-                }
-            }
-        }
-        return fileOrDir.delete();
+        store.generateManifest(codeHash, generatedClasses);
     }
 
     // Clear all cache files
     public void clearCache() {
-        int count = 0;
-        File[] files = cacheDir.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (deleteRecursive(file)) {
-                    count++;
-                }
-            }
-        }
-        Log.d(TAG, "Cleared " + count + " entries from cache");
+        store.clearCache();
     }
 
     // Add a method to clear the cache for a specific hash
     public void clearCacheForHash(String codeHash) {
-        Log.d(TAG, "Clearing cache for hash: " + codeHash);
-
-        File hashDir = new File(cacheDir, codeHash);
-        if (hashDir.exists() && hashDir.isDirectory()) {
-            if (deleteRecursive(hashDir)) {
-                Log.d(TAG, "Deleted hash directory: " + hashDir.getPath());
-            }
-        }
+        store.clearCacheForHash(codeHash);
     }
 
     public int getClassCount() {
-        // Check if cache directory exists
-        File hashDir = new File(cacheDir, codeHash);
-        if (!hashDir.exists()) {
-            return 0;
-        }
-
-        // Count class directories (each containing a .dex file)
-        File[] classDirs = hashDir.listFiles(File::isDirectory);
-        return classDirs != null ? classDirs.length : 0;
+        return store.getClassCount();
     }
 
     public long getCacheSize() {
-        File hashDir = new File(cacheDir, codeHash);
-        if (!hashDir.exists()) {
-            return 0L;
-        }
-
-        long totalSize = 0;
-        // Calculate size by summing up all files in all subdirectories
-        File[] classDirs = hashDir.listFiles(File::isDirectory);
-        if (classDirs != null) {
-            for (File classDir : classDirs) {
-                File[] files = classDir.listFiles();
-                if (files != null) {
-                    for (File file : files) {
-                        if (file.isFile()) {
-                            totalSize += file.length();
-                        }
-                    }
-                }
-            }
-        }
-
-        // Add manifest file size if it exists
-        File manifestFile = new File(hashDir, MANIFEST_FILENAME);
-        if (manifestFile.exists()) {
-            totalSize += manifestFile.length();
-        }
-
-        return totalSize;
+        return store.getCacheSize();
     }
 }
@@ -0,0 +1,249 @@
+package com.example.clojurerepl;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs several candidate programs at the same time, each in its own render
+ * process slot (see RenderActivity.MAX_SLOTS), and picks the first one that
+ * evaluates and then keeps running for the settle time without reporting an
+ * error. The picked candidate is promoted to a regular run in front of the
+ * user; the others are killed.
+ *
+ * Candidates are ranked by when they become healthy, not by their position
+ * in the list, so a slow but correct candidate loses to a fast one.
+ *
+ * Screenshots of the candidates that lose are deleted, so only the picked
+ * candidate's, or the first candidate's if none is picked, are left for the
+ * iteration.
+ */
+public class CandidateRunner {
+    private static final String TAG = "CandidateRunner";
+
+    public static final long DEFAULT_TIMEOUT_MS = 30000;
+    // Time a candidate must run after evaluation without an error
+    public static final long DEFAULT_SETTLE_MS = 2000;
+
+    public interface Listener {
+        /**
+         * Called once with the index of the picked candidate.
+         */
+        void onCandidatePicked(int index);
+
+        /**
+         * Called instead of onCandidatePicked when every candidate failed or
+         * the timeout expired.
+         *
+         * @param errors The error of each candidate, null if it had none
+         */
+        void onNoCandidateSucceeded(List<String> errors);
+
+        /**
+         * Called when the process of the picked candidate exits, with its
+         * captured output.
+         */
+        void onPickedExited(String logcat);
+    }
+
+    private static class Candidate {
+        final int slot;
+        int pid = -1;
+        String error;
+        boolean exited;
+
+        Candidate(int slot) {
+            this.slot = slot;
+        }
+    }
+
+    private final Activity activity;
+    private final long timeoutMs;
+    private final long settleMs;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // All fields below are only accessed on the main thread
+    private final List<Candidate> candidates = new ArrayList<>();
+    private Listener listener;
+    private String sessionId;
+    private int iteration;
+    private boolean decided = false;
+    private int pickedIndex = -1;
+    private final Runnable timeout = this::onTimeout;
+
+    public CandidateRunner(Activity activity, long timeoutMs, long settleMs) {
+        this.activity = activity;
+        this.timeoutMs = timeoutMs;
+        this.settleMs = settleMs;
+    }
+
+    /**
+     * Launches the candidates, at most RenderActivity.MAX_SLOTS of them. Must
+     * be called on the main thread.
+     */
+    public void start(List<String> codes, String sessionId, int messageIndex, int iteration,
+            Listener listener) {
+        this.listener = listener;
+        this.sessionId = sessionId;
+        this.iteration = iteration;
+        int count = Math.min(codes.size(), RenderActivity.MAX_SLOTS);
+        if (count < codes.size()) {
+            Log.w(TAG, "Only running the first " + count + " of " + codes.size() + " candidates");
+        }
+        Log.d(TAG, "Running " + count + " candidates in parallel");
+
+        for (int i = 0; i < count; i++) {
+            Candidate candidate = new Candidate(i + 1);
+            candidates.add(candidate);
+            final int index = i;
+
+            RenderResultChannel.Listener resultListener = new RenderResultChannel.Listener() {
+                @Override
+                public void onStarted(int pid, android.os.IBinder liveness) {
+                    candidate.pid = pid;
+                }
+
+                @Override
+                public void onTiming(String stage, long timeMs) {
+                    // "Eval" is reported once the program's -main returned
+                    if ("Eval".equals(stage)) {
+                        handler.postDelayed(() -> onSettled(index), settleMs);
+                    }
+                }
+
+                @Override
+                public void onError(String error) {
+                    if (candidate.error == null) {
+                        candidate.error = error;
+                        Log.d(TAG, "Candidate " + index + " failed: " + error);
+                        checkAllFailed();
+                    }
+                }
+            };
+
+            boolean launched = RenderActivity.launch(activity, activity.getClass(),
+                    logcat -> handler.post(() -> onExited(index, logcat)),
+                    resultListener, codes.get(i), sessionId, messageIndex, iteration,
+                    true, true, 0, candidate.slot);
+            if (!launched) {
+                candidate.error = "Failed to launch render slot " + candidate.slot;
+                candidate.exited = true;
+            }
+        }
+
+        handler.postDelayed(timeout, timeoutMs);
+        checkAllFailed();
+    }
+
+    /**
+     * Kills all candidate processes that are still running, including the
+     * picked one.
+     */
+    public void cancel() {
+        decided = true;
+        handler.removeCallbacks(timeout);
+        for (Candidate candidate : candidates) {
+            killCandidate(candidate);
+        }
+        deleteLosingScreenshots();
+    }
+
+    private void onSettled(int index) {
+        Candidate candidate = candidates.get(index);
+        if (decided || candidate.error != null || candidate.exited) {
+            return;
+        }
+        decided = true;
+        pickedIndex = index;
+        handler.removeCallbacks(timeout);
+        Log.d(TAG, "Picked candidate " + index + " in slot " + candidate.slot);
+
+        for (Candidate other : candidates) {
+            if (other != candidate) {
+                killCandidate(other);
+            }
+        }
+        deleteLosingScreenshots();
+        RenderActivity.promote(activity, candidate.slot);
+        listener.onCandidatePicked(index);
+    }
+
+    private void onExited(int index, String logcat) {
+        Candidate candidate = candidates.get(index);
+        candidate.exited = true;
+        if (index == pickedIndex) {
+            listener.onPickedExited(logcat);
+            return;
+        }
+        if (decided) {
+            // Screenshots saved while the kill was underway
+            deleteLosingScreenshots();
+        }
+        if (candidate.error == null) {
+            candidate.error = "Render process exited before the candidate settled";
+        }
+        checkAllFailed();
+    }
+
+    private void checkAllFailed() {
+        if (decided) {
+            return;
+        }
+        for (Candidate candidate : candidates) {
+            if (candidate.error == null) {
+                return;
+            }
+        }
+        Log.d(TAG, "All " + candidates.size() + " candidates failed");
+        finishWithoutPick();
+    }
+
+    private void onTimeout() {
+        if (decided) {
+            return;
+        }
+        Log.w(TAG, "No candidate settled within " + timeoutMs + "ms");
+        for (Candidate candidate : candidates) {
+            if (candidate.error == null) {
+                candidate.error = "Timed out after " + timeoutMs + "ms";
+            }
+        }
+        finishWithoutPick();
+    }
+
+    private void finishWithoutPick() {
+        decided = true;
+        handler.removeCallbacks(timeout);
+        List<String> errors = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            killCandidate(candidate);
+            errors.add(candidate.error);
+        }
+        deleteLosingScreenshots();
+        listener.onNoCandidateSucceeded(errors);
+    }
+
+    /**
+     * Deletes the screenshots of all candidates but the picked one or, if
+     * none was picked, the first one, which is the code the session records.
+     */
+    private void deleteLosingScreenshots() {
+        int keptIndex = pickedIndex >= 0 ? pickedIndex : 0;
+        for (int i = 0; i < candidates.size(); i++) {
+            if (i != keptIndex) {
+                ScreenshotManager.deleteSlotScreenshots(activity, sessionId, iteration, candidates.get(i).slot);
+            }
+        }
+    }
+
+    private static void killCandidate(Candidate candidate) {
+        if (candidate.pid > 0 && !candidate.exited) {
+            Log.d(TAG, "Killing candidate in slot " + candidate.slot + ", pid " + candidate.pid);
+            android.os.Process.killProcess(candidate.pid);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import android.content.Context;
 import android.util.Log;
 import com.example.clojurerepl.auth.ApiKeyManager;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
@@ -27,7 +28,7 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 public class ClaudeLLMClient extends LLMClient {
     private static final String TAG = "ClaudeLLMClient";
-    private static final String API_BASE_URL = "https://api.anthropic.com/v1";
+    static final String API_BASE_URL = "https://api.anthropic.com/v1";
     private static final String API_VERSION = "2023-06-01";
     private static final int HTTP_TIMEOUT = 60000; // 60 seconds timeout
 
@@ -49,6 +50,18 @@ public class ClaudeLLMClient extends LLMClient {
         return LLMClientFactory.LLMType.CLAUDE;
     }
 
+    @Override
+    protected boolean cacheReadsCountTowardsRateLimit() {
+        // Anthropic's input tokens per minute leave out cache reads
+        return false;
+    }
+
+    @Override
+    protected int getContextWindowTokens() {
+        ModelProperties props = getModelProperties(currentModel);
+        return props != null ? props.maxInputTokens : 0;
+    }
+
     @Override
     public String getModel() {
         return currentModel;
@@ -65,7 +78,8 @@ public class ClaudeLLMClient extends LLMClient {
     }
 
     @Override
-    protected CancellableCompletableFuture<AssistantResponse> sendMessages(ChatSession session, MessageFilter messageFilter) {
+    protected CancellableCompletableFuture<AssistantResponse> sendMessages(ChatSession session, MessageFilter messageFilter,
+            LLMRequestScheduler.Priority priority) {
         Log.d(TAG,
                 "DEBUG: ClaudeLLMClient.sendMessages called with " + session.getMessages().size()
                         + " messages in session: "
@@ -111,7 +125,8 @@ public class ClaudeLLMClient extends LLMClient {
                 Log.d(TAG, "DEBUG: About to call Claude API in thread: " + Thread.currentThread().getName());
                 ClaudeCompletion completion = null;
                 try {
-                    completion = callClaudeAPI(messagesToSend, future);
+                    completion = callProvider(session.getSystemPrompt(), messagesToSend, priority, future,
+                            attempt -> callClaudeAPI(messagesToSend, future));
                     Log.d(TAG, "DEBUG: Claude API call completed successfully");
                 } catch (Exception e) {
                     Log.e(TAG, "ERROR: callClaudeAPI failed", e);
@@ -198,7 +213,9 @@ public class ClaudeLLMClient extends LLMClient {
      * Claude API requires converting multiple messages into a special format.
      */
     private ClaudeCompletion callClaudeAPI(List<Message> history, CancellableCompletableFuture<AssistantResponse> future) {
+        HttpURLConnection conn = null;
         try {
+            StreamingRequestBody body = new StreamingRequestBody();
             Log.d(TAG, "DEBUG: callClaudeAPI started in thread: " + Thread.currentThread().getName());
             Log.d(TAG, "=== Calling Claude API ===");
             Log.d(TAG, "DEBUG: Message history size: " + history.size());
@@ -233,17 +250,16 @@ public class ClaudeLLMClient extends LLMClient {
 
             ensureModelIsSet();
             Log.d(TAG, "DEBUG: Using Claude model: " + currentModel);
+            history = manageContext(history);
 
             Log.d(TAG, "DEBUG: Setting up HTTP connection to Claude API");
             URL url = new URL(API_BASE_URL + "/messages");
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn = LLMHttpClient.open(url, HTTP_TIMEOUT);
             conn.setRequestMethod("POST");
             conn.setRequestProperty("Content-Type", "application/json");
             conn.setRequestProperty("x-api-key", apiKey);
             conn.setRequestProperty("anthropic-version", API_VERSION);
             conn.setDoOutput(true);
-            conn.setConnectTimeout(HTTP_TIMEOUT);
-            conn.setReadTimeout(HTTP_TIMEOUT);
 
             // Create Claude API compatible request
             JSONObject requestBody = new JSONObject();
@@ -284,9 +300,14 @@ public class ClaudeLLMClient extends LLMClient {
                 }
             }
 
-            // Add system message to request if found
+            // Add system message to request if found. It is the same on every
+            // request, so it is cached (see addCacheBreakpoint).
             if (systemPrompt != null) {
-                requestBody.put("system", systemPrompt);
+                JSONObject systemBlock = new JSONObject();
+                systemBlock.put("type", "text");
+                systemBlock.put("text", systemPrompt);
+                addCacheBreakpoint(systemBlock);
+                requestBody.put("system", new JSONArray().put(systemBlock));
             }
 
             // Add user/assistant messages from our filtered list
@@ -344,19 +365,18 @@ public class ClaudeLLMClient extends LLMClient {
                             Log.d(TAG, "Processing image " + (imgIndex + 1) + "/" + validImages.size() + ": " +
                                     imageFile.getAbsolutePath() + ", size: " + imageFile.length() + " bytes");
 
-                            String base64Image = encodeImageToBase64(imageFile);
+                            String imageData = body.addImage(imageFile);
                             JSONObject imageContent = new JSONObject();
                             imageContent.put("type", "image");
                             JSONObject imageSource = new JSONObject();
                             imageSource.put("type", "base64");
                             imageSource.put("media_type", mimeType);
-                            imageSource.put("data", base64Image);
+                            imageSource.put("data", imageData);
                             imageContent.put("source", imageSource);
                             contentArray.put(imageContent);
 
                             Log.d(TAG, "Added image " + (imgIndex + 1) + "/" + validImages.size() +
                                     ", text length: " + (msg.content != null ? msg.content.length() : 0) +
-                                    ", image base64 length: " + base64Image.length() +
                                     ", MIME type: " + mimeType);
                         } catch (IOException e) {
                             Log.e(TAG, "Failed to encode image " + (imgIndex + 1) + " for message: " +
@@ -378,8 +398,19 @@ public class ClaudeLLMClient extends LLMClient {
                 messagesArray.put(messageObj);
             }
 
+            // The history up to here is resent unchanged with the next
+            // request, so the cache written now is read then
+            if (messagesArray.length() > 0) {
+                addCacheBreakpoint(messagesArray.getJSONObject(messagesArray.length() - 1));
+            }
+
             requestBody.put("messages", messagesArray);
 
+            StreamListener streamListener = getStreamListener();
+            if (streamListener != null) {
+                requestBody.put("stream", true);
+            }
+
             String requestStr = requestBody.toString();
             Log.d(TAG, "DEBUG: Request body prepared, length: " + requestStr.length());
             Log.d(TAG, "╔══════════════════════════╗");
@@ -399,9 +430,11 @@ public class ClaudeLLMClient extends LLMClient {
 
             // Write the request
             Log.d(TAG, "DEBUG: Writing request to connection output stream");
+            long requestStartTime = System.currentTimeMillis();
+            // Chunked, so the connection does not buffer the body to measure it
+            conn.setChunkedStreamingMode(0);
             try (OutputStream os = conn.getOutputStream()) {
-                byte[] input = requestStr.getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
+                body.writeTo(requestStr, os);
             }
 
             // Check for cancellation before getting response
@@ -414,7 +447,10 @@ public class ClaudeLLMClient extends LLMClient {
             int responseCode = conn.getResponseCode();
             Log.d(TAG, "DEBUG: Claude API response code: " + responseCode);
 
-            if (responseCode == HttpURLConnection.HTTP_OK) {
+            if (responseCode == HttpURLConnection.HTTP_OK && streamListener != null) {
+                Log.d(TAG, "DEBUG: Reading streamed response");
+                return readClaudeStream(conn, future, streamListener, requestStartTime);
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
                 // Read the response
                 Log.d(TAG, "DEBUG: Reading successful response");
                 try (BufferedReader br = new BufferedReader(
@@ -442,6 +478,8 @@ public class ClaudeLLMClient extends LLMClient {
                     Log.d(TAG, "║ STOP CLAUDE API RESPONSE ║");
                     Log.d(TAG, "╚══════════════════════════╝");
 
+                    recordUsage(new JSONObject(jsonResponse).optJSONObject("usage"));
+
                     // Log response format detection for debugging
                     ResponseFormat format = detectResponseFormat(jsonResponse);
                     Log.d(TAG, "DEBUG: Detected response format: " + format);
@@ -477,14 +515,66 @@ public class ClaudeLLMClient extends LLMClient {
                 }
 
                 Log.e(TAG, "ERROR: Claude API error response (" + responseCode + "): " + errorResponse);
-                throw new RuntimeException("Claude API error: " + responseCode + " - " + errorResponse);
+                throw LLMRetryPolicy.httpError(conn, responseCode,
+                        "Claude API error: " + responseCode + " - " + errorResponse, errorResponse);
             }
         } catch (Exception e) {
             Log.e(TAG, "ERROR: Exception calling Claude API", e);
             throw new RuntimeException("Failed to call Claude API: " + e.getMessage(), e);
+        } finally {
+            LLMHttpClient.release(conn);
         }
     }
 
+    /**
+     * Reads a streamed Messages API response. Text arrives in
+     * content_block_delta events; the stop reason in message_delta.
+     */
+    private ClaudeCompletion readClaudeStream(HttpURLConnection conn,
+            CancellableCompletableFuture<AssistantResponse> future, StreamListener listener,
+            long requestStartTime) throws Exception {
+        StreamAccumulator accumulator = new StreamAccumulator(TAG, listener, requestStartTime);
+        boolean[] truncated = { false };
+
+        readServerSentEvents(conn.getInputStream(), future, (event, data) -> {
+            JSONObject json = new JSONObject(data);
+            String type = json.optString("type", event);
+            if ("message_start".equals(type)) {
+                JSONObject message = json.optJSONObject("message");
+                recordUsage(message != null ? message.optJSONObject("usage") : null);
+            } else if ("content_block_delta".equals(type)) {
+                JSONObject delta = json.optJSONObject("delta");
+                if (delta != null && "text_delta".equals(delta.optString("type"))) {
+                    accumulator.append(delta.optString("text", ""));
+                }
+            } else if ("message_delta".equals(type)) {
+                JSONObject delta = json.optJSONObject("delta");
+                if (delta != null && "max_tokens".equals(delta.optString("stop_reason"))) {
+                    truncated[0] = true;
+                }
+            } else if ("error".equals(type)) {
+                JSONObject error = json.optJSONObject("error");
+                String message = "Claude API stream error: "
+                        + (error != null ? error.optString("message", data) : data);
+                if (error != null && "overloaded_error".equals(error.optString("type"))) {
+                    // Sent instead of a 529 once the stream has started
+                    throw new LLMRetryPolicy.HttpStatusException(529, message, -1);
+                }
+                throw new RuntimeException(message);
+            } else if ("message_stop".equals(type)) {
+                return false;
+            }
+            return true;
+        });
+
+        String content = accumulator.getText();
+        Log.d(TAG, "DEBUG: Streamed response complete, length: " + content.length()
+                + ", time to first token: " + accumulator.getTimeToFirstTokenMs() + "ms"
+                + (truncated[0] ? ", truncated" : ""));
+        logTextSafely(TAG, "Extracted content", content, 1000);
+        return new ClaudeCompletion(content, truncated[0]);
+    }
+
     /**
      * Safely log JSON content with a specified maximum length
      * to avoid overwhelming logcat
@@ -520,6 +610,46 @@ public class ClaudeLLMClient extends LLMClient {
         }
     }
 
+    /**
+     * Marks the end of a cacheable prefix. Claude caches the request up to
+     * the block, and later requests starting with the same prefix read it
+     * from the cache; earlier breakpoints within the last 20 blocks are
+     * found too. A text-only message gets a content array for the marker.
+     */
+    private static void addCacheBreakpoint(JSONObject block) throws JSONException {
+        if (block.has("role")) {
+            Object content = block.opt("content");
+            JSONArray contentArray;
+            if (content instanceof JSONArray) {
+                contentArray = (JSONArray) content;
+            } else {
+                JSONObject textContent = new JSONObject();
+                textContent.put("type", "text");
+                textContent.put("text", content != null ? content.toString() : "");
+                contentArray = new JSONArray().put(textContent);
+                block.put("content", contentArray);
+            }
+            if (contentArray.length() == 0) {
+                return;
+            }
+            block = contentArray.getJSONObject(contentArray.length() - 1);
+        }
+        block.put("cache_control", new JSONObject().put("type", "ephemeral"));
+    }
+
+    /**
+     * Records the prompt cache usage of a response. Claude reports cached
+     * and newly cached tokens apart from the other input tokens.
+     */
+    private void recordUsage(JSONObject usage) {
+        if (usage == null) {
+            return;
+        }
+        long cached = usage.optLong("cache_read_input_tokens", 0);
+        long cacheWrite = usage.optLong("cache_creation_input_tokens", 0);
+        recordPromptCacheUsage(usage.optLong("input_tokens", 0) + cached + cacheWrite, cached, cacheWrite);
+    }
+
     private boolean isClaudeResponseTruncated(String jsonResponse) {
         if (jsonResponse == null) {
             return false;
@@ -783,13 +913,13 @@ public class ClaudeLLMClient extends LLMClient {
         HttpURLConnection conn = null;
         try {
             URL url = new URL(API_BASE_URL + "/models");
-            conn = (HttpURLConnection) url.openConnection();
+            LLMRequestScheduler.acquire(LLMClientFactory.LLMType.CLAUDE, apiKey, 0,
+                    LLMRequestScheduler.Priority.BACKGROUND, null);
+            conn = LLMHttpClient.open(url, HTTP_TIMEOUT);
             conn.setRequestMethod("GET");
             conn.setRequestProperty("Content-Type", "application/json");
             conn.setRequestProperty("x-api-key", apiKey);
             conn.setRequestProperty("anthropic-version", API_VERSION);
-            conn.setConnectTimeout(HTTP_TIMEOUT);
-            conn.setReadTimeout(HTTP_TIMEOUT);
 
             int responseCode = conn.getResponseCode();
             if (responseCode == HttpURLConnection.HTTP_OK) {
@@ -861,9 +991,8 @@ public class ClaudeLLMClient extends LLMClient {
         } catch (Exception e) {
             Log.e(TAG, "Error fetching Claude models", e);
         } finally {
-            if (conn != null) {
-                conn.disconnect();
-            }
+            // Not disconnect(), which would close the pooled socket
+            LLMHttpClient.release(conn);
         }
 
         // If models list is empty after fetching, provide default models
@@ -20,6 +20,7 @@ import androidx.appcompat.app.AppCompatActivity;
 import android.net.Uri;
 import android.util.Log;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.HashSet;
@@ -34,7 +35,9 @@ import android.view.MenuItem;
 import android.app.ProgressDialog;
 import android.os.Handler;
 import android.content.ComponentName;
+import android.text.Editable;
 import android.text.InputType;
+import android.text.TextWatcher;
 import android.text.method.LinkMovementMethod;
 import android.view.ViewGroup;
 import android.widget.ListView;
@@ -51,6 +54,9 @@ import org.json.JSONException;
 public class ClojureAppDesignActivity extends AppCompatActivity {
     private static final String TAG = "ClojureAppDesign";
     private static final String UNNAMED_SESSION = "(unnamed session)";
+    // How long other racers' responses are awaited after the first valid one
+    // to run them as auto-iteration candidates
+    private static final long CANDIDATE_WINDOW_MS = 5000;
 
     private ScrollView chatHistoryContainer;
     private LinearLayout chatHistoryLayout;
@@ -117,6 +123,12 @@ public class ClojureAppDesignActivity extends AppCompatActivity {
     private AlertDialog iterationProgressDialog;
     private AlertDialog initialGenerationProgressDialog;
 
+    // Runs several candidate programs in parallel render slots
+    private CandidateRunner candidateRunner;
+
+    // Compiles the leading forms of a response while it streams
+    private SpeculativeCompiler speculativeCompiler;
+
     private void createNewSession() {
         // Create a new session
         currentSession = new DesignSession();
@@ -133,6 +145,8 @@ public class ClojureAppDesignActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_clojure_design);
 
+        speculativeCompiler = new SpeculativeCompiler(this);
+
         // Initialize session manager
         sessionManager = SessionManager.getInstance(this);
 
@@ -274,12 +288,17 @@ public class ClojureAppDesignActivity extends AppCompatActivity {
                     } else {
                         updateLlmSpinner(LLMClientFactory.LLMType.CLAUDE);
                     }
+                } else if (selectedType == LLMClientFactory.LLMType.REPLAY) {
+                    // Needs no API key. Picks up recordings pushed since it was last selected.
+                    ReplayIndex.invalidate();
+                    updateLlmSpinner(LLMClientFactory.LLMType.REPLAY);
                 } else {
                     assert false;
                 }
 
                 if (currentSession.getLlmType() != selectedType) {
                     currentSession.setLlmType(selectedType);
+                    LLMClientFactory.prewarmConnection(selectedType);
                     // We're changing the model provider so clear the model name in the current
                     // session, but do this only if we haven't started generating code yet.
                     currentSession.setLlmModel(null);
@@ -330,6 +349,31 @@ public class ClojureAppDesignActivity extends AppCompatActivity {
 
         // Make feedback input always visible for chat-like interface
         feedbackInput.setVisibility(View.VISIBLE);
+
+        // Connect to the provider ahead of the first request, and again while
+        // the user types in case the idle connection was closed meanwhile
+        LLMClientFactory.prewarmConnection(currentSession.getLlmType());
+        feedbackInput.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                if (count > 0) {
+                    LLMClientFactory.prewarmConnection(currentSession.getLlmType());
+                }
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+            }
+        });
+
+        LLMRequestScheduler.loadLimits(this);
+
+        // Load Clojure for the pre-flight check while the user is busy
+        PreflightCheck.warmUp();
     }
 
     /**
@@ -782,6 +826,32 @@ public class ClojureAppDesignActivity extends AppCompatActivity {
         String prompt = iterationManager.getLLMClient().formatInitialPrompt(description, initialCode);
         chatSession.queueUserMessage(new LLMClient.UserMessage(prompt, null, null, initialCode));
 
+        // Show progress while the code is generated
+        streamNextResponse(new StreamingJsonExtractor.Listener() {
+            private int codeLines = 0;
+
+            @Override
+            public void onReasoningDelta(String delta) {
+                runOnUiThread(() -> progressText.setText("Assistant is reasoning..."));
+            }
+
+            @Override
+            public void onCodeDelta(String delta) {
+                for (int i = 0; i < delta.length(); i++) {
+                    if (delta.charAt(i) == '\n') {
+                        codeLines++;
+                    }
+                }
+                final int lines = codeLines;
+                runOnUiThread(() -> progressText.setText("Writing code (" + lines + " lines)..."));
+            }
+
+            @Override
+            public void onReset() {
+                codeLines = 0;
+            }
+        });
+
         // Call sendMessages directly with a filter that excludes marker messages and previous auto-iteration sequences
         iterationManager.sendMessages(chatSession, createMessageFilter(chatSession))
                 .thenAccept(assistantMessage -> {
@@ -982,12 +1052,15 @@ public class ClojureAppDesignActivity extends AppCompatActivity {
 
         // Format the iteration prompt
         String prompt = iterationManager.getLLMClient().formatIterationPrompt(currentSession.getDescription(),
-                currentCode, logcatText, feedback, images != null && !images.isEmpty(), false);
+                currentCode, logcatText, currentSession.getLastViewHierarchy(), feedback,
+                images != null && !images.isEmpty(), false);
 
         // Queue the user message (with images attachment if provided)
         LLMClient.UserMessage userMessage = new LLMClient.UserMessage(prompt, images, logcatText, feedback, null);
         chatSession.queueUserMessage(userMessage);
 
+        streamNextResponse(null);
+
         // Call sendMessages directly with a filter that excludes marker messages and previous auto-iteration sequences
         iterationManager.sendMessages(chatSession, createMessageFilter(chatSession))
                 .thenAccept(assistantMessage -> {
@@ -1159,6 +1232,12 @@ public class ClojureAppDesignActivity extends AppCompatActivity {
             iterationManager.shutdown();
         }
 
+        if (candidateRunner != null) {
+            candidateRunner.cancel();
+        }
+
+        speculativeCompiler.stop();
+
         if (apiKeyDialog != null && apiKeyDialog.isShowing()) {
             apiKeyDialog.dismiss();
         }
@@ -1221,40 +1300,22 @@ public class ClojureAppDesignActivity extends AppCompatActivity {
             }
         }
 
+        // Keep the layout dump of this run for the next iteration prompt
+        if (intent.hasExtra(RenderActivity.EXTRA_RESULT_VIEW_HIERARCHY)) {
+            String viewHierarchy = intent.getStringExtra(RenderActivity.EXTRA_RESULT_VIEW_HIERARCHY);
+            Log.d(TAG, "Received view hierarchy of length: " + (viewHierarchy != null ? viewHierarchy.length() : 0));
+            currentSession.setLastViewHierarchy(viewHierarchy);
+            doUpdateSession = true;
+        }
+
         // Check for error feedback from RenderActivity
         if (intent.hasExtra(RenderActivity.EXTRA_RESULT_ERROR)) {
             Log.d(TAG, "RenderActivity returned error status: "
                     + intent.getStringExtra(RenderActivity.EXTRA_RESULT_ERROR));
             String errorFeedback = intent.getStringExtra(RenderActivity.EXTRA_RESULT_ERROR);
-
-            // Pre-fill the feedback input
-            if (feedbackInput != null) {
-                feedbackInput.setText(errorFeedback);
-            }
-
-            // Save error info to session (both legacy and iteration-specific)
-            currentSession.setLastErrorFeedback(errorFeedback);
-            currentSession.setHasError(true);
-
-            // Save error for the specific iteration that was just run
-            if (currentRunningIteration > 0) {
-                currentSession.setIterationError(currentRunningIteration, errorFeedback);
-                Log.d(TAG, "Saved error feedback for iteration " + currentRunningIteration + ": " + errorFeedback);
-            } else {
-                Log.w(TAG, "No current running iteration to associate error with");
-            }
-
+            handleRunError(errorFeedback, currentRunningIteration,
+                    intent.getBooleanExtra(RenderActivity.EXTRA_RESULT_AUTO_RETURN_ON_ERROR, false));
             doUpdateSession = true;
-            Log.d(TAG, "Saved error feedback to session");
-
-            // Check if we should automatically iterate on error
-            if (intent.hasExtra(RenderActivity.EXTRA_RESULT_AUTO_RETURN_ON_ERROR) &&
-                    intent.getBooleanExtra(RenderActivity.EXTRA_RESULT_AUTO_RETURN_ON_ERROR, false) &&
-                    autoIterateOnError) {
-                autoIterationCount++;
-                Log.d(TAG, "Auto-iterating on error: step " + autoIterationCount);
-                autoIterate(errorFeedback);
-            }
         } else {
             Log.d(TAG, "RenderActivity returned with no error status");
             currentSession.setLastErrorFeedback(null);
@@ -1293,6 +1354,42 @@ public class ClojureAppDesignActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Records the error of a run, from the render process or the pre-flight
+     * check, and auto-iterates on it if enabled. The caller updates the
+     * session.
+     *
+     * @param autoReturnOnError Whether the run was started to auto-iterate
+     *                          on errors
+     */
+    private void handleRunError(String errorFeedback, int currentRunningIteration, boolean autoReturnOnError) {
+        // Pre-fill the feedback input
+        if (feedbackInput != null) {
+            feedbackInput.setText(errorFeedback);
+        }
+
+        // Save error info to session (both legacy and iteration-specific)
+        currentSession.setLastErrorFeedback(errorFeedback);
+        currentSession.setHasError(true);
+
+        // Save error for the specific iteration that was just run
+        if (currentRunningIteration > 0) {
+            currentSession.setIterationError(currentRunningIteration, errorFeedback);
+            Log.d(TAG, "Saved error feedback for iteration " + currentRunningIteration + ": " + errorFeedback);
+        } else {
+            Log.w(TAG, "No current running iteration to associate error with");
+        }
+
+        Log.d(TAG, "Saved error feedback to session");
+
+        // Check if we should automatically iterate on error
+        if (autoReturnOnError && autoIterateOnError) {
+            autoIterationCount++;
+            Log.d(TAG, "Auto-iterating on error: step " + autoIterationCount);
+            autoIterate(errorFeedback);
+        }
+    }
+
     // Helper method to convert dp to pixels
     private int dpToPx(int dp) {
         float density = getResources().getDisplayMetrics().density;
@@ -1315,7 +1412,7 @@ public class ClojureAppDesignActivity extends AppCompatActivity {
             CompletableFuture.supplyAsync(() -> {
                 Log.d(TAG, "Fetching available models from factory for type: " + type);
                 ApiKeyManager apiKeyManager = ApiKeyManager.getInstance(this);
-                if (!apiKeyManager.hasApiKey(type)) {
+                if (type != LLMClientFactory.LLMType.REPLAY && !apiKeyManager.hasApiKey(type)) {
                     Log.w(TAG, "No API key available for type: " + type);
                     return new ArrayList<String>();
                 }
@@ -1583,6 +1680,10 @@ public class ClojureAppDesignActivity extends AppCompatActivity {
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main_menu, menu);
+        menu.findItem(R.id.action_reuse_render_process).setChecked(RenderActivity.isProcessReuseEnabled());
+        menu.findItem(R.id.action_patch_responses).setChecked(LLMClient.isPatchResponsesEnabled());
+        menu.findItem(R.id.action_preflight_analysis).setChecked(PreflightCheck.isAnalysisEnabled());
+        menu.findItem(R.id.action_replay_stand_in).setChecked(ReplayHttpServer.isRunning());
         return super.onCreateOptionsMenu(menu);
     }
 
@@ -1602,6 +1703,35 @@ public class ClojureAppDesignActivity extends AppCompatActivity {
         } else if (id == R.id.action_toggle_line_numbers) {
             toggleLineNumbersDisplay();
             return true;
+        } else if (id == R.id.action_reuse_render_process) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            RenderActivity.setProcessReuseEnabled(enabled);
+            Log.d(TAG, "Render process reuse " + (enabled ? "enabled" : "disabled"));
+            return true;
+        } else if (id == R.id.action_patch_responses) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            LLMClient.setPatchResponsesEnabled(enabled);
+            Log.d(TAG, "Patch responses " + (enabled ? "enabled" : "disabled"));
+            return true;
+        } else if (id == R.id.action_preflight_analysis) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            PreflightCheck.setAnalysisEnabled(enabled);
+            Log.d(TAG, "Pre-flight analysis " + (enabled ? "enabled" : "disabled"));
+            return true;
+        } else if (id == R.id.action_replay_stand_in) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            setReplayStandInEnabled(enabled, item);
+            return true;
+        } else if (id == R.id.action_race_providers) {
+            showRaceProvidersDialog();
+            return true;
+        } else if (id == R.id.action_rate_limits) {
+            showRateLimitsDialog((LLMClientFactory.LLMType) llmTypeSpinner.getSelectedItem());
+            return true;
         } else if (id == android.R.id.home) {
             onBackPressed();
             return true;
@@ -1609,6 +1739,139 @@ public class ClojureAppDesignActivity extends AppCompatActivity {
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Starts or stops the ReplayHttpServer, which answers the providers'
+     * requests with recorded responses.
+     */
+    private void setReplayStandInEnabled(boolean enabled, MenuItem item) {
+        // The providers list other models with the stand-in
+        LLMClientFactory.clearAllModelCaches();
+        if (!enabled) {
+            ReplayHttpServer.stop();
+            Log.d(TAG, "Replay stand-in disabled");
+            return;
+        }
+        CompletableFuture.runAsync(() -> {
+            try {
+                int port = ReplayHttpServer.start(this);
+                Log.d(TAG, "Replay stand-in enabled on port " + port);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot start the replay stand-in", e);
+                runOnUiThread(() -> {
+                    item.setChecked(false);
+                    Toast.makeText(this, "Cannot start the replay stand-in: " + e.getMessage(),
+                            Toast.LENGTH_SHORT).show();
+                });
+            }
+        });
+    }
+
+    /**
+     * Lets the user pick the provider/model pairs the session's model races
+     * against, see ProviderRace. Models are listed for every provider with an
+     * API key, with their results in earlier races.
+     */
+    private void showRaceProvidersDialog() {
+        ProgressDialog progressDialog = new ProgressDialog(this);
+        progressDialog.setMessage("Fetching available models...");
+        progressDialog.setCancelable(false);
+        progressDialog.show();
+
+        CompletableFuture.supplyAsync(() -> {
+            List<ProviderRace.Racer> racers = new ArrayList<>();
+            ApiKeyManager apiKeyManager = ApiKeyManager.getInstance(this);
+            for (LLMClientFactory.LLMType type : LLMClientFactory.LLMType.values()) {
+                if (type == LLMClientFactory.LLMType.STUB || !apiKeyManager.hasApiKey(type)) {
+                    continue;
+                }
+                try {
+                    for (String model : LLMClientFactory.getAvailableModels(this, type)) {
+                        racers.add(new ProviderRace.Racer(type, model));
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Error fetching models for " + type, e);
+                }
+            }
+            return racers;
+        }).thenAccept(racers -> runOnUiThread(() -> {
+            progressDialog.dismiss();
+            if (racers.isEmpty()) {
+                Toast.makeText(this, "No models available, add an API key first", Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            List<String> selectedKeys = new ArrayList<>();
+            for (ProviderRace.Racer racer : ProviderRace.getRacers(this)) {
+                selectedKeys.add(racer.key());
+            }
+            String[] labels = new String[racers.size()];
+            boolean[] checked = new boolean[racers.size()];
+            for (int i = 0; i < racers.size(); i++) {
+                ProviderRace.Racer racer = racers.get(i);
+                ProviderRace.Stats stats = ProviderRace.getStats(this, racer);
+                labels[i] = racer.type.name() + " / " + racer.model + (stats != null ? " (" + stats + ")" : "");
+                checked[i] = selectedKeys.contains(racer.key());
+            }
+
+            new AlertDialog.Builder(this)
+                    .setTitle("Race Against")
+                    .setMultiChoiceItems(labels, checked, (dialog, which, isChecked) -> checked[which] = isChecked)
+                    .setPositiveButton("Save", (dialog, which) -> {
+                        List<ProviderRace.Racer> selected = new ArrayList<>();
+                        for (int i = 0; i < racers.size(); i++) {
+                            if (checked[i]) {
+                                selected.add(racers.get(i));
+                            }
+                        }
+                        ProviderRace.setRacers(this, selected);
+                        Toast.makeText(this, selected.isEmpty() ? "Racing disabled"
+                                : "Racing against " + selected.size() + " models", Toast.LENGTH_SHORT).show();
+                    })
+                    .setNegativeButton("Cancel", null)
+                    .show();
+        }));
+    }
+
+    /**
+     * Lets the user set the rate limits of their tier with a provider, which
+     * LLMRequestScheduler paces the requests by.
+     */
+    private void showRateLimitsDialog(LLMClientFactory.LLMType type) {
+        int[] limits = LLMRequestScheduler.getLimits(type);
+
+        final EditText requestsInput = new EditText(this);
+        requestsInput.setInputType(InputType.TYPE_CLASS_NUMBER);
+        requestsInput.setHint("Requests per minute");
+        requestsInput.setText(String.valueOf(limits[0]));
+        final EditText tokensInput = new EditText(this);
+        tokensInput.setInputType(InputType.TYPE_CLASS_NUMBER);
+        tokensInput.setHint("Input tokens per minute");
+        tokensInput.setText(String.valueOf(limits[1]));
+
+        LinearLayout layout = new LinearLayout(this);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        layout.setPadding(50, 20, 50, 0);
+        layout.addView(requestsInput);
+        layout.addView(tokensInput);
+
+        new AlertDialog.Builder(this)
+                .setTitle(type.name() + " Rate Limits")
+                .setView(layout)
+                .setPositiveButton("Save", (dialog, which) -> {
+                    try {
+                        int requestsPerMinute = Integer.parseInt(requestsInput.getText().toString().trim());
+                        int tokensPerMinute = Integer.parseInt(tokensInput.getText().toString().trim());
+                        LLMRequestScheduler.saveLimits(this, type, requestsPerMinute, tokensPerMinute);
+                        Toast.makeText(this, type.name() + " rate limits saved", Toast.LENGTH_SHORT).show();
+                    } catch (IllegalArgumentException e) {
+                        // Also covers NumberFormatException
+                        Toast.makeText(this, "Invalid rate limits: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
     @Override
     public void onBackPressed() {
         // Check if session is unnamed and prompt user to name it
@@ -1662,6 +1925,15 @@ public class ClojureAppDesignActivity extends AppCompatActivity {
      * when there is no chat history yet.
      */
     private void runSelectedCode(boolean returnOnError) {
+        runSelectedCode(returnOnError, null);
+    }
+
+    /**
+     * Like runSelectedCode(returnOnError), but if candidateCodes holds more
+     * than one program for the selected iteration, they run side by side,
+     * see runCandidates. The first one is the selected message's code.
+     */
+    private void runSelectedCode(boolean returnOnError, List<String> candidateCodes) {
         if (currentSession == null) {
             Toast.makeText(this, "No session available", Toast.LENGTH_SHORT).show();
             return;
@@ -1712,8 +1984,43 @@ public class ClojureAppDesignActivity extends AppCompatActivity {
             Log.d(TAG,
                     "Running code from iteration " + selectedIteration + " (AI response at index " + codeMessageIndex +
                             ", originally selected index " + selectedChatEntryIndex + ")");
+
+            if (candidateCodes != null && candidateCodes.size() > 1) {
+                runCandidates(candidateCodes, codeMessageIndex, selectedIteration, returnOnError);
+                return;
+            }
         }
 
+        if (returnOnError && autoIterateOnError) {
+            // Errors the pre-flight check finds go straight to auto-iteration,
+            // without launching a render process
+            final String code = codeToRun;
+            final int messageIndex = codeMessageIndex;
+            final int iteration = selectedIteration;
+            PreflightCheck.check(code).thenAccept(error -> runOnUiThread(() -> {
+                if (error == null) {
+                    launchRender(code, messageIndex, iteration, returnOnError);
+                    return;
+                }
+                Log.d(TAG, "Pre-flight check failed, not running iteration " + iteration + ": " + error);
+                String errorFeedback = "Pre-flight check failed, the code was not run:\n" + error;
+                // No layout; the previous program's must not describe this one
+                currentSession.setLastViewHierarchy(null);
+                handleRunError(errorFeedback, iteration, true);
+                sessionManager.updateSession(currentSession);
+            }));
+        } else {
+            launchRender(codeToRun, codeMessageIndex, selectedIteration, returnOnError);
+        }
+    }
+
+    /**
+     * Runs code in a render process.
+     */
+    private void launchRender(String codeToRun, int codeMessageIndex, int selectedIteration,
+            boolean returnOnError) {
+        // Runs that end without a layout, e.g. on a timeout, leave none
+        currentSession.setLastViewHierarchy(null);
         // Start the activity with the selected code
         RenderActivity.launch(this, ClojureAppDesignActivity.class,
                 new RenderActivity.ExitCallback() {
@@ -1729,6 +2036,33 @@ public class ClojureAppDesignActivity extends AppCompatActivity {
                         });
                     }
                 },
+                new RenderResultChannel.Listener() {
+                    // Live events from the running program. Final results
+                    // still arrive in onNewIntent when RenderActivity returns.
+                    @Override
+                    public void onTiming(String stage, long timeMs) {
+                        Log.d(TAG, "Render timing: " + stage + ": " + timeMs + "ms");
+                    }
+
+                    @Override
+                    public void onMetric(String name, long value) {
+                        Log.d(TAG, "Render metric: " + name + ": " + value);
+                    }
+
+                    @Override
+                    public void onScreenshot(String path) {
+                        Log.d(TAG, "Render screenshot kept: " + path);
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        Log.d(TAG, "Render error while app is running: " + error);
+                        // Pre-fill the feedback so it is ready when the user returns
+                        if (feedbackInput != null) {
+                            feedbackInput.setText(error);
+                        }
+                    }
+                },
                 codeToRun,
                 currentSession.getId().toString(),
                 codeMessageIndex,
@@ -1737,6 +2071,64 @@ public class ClojureAppDesignActivity extends AppCompatActivity {
                 returnOnError); // Enable return_on_error flag
     }
 
+    /**
+     * Runs several candidate programs for the same iteration at once, each in
+     * its own render process, and keeps the first one that runs without
+     * errors as the session's current code. That candidate stays on screen
+     * and returns its results like a regular run. If none does and
+     * returnOnError is set, the first candidate's error is handled like the
+     * error of a regular run, which continues auto-iteration.
+     */
+    private void runCandidates(List<String> candidateCodes, int messageIndex, int iteration,
+            boolean returnOnError) {
+        if (currentSession == null) {
+            Toast.makeText(this, "No session available", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (candidateRunner != null) {
+            candidateRunner.cancel();
+        }
+
+        Log.d(TAG, "Running " + candidateCodes.size() + " candidates for iteration " + iteration);
+        // The picked candidate returns its layout like a regular run
+        currentSession.setLastViewHierarchy(null);
+        candidateRunner = new CandidateRunner(this, CandidateRunner.DEFAULT_TIMEOUT_MS,
+                CandidateRunner.DEFAULT_SETTLE_MS);
+        candidateRunner.start(candidateCodes, currentSession.getId().toString(), messageIndex, iteration,
+                new CandidateRunner.Listener() {
+                    @Override
+                    public void onCandidatePicked(int index) {
+                        Log.d(TAG, "Candidate " + index + " ran without errors");
+                        currentSession.setCurrentCode(candidateCodes.get(index));
+                        sessionManager.updateSession(currentSession);
+                        displayCurrentCode();
+                    }
+
+                    @Override
+                    public void onNoCandidateSucceeded(List<String> errors) {
+                        Log.d(TAG, "No candidate ran without errors");
+                        Toast.makeText(ClojureAppDesignActivity.this, "All candidates failed",
+                                Toast.LENGTH_SHORT).show();
+                        // The first candidate is the code the session recorded
+                        String error = errors.get(0);
+                        if (error == null) {
+                            error = "The program did not run without errors";
+                        }
+                        handleRunError(error, iteration, returnOnError);
+                        sessionManager.updateSession(currentSession);
+                    }
+
+                    @Override
+                    public void onPickedExited(String logcat) {
+                        if (currentSession != null && logcat != null && !logcat.isEmpty()) {
+                            currentSession.setLastLogcat(logcat);
+                            sessionManager.updateSession(currentSession);
+                            Log.d(TAG, "Saved logcat to session");
+                        }
+                    }
+                });
+    }
+
     /**
      * Finds the last AI response message before the given message index.
      *
@@ -3302,6 +3694,49 @@ public class ClojureAppDesignActivity extends AppCompatActivity {
         dialogRef[0].show();
     }
 
+    /**
+     * Streams the next response of the iteration manager's client. Its code is
+     * compiled speculatively as top-level forms complete, see
+     * SpeculativeCompiler.
+     *
+     * @param progress Also receives the response's deltas, may be null
+     */
+    private void streamNextResponse(StreamingJsonExtractor.Listener progress) {
+        speculativeCompiler.start();
+        iterationManager.getLLMClient().setStreamListener(new StreamingJsonExtractor(
+                new StreamingJsonExtractor.Listener() {
+                    @Override
+                    public void onReasoningDelta(String delta) {
+                        if (progress != null) {
+                            progress.onReasoningDelta(delta);
+                        }
+                    }
+
+                    @Override
+                    public void onCodeDelta(String delta) {
+                        speculativeCompiler.onCodeDelta(delta);
+                        if (progress != null) {
+                            progress.onCodeDelta(delta);
+                        }
+                    }
+
+                    @Override
+                    public void onFieldComplete(String field) {
+                        if (progress != null) {
+                            progress.onFieldComplete(field);
+                        }
+                    }
+
+                    @Override
+                    public void onReset() {
+                        speculativeCompiler.start();
+                        if (progress != null) {
+                            progress.onReset();
+                        }
+                    }
+                }));
+    }
+
     /**
      * Creates a new ClojureIterationManager and queues the system prompt if needed
      * 
@@ -3412,20 +3847,37 @@ public class ClojureAppDesignActivity extends AppCompatActivity {
 
         // Format the iteration prompt
         String prompt = iterationManager.getLLMClient().formatIterationPrompt(currentSession.getDescription(),
-                currentSession.getCurrentCode(), logcatText, errorFeedback, false, true);
+                currentSession.getCurrentCode(), logcatText, currentSession.getLastViewHierarchy(), errorFeedback,
+                false, true);
 
         // Queue the user message (no images for automatic iteration)
         LLMClient.UserMessage userMessage = new LLMClient.UserMessage(prompt, new ArrayList<>(), logcatText,
                 errorFeedback, null);
         chatSession.queueUserMessage(userMessage);
 
-        // Call sendMessages directly with a filter that excludes marker messages and previous auto-iteration sequences
-        iterationManager.sendMessages(chatSession, createMessageFilter(chatSession))
-                .thenAccept(assistantMessage -> {
+        streamNextResponse(null);
+
+        // Call sendMessages directly with a filter that excludes marker messages and previous auto-iteration sequences.
+        // Auto-iterations yield to requests the user started.
+        // With racers configured, other valid responses become candidates that
+        // run side by side with the recorded one, see runCandidates.
+        iterationManager.sendForCandidates(chatSession, createMessageFilter(chatSession),
+                LLMRequestScheduler.Priority.BACKGROUND, RenderActivity.MAX_SLOTS, CANDIDATE_WINDOW_MS)
+                .thenAccept(responses -> {
+                    LLMClient.AssistantResponse assistantMessage = responses.get(0);
                     // Queue the assistant response to the chat session
                     chatSession.queueAssistantResponse(assistantMessage);
 
                     String code = assistantMessage.getExtractedCode();
+                    List<String> candidateCodes = new ArrayList<>();
+                    if (code != null) {
+                        for (LLMClient.AssistantResponse response : responses) {
+                            String candidateCode = response.getExtractedCode();
+                            if (candidateCode != null && !candidateCodes.contains(candidateCode)) {
+                                candidateCodes.add(candidateCode);
+                            }
+                        }
+                    }
                     runOnUiThread(() -> {
                         // Dismiss progress dialog
                         if (iterationProgressDialog != null) {
@@ -3486,7 +3938,7 @@ public class ClojureAppDesignActivity extends AppCompatActivity {
                         updateChatHistoryDisplayWithLatestSelection();
 
                         // Automatically run the fixed code
-                        runSelectedCode(true);
+                        runSelectedCode(true, candidateCodes);
                     });
                 })
                 .exceptionally(throwable -> {
@@ -2,6 +2,12 @@ package com.example.clojurerepl;
 
 import android.content.Context;
 import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.UUID;
@@ -10,10 +16,14 @@ import com.example.clojurerepl.session.DesignSession;
 
 public class ClojureIterationManager {
     private static final String TAG = "ClojureIterationManager";
+    private static final String FULL_CODE_REQUEST = "Your patch could not be applied: %s\n"
+            + "Reply with the complete updated program in the \"code\" field and no \"patch\".";
 
     private final Context context;
     private final LLMClient llmClient;
     private final UUID sessionId;
+    private final DesignSession session;
+    private final ProviderRace race;
 
     private ExecutorService executor;
     private LLMClient.CancellableCompletableFuture<LLMClient.AssistantResponse> currentFuture;
@@ -23,13 +33,24 @@ public class ClojureIterationManager {
         this.llmClient = LLMClientFactory.createClient(context, session.getLlmType(), session.getLlmModel(),
                 session.getChatSession());
         this.sessionId = session.getId();
+        this.session = session;
+        this.race = new ProviderRace(context, llmClient, session.getChatSession());
 
         // Initialize executor for background tasks
         this.executor = Executors.newCachedThreadPool();
     }
 
     /**
-     * Sends messages using the LLM client and returns a cancellable future
+     * Sends messages using the LLM client and returns a cancellable future.
+     *
+     * A response with a "patch" instead of code, see CodePatcher, is applied
+     * to the current program and completes the future as if the model had
+     * written the full program, so the session records the whole result. If
+     * the patch does not apply, the model is asked once more for the full
+     * program; that exchange is not recorded in the chat session.
+     *
+     * If racers are configured, see ProviderRace, the request goes to them
+     * too and the first valid response is used.
      * 
      * @param chatSession The chat session containing messages to send
      * @param messageFilter A filter that determines which messages to send. If null, all messages are sent.
@@ -38,6 +59,17 @@ public class ClojureIterationManager {
      */
     public LLMClient.CancellableCompletableFuture<LLMClient.AssistantResponse> sendMessages(
             LLMClient.ChatSession chatSession, LLMClient.MessageFilter messageFilter) {
+        return sendMessages(chatSession, messageFilter, LLMRequestScheduler.Priority.INTERACTIVE);
+    }
+
+    /**
+     * Like sendMessages(chatSession, messageFilter), with the priority of the
+     * request in the LLMRequestScheduler, e.g. BACKGROUND for requests the
+     * user does not wait for.
+     */
+    public LLMClient.CancellableCompletableFuture<LLMClient.AssistantResponse> sendMessages(
+            LLMClient.ChatSession chatSession, LLMClient.MessageFilter messageFilter,
+            LLMRequestScheduler.Priority priority) {
         // Cancel any previous request that might be running
         if (currentFuture != null && !currentFuture.isDone()) {
             currentFuture.cancel(true);
@@ -45,12 +77,239 @@ public class ClojureIterationManager {
 
         Log.d(TAG, "Sending messages to LLM client");
 
-        // Call sendMessages directly and store the future
-        currentFuture = llmClient.sendMessages(chatSession, messageFilter);
+        // The program a patch in the response applies to
+        String baseCode = session.getCurrentCode();
+        if (baseCode == null) {
+            baseCode = session.getInitialCode();
+        }
+        final String patchBase = baseCode;
+
+        LLMClient.CancellableCompletableFuture<LLMClient.AssistantResponse> result =
+                new LLMClient.CancellableCompletableFuture<>();
+        send(chatSession, messageFilter, priority, result).whenComplete((response, throwable) -> {
+            if (throwable != null) {
+                result.completeExceptionally(throwable);
+                return;
+            }
+            completeApplyingPatch(chatSession, messageFilter, priority, response, patchBase, result);
+        });
+        currentFuture = result;
 
         return currentFuture;
     }
 
+    /**
+     * Whether requests go to racers too, see ProviderRace.
+     */
+    public boolean isRacing() {
+        return race.isRacing();
+    }
+
+    /**
+     * Like sendMessages, but keeps up to maxCandidates valid responses when
+     * racing, see ProviderRace.sendForCandidates, so their programs can be
+     * run as candidates. The first response is the one the session records
+     * and is handled like in sendMessages; the others are dropped if their
+     * patch does not apply. Without racers, completes with the one response.
+     */
+    public LLMClient.CancellableCompletableFuture<List<LLMClient.AssistantResponse>> sendForCandidates(
+            LLMClient.ChatSession chatSession, LLMClient.MessageFilter messageFilter,
+            LLMRequestScheduler.Priority priority, int maxCandidates, long windowMs) {
+        LLMClient.CancellableCompletableFuture<List<LLMClient.AssistantResponse>> result =
+                new LLMClient.CancellableCompletableFuture<>();
+        if (!race.isRacing()) {
+            LLMClient.CancellableCompletableFuture<LLMClient.AssistantResponse> single =
+                    sendMessages(chatSession, messageFilter, priority);
+            single.whenComplete((response, throwable) -> {
+                if (throwable != null) {
+                    result.completeExceptionally(throwable);
+                } else {
+                    List<LLMClient.AssistantResponse> responses = new ArrayList<>();
+                    responses.add(response);
+                    result.complete(responses);
+                }
+            });
+            result.whenComplete((responses, throwable) -> {
+                if (result.isCancelled()) {
+                    single.cancel(true);
+                }
+            });
+            return result;
+        }
+
+        if (currentFuture != null && !currentFuture.isDone()) {
+            currentFuture.cancel(true);
+        }
+        Log.d(TAG, "Sending messages for up to " + maxCandidates + " candidates");
+
+        String baseCode = session.getCurrentCode();
+        if (baseCode == null) {
+            baseCode = session.getInitialCode();
+        }
+        final String patchBase = baseCode;
+
+        // Stands for the whole request, so cancelCurrentRequest cancels it
+        LLMClient.CancellableCompletableFuture<LLMClient.AssistantResponse> first =
+                new LLMClient.CancellableCompletableFuture<>();
+        LLMClient.CancellableCompletableFuture<List<LLMClient.AssistantResponse>> request =
+                race.sendForCandidates(chatSession, messageFilter, priority, maxCandidates, windowMs);
+        first.whenComplete((response, throwable) -> {
+            if (first.isCancelled()) {
+                request.cancel(true);
+                result.cancel(true);
+            }
+        });
+        result.whenComplete((responses, throwable) -> {
+            if (result.isCancelled()) {
+                first.cancel(true);
+            }
+        });
+        request.whenComplete((responses, throwable) -> {
+            if (throwable != null) {
+                first.completeExceptionally(throwable);
+                result.completeExceptionally(throwable);
+                return;
+            }
+            List<LLMClient.AssistantResponse> others = new ArrayList<>();
+            for (LLMClient.AssistantResponse response : responses.subList(1, responses.size())) {
+                String patch = getPatch(response);
+                if (patch == null) {
+                    others.add(response);
+                    continue;
+                }
+                try {
+                    others.add(applyPatch(response, patchBase, patch));
+                } catch (CodePatcher.PatchException e) {
+                    Log.w(TAG, "Dropping a candidate whose patch does not apply: " + e.getMessage());
+                }
+            }
+            first.whenComplete((response, firstThrowable) -> {
+                if (firstThrowable != null) {
+                    result.completeExceptionally(firstThrowable);
+                    return;
+                }
+                List<LLMClient.AssistantResponse> candidates = new ArrayList<>();
+                candidates.add(response);
+                candidates.addAll(others);
+                result.complete(candidates);
+            });
+            completeApplyingPatch(chatSession, messageFilter, priority, responses.get(0), patchBase, first);
+        });
+        currentFuture = first;
+
+        return result;
+    }
+
+    /**
+     * Completes result with the response, with its patch applied if it has
+     * one. If the patch does not apply, the model is asked once more for the
+     * full program.
+     */
+    private void completeApplyingPatch(LLMClient.ChatSession chatSession, LLMClient.MessageFilter messageFilter,
+            LLMRequestScheduler.Priority priority, LLMClient.AssistantResponse response, String patchBase,
+            LLMClient.CancellableCompletableFuture<LLMClient.AssistantResponse> result) {
+        String patch = getPatch(response);
+        if (patch == null) {
+            result.complete(response);
+            return;
+        }
+        try {
+            result.complete(applyPatch(response, patchBase, patch));
+        } catch (CodePatcher.PatchException e) {
+            Log.w(TAG, "Patch does not apply, requesting the full program: " + e.getMessage());
+            requestFullCode(chatSession, messageFilter, priority, response, e.getMessage(), patchBase, result);
+        }
+    }
+
+    /**
+     * Sends a request, raced if racers are configured, on behalf of result,
+     * which cancels it when cancelled.
+     */
+    private LLMClient.CancellableCompletableFuture<LLMClient.AssistantResponse> send(
+            LLMClient.ChatSession chatSession, LLMClient.MessageFilter messageFilter,
+            LLMRequestScheduler.Priority priority,
+            LLMClient.CancellableCompletableFuture<LLMClient.AssistantResponse> result) {
+        LLMClient.CancellableCompletableFuture<LLMClient.AssistantResponse> request = race.isRacing()
+                ? race.send(chatSession, messageFilter, priority)
+                : llmClient.sendMessages(chatSession, messageFilter, priority);
+        result.whenComplete((response, throwable) -> {
+            if (result.isCancelled()) {
+                request.cancel(true);
+            }
+        });
+        return request;
+    }
+
+    /**
+     * Returns the patch of a response without code, or null.
+     */
+    private static String getPatch(LLMClient.AssistantResponse response) {
+        LLMClient.CodeExtractionResult extraction = response.getCodeExtractionResult();
+        if (extraction == null || extraction.patch == null || response.getExtractedCode() != null) {
+            return null;
+        }
+        return extraction.patch;
+    }
+
+    /**
+     * Returns the response with the patch applied, in the regular
+     * reasoning and code format.
+     */
+    private static LLMClient.AssistantResponse applyPatch(LLMClient.AssistantResponse response, String baseCode,
+            String patch) throws CodePatcher.PatchException {
+        String code = CodePatcher.apply(baseCode, patch);
+        Log.d(TAG, "Applied a patch of " + patch.length() + " chars, program is " + code.length() + " chars");
+
+        String reasoning = response.getReasoning();
+        String content = response.content;
+        try {
+            JSONObject json = new JSONObject();
+            json.put("reasoning", reasoning != null ? reasoning : "");
+            json.put("code", code);
+            content = json.toString();
+        } catch (JSONException e) {
+            Log.w(TAG, "Cannot rewrite patched response", e);
+        }
+        return new LLMClient.AssistantResponse(content, response.getModelProvider(), response.getModelName(),
+                response.getCompletionStatus(),
+                LLMClient.CodeExtractionResult.success(code, reasoning, "", "", true, true));
+    }
+
+    private void requestFullCode(LLMClient.ChatSession chatSession, LLMClient.MessageFilter messageFilter,
+            LLMRequestScheduler.Priority priority, LLMClient.AssistantResponse patchResponse, String reason, String baseCode,
+            LLMClient.CancellableCompletableFuture<LLMClient.AssistantResponse> result) {
+        if (result.isCancelled()) {
+            return;
+        }
+        List<LLMClient.Message> messages = llmClient.filterMessages(chatSession, messageFilter);
+        messages.add(patchResponse);
+        messages.add(new LLMClient.UserMessage(String.format(FULL_CODE_REQUEST, reason)));
+        LLMClient.ChatSession followUp = new LLMClient.ChatSession(chatSession.getSessionId(), messages);
+
+        // The streamed response starts over
+        LLMClient.StreamListener streamListener = llmClient.getStreamListener();
+        if (streamListener != null) {
+            streamListener.onStreamReset();
+        }
+        send(followUp, null, priority, result).whenComplete((response, throwable) -> {
+            if (throwable != null) {
+                result.completeExceptionally(throwable);
+                return;
+            }
+            String patch = getPatch(response);
+            if (patch != null) {
+                try {
+                    response = applyPatch(response, baseCode, patch);
+                } catch (CodePatcher.PatchException e) {
+                    // Completed without code, like any response without
+                    // a program
+                    Log.w(TAG, "Second patch does not apply either: " + e.getMessage());
+                }
+            }
+            result.complete(response);
+        });
+    }
+
     /**
      * Cancels the current request if one is in progress
      * 
@@ -73,6 +332,9 @@ public class ClojureIterationManager {
             cancelled = llmClient.cancelCurrentRequest() || cancelled;
         }
 
+        // Cancel the racers' requests
+        cancelled = race.cancel() || cancelled;
+
         Log.d(TAG, "Cancellation result: " + cancelled);
         return cancelled;
     }
@@ -0,0 +1,420 @@
+package com.example.clojurerepl;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Applies the "patch" field of a response to the current program, so the
+ * model only writes what changed. Two formats are accepted:
+ *
+ * 1. Top-level forms. A form that defines a name, e.g. (defn name ...),
+ *    replaces the top-level form defining the same name, and an (ns ...)
+ *    form replaces the ns form. Other forms are added: imports and requires
+ *    after the existing ones, definitions before the first form that uses
+ *    them (or before -main), anything else at the end.
+ * 2. A unified diff against the current program. Hunks are located by their
+ *    context and removed lines, so line numbers may be off.
+ *
+ * A patch that does not apply cleanly or leaves unbalanced brackets is
+ * rejected with a PatchException, and the caller asks for the full program.
+ */
+public class CodePatcher {
+    private static final String TAG = "CodePatcher";
+    private static final Pattern HUNK_HEADER = Pattern.compile("^@@ -(\\d+)(?:,\\d+)? \\+\\d+(?:,\\d+)? @@.*");
+
+    public static class PatchException extends Exception {
+        public PatchException(String message) {
+            super(message);
+        }
+    }
+
+    // A top-level form of a program
+    private static class Form {
+        final int start;
+        final int end;
+        final String head;
+        // Name the form defines, "ns" for the ns form, null for other forms
+        final String key;
+
+        Form(int start, int end, String head, String key) {
+            this.start = start;
+            this.end = end;
+            this.head = head;
+            this.key = key;
+        }
+    }
+
+    private CodePatcher() {
+    }
+
+    /**
+     * Returns the program with the patch applied.
+     */
+    public static String apply(String code, String patch) throws PatchException {
+        if (code == null || code.trim().isEmpty()) {
+            throw new PatchException("There is no current program to patch");
+        }
+        if (patch == null || patch.trim().isEmpty()) {
+            throw new PatchException("The patch is empty");
+        }
+        String trimmed = patch.trim();
+        String patched = trimmed.startsWith("--- ") || trimmed.startsWith("@@")
+                ? applyDiff(code, patch)
+                : applyForms(code, patch);
+        checkBalanced(patched);
+        return patched;
+    }
+
+    private static String applyForms(String code, String patch) throws PatchException {
+        List<Form> forms = parseForms(code);
+        List<Form> patchForms = parseForms(patch);
+        if (patchForms.isEmpty()) {
+            throw new PatchException("The patch contains no top-level forms");
+        }
+
+        // Replacements by start offset in code; new forms are placed after
+        // all replacements, as they may be used by replaced forms
+        String[] replacements = new String[forms.size()];
+        List<Form> added = new ArrayList<>();
+        for (Form patchForm : patchForms) {
+            String text = patch.substring(patchForm.start, patchForm.end);
+            int match = -1;
+            if (patchForm.key != null) {
+                for (int i = 0; i < forms.size(); i++) {
+                    if (patchForm.key.equals(forms.get(i).key)) {
+                        if (match >= 0) {
+                            throw new PatchException("\"" + patchForm.key + "\" is defined more than once");
+                        }
+                        match = i;
+                    }
+                }
+            }
+            if (match >= 0) {
+                replacements[match] = text;
+            } else {
+                added.add(patchForm);
+            }
+        }
+
+        List<String> result = new ArrayList<>();
+        List<String> heads = new ArrayList<>();
+        List<String> separators = new ArrayList<>();
+        String leading = forms.isEmpty() ? code : code.substring(0, forms.get(0).start);
+        for (int i = 0; i < forms.size(); i++) {
+            Form form = forms.get(i);
+            result.add(replacements[i] != null ? replacements[i] : code.substring(form.start, form.end));
+            heads.add(form.head);
+            int next = i + 1 < forms.size() ? forms.get(i + 1).start : code.length();
+            separators.add(code.substring(form.end, next));
+        }
+
+        for (Form form : added) {
+            String text = patch.substring(form.start, form.end);
+            int index = insertionIndex(form, result, heads);
+            result.add(index, text);
+            heads.add(index, form.head);
+            separators.add(index, "\n\n");
+        }
+
+        StringBuilder patched = new StringBuilder(leading);
+        for (int i = 0; i < result.size(); i++) {
+            patched.append(result.get(i)).append(separators.get(i));
+        }
+        Log.d(TAG, "Applied " + (patchForms.size() - added.size()) + " replaced and " + added.size()
+                + " added forms");
+        return patched.toString();
+    }
+
+    private static int insertionIndex(Form form, List<String> forms, List<String> heads) {
+        if (isImport(form.head)) {
+            int index = 0;
+            for (int i = 0; i < heads.size(); i++) {
+                if (isImport(heads.get(i)) || "ns".equals(heads.get(i))) {
+                    index = i + 1;
+                }
+            }
+            return index;
+        }
+        if (form.key != null) {
+            Pattern use = Pattern.compile("(?<![\\w\\-*+!?<>=/.'])" + Pattern.quote(form.key.split(" ")[0])
+                    + "(?![\\w\\-*+!?<>=/'])");
+            for (int i = 0; i < forms.size(); i++) {
+                if (!isImport(heads.get(i)) && !"ns".equals(heads.get(i)) && use.matcher(forms.get(i)).find()) {
+                    return i;
+                }
+            }
+            for (int i = 0; i < forms.size(); i++) {
+                if (forms.get(i).matches("(?s)\\(defn-?\\s+(\\^\\S+\\s+)*-main[\\s(\\[].*")) {
+                    return i;
+                }
+            }
+        }
+        return forms.size();
+    }
+
+    private static boolean isImport(String head) {
+        return "import".equals(head) || "require".equals(head) || "use".equals(head);
+    }
+
+    /**
+     * Splits code into its top-level list forms, skipping strings, comments
+     * and character literals like SpeculativeCompiler does.
+     */
+    private static List<Form> parseForms(String code) throws PatchException {
+        List<Form> forms = new ArrayList<>();
+        int depth = 0;
+        int start = -1;
+        for (int i = 0; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if (c == ';') {
+                while (i < code.length() && code.charAt(i) != '\n') {
+                    i++;
+                }
+            } else if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                i = skipString(code, i);
+            } else if (c == '(' || c == '[' || c == '{') {
+                if (depth == 0) {
+                    // Include reader prefixes such as #( and #{
+                    start = i > 0 && code.charAt(i - 1) == '#' ? i - 1 : i;
+                }
+                depth++;
+            } else if (c == ')' || c == ']' || c == '}') {
+                depth--;
+                if (depth < 0) {
+                    throw new PatchException("Unbalanced closing bracket at offset " + i);
+                }
+                if (depth == 0) {
+                    forms.add(createForm(code, start, i + 1));
+                }
+            }
+        }
+        if (depth != 0) {
+            throw new PatchException("Unbalanced brackets, " + depth + " left open");
+        }
+        return forms;
+    }
+
+    private static int skipString(String code, int quote) throws PatchException {
+        for (int i = quote + 1; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i;
+            }
+        }
+        throw new PatchException("Unterminated string at offset " + quote);
+    }
+
+    private static Form createForm(String code, int start, int end) {
+        if (code.charAt(start) != '(') {
+            return new Form(start, end, null, null);
+        }
+        List<String> tokens = tokens(code.substring(start + 1, end - 1), 3);
+        if (tokens.isEmpty()) {
+            return new Form(start, end, null, null);
+        }
+        String head = tokens.get(0);
+        String key = null;
+        String name = head.contains("/") ? head.substring(head.indexOf('/') + 1) : head;
+        if ("ns".equals(name)) {
+            key = "ns";
+        } else if (name.startsWith("def") && tokens.size() > 1) {
+            key = tokens.get(1);
+            // Methods of a multimethod are told apart by dispatch value
+            if ("defmethod".equals(name) && tokens.size() > 2) {
+                key += " " + tokens.get(2);
+            }
+        }
+        return new Form(start, end, head, key);
+    }
+
+    /**
+     * Returns up to max leading tokens of a form body, skipping metadata.
+     * Tokens that are forms themselves are returned as their text.
+     */
+    private static List<String> tokens(String body, int max) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < body.length() && tokens.size() < max) {
+            char c = body.charAt(i);
+            if (Character.isWhitespace(c) || c == ',') {
+                i++;
+                continue;
+            }
+            if (c == ';') {
+                while (i < body.length() && body.charAt(i) != '\n') {
+                    i++;
+                }
+                continue;
+            }
+            boolean metadata = c == '^';
+            if (metadata) {
+                i++;
+            }
+            int start = i;
+            i = tokenEnd(body, i);
+            if (!metadata && i > start) {
+                tokens.add(body.substring(start, i));
+            }
+            if (i == start) {
+                i++;
+            }
+        }
+        return tokens;
+    }
+
+    private static int tokenEnd(String body, int i) {
+        if (i >= body.length()) {
+            return i;
+        }
+        char c = body.charAt(i);
+        if (c == '"') {
+            for (int j = i + 1; j < body.length(); j++) {
+                if (body.charAt(j) == '\\') {
+                    j++;
+                } else if (body.charAt(j) == '"') {
+                    return j + 1;
+                }
+            }
+            return body.length();
+        }
+        if (c == '(' || c == '[' || c == '{') {
+            int depth = 0;
+            for (int j = i; j < body.length(); j++) {
+                char d = body.charAt(j);
+                if (d == '(' || d == '[' || d == '{') {
+                    depth++;
+                } else if (d == ')' || d == ']' || d == '}') {
+                    depth--;
+                    if (depth == 0) {
+                        return j + 1;
+                    }
+                }
+            }
+            return body.length();
+        }
+        int j = i;
+        while (j < body.length() && !Character.isWhitespace(body.charAt(j)) && body.charAt(j) != ','
+                && "()[]{}\"".indexOf(body.charAt(j)) < 0) {
+            j++;
+        }
+        return j;
+    }
+
+    private static String applyDiff(String code, String diff) throws PatchException {
+        List<String> lines = new ArrayList<>(splitLines(code));
+        List<String> diffLines = splitLines(diff);
+        // Lines before this index are final; hunks apply in order
+        int cursor = 0;
+        // Difference between new and old line numbers so far
+        int shift = 0;
+        int hunks = 0;
+        int i = 0;
+        while (i < diffLines.size()) {
+            String headerLine = diffLines.get(i);
+            Matcher header = HUNK_HEADER.matcher(headerLine);
+            i++;
+            if (!header.matches()) {
+                continue;
+            }
+            List<String> oldLines = new ArrayList<>();
+            List<String> newLines = new ArrayList<>();
+            while (i < diffLines.size() && !diffLines.get(i).startsWith("@@")
+                    && !diffLines.get(i).startsWith("--- ")) {
+                String line = diffLines.get(i);
+                i++;
+                if (line.startsWith("\\")) {
+                    // "\ No newline at end of file"
+                    continue;
+                }
+                char type = line.isEmpty() ? ' ' : line.charAt(0);
+                String text = line.isEmpty() ? "" : line.substring(1);
+                if (type == ' ' || type == '-') {
+                    oldLines.add(text);
+                }
+                if (type == ' ' || type == '+') {
+                    newLines.add(text);
+                }
+            }
+            // A trailing blank line is more likely the end of the patch than
+            // an empty context line
+            while (!oldLines.isEmpty() && !newLines.isEmpty()
+                    && oldLines.get(oldLines.size() - 1).isEmpty()
+                    && newLines.get(newLines.size() - 1).isEmpty()) {
+                oldLines.remove(oldLines.size() - 1);
+                newLines.remove(newLines.size() - 1);
+            }
+
+            int hint = Integer.parseInt(header.group(1)) - 1 + shift;
+            int at = findLines(lines, oldLines, cursor, hint);
+            if (at < 0) {
+                throw new PatchException("Hunk " + (hunks + 1) + " (" + headerLine.trim()
+                        + ") does not match the current program");
+            }
+            for (int k = 0; k < oldLines.size(); k++) {
+                lines.remove(at);
+            }
+            lines.addAll(at, newLines);
+            cursor = at + newLines.size();
+            shift += newLines.size() - oldLines.size();
+            hunks++;
+        }
+        if (hunks == 0) {
+            throw new PatchException("The diff contains no hunks");
+        }
+        Log.d(TAG, "Applied " + hunks + " diff hunks");
+        return String.join("\n", lines);
+    }
+
+    /**
+     * Finds block in lines at or after from, closest to hint. Trailing
+     * whitespace is ignored.
+     */
+    private static int findLines(List<String> lines, List<String> block, int from, int hint) {
+        if (block.isEmpty()) {
+            return Math.max(from, Math.min(hint, lines.size()));
+        }
+        int best = -1;
+        for (int at = from; at + block.size() <= lines.size(); at++) {
+            boolean matches = true;
+            for (int k = 0; k < block.size() && matches; k++) {
+                matches = stripTrailing(lines.get(at + k)).equals(stripTrailing(block.get(k)));
+            }
+            if (matches && (best < 0 || Math.abs(at - hint) < Math.abs(best - hint))) {
+                best = at;
+            }
+        }
+        return best;
+    }
+
+    private static List<String> splitLines(String text) {
+        List<String> lines = new ArrayList<>();
+        for (String line : text.split("\n", -1)) {
+            lines.add(line.endsWith("\r") ? line.substring(0, line.length() - 1) : line);
+        }
+        return lines;
+    }
+
+    private static String stripTrailing(String line) {
+        int end = line.length();
+        while (end > 0 && Character.isWhitespace(line.charAt(end - 1))) {
+            end--;
+        }
+        return line.substring(0, end);
+    }
+
+    private static void checkBalanced(String code) throws PatchException {
+        try {
+            parseForms(code);
+        } catch (PatchException e) {
+            throw new PatchException("The patched program is invalid: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.example.clojurerepl;
+
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fits a conversation into a provider's context window. Messages are reduced
+ * only as far as needed, in this order, oldest first:
+ *
+ * 1. Logcat output of earlier turns
+ * 2. Screenshots of earlier turns
+ * 3. Code of superseded versions, replaced by a reference
+ * 4. Whole earlier turns, a response with the user message after it
+ *
+ * The system prompt, the first user message (the app description), the
+ * response with the latest code and the last message are never touched.
+ * A conversation that fits is returned as is, so the prompt prefix the
+ * providers cache stays stable.
+ */
+public class ContextManager {
+    private static final String TAG = "ContextManager";
+    private static final String LOGCAT_OMITTED = "[Logcat output of this earlier run omitted]";
+
+    /**
+     * Token estimates per tokenizer family. No tokenizer vocabulary ships
+     * with the app, so text is split the way BPE pre-tokenizers split it and
+     * each piece is counted by length, which is much closer than a flat
+     * characters-per-token ratio for code. The scale adjusts for how finely
+     * each family's vocabulary splits typical text.
+     */
+    public enum TokenEstimator {
+        CLAUDE(1.1),
+        OPENAI(1.0),
+        GEMINI(0.95);
+
+        private final double scale;
+
+        TokenEstimator(double scale) {
+            this.scale = scale;
+        }
+
+        public static TokenEstimator forType(LLMClientFactory.LLMType type) {
+            switch (type) {
+                case CLAUDE:
+                    return CLAUDE;
+                case GEMINI:
+                    return GEMINI;
+                default:
+                    return OPENAI;
+            }
+        }
+
+        public int estimateText(String text) {
+            if (text == null || text.isEmpty()) {
+                return 0;
+            }
+            int pieces = 0;
+            int i = 0;
+            int length = text.length();
+            while (i < length) {
+                char c = text.charAt(i);
+                int start = i;
+                if (Character.isLetter(c)) {
+                    while (i < length && Character.isLetter(text.charAt(i))) {
+                        i++;
+                    }
+                    // Common words are one token, long identifiers split up
+                    pieces += (i - start + 5) / 6;
+                } else if (Character.isDigit(c)) {
+                    while (i < length && Character.isDigit(text.charAt(i))) {
+                        i++;
+                    }
+                    // Numbers split into groups of up to three digits
+                    pieces += (i - start + 2) / 3;
+                } else if (c == ' ') {
+                    while (i < length && text.charAt(i) == ' ') {
+                        i++;
+                    }
+                    // A single space merges into the next word, indentation
+                    // is a token of its own
+                    if (i - start > 1) {
+                        pieces++;
+                    }
+                } else if (Character.isWhitespace(c)) {
+                    while (i < length && Character.isWhitespace(text.charAt(i)) && text.charAt(i) != ' ') {
+                        i++;
+                    }
+                    pieces++;
+                } else if (c < 128) {
+                    while (i < length && text.charAt(i) < 128 && !Character.isLetterOrDigit(text.charAt(i))
+                            && !Character.isWhitespace(text.charAt(i))) {
+                        i++;
+                    }
+                    // Runs of brackets and operators merge in pairs
+                    pieces += (i - start + 1) / 2;
+                } else {
+                    i++;
+                    pieces++;
+                }
+            }
+            return (int) Math.ceil(pieces * scale);
+        }
+
+        /**
+         * Estimates an image at the size it is sent with, see
+         * LLMClient.getTargetSizeForAPI().
+         */
+        public int estimateImage(File imageFile) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(imageFile.getAbsolutePath(), options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return 0;
+            }
+            int[] size = LLMClient.getTargetSizeForAPI(options.outWidth, options.outHeight);
+            int width = size[0];
+            int height = size[1];
+            switch (this) {
+                case CLAUDE:
+                    return width * height / 750;
+                case GEMINI:
+                    if (width <= 384 && height <= 384) {
+                        return 258;
+                    }
+                    return ((width + 767) / 768) * ((height + 767) / 768) * 258;
+                default:
+                    // High detail: the short side is scaled to 768, then
+                    // 512 pixel tiles
+                    double scale = Math.min(1.0, 768.0 / Math.min(width, height));
+                    int tiles = (int) (Math.ceil(width * scale / 512) * Math.ceil(height * scale / 512));
+                    return 85 + 170 * tiles;
+            }
+        }
+
+        public int estimate(LLMClient.Message message) {
+            if (message.role == LLMClient.MessageRole.MARKER) {
+                return 0;
+            }
+            // Role and message framing
+            int tokens = 4 + estimateText(message.content);
+            if (message instanceof LLMClient.UserMessage) {
+                for (File imageFile : ((LLMClient.UserMessage) message).getValidImageFiles()) {
+                    tokens += estimateImage(imageFile);
+                }
+            }
+            return tokens;
+        }
+    }
+
+    private final TokenEstimator estimator;
+    private final int budgetTokens;
+    private int lastTokensSaved = 0;
+
+    /**
+     * @param budgetTokens Input tokens the conversation may take up
+     */
+    public ContextManager(TokenEstimator estimator, int budgetTokens) {
+        this.estimator = estimator;
+        this.budgetTokens = budgetTokens;
+    }
+
+    /**
+     * Tokens the last call to fit() removed.
+     */
+    public int getLastTokensSaved() {
+        return lastTokensSaved;
+    }
+
+    public List<LLMClient.Message> fit(List<LLMClient.Message> messages) {
+        lastTokensSaved = 0;
+        List<LLMClient.Message> result = new ArrayList<>(messages);
+        int[] tokens = new int[result.size()];
+        int total = 0;
+        for (int i = 0; i < result.size(); i++) {
+            tokens[i] = estimator.estimate(result.get(i));
+            total += tokens[i];
+        }
+        if (total <= budgetTokens) {
+            Log.d(TAG, "Conversation fits: ~" + total + " of " + budgetTokens + " tokens");
+            return messages;
+        }
+        int originalTotal = total;
+
+        boolean[] pinned = findPinned(result);
+        int latestCode = findLatestCode(result);
+
+        // Stages 1 to 3, message by message from the oldest
+        for (int stage = 1; stage <= 3 && total > budgetTokens; stage++) {
+            for (int i = 0; i < result.size() && total > budgetTokens; i++) {
+                if (pinned[i]) {
+                    continue;
+                }
+                LLMClient.Message reduced = reduce(result.get(i), stage, i < latestCode);
+                if (reduced != null) {
+                    int reducedTokens = estimator.estimate(reduced);
+                    total -= tokens[i] - reducedTokens;
+                    tokens[i] = reducedTokens;
+                    result.set(i, reduced);
+                }
+            }
+        }
+
+        // Stage 4: drop the oldest turns. A response is dropped together
+        // with the user message after it, so user and assistant messages
+        // still alternate.
+        for (int i = 0; i + 1 < result.size() && total > budgetTokens; i++) {
+            if (!pinned[i] && !pinned[i + 1]
+                    && result.get(i).role == LLMClient.MessageRole.ASSISTANT
+                    && result.get(i + 1).role == LLMClient.MessageRole.USER) {
+                total -= tokens[i] + tokens[i + 1];
+                result.set(i, null);
+                result.set(i + 1, null);
+                i++;
+            }
+        }
+        List<LLMClient.Message> fitted = new ArrayList<>();
+        for (LLMClient.Message message : result) {
+            if (message != null) {
+                fitted.add(message);
+            }
+        }
+
+        lastTokensSaved = originalTotal - total;
+        Log.d(TAG, "Fitted conversation into " + budgetTokens + " tokens: ~" + originalTotal + " -> ~" + total
+                + " tokens (" + lastTokensSaved + " saved), " + messages.size() + " -> " + fitted.size()
+                + " messages");
+        if (total > budgetTokens) {
+            Log.w(TAG, "Pinned messages alone exceed the budget");
+        }
+        return fitted;
+    }
+
+    /**
+     * Returns the reduced message for a stage, or null if the stage does not
+     * apply to it.
+     */
+    private LLMClient.Message reduce(LLMClient.Message message, int stage, boolean superseded) {
+        if (message instanceof LLMClient.UserMessage) {
+            LLMClient.UserMessage user = (LLMClient.UserMessage) message;
+            if (stage == 1 && user.logcat != null && !user.logcat.isEmpty()
+                    && user.content != null && user.content.contains(user.logcat)) {
+                return new LLMClient.UserMessage(user.content.replace(user.logcat, LOGCAT_OMITTED),
+                        user.imageFiles, user.mimeTypes, null, user.feedback, user.initialCode);
+            }
+            if (stage == 2 && user.hasImages()) {
+                return new LLMClient.UserMessage(user.content, null, null, user.logcat, user.feedback,
+                        user.initialCode);
+            }
+        } else if (message instanceof LLMClient.AssistantResponse && stage == 3 && superseded) {
+            LLMClient.AssistantResponse response = (LLMClient.AssistantResponse) message;
+            LLMClient.CodeExtractionResult extraction = response.codeExtractionResult;
+            if (extraction != null && extraction.code != null && !extraction.code.isEmpty()) {
+                String reference = ";; Code of this version omitted, it was superseded by a later version";
+                try {
+                    JSONObject collapsed = new JSONObject();
+                    collapsed.put("reasoning", extraction.reasoning != null ? extraction.reasoning : "");
+                    collapsed.put("code", reference);
+                    return new LLMClient.AssistantResponse(collapsed.toString(), response.modelProvider,
+                            response.modelName, LLMClient.CodeExtractionResult.success(reference,
+                                    extraction.reasoning, "", "", true, true));
+                } catch (JSONException e) {
+                    Log.w(TAG, "Cannot collapse superseded code", e);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean[] findPinned(List<LLMClient.Message> messages) {
+        boolean[] pinned = new boolean[messages.size()];
+        boolean descriptionFound = false;
+        for (int i = 0; i < messages.size(); i++) {
+            LLMClient.Message message = messages.get(i);
+            if (message.role == LLMClient.MessageRole.SYSTEM) {
+                pinned[i] = true;
+            } else if (message.role == LLMClient.MessageRole.USER && !descriptionFound) {
+                pinned[i] = true;
+                descriptionFound = true;
+            }
+        }
+        int latestCode = findLatestCode(messages);
+        if (latestCode >= 0) {
+            pinned[latestCode] = true;
+        }
+        if (!messages.isEmpty()) {
+            pinned[messages.size() - 1] = true;
+        }
+        return pinned;
+    }
+
+    private static int findLatestCode(List<LLMClient.Message> messages) {
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            LLMClient.Message message = messages.get(i);
+            if (message instanceof LLMClient.AssistantResponse) {
+                LLMClient.CodeExtractionResult extraction = ((LLMClient.AssistantResponse) message).codeExtractionResult;
+                if (extraction != null && extraction.code != null && !extraction.code.isEmpty()) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,302 @@
+package com.example.clojurerepl;
+
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Enforces time budgets on the program running in the render process, so a
+ * hot loop in -main or a runaway future ends in an error the designer can act
+ * on instead of a hung process. Budgets:
+ *
+ * - wall time from activity start to the first drawn frame
+ * - wall time spent evaluating the program's forms
+ * - CPU time a single thread may use per fixed window (cpuWindowMs)
+ *
+ * When a budget is exceeded, the stacks of all threads are logged and the
+ * timeout handler gets a short report naming the form and line the offending
+ * thread was executing. Checks run on a dedicated thread since the main
+ * thread is usually the one that is stuck.
+ */
+public class ExecutionWatchdog {
+    private static final String TAG = "ExecutionWatchdog";
+    private static final long CHECK_INTERVAL_MS = 500;
+    private static final int MAX_REPORTED_FRAMES = 8;
+    private static final int MAX_FORM_CHARS = 80;
+
+    public static final String EXTRA_FIRST_FRAME_BUDGET_MS = "watchdog_first_frame_budget_ms";
+    public static final String EXTRA_EVAL_BUDGET_MS = "watchdog_eval_budget_ms";
+    public static final String EXTRA_THREAD_CPU_BUDGET_MS = "watchdog_thread_cpu_budget_ms";
+
+    /**
+     * Budgets in milliseconds; 0 disables a budget.
+     */
+    public static class Budgets {
+        // First runs dex every generated class, so these are generous
+        public long firstFrameMs = 45000;
+        public long evalMs = 30000;
+        // CPU time one thread may use per cpuWindowMs
+        public long threadCpuMs = 9000;
+        public long cpuWindowMs = 10000;
+
+        public static Budgets fromIntent(Intent intent) {
+            Budgets budgets = new Budgets();
+            budgets.firstFrameMs = intent.getLongExtra(EXTRA_FIRST_FRAME_BUDGET_MS, budgets.firstFrameMs);
+            budgets.evalMs = intent.getLongExtra(EXTRA_EVAL_BUDGET_MS, budgets.evalMs);
+            budgets.threadCpuMs = intent.getLongExtra(EXTRA_THREAD_CPU_BUDGET_MS, budgets.threadCpuMs);
+            return budgets;
+        }
+    }
+
+    public interface TimeoutHandler {
+        /**
+         * Called once, on the watchdog thread. Expected to report the error
+         * and kill the process.
+         */
+        void onBudgetExceeded(String report);
+    }
+
+    private final Budgets budgets;
+    private final TimeoutHandler handler;
+    private final Thread mainThread = Looper.getMainLooper().getThread();
+    private final long startTime = System.currentTimeMillis();
+    private final long clockTicksPerSecond = Os.sysconf(OsConstants._SC_CLK_TCK);
+    private HandlerThread watchdogThread;
+    private Handler watchdogHandler;
+
+    private volatile boolean firstFrameDrawn = false;
+    private volatile long evalStartTime = 0;
+    private volatile boolean evalRunning = false;
+    private volatile int currentFormLine = 0;
+    private volatile String currentForm = null;
+    private volatile boolean fired = false;
+
+    // CPU ticks per thread id at the start of the current window; only used on
+    // the watchdog thread
+    private Map<Integer, Long> windowStartTicks = new HashMap<>();
+    private long windowStartTime = 0;
+
+    private final Runnable check = new Runnable() {
+        @Override
+        public void run() {
+            if (fired) {
+                return;
+            }
+            checkBudgets();
+            watchdogHandler.postDelayed(this, CHECK_INTERVAL_MS);
+        }
+    };
+
+    public ExecutionWatchdog(Budgets budgets, TimeoutHandler handler) {
+        this.budgets = budgets;
+        this.handler = handler;
+    }
+
+    public void start() {
+        watchdogThread = new HandlerThread("ExecutionWatchdog");
+        watchdogThread.start();
+        watchdogHandler = new Handler(watchdogThread.getLooper());
+        watchdogHandler.postDelayed(check, CHECK_INTERVAL_MS);
+        Log.d(TAG, "Started with budgets: first frame " + budgets.firstFrameMs + "ms, eval " + budgets.evalMs
+                + "ms, thread CPU " + budgets.threadCpuMs + "ms per " + budgets.cpuWindowMs + "ms");
+    }
+
+    public void stop() {
+        if (watchdogThread != null) {
+            watchdogHandler.removeCallbacks(check);
+            watchdogThread.quitSafely();
+        }
+    }
+
+    public void onFirstFrame() {
+        if (!firstFrameDrawn) {
+            firstFrameDrawn = true;
+            Log.d(TAG, "First frame after " + (System.currentTimeMillis() - startTime) + "ms");
+        }
+    }
+
+    public void onEvalStarted() {
+        evalStartTime = System.currentTimeMillis();
+        evalRunning = true;
+    }
+
+    /**
+     * Records the top-level form about to be evaluated.
+     *
+     * @param line The line the form starts on, 1-based
+     */
+    public void onFormStarted(int line, Object form) {
+        currentFormLine = line;
+        currentForm = String.valueOf(form);
+    }
+
+    public void onEvalFinished() {
+        evalRunning = false;
+        currentForm = null;
+    }
+
+    private void checkBudgets() {
+        long now = System.currentTimeMillis();
+        if (budgets.evalMs > 0 && evalRunning && now - evalStartTime > budgets.evalMs) {
+            exceeded("eval exceeded its " + budgets.evalMs + "ms budget", mainThread);
+            return;
+        }
+        if (budgets.firstFrameMs > 0 && !firstFrameDrawn && now - startTime > budgets.firstFrameMs) {
+            exceeded("no frame was drawn within " + budgets.firstFrameMs + "ms", mainThread);
+            return;
+        }
+        if (budgets.threadCpuMs > 0) {
+            checkThreadCpu(now);
+        }
+    }
+
+    private void checkThreadCpu(long now) {
+        Map<Integer, String> names = new HashMap<>();
+        Map<Integer, Long> ticks = readThreadTicks(names);
+        if (windowStartTime == 0 || now - windowStartTime >= budgets.cpuWindowMs) {
+            windowStartTicks = ticks;
+            windowStartTime = now;
+            return;
+        }
+        int myTid = android.os.Process.myTid();
+        int pid = android.os.Process.myPid();
+        for (Map.Entry<Integer, Long> entry : ticks.entrySet()) {
+            int tid = entry.getKey();
+            Long startTicks = windowStartTicks.get(tid);
+            // The main thread is covered by the eval budget while evaluating
+            if (startTicks == null || tid == myTid || (tid == pid && evalRunning)) {
+                continue;
+            }
+            long cpuMs = (entry.getValue() - startTicks) * 1000 / clockTicksPerSecond;
+            if (cpuMs > budgets.threadCpuMs) {
+                String name = names.get(tid);
+                Thread thread = tid == pid ? mainThread : findThread(name);
+                exceeded("thread \"" + name + "\" used " + cpuMs + "ms of CPU in " + (now - windowStartTime)
+                        + "ms (budget " + budgets.threadCpuMs + "ms)", thread);
+                return;
+            }
+        }
+    }
+
+    // Reads utime + stime of every thread of this process, in clock ticks
+    private static Map<Integer, Long> readThreadTicks(Map<Integer, String> namesOut) {
+        Map<Integer, Long> ticks = new HashMap<>();
+        File[] tasks = new File("/proc/self/task").listFiles();
+        if (tasks == null) {
+            return ticks;
+        }
+        for (File task : tasks) {
+            try {
+                String stat = new String(Files.readAllBytes(new File(task, "stat").toPath()),
+                        StandardCharsets.US_ASCII);
+                // pid (comm) state ppid ... utime stime; comm may contain spaces
+                int nameStart = stat.indexOf('(');
+                int nameEnd = stat.lastIndexOf(')');
+                String[] fields = stat.substring(nameEnd + 2).split(" ");
+                int tid = Integer.parseInt(task.getName());
+                ticks.put(tid, Long.parseLong(fields[11]) + Long.parseLong(fields[12]));
+                namesOut.put(tid, stat.substring(nameStart + 1, nameEnd));
+            } catch (IOException | RuntimeException e) {
+                // The thread exited while we were reading
+            }
+        }
+        return ticks;
+    }
+
+    // /proc truncates thread names to 15 characters
+    private static Thread findThread(String procName) {
+        if (procName == null) {
+            return null;
+        }
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(procName)) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    private void exceeded(String reason, Thread culprit) {
+        fired = true;
+        Log.e(TAG, "Budget exceeded: " + reason + ", sampling thread stacks");
+
+        Map<Thread, StackTraceElement[]> stacks = Thread.getAllStackTraces();
+        for (Map.Entry<Thread, StackTraceElement[]> entry : stacks.entrySet()) {
+            StringBuilder dump = new StringBuilder("Thread \"" + entry.getKey().getName() + "\" "
+                    + entry.getKey().getState() + "\n");
+            for (StackTraceElement frame : entry.getValue()) {
+                dump.append("    at ").append(frame).append('\n');
+            }
+            Log.e(TAG, dump.toString());
+        }
+
+        StackTraceElement[] culpritStack = culprit != null ? stacks.get(culprit) : null;
+        handler.onBudgetExceeded(buildReport(reason, culprit, culpritStack));
+    }
+
+    private String buildReport(String reason, Thread culprit, StackTraceElement[] stack) {
+        StringBuilder report = new StringBuilder("Timeout: ").append(reason);
+
+        StackTraceElement programFrame = findFirstProgramFrame(stack);
+        if (programFrame != null) {
+            report.append(" in ").append(clojure.lang.Compiler.demunge(programFrame.getClassName()))
+                    .append(" at line ").append(programFrame.getLineNumber());
+        } else if (culprit == mainThread && currentForm != null) {
+            report.append(" in form at line ").append(currentFormLine);
+        }
+        if (culprit == mainThread && currentForm != null) {
+            String form = currentForm.length() > MAX_FORM_CHARS
+                    ? currentForm.substring(0, MAX_FORM_CHARS) + "..."
+                    : currentForm;
+            report.append("\nTop-level form (line ").append(currentFormLine).append("): ").append(form);
+        }
+        report.append("\nThe program likely has an infinite loop or blocks the thread.");
+
+        if (stack != null) {
+            report.append("\n\nStack of thread \"").append(culprit.getName()).append("\":");
+            int reported = 0;
+            for (StackTraceElement frame : stack) {
+                if (isProgramFrame(frame)) {
+                    report.append("\n    at ").append(clojure.lang.Compiler.demunge(frame.getClassName()))
+                            .append(" (line ").append(frame.getLineNumber()).append(')');
+                    if (++reported == MAX_REPORTED_FRAMES) {
+                        break;
+                    }
+                }
+            }
+            if (reported == 0 && stack.length > 0) {
+                report.append("\n    at ").append(stack[0]);
+            }
+        }
+        return report.toString();
+    }
+
+    private static StackTraceElement findFirstProgramFrame(StackTraceElement[] stack) {
+        if (stack == null) {
+            return null;
+        }
+        for (StackTraceElement frame : stack) {
+            if (isProgramFrame(frame)) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    // Frames of classes the Clojure compiler generated from the program.
+    // Code evaluated from a string has no source file of its own.
+    private static boolean isProgramFrame(StackTraceElement frame) {
+        return "NO_SOURCE_FILE".equals(frame.getFileName()) && frame.getLineNumber() > 0;
+    }
+}
@@ -8,8 +8,10 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Set;
 import java.net.HttpURLConnection;
 import java.io.BufferedReader;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.URL;
@@ -21,7 +23,10 @@ import com.example.clojurerepl.auth.ApiKeyManager;
 import java.io.IOException;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ConcurrentHashMap;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * Implementation of LLMClient for Google's Gemini API.
@@ -29,17 +34,57 @@ import java.nio.charset.StandardCharsets;
  */
 public class GeminiLLMClient extends LLMClient {
     private static final String TAG = "GeminiLLMClient";
-    private static final String API_BASE_URL = "https://generativelanguage.googleapis.com/v1beta";
+    static final String API_BASE_URL = "https://generativelanguage.googleapis.com/v1beta";
     private String currentModel = null;
     private ApiKeyManager apiKeyManager;
 
     private static final int HTTP_TIMEOUT = 120000; // 120 seconds timeout (increased from 30)
-    private static final int MAX_RETRIES = 1;
-    private static final int RETRY_DELAY_MS = 2000; // 2 seconds between retries
 
     // Track the current request for cancellation
     private final AtomicReference<CancellableCompletableFuture<AssistantResponse>> currentRequest = new AtomicReference<>();
 
+    // Prefixes shorter than this are left to Gemini's implicit caching
+    private static final int MIN_CACHED_PREFIX_TOKENS = 4096;
+    private static final int CONTEXT_CACHE_TTL_SECONDS = 600;
+    // A cache is not used this close to its expiry
+    private static final long CONTEXT_CACHE_EXPIRY_MARGIN_MS = 30000;
+    // Tokens Gemini counts per image
+    private static final int IMAGE_TOKENS = 258;
+    private static final Set<String> modelsWithoutContextCaching = ConcurrentHashMap.newKeySet();
+
+    /**
+     * A cachedContents resource with the system instruction and the first
+     * contentCount contents of the history.
+     */
+    private static class ContextCache {
+        final String name;
+        final String model;
+        final String prefixHash;
+        final int contentCount;
+        final long expiresAt;
+        // Tokens in the cache, as reported when it was created
+        final long tokens;
+        final long creationTimeMs;
+        // Requests that read the cache so far
+        int uses = 0;
+
+        ContextCache(String name, String model, String prefixHash, int contentCount, long expiresAt,
+                long tokens, long creationTimeMs) {
+            this.name = name;
+            this.model = model;
+            this.prefixHash = prefixHash;
+            this.contentCount = contentCount;
+            this.expiresAt = expiresAt;
+            this.tokens = tokens;
+            this.creationTimeMs = creationTimeMs;
+        }
+    }
+
+    private volatile ContextCache contextCache;
+    // Prefix of the previous request; only a prefix sent again is cached
+    private int previousPrefixCount = 0;
+    private String previousPrefixHash;
+
     // Static cache for available models
     private static List<String> cachedModels = null;
 
@@ -487,7 +532,7 @@ public class GeminiLLMClient extends LLMClient {
 
     @Override
     protected CancellableCompletableFuture<AssistantResponse> sendMessages(ChatSession session,
-            MessageFilter messageFilter) {
+            MessageFilter messageFilter, LLMRequestScheduler.Priority priority) {
         Log.d(TAG, "Sending " + session.getMessages().size() + " messages in session: " + session.getSessionId());
         Log.d(TAG, "System prompt available: " + (session.hasSystemPrompt() ? "yes" : "no"));
 
@@ -510,7 +555,8 @@ public class GeminiLLMClient extends LLMClient {
                 }
 
                 // Call the API with the filtered messages and system prompt
-                ExtractionResult extractionResult = callGeminiAPI(messagesToSend, session.getSystemPrompt(), future);
+                ExtractionResult extractionResult = callGeminiAPI(messagesToSend, session.getSystemPrompt(), priority,
+                        future);
 
                 // Check if cancelled after API call
                 if (future.isCancelled()) {
@@ -588,96 +634,25 @@ public class GeminiLLMClient extends LLMClient {
 
     // Helper method to call the Gemini API with message history
     private ExtractionResult callGeminiAPI(List<Message> history, String systemPrompt,
-            CancellableCompletableFuture<AssistantResponse> future) {
-        int retryCount = 0;
-        Exception lastException = null;
-        int currentTokenLimit = getMaxOutputTokens(currentModel);
-
-        while (retryCount < MAX_RETRIES) {
-            try {
-                Log.d(TAG, "=== Calling Gemini API (attempt " + (retryCount + 1) + "/" + MAX_RETRIES
-                        + ") with token limit: " + currentTokenLimit + " ===");
-                ExtractionResult extractionResult = performGeminiAPICall(history, systemPrompt,
-                        currentTokenLimit, future);
-
-                // Check if the response indicates a token limit issue by parsing it again
-                if (extractionResult.getStatus() == ResponseStatus.MAX_TOKENS) {
-                    Log.w(TAG, "Token limit hit, reducing token limit and retrying");
-                    currentTokenLimit = Math.max(currentTokenLimit / 2, 1024); // Reduce by half, minimum 1024
-                    retryCount++;
-                    if (retryCount < MAX_RETRIES) {
-                        Log.d(TAG, "Retrying with reduced token limit: " + currentTokenLimit + " (attempt "
-                                + (retryCount + 1) + "/" + MAX_RETRIES + ")");
-                        continue;
-                    } else {
-                        Log.e(TAG, "All retry attempts exhausted. Final token limit: " + currentTokenLimit);
-                    }
-                }
-
-                return extractionResult;
-            } catch (java.io.IOException e) {
-                lastException = e;
-                retryCount++;
-
-                // Check if this is a retryable network error
-                boolean isRetryable = isRetryableException(e);
-                String errorType = getExceptionType(e);
-
-                Log.w(TAG, errorType + " on attempt " + retryCount + "/" + MAX_RETRIES + ": " + e.getMessage());
-
-                if (isRetryable && retryCount < MAX_RETRIES) {
-                    try {
-                        Thread.sleep(RETRY_DELAY_MS);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        throw new RuntimeException("Interrupted during retry delay", ie);
-                    }
-                } else if (!isRetryable) {
-                    // For non-retryable errors, don't retry
-                    Log.e(TAG, "Non-retryable error calling Gemini API", e);
-                    throw new RuntimeException("Failed to call Gemini API", e);
-                }
-            } catch (Exception e) {
-                // Check if this is a cancellation exception, which is expected behavior
-                if (e instanceof CancellationException ||
-                        (e instanceof RuntimeException && e.getCause() instanceof CancellationException)) {
-                    Log.d(TAG, "Gemini API call was cancelled - this is expected behavior");
-                    throw e; // Re-throw cancellation exceptions without wrapping
-                }
-
-                // For non-network errors, don't retry
-                Log.e(TAG, "Non-retryable error calling Gemini API", e);
-                throw new RuntimeException("Failed to call Gemini API", e);
+            LLMRequestScheduler.Priority priority, CancellableCompletableFuture<AssistantResponse> future) {
+        int tokenLimit = getMaxOutputTokens(currentModel);
+        try {
+            return callProvider(systemPrompt, history, priority, future, attempt -> {
+                Log.d(TAG, "=== Calling Gemini API (attempt " + (attempt + 1) + "/" + LLMRetryPolicy.MAX_ATTEMPTS
+                        + ") with token limit: " + tokenLimit + " ===");
+                return performGeminiAPICall(history, systemPrompt, tokenLimit, future);
+            });
+        } catch (RuntimeException e) {
+            // Check if this is a cancellation exception, which is expected behavior
+            if (e instanceof CancellationException || e.getCause() instanceof CancellationException) {
+                Log.d(TAG, "Gemini API call was cancelled - this is expected behavior");
+                throw e; // Re-throw cancellation exceptions without wrapping
             }
-        }
-
-        // If we get here, all retries failed
-        Log.e(TAG, "All " + MAX_RETRIES + " attempts to call Gemini API failed");
-        throw new RuntimeException("Failed to call Gemini API after " + MAX_RETRIES + " attempts", lastException);
-    }
-
-    // Helper method to determine if an exception is retryable
-    private boolean isRetryableException(Exception e) {
-        return e instanceof java.net.SocketTimeoutException ||
-                e instanceof java.net.SocketException ||
-                e instanceof java.net.ConnectException ||
-                e instanceof java.net.UnknownHostException ||
-                (e instanceof java.io.IOException && e.getMessage() != null &&
-                        (e.getMessage().contains("timeout") || e.getMessage().contains("connection")));
-    }
-
-    // Helper method to get a human-readable exception type
-    private String getExceptionType(Exception e) {
-        if (e instanceof java.net.SocketTimeoutException) {
-            return "Timeout";
-        } else if (e instanceof java.net.SocketException) {
-            return "Socket error";
-        } else if (e instanceof java.net.ConnectException) {
-            return "Connection error";
-        } else if (e instanceof java.net.UnknownHostException) {
-            return "Unknown host error";
-        } else {
-            return "Network error";
+            Log.e(TAG, "Error calling Gemini API", e);
+            throw new RuntimeException("Failed to call Gemini API", e);
+        } catch (Exception e) {
+            Log.e(TAG, "Error calling Gemini API", e);
+            throw new RuntimeException("Failed to call Gemini API", e);
         }
     }
 
@@ -685,9 +660,12 @@ public class GeminiLLMClient extends LLMClient {
     private ExtractionResult performGeminiAPICall(List<Message> history, String systemPrompt, int tokenLimit,
             CancellableCompletableFuture<AssistantResponse> future)
             throws java.io.IOException {
+        HttpURLConnection conn = null;
         try {
+            StreamingRequestBody body = new StreamingRequestBody();
             // Manage conversation history to prevent context overflow
-            List<Message> managedHistory = manageConversationHistory(history, systemPrompt);
+            ensureModelIsSet();
+            List<Message> managedHistory = manageContext(history);
 
             Log.d(TAG, "Message history size: " + managedHistory.size() + " (original: " + history.size() + ")");
             Log.d(TAG, "System prompt present: " + (systemPrompt != null));
@@ -742,14 +720,17 @@ public class GeminiLLMClient extends LLMClient {
                 throw new CancellationException("Request was cancelled");
             }
 
-            URL url = new URL(API_BASE_URL + "/models/" + currentModel + ":generateContent?key=" + apiKey);
+            // streamGenerateContent with alt=sse sends each partial response as
+            // a server-sent event
+            StreamListener streamListener = getStreamListener();
+            URL url = new URL(API_BASE_URL + "/models/" + currentModel
+                    + (streamListener != null ? ":streamGenerateContent?alt=sse&key=" : ":generateContent?key=")
+                    + apiKey);
             Log.d(TAG, "Calling Gemini API with URL: " + url.toString().replace(apiKey, "***API_KEY***"));
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn = LLMHttpClient.open(url, HTTP_TIMEOUT);
             conn.setRequestMethod("POST");
             conn.setRequestProperty("Content-Type", "application/json");
             conn.setDoOutput(true);
-            conn.setConnectTimeout(HTTP_TIMEOUT);
-            conn.setReadTimeout(HTTP_TIMEOUT);
 
             // Create the API request
             JSONObject requestBody = new JSONObject();
@@ -764,8 +745,11 @@ public class GeminiLLMClient extends LLMClient {
                 Log.w(TAG, "No system prompt provided - this may cause the model to ignore important instructions");
             }
 
-            // Build the contents array from history
+            // Build the contents array from history. Each content also gets a
+            // key and a token estimate for context caching.
             JSONArray contents = new JSONArray();
+            List<String> contentKeys = new ArrayList<>();
+            List<Integer> contentTokens = new ArrayList<>();
 
             // Add all messages from history
             for (Message message : managedHistory) {
@@ -787,6 +771,8 @@ public class GeminiLLMClient extends LLMClient {
                     messageObj.put("role", geminiRole);
 
                     JSONArray parts = new JSONArray();
+                    StringBuilder contentKey = new StringBuilder(geminiRole).append('\n').append(message.content);
+                    int tokens = message.content != null ? message.content.length() / 4 : 0;
 
                     // Add text part if not empty
                     if (message.content != null && !message.content.trim().isEmpty()) {
@@ -806,17 +792,18 @@ public class GeminiLLMClient extends LLMClient {
                             try {
                                 File imageFile = validImages.get(imgIndex);
                                 String mimeType = validMimes.get(imgIndex);
-                                String base64Image = encodeImageToBase64(imageFile);
+                                String imageData = body.addImage(imageFile);
                                 JSONObject imagePart = new JSONObject();
                                 JSONObject inlineData = new JSONObject();
                                 inlineData.put("mime_type", mimeType);
-                                inlineData.put("data", base64Image);
+                                inlineData.put("data", imageData);
                                 imagePart.put("inline_data", inlineData);
                                 parts.put(imagePart);
+                                contentKey.append('\n').append(imageFile.getAbsolutePath());
+                                tokens += IMAGE_TOKENS;
 
                                 Log.d(TAG, "Added image " + (imgIndex + 1) + "/" + validImages.size() +
                                         ", text length: " + message.content.length() +
-                                        ", image base64 length: " + base64Image.length() +
                                         ", MIME type: " + mimeType);
                             } catch (IOException e) {
                                 Log.e(TAG, "Failed to encode image " + (imgIndex + 1) + " for message", e);
@@ -827,10 +814,13 @@ public class GeminiLLMClient extends LLMClient {
 
                     messageObj.put("parts", parts);
                     contents.put(messageObj);
+                    contentKeys.add(contentKey.toString());
+                    contentTokens.add(tokens);
                 }
             }
 
-            requestBody.put("contents", contents);
+            requestBody.put("contents", applyContextCache(requestBody, contents, contentKeys, contentTokens,
+                    systemPrompt, body, apiKey));
 
             // Add generation config with more conservative settings for better system
             // prompt adherence
@@ -850,9 +840,11 @@ public class GeminiLLMClient extends LLMClient {
             requestBody.put("generationConfig", generationConfig);
 
             // Write the request
+            long requestStartTime = System.currentTimeMillis();
+            // Chunked, so the connection does not buffer the body to measure it
+            conn.setChunkedStreamingMode(0);
             try (OutputStream os = conn.getOutputStream()) {
-                byte[] input = requestBody.toString().getBytes("utf-8");
-                os.write(input, 0, input.length);
+                body.writeTo(requestBody.toString(), os);
             }
 
             // Check for cancellation after writing request
@@ -898,7 +890,13 @@ public class GeminiLLMClient extends LLMClient {
             int responseCode = conn.getResponseCode();
             Log.d(TAG, "Gemini API response code: " + responseCode);
 
-            if (responseCode == HttpURLConnection.HTTP_OK) {
+            if (responseCode == HttpURLConnection.HTTP_OK && streamListener != null) {
+                ExtractionResult extractionResult = readGeminiStream(conn, future, streamListener, requestStartTime);
+                String extractedResponse = extractionResult.isSuccess() ? extractionResult.getText()
+                        : extractionResult.getErrorMessage();
+                Log.d(TAG, "=== Complete LLM Response ===\n" + formatResponseWithLineNumbers(extractedResponse));
+                return extractionResult;
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
                 // Read the response
                 try (BufferedReader br = new BufferedReader(
                         new InputStreamReader(conn.getInputStream(), "utf-8"))) {
@@ -914,6 +912,7 @@ public class GeminiLLMClient extends LLMClient {
                         response.append(responseLine.trim());
                     }
                     Log.d(TAG, "Raw HTTP response length: " + response.length());
+                    recordUsage(new JSONObject(response.toString()).optJSONObject("usageMetadata"));
                     ExtractionResult extractionResult = extractTextFromResponse(response.toString());
                     String extractedResponse = extractionResult.isSuccess() ? extractionResult.getText()
                             : extractionResult.getErrorMessage();
@@ -959,7 +958,12 @@ public class GeminiLLMClient extends LLMClient {
                 }
 
                 Log.e(TAG, "Gemini API error response: " + errorResponse);
-                throw new RuntimeException("Gemini API error: " + errorMessage + " (HTTP " + responseCode + ")");
+                if (requestBody.has("cachedContent")) {
+                    // The cache may be gone; the next request must not rely on it
+                    contextCache = null;
+                }
+                throw LLMRetryPolicy.httpError(conn, responseCode,
+                        "Gemini API error: " + errorMessage + " (HTTP " + responseCode + ")", errorResponse);
             }
         } catch (java.io.IOException e) {
             // Re-throw IOException to allow retry logic to handle it
@@ -974,7 +978,272 @@ public class GeminiLLMClient extends LLMClient {
 
             Log.e(TAG, "Error calling Gemini API", e);
             throw new RuntimeException("Failed to call Gemini API", e);
+        } finally {
+            LLMHttpClient.release(conn);
+        }
+    }
+
+    /**
+     * Moves the stable prefix of the request, i.e. the system instruction and
+     * all contents but the last, into a cachedContents resource, so Gemini
+     * does not process it again on every turn. A cache is reused as long as it
+     * still is a prefix of the history. Creating one is a blocking round trip
+     * and bills its tokens again, so a cache only covers the part of the
+     * prefix the previous request already sent, and replaces an existing
+     * cache only once the uncached part is at least as long as the cached one.
+     *
+     * @return The contents to send along with the cache
+     */
+    private JSONArray applyContextCache(JSONObject requestBody, JSONArray contents, List<String> contentKeys,
+            List<Integer> contentTokens, String systemPrompt, StreamingRequestBody body, String apiKey)
+            throws Exception {
+        int prefixCount = contents.length() - 1;
+        if (prefixCount < 1 || modelsWithoutContextCaching.contains(currentModel)) {
+            return contents;
+        }
+
+        // The part of the previous request's prefix this one repeats
+        int reusedCount = 0;
+        if (previousPrefixCount > 0 && previousPrefixCount <= prefixCount
+                && previousPrefixHash.equals(prefixHash(systemPrompt, contentKeys, previousPrefixCount))) {
+            reusedCount = previousPrefixCount;
+        }
+        previousPrefixCount = prefixCount;
+        previousPrefixHash = prefixHash(systemPrompt, contentKeys, prefixCount);
+
+        ContextCache cache = contextCache;
+        if (cache != null && (!cache.model.equals(currentModel) || cache.contentCount > prefixCount
+                || System.currentTimeMillis() > cache.expiresAt - CONTEXT_CACHE_EXPIRY_MARGIN_MS
+                || !cache.prefixHash.equals(prefixHash(systemPrompt, contentKeys, cache.contentCount)))) {
+            deleteContextCache(cache, apiKey);
+            cache = null;
+            contextCache = null;
+        }
+
+        long uncachedTokens = cache == null && systemPrompt != null ? systemPrompt.length() / 4 : 0;
+        for (int i = cache != null ? cache.contentCount : 0; i < reusedCount; i++) {
+            uncachedTokens += contentTokens.get(i);
+        }
+        if (reusedCount > (cache != null ? cache.contentCount : 0) && uncachedTokens >= MIN_CACHED_PREFIX_TOKENS
+                && (cache == null || uncachedTokens >= cache.tokens)) {
+            ContextCache created = createContextCache(requestBody.optJSONObject("systemInstruction"), contents,
+                    reusedCount, prefixHash(systemPrompt, contentKeys, reusedCount),
+                    uncachedTokens + (cache != null ? cache.tokens : 0), body, apiKey);
+            if (created != null) {
+                if (cache != null) {
+                    deleteContextCache(cache, apiKey);
+                }
+                cache = created;
+                contextCache = created;
+            }
+        }
+        if (cache == null) {
+            return contents;
+        }
+
+        // The system instruction is part of the cache and may not be sent again
+        requestBody.remove("systemInstruction");
+        requestBody.put("cachedContent", cache.name);
+        JSONArray remaining = new JSONArray();
+        for (int i = cache.contentCount; i < contents.length(); i++) {
+            remaining.put(contents.get(i));
+        }
+        cache.uses++;
+        Log.d(TAG, "Using context cache " + cache.name + " for " + cache.contentCount + " of "
+                + contents.length() + " contents; created in " + cache.creationTimeMs + "ms, "
+                + cache.tokens * cache.uses + " cached tokens read over " + cache.uses + " requests");
+        return remaining;
+    }
+
+    /**
+     * Creates a cachedContents resource with the system instruction and the
+     * first count contents.
+     *
+     * @param estimatedTokens Used if Gemini does not report the token count
+     * @return null if the cache could not be created
+     */
+    private ContextCache createContextCache(JSONObject systemInstruction, JSONArray contents, int count,
+            String prefixHash, long estimatedTokens, StreamingRequestBody body, String apiKey) throws Exception {
+        JSONObject cacheRequest = new JSONObject();
+        cacheRequest.put("model", "models/" + currentModel);
+        if (systemInstruction != null) {
+            cacheRequest.put("systemInstruction", systemInstruction);
+        }
+        JSONArray prefix = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            prefix.put(contents.get(i));
+        }
+        cacheRequest.put("contents", prefix);
+        cacheRequest.put("ttl", CONTEXT_CACHE_TTL_SECONDS + "s");
+
+        long startTime = System.currentTimeMillis();
+        HttpURLConnection conn = null;
+        try {
+            conn = LLMHttpClient.open(new URL(API_BASE_URL + "/cachedContents?key=" + apiKey), HTTP_TIMEOUT);
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Content-Type", "application/json");
+            conn.setDoOutput(true);
+            conn.setChunkedStreamingMode(0);
+            try (OutputStream os = conn.getOutputStream()) {
+                // The prefix holds the same image placeholders as the request
+                body.writeTo(cacheRequest.toString(), os);
+            }
+
+            int responseCode = conn.getResponseCode();
+            boolean ok = responseCode == HttpURLConnection.HTTP_OK;
+            StringBuilder response = new StringBuilder();
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                    ok ? conn.getInputStream() : conn.getErrorStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    response.append(line.trim());
+                }
+            }
+            if (!ok) {
+                Log.w(TAG, "Cannot create context cache (HTTP " + responseCode + "): " + response);
+                if (response.toString().contains("not supported")) {
+                    modelsWithoutContextCaching.add(currentModel);
+                }
+                return null;
+            }
+
+            JSONObject created = new JSONObject(response.toString());
+            String name = created.getString("name");
+            long creationTimeMs = System.currentTimeMillis() - startTime;
+            JSONObject usageMetadata = created.optJSONObject("usageMetadata");
+            long tokens = usageMetadata != null ? usageMetadata.optLong("totalTokenCount", estimatedTokens)
+                    : estimatedTokens;
+            Log.d(TAG, "Created context cache " + name + " for " + count + " contents (" + tokens
+                    + " tokens) in " + creationTimeMs + "ms");
+            recordPromptCacheUsage(0, 0, tokens);
+            return new ContextCache(name, currentModel, prefixHash, count,
+                    startTime + CONTEXT_CACHE_TTL_SECONDS * 1000L, tokens, creationTimeMs);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot create context cache", e);
+            return null;
+        } finally {
+            LLMHttpClient.release(conn);
+        }
+    }
+
+    /**
+     * Deletes a cache in the background. Caches expire anyway; this only
+     * stops paying for their storage early.
+     */
+    private void deleteContextCache(ContextCache cache, String apiKey) {
+        Log.d(TAG, "Dropping context cache " + cache.name + ": created in " + cache.creationTimeMs + "ms for "
+                + cache.tokens + " tokens, read by " + cache.uses + " requests");
+        CompletableFuture.runAsync(() -> {
+            HttpURLConnection conn = null;
+            try {
+                conn = LLMHttpClient.open(new URL(API_BASE_URL + "/" + cache.name + "?key=" + apiKey), HTTP_TIMEOUT);
+                conn.setRequestMethod("DELETE");
+                int responseCode = conn.getResponseCode();
+                try (InputStream in = responseCode < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+                    while (in != null && in.read() != -1) {
+                        // Drain so the connection can be reused
+                    }
+                }
+                Log.d(TAG, "Deleted context cache " + cache.name + " (HTTP " + responseCode + ")");
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot delete context cache " + cache.name, e);
+            } finally {
+                LLMHttpClient.release(conn);
+            }
+        });
+    }
+
+    private static String prefixHash(String systemPrompt, List<String> contentKeys, int count) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(String.valueOf(systemPrompt).getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < count; i++) {
+                digest.update((byte) 0);
+                digest.update(contentKeys.get(i).getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Records the prompt cache usage of a response. promptTokenCount includes
+     * the cached tokens, whether cached explicitly or implicitly.
+     */
+    private void recordUsage(JSONObject usageMetadata) {
+        if (usageMetadata == null) {
+            return;
+        }
+        recordPromptCacheUsage(usageMetadata.optLong("promptTokenCount", 0),
+                usageMetadata.optLong("cachedContentTokenCount", 0), 0);
+    }
+
+    /**
+     * Reads a streamed generateContent response. Every event is a partial
+     * GenerateContentResponse; their texts are concatenated and the result is
+     * checked like a non-streamed response, using the last finish reason.
+     */
+    private ExtractionResult readGeminiStream(HttpURLConnection conn,
+            CancellableCompletableFuture<AssistantResponse> future, StreamListener listener,
+            long requestStartTime) throws Exception {
+        StreamAccumulator accumulator = new StreamAccumulator(TAG, listener, requestStartTime);
+        String[] finishReason = { null };
+        JSONObject[] error = { null };
+        // Every chunk reports the usage so far
+        JSONObject[] usageMetadata = { null };
+
+        readServerSentEvents(conn.getInputStream(), future, (event, data) -> {
+            JSONObject chunk = new JSONObject(data);
+            if (chunk.has("error")) {
+                error[0] = chunk;
+                return false;
+            }
+            if (chunk.has("usageMetadata")) {
+                usageMetadata[0] = chunk.getJSONObject("usageMetadata");
+            }
+            JSONArray candidates = chunk.optJSONArray("candidates");
+            if (candidates == null || candidates.length() == 0) {
+                return true;
+            }
+            JSONObject candidate = candidates.getJSONObject(0);
+            JSONObject content = candidate.optJSONObject("content");
+            JSONArray parts = content != null ? content.optJSONArray("parts") : null;
+            if (parts != null) {
+                for (int i = 0; i < parts.length(); i++) {
+                    JSONObject part = parts.getJSONObject(i);
+                    // Skip thought summaries of thinking models
+                    if (part.has("text") && !part.optBoolean("thought", false)) {
+                        accumulator.append(part.getString("text"));
+                    }
+                }
+            }
+            if (candidate.has("finishReason")) {
+                finishReason[0] = candidate.getString("finishReason");
+            }
+            return true;
+        });
+
+        Log.d(TAG, "Streamed response complete, length: " + accumulator.getText().length()
+                + ", finish reason: " + finishReason[0]
+                + ", time to first token: " + accumulator.getTimeToFirstTokenMs() + "ms");
+        if (error[0] != null) {
+            return extractTextFromResponse(error[0].toString());
+        }
+        recordUsage(usageMetadata[0]);
+
+        // Assemble the equivalent non-streamed response
+        JSONObject candidate = new JSONObject();
+        candidate.put("content", new JSONObject().put("parts",
+                new JSONArray().put(new JSONObject().put("text", accumulator.getText()))));
+        if (finishReason[0] != null) {
+            candidate.put("finishReason", finishReason[0]);
         }
+        return extractTextFromResponse(new JSONObject().put("candidates", new JSONArray().put(candidate)).toString());
     }
 
     // Simple method to get text from Gemini response
@@ -1108,6 +1377,11 @@ public class GeminiLLMClient extends LLMClient {
         return currentModel;
     }
 
+    @Override
+    protected int getContextWindowTokens() {
+        return getMaxInputTokens(currentModel);
+    }
+
     @Override
     public LLMClientFactory.LLMType getType() {
         return LLMClientFactory.LLMType.GEMINI;
@@ -1195,13 +1469,14 @@ public class GeminiLLMClient extends LLMClient {
             return models;
         }
 
+        HttpURLConnection conn = null;
         try {
             URL url = new URL(API_BASE_URL + "/models?key=" + apiKey);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            LLMRequestScheduler.acquire(LLMClientFactory.LLMType.GEMINI, apiKey, 0,
+                    LLMRequestScheduler.Priority.BACKGROUND, null);
+            conn = LLMHttpClient.open(url, HTTP_TIMEOUT);
             conn.setRequestMethod("GET");
             conn.setRequestProperty("Content-Type", "application/json");
-            conn.setConnectTimeout(HTTP_TIMEOUT);
-            conn.setReadTimeout(HTTP_TIMEOUT);
 
             int responseCode = conn.getResponseCode();
             if (responseCode == HttpURLConnection.HTTP_OK) {
@@ -1254,6 +1529,8 @@ public class GeminiLLMClient extends LLMClient {
             }
         } catch (Exception e) {
             Log.e(TAG, "Error fetching Gemini models", e);
+        } finally {
+            LLMHttpClient.release(conn);
         }
 
         // If API query fails, fall back to common models
@@ -1300,46 +1577,4 @@ public class GeminiLLMClient extends LLMClient {
             return jsonString;
         }
     }
-
-    // Helper method to manage conversation history to prevent context overflow
-    private List<Message> manageConversationHistory(List<Message> history, String systemPrompt) {
-        // Estimate total context size
-        int totalSize = systemPrompt != null ? systemPrompt.length() : 0;
-        for (Message msg : history) {
-            totalSize += msg.content.length();
-        }
-
-        Log.d(TAG, "Total estimated context size: " + totalSize + " characters");
-
-        // Get model-specific input token limit and convert to character estimate
-        // Rough estimate: 1 token ≈ 4 characters for English text
-        int maxInputTokens = getMaxInputTokens(currentModel);
-        int maxCharacters = maxInputTokens * 4; // Conservative estimate
-
-        // Use 80% of the limit to be safe
-        int safeCharacterLimit = (int) (maxCharacters * 0.8);
-
-        Log.d(TAG, "Model: " + currentModel + ", Max input tokens: " + maxInputTokens +
-                ", Safe character limit: " + safeCharacterLimit);
-
-        // If context is getting too large, keep only recent messages
-        if (totalSize > safeCharacterLimit) {
-            Log.w(TAG, "Context size too large (" + totalSize + " chars), truncating conversation history. Limit: "
-                    + safeCharacterLimit + " chars");
-
-            // Keep system prompt and last few messages
-            List<Message> truncatedHistory = new ArrayList<>();
-
-            // Keep the last 4 messages (2 user + 2 model pairs)
-            int startIndex = Math.max(0, history.size() - 4);
-            for (int i = startIndex; i < history.size(); i++) {
-                truncatedHistory.add(history.get(i));
-            }
-
-            Log.d(TAG, "Truncated history from " + history.size() + " to " + truncatedHistory.size() + " messages");
-            return truncatedHistory;
-        }
-
-        return history;
-    }
 }
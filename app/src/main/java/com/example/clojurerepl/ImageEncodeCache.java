@@ -0,0 +1,139 @@
+package com.example.clojurerepl;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Disk cache of images prepared for LLM requests, i.e. resized to meet API
+ * limits and base64-encoded. The whole history is sent on every turn, so
+ * without it every screenshot of a session would be decoded, scaled and
+ * encoded again on each iteration. Entries hold the final payload, which
+ * StreamingRequestBody copies into the request as is.
+ *
+ * Entries are keyed by a hash of the image content and everything else that
+ * changes the payload, and live in one directory per design session, which
+ * is deleted with the session:
+ *
+ * cacheDir/llm_images/sessionId/sha256_WIDTHxHEIGHT_format_provider.b64
+ */
+public class ImageEncodeCache {
+    private static final String TAG = "ImageEncodeCache";
+    private static final String CACHE_DIR = "llm_images";
+    private static final String SUFFIX = ".b64";
+    // Content hashes by path, length and modification time, so unchanged
+    // images are not read again just to find their entry
+    private static final Map<String, String> contentHashes = new ConcurrentHashMap<>();
+
+    private final File sessionDir;
+
+    public ImageEncodeCache(Context context, String sessionId) {
+        this.sessionDir = getSessionDir(context, sessionId);
+        if (!sessionDir.exists()) {
+            sessionDir.mkdirs();
+        }
+    }
+
+    /**
+     * Returns the entry for the key, or null if there is none.
+     */
+    public File get(String key) {
+        File entry = new File(sessionDir, key + SUFFIX);
+        return entry.exists() ? entry : null;
+    }
+
+    /**
+     * Base64-encodes imageFile into the entry for the key.
+     *
+     * @return The entry
+     */
+    public File put(String key, File imageFile) throws IOException {
+        File entry = new File(sessionDir, key + SUFFIX);
+        // Written to a temporary file and renamed, so a failed write never
+        // leaves a truncated entry
+        File temp = File.createTempFile("image", ".tmp", sessionDir);
+        try (InputStream in = new FileInputStream(imageFile);
+                OutputStream out = Base64.getEncoder().wrap(new FileOutputStream(temp))) {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        if (!temp.renameTo(entry)) {
+            temp.delete();
+            throw new IOException("Cannot create cache entry " + entry.getAbsolutePath());
+        }
+        Log.d(TAG, "Cached " + imageFile.getName() + " as " + entry.getName() + ", " + entry.length() + " bytes");
+        return entry;
+    }
+
+    /**
+     * Builds the key of an image prepared at the given size and format for
+     * a provider.
+     */
+    public static String key(File imageFile, int width, int height, String format,
+            LLMClientFactory.LLMType provider) throws IOException {
+        return contentHash(imageFile) + "_" + width + "x" + height + "_" + format + "_"
+                + provider.name().toLowerCase();
+    }
+
+    /**
+     * Deletes the entries of a session.
+     */
+    public static void clearSession(Context context, String sessionId) {
+        File dir = getSessionDir(context, sessionId);
+        File[] entries = dir.listFiles();
+        if (entries == null) {
+            return;
+        }
+        for (File entry : entries) {
+            entry.delete();
+        }
+        dir.delete();
+        Log.d(TAG, "Deleted " + entries.length + " cached images of session " + sessionId);
+    }
+
+    private static File getSessionDir(Context context, String sessionId) {
+        return new File(new File(context.getCacheDir(), CACHE_DIR), sessionId);
+    }
+
+    private static String contentHash(File imageFile) throws IOException {
+        String fileKey = imageFile.getAbsolutePath() + ":" + imageFile.length() + ":" + imageFile.lastModified();
+        String hash = contentHashes.get(fileKey);
+        if (hash != null) {
+            return hash;
+        }
+        try (InputStream in = new FileInputStream(imageFile)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            hash = hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        contentHashes.put(fileKey, hash);
+        return hash;
+    }
+}
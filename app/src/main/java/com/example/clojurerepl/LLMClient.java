@@ -4,29 +4,50 @@ import android.content.Context;
 import android.util.Log;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.List;
 import java.util.UUID;
-import java.util.Base64;
 import java.util.ArrayList;
 import org.json.JSONObject;
 import org.json.JSONException;
 
+import com.example.clojurerepl.auth.ApiKeyManager;
+
 public abstract class LLMClient {
     private static final String TAG = "LLMClient";
     private static final String PROMPT_TEMPLATE_PATH = "prompt.txt";
+    private static final String PATCH_INSTRUCTIONS = "\n\nTo change the existing program, you may reply with "
+            + "a \"patch\" field instead of the complete program in \"code\". The patch is either:\n"
+            + "- Complete top-level forms. A form defining a name, e.g. (defn name ...), replaces the current "
+            + "definition of that name. Forms with new names are added before their first use, imports after "
+            + "the existing imports.\n"
+            + "- A unified diff against the current program, with @@ hunk headers and a few lines of context.\n"
+            + "Use \"code\" for large rewrites. Never send both \"code\" and \"patch\".";
+
+    // Whether iteration prompts offer the patch response format, see
+    // CodePatcher
+    private static volatile boolean patchResponsesEnabled = false;
 
     protected final Context context;
     private String promptTemplate;
     protected final ChatSession chatSession;
+    // Created on the first image sent
+    private ImageEncodeCache imageEncodeCache;
 
     /**
      * A cancellable CompletableFuture that can be cancelled and tracks cancellation
@@ -79,6 +100,276 @@ public abstract class LLMClient {
         }
     }
 
+    /**
+     * Receives the text of a response while it is being streamed. Methods are
+     * called on the request thread; the request future still completes with
+     * the full AssistantResponse.
+     */
+    public interface StreamListener {
+        /**
+         * Called once per request, before the first delta.
+         *
+         * @param timeToFirstTokenMs Time from sending the request to the first
+         *                           text of the response
+         */
+        default void onFirstToken(long timeToFirstTokenMs) {
+        }
+
+        void onTextDelta(String delta);
+
+        /**
+         * Called when the request is retried; text delivered so far is
+         * discarded and the response starts over.
+         */
+        default void onStreamReset() {
+        }
+    }
+
+    /**
+     * Accumulates streamed text, forwarding deltas to the stream listener and
+     * recording the time to first token.
+     */
+    protected static class StreamAccumulator {
+        private final String tag;
+        private final StreamListener listener;
+        private final long requestStartTime;
+        private final StringBuilder text = new StringBuilder();
+        private long timeToFirstTokenMs = -1;
+
+        /**
+         * @param requestStartTime When the request was sent, in
+         *                         System.currentTimeMillis() time
+         */
+        protected StreamAccumulator(String tag, StreamListener listener, long requestStartTime) {
+            this.tag = tag;
+            this.listener = listener;
+            this.requestStartTime = requestStartTime;
+        }
+
+        public void append(String delta) {
+            if (delta == null || delta.isEmpty()) {
+                return;
+            }
+            if (timeToFirstTokenMs < 0) {
+                timeToFirstTokenMs = System.currentTimeMillis() - requestStartTime;
+                Log.d(tag, "Time to first token: " + timeToFirstTokenMs + "ms");
+                if (listener != null) {
+                    listener.onFirstToken(timeToFirstTokenMs);
+                }
+            }
+            text.append(delta);
+            if (listener != null) {
+                listener.onTextDelta(delta);
+            }
+        }
+
+        public String getText() {
+            return text.toString();
+        }
+
+        /**
+         * @return The time to first token, or -1 if no text arrived
+         */
+        public long getTimeToFirstTokenMs() {
+            return timeToFirstTokenMs;
+        }
+    }
+
+    /**
+     * Handles one server-sent event.
+     */
+    protected interface ServerSentEventHandler {
+        /**
+         * @param event The event type, or null if the event had none
+         * @param data  The event data, with multiple data lines joined by '\n'
+         * @return false to stop reading the stream
+         */
+        boolean onEvent(String event, String data) throws Exception;
+    }
+
+    private volatile StreamListener streamListener;
+
+    /**
+     * Enables streaming for subsequent requests, or disables it when listener
+     * is null.
+     */
+    public void setStreamListener(StreamListener listener) {
+        this.streamListener = listener;
+    }
+
+    public StreamListener getStreamListener() {
+        return streamListener;
+    }
+
+    protected boolean isStreaming() {
+        return streamListener != null;
+    }
+
+    /**
+     * Sends a request to the provider. Each attempt waits for its turn in the
+     * LLMRequestScheduler and is retried by the LLMRetryPolicy as needed; the
+     * stream is reset before a retry.
+     *
+     * @param systemPrompt The system prompt of the request, may be null
+     * @param messages     The messages of the request, for its token estimate
+     * @param priority     The priority of the request in the scheduler
+     */
+    protected <T> T callProvider(String systemPrompt, List<Message> messages, LLMRequestScheduler.Priority priority,
+            CancellableCompletableFuture<?> future, LLMRetryPolicy.Attempt<T> attempt) throws Exception {
+        ContextManager.TokenEstimator estimator = ContextManager.TokenEstimator.forType(getType());
+        int tokens = systemPrompt != null ? estimator.estimateText(systemPrompt) : 0;
+        for (Message message : messages) {
+            // Counted above if given, whether or not it is among the messages
+            if (message.role != MessageRole.SYSTEM || systemPrompt == null) {
+                tokens += estimator.estimate(message);
+            }
+        }
+        if (!cacheReadsCountTowardsRateLimit()) {
+            // Most of the prefix is likely read from the cache again
+            tokens = (int) Math.max(0, tokens - lastCachedInputTokens);
+        }
+        final int estimatedTokens = tokens;
+        String apiKey = ApiKeyManager.getInstance(context).getApiKey(getType());
+        return LLMRetryPolicy.call(getType(), future, n -> {
+            StreamListener listener = getStreamListener();
+            if (n > 0 && listener != null) {
+                listener.onStreamReset();
+            }
+            LLMRequestScheduler.acquire(getType(), apiKey, estimatedTokens, priority, future);
+            return attempt.run(n);
+        });
+    }
+
+    // Input tokens of this client's responses, and how many of them were
+    // read from or written to the provider's prompt cache
+    private final AtomicLong inputTokens = new AtomicLong();
+    private final AtomicLong cachedInputTokens = new AtomicLong();
+    private final AtomicLong cacheWriteTokens = new AtomicLong();
+    // Input tokens the last response read from the cache
+    private volatile long lastCachedInputTokens = 0;
+
+    /**
+     * Whether the provider counts input tokens read from its prompt cache
+     * towards its input token rate limit, see LLMRequestScheduler.
+     */
+    protected boolean cacheReadsCountTowardsRateLimit() {
+        return true;
+    }
+
+    /**
+     * Records the prompt cache usage a response reports.
+     *
+     * @param input      All input tokens of the request, cached or not
+     * @param cached     Input tokens read from the cache
+     * @param cacheWrite Input tokens written to the cache
+     */
+    protected void recordPromptCacheUsage(long input, long cached, long cacheWrite) {
+        long totalInput = inputTokens.addAndGet(input);
+        long totalCached = cachedInputTokens.addAndGet(cached);
+        if (input > 0) {
+            lastCachedInputTokens = cached;
+        }
+        cacheWriteTokens.addAndGet(cacheWrite);
+        Log.d(TAG, "Prompt cache: " + cached + " of " + input + " input tokens cached, " + cacheWrite
+                + " written; total " + totalCached + " of " + totalInput
+                + (totalInput > 0 ? " (" + (totalCached * 100 / totalInput) + "%)" : ""));
+    }
+
+    public long getInputTokens() {
+        return inputTokens.get();
+    }
+
+    public long getCachedInputTokens() {
+        return cachedInputTokens.get();
+    }
+
+    public long getCacheWriteTokens() {
+        return cacheWriteTokens.get();
+    }
+
+    // Share of the context window the conversation may take up; the rest
+    // absorbs estimation error
+    private static final double CONTEXT_BUDGET_FRACTION = 0.8;
+    private volatile int lastContextTokensSaved = 0;
+
+    /**
+     * Gets the number of input tokens the current model accepts
+     *
+     * @return The context window size, or 0 if unknown
+     */
+    protected int getContextWindowTokens() {
+        return 0;
+    }
+
+    /**
+     * Fits the messages into the current model's context window. See
+     * ContextManager for what is dropped first.
+     */
+    protected List<Message> manageContext(List<Message> messages) {
+        int contextWindow = getContextWindowTokens();
+        if (contextWindow <= 0) {
+            return messages;
+        }
+        ContextManager manager = new ContextManager(ContextManager.TokenEstimator.forType(getType()),
+                (int) (contextWindow * CONTEXT_BUDGET_FRACTION));
+        List<Message> fitted = manager.fit(messages);
+        lastContextTokensSaved = manager.getLastTokensSaved();
+        return fitted;
+    }
+
+    /**
+     * Gets the estimated number of tokens the last request saved by fitting
+     * its messages into the context window
+     */
+    public int getLastContextTokensSaved() {
+        return lastContextTokensSaved;
+    }
+
+    /**
+     * Reads a text/event-stream response body and passes each event to the
+     * handler. Cancellation of the future is checked between events.
+     */
+    protected static void readServerSentEvents(InputStream in, CancellableCompletableFuture<?> future,
+            ServerSentEventHandler handler) throws Exception {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String event = null;
+            StringBuilder data = null;
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.isEmpty()) {
+                    // A blank line ends the event
+                    if (data != null) {
+                        if (future.isCancelled()) {
+                            Log.d(TAG, "Request cancelled during response streaming");
+                            throw new CancellationException("Request was cancelled");
+                        }
+                        if (!handler.onEvent(event, data.toString())) {
+                            return;
+                        }
+                    }
+                    event = null;
+                    data = null;
+                } else if (line.startsWith("event:")) {
+                    event = line.substring(6).trim();
+                } else if (line.startsWith("data:")) {
+                    String value = line.substring(5);
+                    if (value.startsWith(" ")) {
+                        value = value.substring(1);
+                    }
+                    if (data == null) {
+                        data = new StringBuilder(value);
+                    } else {
+                        data.append('\n').append(value);
+                    }
+                }
+                // Comments (":") and other fields are ignored
+            }
+            if (data != null && !future.isCancelled()) {
+                handler.onEvent(event, data.toString());
+            }
+        }
+    }
+
     public ChatSession getChatSession() {
         return chatSession;
     }
@@ -188,6 +479,14 @@ public abstract class LLMClient {
         return prompt.toString();
     }
 
+    public static void setPatchResponsesEnabled(boolean enabled) {
+        patchResponsesEnabled = enabled;
+    }
+
+    public static boolean isPatchResponsesEnabled() {
+        return patchResponsesEnabled;
+    }
+
     /**
      * Returns the system prompt to be used when initializing a conversation.
      * This prompt provides instruction on how to generate Clojure code.
@@ -196,19 +495,33 @@ public abstract class LLMClient {
         return promptTemplate;
     }
 
+    /**
+     * Format an iteration prompt. The view hierarchy (may be null) is the
+     * compact layout dump of the last run, a cheap stand-in for screenshots
+     * that can be sent with or without images.
+     */
     public String formatIterationPrompt(String description,
             String currentCode,
             String logcat,
+            String viewHierarchy,
             String feedback,
             boolean hasImages,
             boolean forceCodeGeneration) {
         Log.d(TAG, "Formatting iteration prompt with description: " + description +
                 ", feedback: " + feedback +
                 ", hasImages: " + hasImages +
+                ", hasViewHierarchy: " + (viewHierarchy != null && !viewHierarchy.isEmpty()) +
                 ", forceCodeGeneration: " + forceCodeGeneration);
 
         boolean hasLogcat = logcat != null && !logcat.isEmpty();
+        boolean hasViewHierarchy = viewHierarchy != null && !viewHierarchy.isEmpty();
         String sanitizedFeedback = feedback != null ? feedback.trim() : "";
+        String viewHierarchySection = hasViewHierarchy
+                ? "Layout of the running app (view hierarchy):\n```\n" + viewHierarchy.trim() + "\n```\n"
+                : "";
+        String patchSection = patchResponsesEnabled && currentCode != null && !currentCode.trim().isEmpty()
+                ? PATCH_INSTRUCTIONS
+                : "";
 
         if (forceCodeGeneration) {
             if (hasLogcat) {
@@ -219,13 +532,13 @@ public abstract class LLMClient {
                         hasImages ? "," : " and",
                         hasImages ? ", and attached images" : "",
                         sanitizedFeedback,
-                        logcat);
+                        logcat) + viewHierarchySection + patchSection;
             } else {
                 return String.format(
                         "The app needs work. Provide an improved version addressing the feedback%s.\n" +
                                 "User feedback: %s\n",
                         hasImages ? " and attached images" : "",
-                        sanitizedFeedback);
+                        sanitizedFeedback) + viewHierarchySection + patchSection;
             }
         }
 
@@ -241,11 +554,16 @@ public abstract class LLMClient {
                     .append("\n```\n\n");
         }
 
+        if (hasViewHierarchy) {
+            prompt.append(viewHierarchySection)
+                    .append("\n");
+        }
+
         if (hasImages) {
             prompt.append("Also see the provided screenshots/images for additional context.\n\n");
         }
 
-        return prompt.toString().trim();
+        return prompt.toString().trim() + patchSection;
     }
 
     // Base Message class for chat history
@@ -628,10 +946,20 @@ public abstract class LLMClient {
         public final String textAfterCode;
         public final boolean success;
         public final String errorMessage;
+        // Edit to the current program, see CodePatcher; null if none
+        public final String patch;
 
         private CodeExtractionResult(String code, String reasoning, String textBeforeCode, String textAfterCode,
                 boolean success, String errorMessage, boolean reasoningComplete, boolean codeComplete) {
+            this(code, reasoning, null, textBeforeCode, textAfterCode, success, errorMessage, reasoningComplete,
+                    codeComplete);
+        }
+
+        private CodeExtractionResult(String code, String reasoning, String patch, String textBeforeCode,
+                String textAfterCode, boolean success, String errorMessage, boolean reasoningComplete,
+                boolean codeComplete) {
             this.code = code;
+            this.patch = patch;
             this.reasoning = reasoning;
             this.textBeforeCode = textBeforeCode;
             this.textAfterCode = textAfterCode;
@@ -651,6 +979,12 @@ public abstract class LLMClient {
                     reasoningComplete, codeComplete);
         }
 
+        public static CodeExtractionResult success(String code, String reasoning, String patch,
+                String textBeforeCode, String textAfterCode, boolean reasoningComplete, boolean codeComplete) {
+            return new CodeExtractionResult(code, reasoning, patch, textBeforeCode, textAfterCode, true, null,
+                    reasoningComplete, codeComplete);
+        }
+
         public static CodeExtractionResult failure(String errorMessage) {
             return new CodeExtractionResult(null, null, null, null, false, errorMessage, false, false);
         }
@@ -682,7 +1016,9 @@ public abstract class LLMClient {
             return CodeExtractionResult.success("", null, "", "", true, true);
         }
 
-        String jsonText = input.trim();
+        // Leading whitespace only: a truncated response may end inside a
+        // field, where trailing whitespace is content
+        String jsonText = stripLeadingWhitespace(input);
 
         // Aggressively remove markdown code block markers if present
         // Handle cases like: ```json\n{...}\n``` or ```\n{...}\n``` or ```json{...}```
@@ -705,29 +1041,9 @@ public abstract class LLMClient {
                 }
                 jsonText = jsonText.substring(codeFenceEnd);
             }
-            jsonText = jsonText.trim();
-        }
-
-        // Remove closing code fence (```) - handle both end of string and before trailing text
-        // Look for ``` that might be at the end or followed by whitespace/newlines
-        int closingFenceIndex = jsonText.lastIndexOf("```");
-        if (closingFenceIndex != -1) {
-            // Check if it's actually a closing fence (not part of content)
-            String afterFence = jsonText.substring(closingFenceIndex + 3).trim();
-            // If there's only whitespace/newlines after the ```, it's a closing fence
-            if (afterFence.isEmpty() || afterFence.matches("^[\\s\\n\\r]*$")) {
-                jsonText = jsonText.substring(0, closingFenceIndex).trim();
-            }
-        }
-
-        // Also check for closing ``` at the very end
-        if (jsonText.endsWith("```")) {
-            jsonText = jsonText.substring(0, jsonText.length() - 3).trim();
+            jsonText = stripLeadingWhitespace(jsonText);
         }
 
-        // Remove any remaining leading/trailing whitespace
-        jsonText = jsonText.trim();
-
         // Try to find JSON object in the response
         // Look for the first '{' that starts a JSON object
         int jsonStart = jsonText.indexOf('{');
@@ -744,12 +1060,26 @@ public abstract class LLMClient {
                     (textBeforeJson.length() > 100 ? textBeforeJson.substring(0, 100) + "..." : textBeforeJson));
         }
 
-        // Extract the JSON portion - find the last } to ensure we get complete JSON
-        String originalJsonContent = jsonText.substring(jsonStart);
-        // Find the last closing brace to get the complete JSON object
-        int jsonEnd = originalJsonContent.lastIndexOf('}');
+        // Extract the JSON portion, up to the brace that closes the object.
+        // Text after it, such as a closing code fence, is dropped.
+        String originalJsonContent;
+        int jsonEnd = findMatchingBrace(jsonText, jsonStart);
         if (jsonEnd != -1) {
-            originalJsonContent = originalJsonContent.substring(0, jsonEnd + 1);
+            originalJsonContent = jsonText.substring(jsonStart, jsonEnd + 1);
+        } else if (isPartial) {
+            // Cut off inside the object, so everything after its start
+            // belongs to it
+            originalJsonContent = jsonText.substring(jsonStart);
+        } else {
+            originalJsonContent = jsonText.substring(jsonStart).trim();
+            // Remove a closing code fence and anything after the last brace
+            if (originalJsonContent.endsWith("```")) {
+                originalJsonContent = originalJsonContent.substring(0, originalJsonContent.length() - 3).trim();
+            }
+            int lastBrace = originalJsonContent.lastIndexOf('}');
+            if (lastBrace != -1) {
+                originalJsonContent = originalJsonContent.substring(0, lastBrace + 1);
+            }
         }
         String jsonContent = originalJsonContent;
 
@@ -815,22 +1145,33 @@ public abstract class LLMClient {
                 codeComplete = !isPartial || !codeWasIncomplete;
             }
 
+            // Extract patch field, only used when complete
+            String patch = null;
+            if (json.has("patch")) {
+                Object patchObj = json.get("patch");
+                if (patchObj instanceof String && !((String) patchObj).trim().isEmpty() && !isPartial) {
+                    patch = (String) patchObj;
+                }
+            }
+
             // Validate that at least one field is present
-            if (reasoning == null && code == null) {
+            if (reasoning == null && code == null && patch == null) {
                 Log.w(TAG, "JSON response has neither reasoning nor code fields");
                 return CodeExtractionResult
-                        .failure("JSON response must contain at least one of 'reasoning' or 'code' fields");
+                        .failure("JSON response must contain at least one of 'reasoning', 'code' or 'patch' fields");
             }
 
             Log.d(TAG, "Successfully extracted JSON response. Reasoning length: " +
                     (reasoning != null ? reasoning.length() : 0) +
                     ", Code length: " + (code != null ? code.length() : 0) +
+                    ", Patch length: " + (patch != null ? patch.length() : 0) +
                     ", Reasoning complete: " + reasoningComplete +
                     ", Code complete: " + codeComplete);
 
             return CodeExtractionResult.success(
                     code != null ? code : "",
                     reasoning != null ? reasoning : null,
+                    patch,
                     jsonStart > 0 ? jsonText.substring(0, jsonStart).trim() : "",
                     "",
                     reasoningComplete,
@@ -846,6 +1187,14 @@ public abstract class LLMClient {
         }
     }
 
+    private static String stripLeadingWhitespace(String text) {
+        int start = 0;
+        while (start < text.length() && text.charAt(start) <= ' ') {
+            start++;
+        }
+        return text.substring(start);
+    }
+
     /**
      * Information about which fields were incomplete in a partial JSON response
      */
@@ -872,66 +1221,60 @@ public abstract class LLMClient {
         // Track JSON structure state
         boolean inString = false;
         boolean escaped = false;
-        String currentField = null; // "reasoning" or "code"
-        boolean inFieldValue = false; // Are we inside a field value?
-        boolean expectingValue = false; // Did we just see a colon after a field name?
+        int depth = 0;
+        int stringStart = -1;
+        String currentField = null; // "reasoning" or "code", the last top-level key
+        boolean expectingValue = false; // Did we just see a colon after a top-level key?
+        String valueField = null; // The field whose string value is open, if any
 
         for (int i = 0; i < json.length(); i++) {
             char c = json.charAt(i);
 
-            if (escaped) {
-                escaped = false;
-                continue;
-            }
-
-            if (c == '\\') {
-                escaped = true;
-                continue;
-            }
-
-            if (c == '"' && !escaped) {
-                inString = !inString;
-                if (!inString) {
-                    // We just closed a string - check if it was a field name
-                    // Look backwards to find the field name we just closed
-                    int lookbackStart = Math.max(0, i - 20);
-                    String recent = json.substring(lookbackStart, i);
-                    if (recent.contains("\"reasoning\"")) {
-                        currentField = "reasoning";
-                        inFieldValue = false;
-                        expectingValue = true; // Next value after colon is the field value
-                    } else if (recent.contains("\"code\"")) {
-                        currentField = "code";
-                        inFieldValue = false;
-                        expectingValue = true; // Next value after colon is the field value
-                    }
-                } else {
-                    // Opening a string
-                    if (expectingValue && currentField != null) {
-                        // Direct string value after field name
-                        inFieldValue = true;
-                        expectingValue = false;
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == '"') {
+                    inString = false;
+                    if (valueField == null && depth == 1 && !expectingValue) {
+                        // A top-level key
+                        String key = json.substring(stringStart + 1, i);
+                        currentField = "reasoning".equals(key) || "code".equals(key) ? key : null;
                     }
+                    valueField = null;
                 }
                 continue;
             }
 
-            if (!inString) {
-                if (c == ',' || c == '}') {
-                    // Field value ended
-                    if (inFieldValue && currentField != null) {
-                        inFieldValue = false;
-                        currentField = null;
-                    }
-                }
+            if (c == '"') {
+                inString = true;
+                stringStart = i;
+                // Direct string value after field name
+                valueField = expectingValue ? currentField : null;
+                expectingValue = false;
+            } else if (c == ':' && depth == 1) {
+                expectingValue = true;
+            } else if (c == '{' || c == '[') {
+                depth++;
+                expectingValue = false;
+            } else if (c == '}' || c == ']') {
+                depth--;
+                expectingValue = false;
+            } else if (c == ',') {
+                expectingValue = false;
+                currentField = depth == 1 ? null : currentField;
+            } else if (!Character.isWhitespace(c)) {
+                // A number or literal value
+                expectingValue = false;
             }
         }
 
-        // If we ended while still in a string and we're in a field value, mark that field incomplete
-        if (inString && inFieldValue && currentField != null) {
-            if ("reasoning".equals(currentField)) {
+        // If we ended while still in a field's string value, mark that field incomplete
+        if (inString && valueField != null) {
+            if ("reasoning".equals(valueField)) {
                 info.reasoningIncomplete = true;
-            } else if ("code".equals(currentField)) {
+            } else if ("code".equals(valueField)) {
                 info.codeIncomplete = true;
             }
         }
@@ -942,7 +1285,10 @@ public abstract class LLMClient {
     /**
      * Attempts to complete a partial JSON string by closing any open structures.
      * This is a best-effort approach to make partial JSON parseable.
-     * Handles incomplete string values by closing them properly.
+     * Handles incomplete string values by closing them properly, without an
+     * escape sequence they were cut off in. A member that cannot be completed,
+     * such as a key without a value or a cut-off number or literal, is dropped
+     * together with the comma before it.
      *
      * @param json                The partial JSON string
      * @param reasoningIncomplete Whether the reasoning field was cut off (unused, kept for compatibility)
@@ -954,60 +1300,124 @@ public abstract class LLMClient {
             return json;
         }
 
-        StringBuilder completed = new StringBuilder(json);
-        int openBraces = 0;
-        int openBrackets = 0;
+        // Open objects and arrays, innermost last, with where the member or
+        // element being read starts (at the comma before it, if any) and how
+        // far it got
+        List<Character> open = new ArrayList<>();
+        List<Integer> memberStarts = new ArrayList<>();
+        List<Integer> memberStates = new ArrayList<>();
         boolean inString = false;
         boolean escaped = false;
+        int lastEscape = -1;
+        int literalStart = -1;
 
-        // Count open structures and track string state
         for (int i = 0; i < json.length(); i++) {
             char c = json.charAt(i);
-            if (escaped) {
-                escaped = false;
+            int top = open.size() - 1;
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                    lastEscape = i;
+                } else if (c == '"') {
+                    inString = false;
+                    if (top >= 0) {
+                        memberStates.set(top, memberStates.get(top) == MEMBER_KEY ? MEMBER_AFTER_KEY
+                                : MEMBER_COMPLETE);
+                    }
+                }
                 continue;
             }
-            if (c == '\\') {
-                escaped = true;
+            if (top < 0) {
+                if (c == '{' || c == '[') {
+                    open.add(c);
+                    memberStarts.add(i + 1);
+                    memberStates.add(MEMBER_NONE);
+                }
                 continue;
             }
-            if (c == '"' && !escaped) {
-                inString = !inString;
-                continue;
+            if (memberStates.get(top) == MEMBER_LITERAL && (c == ',' || c == '}' || c == ']'
+                    || Character.isWhitespace(c))) {
+                memberStates.set(top, isCompleteLiteral(json.substring(literalStart, i)) ? MEMBER_COMPLETE
+                        : MEMBER_INCOMPLETE);
             }
-            if (!inString) {
-                if (c == '{') {
-                    openBraces++;
-                } else if (c == '}') {
-                    openBraces--;
-                } else if (c == '[') {
-                    openBrackets++;
-                } else if (c == ']') {
-                    openBrackets--;
+            if (c == '"') {
+                inString = true;
+                boolean isKey = open.get(top) == '{' && (memberStates.get(top) == MEMBER_NONE
+                        || memberStates.get(top) == MEMBER_AFTER_COMMA);
+                memberStates.set(top, isKey ? MEMBER_KEY : MEMBER_STRING);
+            } else if (c == '{' || c == '[') {
+                memberStates.set(top, MEMBER_CONTAINER);
+                open.add(c);
+                memberStarts.add(i + 1);
+                memberStates.add(MEMBER_NONE);
+            } else if (c == '}' || c == ']') {
+                open.remove(top);
+                memberStarts.remove(top);
+                memberStates.remove(top);
+                if (top > 0) {
+                    memberStates.set(top - 1, MEMBER_COMPLETE);
                 }
+            } else if (c == ':') {
+                memberStates.set(top, MEMBER_AFTER_COLON);
+            } else if (c == ',') {
+                memberStarts.set(top, i);
+                memberStates.set(top, MEMBER_AFTER_COMMA);
+            } else if (!Character.isWhitespace(c) && memberStates.get(top) != MEMBER_LITERAL) {
+                memberStates.set(top, MEMBER_LITERAL);
+                literalStart = i;
             }
         }
 
-        // If we're in the middle of a string, close it
-        if (inString) {
-            completed.append('"');
+        StringBuilder completed = new StringBuilder(json);
+        int top = open.size() - 1;
+        if (top < 0) {
+            return json;
         }
-
-        // Close any open brackets first
-        while (openBrackets > 0) {
-            completed.append(']');
-            openBrackets--;
+        int state = memberStates.get(top);
+        if (state == MEMBER_LITERAL) {
+            state = isCompleteLiteral(json.substring(literalStart)) ? MEMBER_COMPLETE : MEMBER_INCOMPLETE;
+        }
+        if (inString && state == MEMBER_STRING) {
+            // If we're in the middle of a string value, close it
+            boolean cutEscape = escaped || (lastEscape >= 0 && json.charAt(lastEscape + 1) == 'u'
+                    && json.length() - lastEscape < 6);
+            if (cutEscape) {
+                completed.setLength(lastEscape);
+            }
+            completed.append('"');
+        } else if (state != MEMBER_COMPLETE && state != MEMBER_NONE) {
+            // Drop the member that cannot be completed, or a trailing comma
+            completed.setLength(memberStarts.get(top));
         }
 
-        // Close any open braces
-        while (openBraces > 0) {
-            completed.append('}');
-            openBraces--;
+        // Close any open arrays and objects
+        for (int i = top; i >= 0; i--) {
+            completed.append(open.get(i) == '{' ? '}' : ']');
         }
 
         return completed.toString();
     }
 
+    // How far the member of an object or element of an array being read in
+    // completePartialJson got
+    private static final int MEMBER_NONE = 0;
+    private static final int MEMBER_KEY = 1;
+    private static final int MEMBER_AFTER_KEY = 2;
+    private static final int MEMBER_AFTER_COLON = 3;
+    private static final int MEMBER_STRING = 4;
+    private static final int MEMBER_LITERAL = 5;
+    private static final int MEMBER_CONTAINER = 6;
+    private static final int MEMBER_COMPLETE = 7;
+    private static final int MEMBER_INCOMPLETE = 8;
+    private static final int MEMBER_AFTER_COMMA = 9;
+
+    private static boolean isCompleteLiteral(String literal) {
+        return literal.equals("true") || literal.equals("false") || literal.equals("null")
+                || literal.matches("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?");
+    }
+
     /**
      * Finds the matching closing brace for an opening brace at the given position.
      * Returns -1 if not found.
@@ -1100,6 +1510,21 @@ public abstract class LLMClient {
             Log.d(TAG, "Created new chat session: " + sessionId);
         }
 
+        /**
+         * Creates a session holding the given messages, e.g. for a follow-up
+         * request that must not be recorded in the original session.
+         */
+        public ChatSession(String sessionId, List<Message> messages) {
+            this.sessionId = sessionId;
+            this.messages = new ArrayList<>(messages);
+            for (Message message : messages) {
+                if (message instanceof SystemPrompt) {
+                    systemPrompt = message.content;
+                }
+            }
+            Log.d(TAG, "Created chat session " + sessionId + " with " + messages.size() + " messages");
+        }
+
         /**
          * Resets the chat session by clearing all messages
          */
@@ -1279,11 +1704,13 @@ public abstract class LLMClient {
      * @param session       The chat session containing messages to send
      * @param messageFilter A filter that determines which messages to send. If
      *                      null, all messages are sent.
+     * @param priority      The priority of the request in the
+     *                      LLMRequestScheduler
      * @return A CancellableCompletableFuture containing the API response as an
      *         AssistantResponse
      */
     protected abstract CancellableCompletableFuture<AssistantResponse> sendMessages(ChatSession session,
-            MessageFilter messageFilter);
+            MessageFilter messageFilter, LLMRequestScheduler.Priority priority);
 
     /**
      * Clears the API key for this client type
@@ -1333,24 +1760,89 @@ public abstract class LLMClient {
     }
 
     /**
-     * Encodes an image file to base64 string, with automatic resizing to meet API
-     * requirements
-     *
-     * @param imageFile The image file to encode
-     * @return Base64 encoded string of the image
-     * @throws IOException If there's an error reading the file
+     * Request body that streams image data into the request instead of
+     * holding it in a JSON string. The JSON is built as usual, with a
+     * placeholder from addImage() wherever the base64 data of an image goes;
+     * writeTo() sends the JSON and copies each image's encoded file into the
+     * stream in place of its placeholder. Images are prepared in addImage(),
+     * so an image that cannot be read can still be skipped.
      */
-    protected String encodeImageToBase64(File imageFile) throws IOException {
-        // First, resize the image if needed to meet API requirements
-        File resizedImage = resizeImageForAPI(imageFile);
+    protected class StreamingRequestBody {
+        // Letters, digits and '-' only, so JSON serialization leaves it as is
+        private final String placeholderPrefix = "image-" + UUID.randomUUID() + "-";
+        private final List<File> encodedFiles = new ArrayList<>();
 
-        try (FileInputStream fis = new FileInputStream(resizedImage)) {
-            byte[] imageBytes = new byte[(int) resizedImage.length()];
-            fis.read(imageBytes);
-            return Base64.getEncoder().encodeToString(imageBytes);
+        /**
+         * Adds an image, resized to meet API requirements.
+         *
+         * @return The placeholder to put where the image's base64 data goes
+         */
+        public String addImage(File imageFile) throws IOException {
+            File encodedFile = getEncodedImage(imageFile);
+            encodedFiles.add(encodedFile);
+            Log.d(TAG, "Image " + imageFile.getName() + " will be streamed, base64 length: "
+                    + encodedFile.length());
+            return placeholderPrefix + (encodedFiles.size() - 1) + "-";
+        }
+
+        /**
+         * Writes json to out, with the image placeholders replaced by the
+         * base64 image data.
+         */
+        public void writeTo(String json, OutputStream out) throws IOException {
+            OutputStream buffered = new BufferedOutputStream(out);
+            Writer writer = new OutputStreamWriter(buffered, StandardCharsets.UTF_8);
+            int start = 0;
+            int index;
+            while ((index = json.indexOf(placeholderPrefix, start)) >= 0) {
+                int numberStart = index + placeholderPrefix.length();
+                int numberEnd = json.indexOf('-', numberStart);
+                writer.write(json, start, index - start);
+                writer.flush();
+                File encodedFile = encodedFiles.get(Integer.parseInt(json.substring(numberStart, numberEnd)));
+                try (FileInputStream in = new FileInputStream(encodedFile)) {
+                    byte[] buffer = new byte[8192];
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        buffered.write(buffer, 0, count);
+                    }
+                }
+                start = numberEnd + 1;
+            }
+            writer.write(json, start, json.length() - start);
+            writer.flush();
+        }
+    }
+
+    /**
+     * Returns a file with the base64 data of the image as it is sent to the
+     * API. Images are resized and encoded once per session and provider, and
+     * taken from the session's ImageEncodeCache afterwards.
+     */
+    protected File getEncodedImage(File imageFile) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(imageFile.getAbsolutePath(), options);
+        int[] targetSize = getTargetSizeForAPI(options.outWidth, options.outHeight);
+        boolean resized = targetSize[0] != options.outWidth || targetSize[1] != options.outHeight;
+        String key = ImageEncodeCache.key(imageFile, targetSize[0], targetSize[1],
+                resized ? "png" : "original", getType());
+
+        if (imageEncodeCache == null) {
+            imageEncodeCache = new ImageEncodeCache(context, chatSession.getSessionId());
+        }
+        File entry = imageEncodeCache.get(key);
+        if (entry != null) {
+            Log.d(TAG, "Using cached encoding of " + imageFile.getName());
+            return entry;
+        }
+
+        File resizedImage = resizeImageForAPI(imageFile);
+        try {
+            return imageEncodeCache.put(key, resizedImage);
         } finally {
             // Clean up the temporary resized file if it's different from the original
-            if (!resizedImage.equals(imageFile) && resizedImage.exists()) {
+            if (!resizedImage.equals(imageFile)) {
                 resizedImage.delete();
             }
         }
@@ -1378,8 +1870,49 @@ public abstract class LLMClient {
 
         Log.d(TAG, "Original image dimensions: " + originalWidth + "x" + originalHeight);
 
-        // Check if resizing is needed
-        boolean needsResizing = false;
+        int[] targetSize = getTargetSizeForAPI(originalWidth, originalHeight);
+        int targetWidth = targetSize[0];
+        int targetHeight = targetSize[1];
+
+        if (targetWidth == originalWidth && targetHeight == originalHeight) {
+            Log.d(TAG, "Image does not need resizing");
+            return imageFile;
+        }
+
+        Log.d(TAG, "Resizing image to: " + targetWidth + "x" + targetHeight);
+
+        // Load and resize the image
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(originalWidth, originalHeight, targetWidth, targetHeight);
+
+        Bitmap originalBitmap = BitmapFactory.decodeFile(imageFile.getAbsolutePath(), options);
+        if (originalBitmap == null) {
+            throw new IOException("Failed to decode image: " + imageFile.getAbsolutePath());
+        }
+
+        // Create resized bitmap
+        Bitmap resizedBitmap = Bitmap.createScaledBitmap(originalBitmap, targetWidth, targetHeight, true);
+        originalBitmap.recycle();
+
+        // Save resized image to temporary file
+        File tempFile = File.createTempFile("llm_resized_", ".png", context.getCacheDir());
+        try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+            resizedBitmap.compress(Bitmap.CompressFormat.PNG, 100, fos);
+        }
+        resizedBitmap.recycle();
+
+        Log.d(TAG, "Resized image saved to: " + tempFile.getAbsolutePath() +
+                ", size: " + tempFile.length() + " bytes");
+
+        return tempFile;
+    }
+
+    /**
+     * Computes the size resizeImageForAPI() scales an image to.
+     *
+     * @return {width, height}, the original size if no resizing is needed
+     */
+    static int[] getTargetSizeForAPI(int originalWidth, int originalHeight) {
         int targetWidth = originalWidth;
         int targetHeight = originalHeight;
 
@@ -1390,7 +1923,6 @@ public abstract class LLMClient {
 
         // Check if image exceeds maximum dimensions
         if (originalWidth > MAX_DIMENSION || originalHeight > MAX_DIMENSION) {
-            needsResizing = true;
             if (originalWidth > originalHeight) {
                 targetWidth = MAX_DIMENSION;
                 targetHeight = (int) ((double) originalHeight * MAX_DIMENSION / originalWidth);
@@ -1402,7 +1934,6 @@ public abstract class LLMClient {
 
         // Check if image exceeds optimal dimensions
         if (targetWidth > OPTIMAL_DIMENSION || targetHeight > OPTIMAL_DIMENSION) {
-            needsResizing = true;
             if (targetWidth > targetHeight) {
                 targetWidth = OPTIMAL_DIMENSION;
                 targetHeight = (int) ((double) targetHeight * OPTIMAL_DIMENSION / targetWidth);
@@ -1414,43 +1945,12 @@ public abstract class LLMClient {
 
         // Check if image exceeds maximum megapixels
         if (targetWidth * targetHeight > MAX_MEGAPIXELS) {
-            needsResizing = true;
             double scale = Math.sqrt((double) MAX_MEGAPIXELS / (targetWidth * targetHeight));
             targetWidth = (int) (targetWidth * scale);
             targetHeight = (int) (targetHeight * scale);
         }
 
-        if (!needsResizing) {
-            Log.d(TAG, "Image does not need resizing");
-            return imageFile;
-        }
-
-        Log.d(TAG, "Resizing image to: " + targetWidth + "x" + targetHeight);
-
-        // Load and resize the image
-        options.inJustDecodeBounds = false;
-        options.inSampleSize = calculateInSampleSize(originalWidth, originalHeight, targetWidth, targetHeight);
-
-        Bitmap originalBitmap = BitmapFactory.decodeFile(imageFile.getAbsolutePath(), options);
-        if (originalBitmap == null) {
-            throw new IOException("Failed to decode image: " + imageFile.getAbsolutePath());
-        }
-
-        // Create resized bitmap
-        Bitmap resizedBitmap = Bitmap.createScaledBitmap(originalBitmap, targetWidth, targetHeight, true);
-        originalBitmap.recycle();
-
-        // Save resized image to temporary file
-        File tempFile = File.createTempFile("llm_resized_", ".png", context.getCacheDir());
-        try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-            resizedBitmap.compress(Bitmap.CompressFormat.PNG, 100, fos);
-        }
-        resizedBitmap.recycle();
-
-        Log.d(TAG, "Resized image saved to: " + tempFile.getAbsolutePath() +
-                ", size: " + tempFile.length() + " bytes");
-
-        return tempFile;
+        return new int[] { targetWidth, targetHeight };
     }
 
     /**
@@ -14,7 +14,8 @@ public class LLMClientFactory {
         GEMINI,
         OPENAI,
         CLAUDE,
-        STUB
+        STUB,
+        REPLAY
     }
 
     public static LLMClient createClient(Context context, LLMType type, String modelName,
@@ -42,6 +43,8 @@ public class LLMClientFactory {
                 return claudeClient;
             case STUB:
                 return new StubLLMClient(context, chatSession);
+            case REPLAY:
+                return new ReplayLLMClient(context, chatSession);
             default:
                 throw new IllegalArgumentException("Unknown LLM type: " + type);
         }
@@ -58,6 +61,31 @@ public class LLMClientFactory {
                 return ClaudeLLMClient.fetchAvailableModels(context);
             case STUB:
                 return Arrays.asList("stub-model");
+            case REPLAY:
+                return Arrays.asList(ReplayLLMClient.MODEL);
+            default:
+                throw new IllegalArgumentException("Unknown LLM type: " + type);
+        }
+    }
+
+    /**
+     * Opens a pooled connection to the API of the given type in the
+     * background, so the first request skips connection setup.
+     */
+    public static void prewarmConnection(LLMType type) {
+        switch (type) {
+            case GEMINI:
+                LLMHttpClient.prewarm(GeminiLLMClient.API_BASE_URL);
+                break;
+            case OPENAI:
+                LLMHttpClient.prewarm(OpenAIChatClient.API_BASE_URL);
+                break;
+            case CLAUDE:
+                LLMHttpClient.prewarm(ClaudeLLMClient.API_BASE_URL);
+                break;
+            case STUB:
+            case REPLAY:
+                break;
             default:
                 throw new IllegalArgumentException("Unknown LLM type: " + type);
         }
@@ -0,0 +1,208 @@
+package com.example.clojurerepl;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP layer shared by the LLM clients. Connections come from the platform's
+ * HttpURLConnection, which keeps idle sockets in a process-wide pool, so
+ * back-to-back requests to a provider reuse the TCP and TLS session instead of
+ * setting up a new one each time.
+ *
+ * A socket only goes back to the pool once its response body was read to the
+ * end and closed. Callers therefore close their streams and call release()
+ * when they are done, and never disconnect(), which closes the socket.
+ *
+ * The number of concurrent requests to one host is limited, see
+ * setMaxConnectionsPerHost(). prewarm() opens a connection ahead of the first
+ * request, e.g. when the user starts typing a prompt. redirect() sends a
+ * provider's requests elsewhere, e.g. to the ReplayHttpServer.
+ */
+public final class LLMHttpClient {
+    private static final String TAG = "LLMHttpClient";
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+    // Idle connections are kept this long
+    private static final long KEEP_ALIVE_MS = 5 * 60 * 1000;
+    // A host is not warmed again within this time
+    private static final long PREWARM_INTERVAL_MS = 60 * 1000;
+    private static final int PREWARM_TIMEOUT = 10000;
+
+    private static final Map<String, Integer> maxConnections = new ConcurrentHashMap<>();
+    private static final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    // Permit held by each open connection
+    private static final Map<HttpURLConnection, Semaphore> leases = new ConcurrentHashMap<>();
+    private static final Map<String, Long> lastPrewarm = new ConcurrentHashMap<>();
+    // Base URLs and where their requests go instead
+    private static final Map<String, String> redirects = new ConcurrentHashMap<>();
+    private static final ExecutorService prewarmExecutor = Executors.newSingleThreadExecutor();
+
+    static {
+        // Read once when the platform creates its connection pool, so this has
+        // to run before the process opens its first connection
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(DEFAULT_MAX_CONNECTIONS_PER_HOST * 3));
+        System.setProperty("http.keepAliveDuration", String.valueOf(KEEP_ALIVE_MS));
+    }
+
+    private LLMHttpClient() {
+    }
+
+    /**
+     * Limits the concurrent requests to host. Requests already running keep
+     * counting against the previous limit.
+     */
+    public static void setMaxConnectionsPerHost(String host, int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("max must be at least 1: " + max);
+        }
+        maxConnections.put(host, max);
+        hostPermits.put(host, new Semaphore(max));
+        Log.d(TAG, "Max connections to " + host + ": " + max);
+    }
+
+    /**
+     * Sends the requests to URLs starting with fromBaseUrl to toBaseUrl
+     * instead, or to fromBaseUrl again if toBaseUrl is null.
+     */
+    public static void redirect(String fromBaseUrl, String toBaseUrl) {
+        if (toBaseUrl != null) {
+            redirects.put(fromBaseUrl, toBaseUrl);
+            Log.d(TAG, "Redirecting " + fromBaseUrl + " to " + toBaseUrl);
+        } else if (redirects.remove(fromBaseUrl) != null) {
+            Log.d(TAG, "No longer redirecting " + fromBaseUrl);
+        }
+    }
+
+    /**
+     * Opens a keep-alive connection to url, waiting up to timeoutMs for a free
+     * slot of the host. The connection must be handed to release() afterwards.
+     *
+     * @param timeoutMs connect and read timeout, 0 for none
+     */
+    public static HttpURLConnection open(URL url, int timeoutMs) throws IOException {
+        if (!redirects.isEmpty()) {
+            url = getRedirect(url);
+        }
+        String host = url.getHost();
+        Semaphore permits = getPermits(host);
+        try {
+            if (timeoutMs > 0) {
+                if (!permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+                    throw new SocketTimeoutException("No free connection to " + host + " after " + timeoutMs + "ms");
+                }
+            } else {
+                permits.acquire();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a connection to " + host);
+        }
+
+        try {
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setConnectTimeout(timeoutMs);
+            conn.setReadTimeout(timeoutMs);
+            conn.setRequestProperty("Connection", "keep-alive");
+            leases.put(conn, permits);
+            return conn;
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Frees the host slot of a connection from open(). Safe to call with
+     * null or more than once.
+     */
+    public static void release(HttpURLConnection conn) {
+        if (conn == null) {
+            return;
+        }
+        Semaphore permits = leases.remove(conn);
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    /**
+     * Sets up a pooled connection to the host of url in the background, so
+     * the next request skips DNS, TCP and TLS setup. Does nothing if the host
+     * was warmed recently.
+     */
+    public static void prewarm(String url) {
+        String host;
+        try {
+            host = new URL(url).getHost();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot pre-warm " + url, e);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Long last = lastPrewarm.get(host);
+        if (last != null && now - last < PREWARM_INTERVAL_MS) {
+            return;
+        }
+        lastPrewarm.put(host, now);
+
+        prewarmExecutor.execute(() -> {
+            long startTime = System.currentTimeMillis();
+            HttpURLConnection conn = null;
+            try {
+                conn = open(new URL(url), PREWARM_TIMEOUT);
+                // HEAD has no body, so the connection is idle and pooled as
+                // soon as the headers are in. The status does not matter.
+                conn.setRequestMethod("HEAD");
+                int responseCode = conn.getResponseCode();
+                drain(responseCode < 400 ? conn.getInputStream() : conn.getErrorStream());
+                Log.d(TAG, "Pre-warmed " + host + " in " + (System.currentTimeMillis() - startTime)
+                        + "ms (HTTP " + responseCode + ")");
+            } catch (IOException e) {
+                Log.d(TAG, "Pre-warming " + host + " failed: " + e.getMessage());
+                lastPrewarm.remove(host);
+            } finally {
+                release(conn);
+            }
+        });
+    }
+
+    private static URL getRedirect(URL url) throws IOException {
+        String spec = url.toString();
+        for (Map.Entry<String, String> redirect : redirects.entrySet()) {
+            if (spec.startsWith(redirect.getKey())) {
+                return new URL(redirect.getValue() + spec.substring(redirect.getKey().length()));
+            }
+        }
+        return url;
+    }
+
+    private static Semaphore getPermits(String host) {
+        return hostPermits.computeIfAbsent(host, h -> new Semaphore(
+                maxConnections.getOrDefault(h, DEFAULT_MAX_CONNECTIONS_PER_HOST)));
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        try (InputStream stream = in) {
+            byte[] buffer = new byte[1024];
+            while (stream.read(buffer) != -1) {
+                // Discard
+            }
+        }
+    }
+}
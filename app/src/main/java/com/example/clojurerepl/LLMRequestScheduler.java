@@ -0,0 +1,319 @@
+package com.example.clojurerepl;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+/**
+ * Paces the requests to each provider so they stay within its rate limits,
+ * instead of finding out from a 429. Every provider and API key has two
+ * token buckets, requests per minute and input tokens per minute, and a
+ * request waits until both have room for it.
+ *
+ * Waiting requests are served in priority order, interactive before
+ * background, e.g. auto-iterations, racers and model list fetches, and in
+ * arrival order within a priority. Token counts are the estimates of
+ * ContextManager.TokenEstimator, less prompt cache reads where the provider
+ * does not count them, so limits are best set a little below the provider's.
+ *
+ * The defaults are the lowest paid tiers. Tiers differ widely, so the user
+ * can set the limits of their own, see saveLimits(), which are kept across
+ * runs and applied by loadLimits(). Queue depth and waiting times are kept
+ * per provider, see getStats().
+ */
+public final class LLMRequestScheduler {
+    private static final String TAG = "LLMRequestScheduler";
+    private static final String PREFS_NAME = "LLMRequestSchedulerPrefs";
+    private static final String KEY_RPM_SUFFIX = "_rpm";
+    private static final String KEY_TPM_SUFFIX = "_tpm";
+    // Waiting requests check for cancellation this often
+    private static final long POLL_MS = 100;
+
+    public enum Priority {
+        INTERACTIVE,
+        BACKGROUND
+    }
+
+    /**
+     * Accumulated scheduling metrics of a provider.
+     */
+    public static class Stats {
+        public final long requests;
+        // Requests that had to wait, and their total and longest wait
+        public final long delayedRequests;
+        public final long totalWaitMs;
+        public final long maxWaitMs;
+        // Requests waiting right now
+        public final int queueDepth;
+
+        Stats(long requests, long delayedRequests, long totalWaitMs, long maxWaitMs, int queueDepth) {
+            this.requests = requests;
+            this.delayedRequests = delayedRequests;
+            this.totalWaitMs = totalWaitMs;
+            this.maxWaitMs = maxWaitMs;
+            this.queueDepth = queueDepth;
+        }
+
+        @Override
+        public String toString() {
+            return requests + " requests, " + delayedRequests + " delayed, " + totalWaitMs + "ms waited (max "
+                    + maxWaitMs + "ms), " + queueDepth + " queued";
+        }
+    }
+
+    // Limits of a provider
+    private static class Limits {
+        final int requestsPerMinute;
+        final int tokensPerMinute;
+
+        Limits(int requestsPerMinute, int tokensPerMinute) {
+            this.requestsPerMinute = requestsPerMinute;
+            this.tokensPerMinute = tokensPerMinute;
+        }
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+        final Priority priority;
+        final long sequence;
+        final int tokens;
+
+        Waiter(Priority priority, long sequence, int tokens) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.tokens = tokens;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    // The buckets and queue of one provider and API key
+    private static class Bucket {
+        final LLMClientFactory.LLMType provider;
+        final Limits limits;
+        double requests;
+        double tokens;
+        long refilledAt;
+        long nextSequence = 0;
+        final PriorityQueue<Waiter> queue = new PriorityQueue<>();
+
+        Bucket(LLMClientFactory.LLMType provider, Limits limits) {
+            this.provider = provider;
+            this.limits = limits;
+            // Start full, so a burst up to the limits goes out right away
+            this.requests = limits.requestsPerMinute;
+            this.tokens = limits.tokensPerMinute;
+            this.refilledAt = System.currentTimeMillis();
+        }
+
+        void refill(long now) {
+            double minutes = (now - refilledAt) / 60000.0;
+            requests = Math.min(limits.requestsPerMinute, requests + minutes * limits.requestsPerMinute);
+            tokens = Math.min(limits.tokensPerMinute, tokens + minutes * limits.tokensPerMinute);
+            refilledAt = now;
+        }
+
+        /**
+         * Returns how long until a request of this many tokens fits, 0 if it
+         * does now.
+         */
+        long timeUntilAvailable(int requestTokens) {
+            double missingRequests = Math.max(0, 1 - requests);
+            double missingTokens = Math.max(0, requestTokens - tokens);
+            double minutes = Math.max(missingRequests / limits.requestsPerMinute,
+                    missingTokens / limits.tokensPerMinute);
+            return (long) Math.ceil(minutes * 60000);
+        }
+    }
+
+    // Metrics of a provider, over all its API keys
+    private static class Metrics {
+        long requests = 0;
+        long delayedRequests = 0;
+        long totalWaitMs = 0;
+        long maxWaitMs = 0;
+        int queueDepth = 0;
+    }
+
+    private static final Map<LLMClientFactory.LLMType, Limits> limits = new ConcurrentHashMap<>();
+    private static final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private static final Map<LLMClientFactory.LLMType, Metrics> metrics = new ConcurrentHashMap<>();
+
+    private LLMRequestScheduler() {
+    }
+
+    /**
+     * Sets the limits of a provider. Takes effect for new buckets, i.e. the
+     * buckets in use are reset.
+     */
+    public static void setLimits(LLMClientFactory.LLMType provider, int requestsPerMinute, int tokensPerMinute) {
+        if (requestsPerMinute < 1 || tokensPerMinute < 1) {
+            throw new IllegalArgumentException("Limits must be at least 1: " + requestsPerMinute + " requests, "
+                    + tokensPerMinute + " tokens");
+        }
+        limits.put(provider, new Limits(requestsPerMinute, tokensPerMinute));
+        buckets.values().removeIf(bucket -> bucket.provider == provider && bucket.queue.isEmpty());
+        Log.d(TAG, "Limits of " + provider + ": " + requestsPerMinute + " requests, " + tokensPerMinute
+                + " tokens per minute");
+    }
+
+    /**
+     * Sets the limits of a provider and keeps them for later runs.
+     */
+    public static void saveLimits(Context context, LLMClientFactory.LLMType provider, int requestsPerMinute,
+            int tokensPerMinute) {
+        setLimits(provider, requestsPerMinute, tokensPerMinute);
+        getPrefs(context).edit()
+                .putInt(provider.name() + KEY_RPM_SUFFIX, requestsPerMinute)
+                .putInt(provider.name() + KEY_TPM_SUFFIX, tokensPerMinute)
+                .apply();
+    }
+
+    /**
+     * Applies the limits kept by saveLimits(). Providers without saved
+     * limits keep their defaults.
+     */
+    public static void loadLimits(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        for (LLMClientFactory.LLMType provider : LLMClientFactory.LLMType.values()) {
+            int requestsPerMinute = prefs.getInt(provider.name() + KEY_RPM_SUFFIX, 0);
+            int tokensPerMinute = prefs.getInt(provider.name() + KEY_TPM_SUFFIX, 0);
+            if (requestsPerMinute > 0 && tokensPerMinute > 0) {
+                setLimits(provider, requestsPerMinute, tokensPerMinute);
+            }
+        }
+    }
+
+    /**
+     * Returns the requests and tokens per minute of a provider.
+     */
+    public static int[] getLimits(LLMClientFactory.LLMType provider) {
+        Limits providerLimits = limits.computeIfAbsent(provider, LLMRequestScheduler::getDefaultLimits);
+        return new int[] { providerLimits.requestsPerMinute, providerLimits.tokensPerMinute };
+    }
+
+    /**
+     * Waits until a request of the given estimated input tokens may be sent
+     * to the provider with apiKey, and takes its share of the limits.
+     *
+     * @param future The request, which stops waiting with a
+     *               CancellationException when cancelled; may be null
+     * @return How long the request waited
+     */
+    public static long acquire(LLMClientFactory.LLMType provider, String apiKey, int tokens, Priority priority,
+            Future<?> future) {
+        Bucket bucket = getBucket(provider, apiKey);
+        Metrics providerMetrics = getMetrics(provider);
+        // A request larger than the whole bucket would never fit
+        int requestTokens = Math.min(Math.max(tokens, 0), bucket.limits.tokensPerMinute);
+        long startTime = System.currentTimeMillis();
+
+        synchronized (bucket) {
+            Waiter waiter = new Waiter(priority, bucket.nextSequence++, requestTokens);
+            bucket.queue.add(waiter);
+            synchronized (providerMetrics) {
+                providerMetrics.queueDepth++;
+            }
+            try {
+                while (true) {
+                    if (future != null && future.isCancelled()) {
+                        throw new CancellationException("Request was cancelled");
+                    }
+                    long now = System.currentTimeMillis();
+                    bucket.refill(now);
+                    long waitMs = bucket.queue.peek() == waiter ? bucket.timeUntilAvailable(requestTokens) : POLL_MS;
+                    if (waitMs == 0) {
+                        bucket.requests -= 1;
+                        bucket.tokens -= requestTokens;
+                        break;
+                    }
+                    bucket.wait(Math.min(waitMs, POLL_MS));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted waiting for a rate limit slot");
+            } finally {
+                bucket.queue.remove(waiter);
+                synchronized (providerMetrics) {
+                    providerMetrics.queueDepth--;
+                }
+                // The next waiter may fit now
+                bucket.notifyAll();
+            }
+        }
+
+        long waitedMs = System.currentTimeMillis() - startTime;
+        synchronized (providerMetrics) {
+            providerMetrics.requests++;
+            // Lock contention alone is not waiting for the limits
+            if (waitedMs >= POLL_MS) {
+                providerMetrics.delayedRequests++;
+                providerMetrics.totalWaitMs += waitedMs;
+                providerMetrics.maxWaitMs = Math.max(providerMetrics.maxWaitMs, waitedMs);
+                Log.d(TAG, provider + " " + priority.name().toLowerCase() + " request of ~" + requestTokens
+                        + " tokens waited " + waitedMs + "ms; " + providerMetrics.queueDepth + " still queued");
+            }
+        }
+        return waitedMs;
+    }
+
+    /**
+     * Returns the number of requests waiting for the provider.
+     */
+    public static int getQueueDepth(LLMClientFactory.LLMType provider) {
+        Metrics providerMetrics = getMetrics(provider);
+        synchronized (providerMetrics) {
+            return providerMetrics.queueDepth;
+        }
+    }
+
+    /**
+     * Returns the accumulated metrics of a provider.
+     */
+    public static Stats getStats(LLMClientFactory.LLMType provider) {
+        Metrics providerMetrics = getMetrics(provider);
+        synchronized (providerMetrics) {
+            return new Stats(providerMetrics.requests, providerMetrics.delayedRequests, providerMetrics.totalWaitMs,
+                    providerMetrics.maxWaitMs, providerMetrics.queueDepth);
+        }
+    }
+
+    private static Bucket getBucket(LLMClientFactory.LLMType provider, String apiKey) {
+        // Keyed by a hash, so the key itself is not held here
+        String key = provider.name() + ":" + (apiKey != null ? Integer.toHexString(apiKey.hashCode()) : "");
+        return buckets.computeIfAbsent(key, k -> new Bucket(provider,
+                limits.computeIfAbsent(provider, LLMRequestScheduler::getDefaultLimits)));
+    }
+
+    private static Metrics getMetrics(LLMClientFactory.LLMType provider) {
+        return metrics.computeIfAbsent(provider, p -> new Metrics());
+    }
+
+    private static Limits getDefaultLimits(LLMClientFactory.LLMType provider) {
+        switch (provider) {
+            case CLAUDE:
+                // Input tokens, less cache reads, see LLMClient.callProvider()
+                return new Limits(50, 30000);
+            case OPENAI:
+                return new Limits(500, 30000);
+            case GEMINI:
+                return new Limits(150, 1000000);
+            default:
+                // The stub and anything local
+                return new Limits(Integer.MAX_VALUE / 2, Integer.MAX_VALUE / 2);
+        }
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,450 @@
+package com.example.clojurerepl;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retries of LLM requests, shared by the clients. A request is retried when
+ * it failed on the way, i.e. with an IOException, or the provider answered
+ * with a status that says to come back later (408, 429, 5xx, Anthropic's 529
+ * "overloaded"). Other errors, e.g. a bad request or a wrong API key, fail
+ * right away.
+ *
+ * Retries wait with exponential backoff and full jitter, unless the provider
+ * said how long to wait: the Retry-After and retry-after-ms headers, or the
+ * RetryInfo of a Google API error. A hint longer than MAX_RETRY_AFTER_MS is
+ * not waited for, the request fails instead.
+ *
+ * Each provider has a circuit breaker. After FAILURE_THRESHOLD failed
+ * attempts in a row it opens and requests fail fast with a
+ * CircuitOpenException for OPEN_MS. Then one request is let through; if it
+ * succeeds the breaker closes, otherwise it opens again.
+ *
+ * Retries and the time they cost are counted per provider, see getStats().
+ */
+public final class LLMRetryPolicy {
+    private static final String TAG = "LLMRetryPolicy";
+
+    static final int MAX_ATTEMPTS = 3;
+    private static final long BASE_DELAY_MS = 1000;
+    private static final long MAX_DELAY_MS = 20000;
+    static final long MAX_RETRY_AFTER_MS = 60000;
+    static final int FAILURE_THRESHOLD = 5;
+    static final long OPEN_MS = 30000;
+    // Waits are sliced, so a cancelled request stops waiting soon
+    private static final long SLEEP_SLICE_MS = 100;
+
+    /**
+     * A response with an error status. Its message is the one the client
+     * reported before, so callers matching on it are unaffected.
+     */
+    public static class HttpStatusException extends IOException {
+        public final int status;
+        // How long the provider asked to wait, or -1
+        public final long retryAfterMs;
+
+        public HttpStatusException(int status, String message, long retryAfterMs) {
+            super(message);
+            this.status = status;
+            this.retryAfterMs = retryAfterMs;
+        }
+
+        public boolean isRetryable() {
+            return status == 408 || status == 429 || status == 500 || status == 502 || status == 503
+                    || status == 504 || status == 529;
+        }
+    }
+
+    /**
+     * Thrown instead of sending a request while the provider's circuit
+     * breaker is open.
+     */
+    public static class CircuitOpenException extends IOException {
+        public CircuitOpenException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * One attempt of a request.
+     */
+    public interface Attempt<T> {
+        /**
+         * @param attempt 0 for the first attempt, 1 for the first retry, ...
+         */
+        T run(int attempt) throws Exception;
+    }
+
+    /**
+     * Accumulated retry metrics of a provider.
+     */
+    public static class Stats {
+        public final long calls;
+        public final long retries;
+        // Calls that failed, after any retries
+        public final long failures;
+        // Calls failed fast by the open circuit breaker
+        public final long rejected;
+        // Time spent in failed attempts and waiting before retries
+        public final long timeLostMs;
+
+        Stats(long calls, long retries, long failures, long rejected, long timeLostMs) {
+            this.calls = calls;
+            this.retries = retries;
+            this.failures = failures;
+            this.rejected = rejected;
+            this.timeLostMs = timeLostMs;
+        }
+
+        @Override
+        public String toString() {
+            return calls + " calls, " + retries + " retries, " + failures + " failed, " + rejected
+                    + " rejected, " + timeLostMs + "ms lost";
+        }
+    }
+
+    private enum Outcome {
+        SUCCEEDED,
+        // Failed with an error that is not retryable, so the provider is up
+        REFUSED,
+        // Failed with a retryable error, out of attempts
+        FAILED,
+        // Failed fast by the open circuit breaker
+        REJECTED,
+        CANCELLED
+    }
+
+    // Circuit breaker and metrics of one provider
+    private static class Breaker {
+        int consecutiveFailures = 0;
+        // When the breaker opened, or -1 while it is closed
+        long openedAt = -1;
+        // Whether the one request let through after OPEN_MS is running
+        boolean trialRunning = false;
+
+        long calls = 0;
+        long retries = 0;
+        long failures = 0;
+        long rejected = 0;
+        long timeLostMs = 0;
+    }
+
+    private static final Map<LLMClientFactory.LLMType, Breaker> breakers = new ConcurrentHashMap<>();
+
+    private LLMRetryPolicy() {
+    }
+
+    /**
+     * Runs attempt until it succeeds, fails with an error that is not worth
+     * retrying, or MAX_ATTEMPTS are used up, and returns its result or throws
+     * its last exception. Stops with a CancellationException once future is
+     * cancelled.
+     *
+     * Attempts of a streaming request should reset the stream listener when
+     * attempt > 0, since the failed attempt may have streamed part of a
+     * response already.
+     */
+    public static <T> T call(LLMClientFactory.LLMType provider, Future<?> future, Attempt<T> attempt)
+            throws Exception {
+        Breaker breaker = breakers.computeIfAbsent(provider, p -> new Breaker());
+        long timeLostMs = 0;
+        int attemptIndex = 0;
+        while (true) {
+            try {
+                acquire(provider, breaker);
+            } catch (CircuitOpenException e) {
+                record(provider, breaker, Outcome.REJECTED, attemptIndex, timeLostMs);
+                throw e;
+            }
+            long attemptStart = System.currentTimeMillis();
+            try {
+                T result = attempt.run(attemptIndex);
+                record(provider, breaker, Outcome.SUCCEEDED, attemptIndex, timeLostMs);
+                return result;
+            } catch (Exception e) {
+                if (future.isCancelled() || findCause(e, CancellationException.class) != null) {
+                    record(provider, breaker, Outcome.CANCELLED, attemptIndex, timeLostMs);
+                    throw e;
+                }
+                timeLostMs += System.currentTimeMillis() - attemptStart;
+                if (!isRetryable(e)) {
+                    // The provider answered, so it is up
+                    Log.w(TAG, provider + " attempt " + (attemptIndex + 1) + " failed, not retrying: "
+                            + e.getMessage());
+                    record(provider, breaker, Outcome.REFUSED, attemptIndex, timeLostMs);
+                    throw e;
+                }
+                long delayMs = attemptIndex + 1 < MAX_ATTEMPTS ? getDelayMs(e, attemptIndex) : -1;
+                if (delayMs < 0) {
+                    Log.w(TAG, provider + " attempt " + (attemptIndex + 1) + " failed, giving up: "
+                            + e.getMessage());
+                    record(provider, breaker, Outcome.FAILED, attemptIndex, timeLostMs);
+                    throw e;
+                }
+                if (!recordRetry(provider, breaker)) {
+                    Log.w(TAG, provider + " attempt " + (attemptIndex + 1) + " failed, circuit opened: "
+                            + e.getMessage());
+                    record(provider, breaker, Outcome.REJECTED, attemptIndex, timeLostMs);
+                    throw e;
+                }
+                Log.w(TAG, provider + " attempt " + (attemptIndex + 1) + "/" + MAX_ATTEMPTS + " failed, retrying in "
+                        + delayMs + "ms: " + e.getMessage());
+                try {
+                    sleep(delayMs, future);
+                } catch (CancellationException ce) {
+                    record(provider, breaker, Outcome.CANCELLED, attemptIndex, timeLostMs);
+                    throw ce;
+                }
+                timeLostMs += delayMs;
+                attemptIndex++;
+            }
+        }
+    }
+
+    /**
+     * Builds the exception for an error response, with the provider's retry
+     * hint from the headers or, for Google APIs, from errorBody.
+     */
+    public static HttpStatusException httpError(HttpURLConnection conn, int status, String message,
+            String errorBody) {
+        long retryAfterMs = parseRetryAfter(conn);
+        if (retryAfterMs < 0) {
+            retryAfterMs = parseRetryInfo(errorBody);
+        }
+        return new HttpStatusException(status, message, retryAfterMs);
+    }
+
+    /**
+     * Returns the accumulated metrics of a provider.
+     */
+    public static Stats getStats(LLMClientFactory.LLMType provider) {
+        Breaker breaker = breakers.computeIfAbsent(provider, p -> new Breaker());
+        synchronized (breaker) {
+            return new Stats(breaker.calls, breaker.retries, breaker.failures, breaker.rejected,
+                    breaker.timeLostMs);
+        }
+    }
+
+    /**
+     * Whether requests to the provider currently fail fast.
+     */
+    public static boolean isCircuitOpen(LLMClientFactory.LLMType provider) {
+        Breaker breaker = breakers.get(provider);
+        if (breaker == null) {
+            return false;
+        }
+        synchronized (breaker) {
+            return breaker.openedAt >= 0
+                    && (System.currentTimeMillis() - breaker.openedAt < OPEN_MS || breaker.trialRunning);
+        }
+    }
+
+    private static void acquire(LLMClientFactory.LLMType provider, Breaker breaker) throws CircuitOpenException {
+        synchronized (breaker) {
+            if (breaker.openedAt < 0) {
+                return;
+            }
+            long openForMs = System.currentTimeMillis() - breaker.openedAt;
+            if (openForMs >= OPEN_MS && !breaker.trialRunning) {
+                Log.d(TAG, provider + " circuit half-open, letting a request through");
+                breaker.trialRunning = true;
+                return;
+            }
+            long remainingMs = Math.max(0, OPEN_MS - openForMs);
+            throw new CircuitOpenException(provider + " is unavailable after " + breaker.consecutiveFailures
+                    + " failed requests in a row, not sending requests for another "
+                    + (remainingMs + 999) / 1000 + "s");
+        }
+    }
+
+    /**
+     * Records a failed attempt that is to be retried.
+     *
+     * @return false if the failure opened the circuit breaker, so the
+     *         attempt must not be retried
+     */
+    private static boolean recordRetry(LLMClientFactory.LLMType provider, Breaker breaker) {
+        synchronized (breaker) {
+            recordProviderFailure(provider, breaker);
+            if (breaker.openedAt >= 0) {
+                return false;
+            }
+            breaker.retries++;
+            return true;
+        }
+    }
+
+    private static void record(LLMClientFactory.LLMType provider, Breaker breaker, Outcome outcome, int retries,
+            long timeLostMs) {
+        synchronized (breaker) {
+            breaker.calls++;
+            breaker.timeLostMs += timeLostMs;
+            switch (outcome) {
+                case SUCCEEDED:
+                case REFUSED:
+                    if (breaker.openedAt >= 0) {
+                        Log.d(TAG, provider + " circuit closed");
+                    }
+                    breaker.consecutiveFailures = 0;
+                    breaker.openedAt = -1;
+                    breaker.trialRunning = false;
+                    break;
+                case FAILED:
+                    recordProviderFailure(provider, breaker);
+                    break;
+                case REJECTED:
+                    breaker.rejected++;
+                    break;
+                case CANCELLED:
+                    // Says nothing about the provider. A cancelled trial
+                    // leaves the breaker open and lets the next request through.
+                    breaker.trialRunning = false;
+                    break;
+            }
+            if (outcome != Outcome.SUCCEEDED && outcome != Outcome.CANCELLED) {
+                breaker.failures++;
+            }
+            if (retries > 0 || timeLostMs > 0) {
+                Log.d(TAG, provider + " call " + outcome.name().toLowerCase() + " after " + retries + " retries, "
+                        + timeLostMs + "ms lost; total " + breaker.retries + " retries, " + breaker.timeLostMs
+                        + "ms lost in " + breaker.calls + " calls");
+            }
+        }
+    }
+
+    private static void recordProviderFailure(LLMClientFactory.LLMType provider, Breaker breaker) {
+        breaker.consecutiveFailures++;
+        if (breaker.trialRunning || (breaker.openedAt < 0 && breaker.consecutiveFailures >= FAILURE_THRESHOLD)) {
+            breaker.openedAt = System.currentTimeMillis();
+            breaker.trialRunning = false;
+            Log.w(TAG, provider + " circuit opened after " + breaker.consecutiveFailures
+                    + " failed attempts in a row, failing fast for " + OPEN_MS + "ms");
+        }
+    }
+
+    /**
+     * Returns how long to wait before retrying after e, or -1 to give up.
+     */
+    private static long getDelayMs(Throwable e, int attemptIndex) {
+        HttpStatusException status = findCause(e, HttpStatusException.class);
+        if (status != null && status.retryAfterMs >= 0) {
+            if (status.retryAfterMs > MAX_RETRY_AFTER_MS) {
+                Log.w(TAG, "Provider asked to wait " + status.retryAfterMs + "ms, giving up");
+                return -1;
+            }
+            // A little jitter, so clients told the same time do not return
+            // all at once
+            return status.retryAfterMs + ThreadLocalRandom.current().nextLong(BASE_DELAY_MS / 4 + 1);
+        }
+        long cap = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(attemptIndex, 10));
+        return ThreadLocalRandom.current().nextLong(cap / 4, cap + 1);
+    }
+
+    private static boolean isRetryable(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CancellationException || cause instanceof CircuitOpenException) {
+                return false;
+            }
+            if (cause instanceof HttpStatusException) {
+                return ((HttpStatusException) cause).isRetryable();
+            }
+            if (cause instanceof InterruptedIOException && !(cause instanceof SocketTimeoutException)) {
+                return false;
+            }
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static <E extends Throwable> E findCause(Throwable e, Class<E> type) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (type.isInstance(cause)) {
+                return type.cast(cause);
+            }
+        }
+        return null;
+    }
+
+    private static void sleep(long delayMs, Future<?> future) {
+        long end = System.currentTimeMillis() + delayMs;
+        try {
+            long remaining;
+            while ((remaining = end - System.currentTimeMillis()) > 0) {
+                if (future.isCancelled()) {
+                    throw new CancellationException("Request was cancelled");
+                }
+                Thread.sleep(Math.min(remaining, SLEEP_SLICE_MS));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted during retry delay");
+        }
+        if (future.isCancelled()) {
+            throw new CancellationException("Request was cancelled");
+        }
+    }
+
+    /**
+     * Reads retry-after-ms (OpenAI) or Retry-After, in seconds or as an HTTP
+     * date. Returns -1 if there is neither.
+     */
+    static long parseRetryAfter(HttpURLConnection conn) {
+        String ms = conn.getHeaderField("retry-after-ms");
+        if (ms != null) {
+            try {
+                return Math.max(0, (long) Double.parseDouble(ms.trim()));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid retry-after-ms: " + ms);
+            }
+        }
+        String retryAfter = conn.getHeaderField("Retry-After");
+        if (retryAfter == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, (long) (Double.parseDouble(retryAfter.trim()) * 1000));
+        } catch (NumberFormatException e) {
+            long date = conn.getHeaderFieldDate("Retry-After", -1);
+            return date >= 0 ? Math.max(0, date - System.currentTimeMillis()) : -1;
+        }
+    }
+
+    /**
+     * Reads the retryDelay of a google.rpc.RetryInfo in a Google API error,
+     * e.g. "17s". Returns -1 if there is none.
+     */
+    static long parseRetryInfo(String errorBody) {
+        if (errorBody == null || !errorBody.contains("retryDelay")) {
+            return -1;
+        }
+        try {
+            JSONObject error = new JSONObject(errorBody).optJSONObject("error");
+            JSONArray details = error != null ? error.optJSONArray("details") : null;
+            for (int i = 0; details != null && i < details.length(); i++) {
+                JSONObject detail = details.optJSONObject(i);
+                String delay = detail != null ? detail.optString("retryDelay", "") : "";
+                if (delay.endsWith("s")) {
+                    return Math.max(0, (long) (Double.parseDouble(delay.substring(0, delay.length() - 1)) * 1000));
+                }
+            }
+        } catch (JSONException | NumberFormatException e) {
+            Log.w(TAG, "Cannot read retry delay from error: " + e.getMessage());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,220 @@
+package com.example.clojurerepl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity ring of log lines. Once full, the oldest lines are
+ * overwritten. Every stored line gets a sequence number so readers can ask
+ * for the lines added since their last read.
+ *
+ * Consecutive lines that only differ in their timestamp are collapsed into a
+ * single "... repeated Nx" line. The first error line and stack trace blocks
+ * are pinned: they are still reported after the ring has overwritten them.
+ *
+ * Appends are lock-free but must come from one producer thread at a time
+ * (e.g. the logcat reader thread). Readers may run concurrently on any thread.
+ */
+public class LogRingBuffer {
+    private static final int PINNED_CAPACITY = 300;
+
+    private static class Entry {
+        final long sequence;
+        final String line;
+
+        Entry(long sequence, String line) {
+            this.sequence = sequence;
+            this.line = line;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int capacity;
+    // Sequence number of the next stored line; written only by the producer
+    private volatile long nextSequence = 0;
+
+    // Pinned error and stack trace lines, append-only; written only by the
+    // producer
+    private final Entry[] pinned = new Entry[PINNED_CAPACITY];
+    private volatile int pinnedCount = 0;
+    private boolean errorPinned = false;
+    private boolean previousPinned = false;
+    private boolean previousWasTrace = false;
+    private Entry previousEntry = null;
+
+    // Run-length state of the last stored line
+    private String lastKey = null;
+    private volatile int repeatCount = 0;
+
+    public LogRingBuffer(int capacity) {
+        this.capacity = capacity;
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    public void append(String line) {
+        String key = stripTimestamp(line);
+        if (key.equals(lastKey)) {
+            repeatCount++;
+            return;
+        }
+        closeRun();
+        lastKey = key;
+
+        Entry entry = store(line);
+
+        boolean isTrace = isStackTraceLine(key);
+        if (isTrace) {
+            // Pin the exception header that precedes the trace as well
+            if (!previousWasTrace && !previousPinned && previousEntry != null) {
+                pin(previousEntry);
+            }
+            pin(entry);
+            previousPinned = true;
+        } else if (!errorPinned && isErrorLine(line)) {
+            errorPinned = true;
+            pin(entry);
+            previousPinned = true;
+        } else {
+            previousPinned = false;
+        }
+        previousWasTrace = isTrace;
+        previousEntry = entry;
+    }
+
+    /**
+     * Ends the current run of repeated lines, storing its "... repeated Nx"
+     * line. Further repeats of the same line start a new count. Must be called
+     * from the producer thread.
+     */
+    public void closeRun() {
+        int repeats = repeatCount;
+        if (repeats > 0) {
+            repeatCount = 0;
+            store("... repeated " + repeats + "x");
+        }
+    }
+
+    /**
+     * Returns the sequence number the next stored line will get.
+     */
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Adds the lines stored at or after the given sequence number to the
+     * output list. If some of them were already overwritten, their pinned
+     * lines come first, followed by a line with the number of dropped lines.
+     *
+     * @return The sequence number to pass on the next call
+     */
+    public long readSince(long sequence, List<String> out) {
+        long end = nextSequence;
+        long oldest = Math.max(0, end - capacity);
+        if (sequence < oldest) {
+            int count = pinnedCount;
+            for (int i = 0; i < count; i++) {
+                if (pinned[i].sequence >= sequence && pinned[i].sequence < oldest) {
+                    out.add(pinned[i].line);
+                }
+            }
+            out.add("... " + (oldest - sequence) + " lines dropped");
+            sequence = oldest;
+        }
+        long dropped = 0;
+        for (long i = sequence; i < end; i++) {
+            Entry entry = slots.get((int) (i % capacity));
+            if (entry == null || entry.sequence != i) {
+                // Overwritten while we were reading
+                dropped++;
+            } else {
+                if (dropped > 0) {
+                    out.add("... " + dropped + " lines dropped");
+                    dropped = 0;
+                }
+                out.add(entry.line);
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Returns all retained lines, one per line, including the pending repeat
+     * count of the last line.
+     */
+    public String getContents() {
+        List<String> lines = new ArrayList<>();
+        readSince(0, lines);
+        int repeats = repeatCount;
+        if (repeats > 0) {
+            lines.add("... repeated " + repeats + "x");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Discards all lines. Must not be called concurrently with append().
+     */
+    public void clear() {
+        for (int i = 0; i < capacity; i++) {
+            slots.set(i, null);
+        }
+        pinnedCount = 0;
+        errorPinned = false;
+        previousPinned = false;
+        previousWasTrace = false;
+        previousEntry = null;
+        lastKey = null;
+        repeatCount = 0;
+        nextSequence = 0;
+    }
+
+    private Entry store(String line) {
+        long sequence = nextSequence;
+        Entry entry = new Entry(sequence, line);
+        slots.set((int) (sequence % capacity), entry);
+        // Publishing the new sequence makes the slot visible to readers
+        nextSequence = sequence + 1;
+        return entry;
+    }
+
+    private void pin(Entry entry) {
+        int count = pinnedCount;
+        if (count < PINNED_CAPACITY && (count == 0 || pinned[count - 1] != entry)) {
+            pinned[count] = entry;
+            pinnedCount = count + 1;
+        }
+    }
+
+    // Drops a leading "MM-DD HH:MM:SS.mmm " or "HH:MM:SS.mmm " timestamp so
+    // repeated messages compare equal
+    private static String stripTimestamp(String line) {
+        int i = 0;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if (!Character.isDigit(c) && c != '-' && c != ':' && c != '.' && c != ' ') {
+                break;
+            }
+            i++;
+        }
+        return line.substring(i);
+    }
+
+    private static boolean isErrorLine(String line) {
+        return line.contains(" E/") || line.startsWith("E/") || line.contains("FATAL EXCEPTION");
+    }
+
+    private static boolean isStackTraceLine(String key) {
+        // Skip the "E/Tag( pid): " prefix
+        int messageStart = key.indexOf(": ");
+        String message = (messageStart >= 0 ? key.substring(messageStart + 2) : key).trim();
+        return message.startsWith("at ")
+                || message.startsWith("Caused by: ")
+                || (message.startsWith("... ") && message.endsWith(" more"));
+    }
+}
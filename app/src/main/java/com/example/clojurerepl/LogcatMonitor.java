@@ -3,6 +3,9 @@ package com.example.clojurerepl;
 import android.util.Log;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -10,8 +13,11 @@ import java.util.concurrent.TimeUnit;
 
 public class LogcatMonitor {
     private static final String TAG = "LogcatMonitor";
+    // Maximum number of logcat lines kept; older lines are overwritten
+    private static final int LOG_BUFFER_CAPACITY = 5000;
 
-    private final StringBuilder logBuffer = new StringBuilder();
+    // Only the reader thread appends, so appends never block readers
+    private final LogRingBuffer logBuffer = new LogRingBuffer(LOG_BUFFER_CAPACITY);
     private Process logcatProcess;
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
     private final AtomicBoolean isMonitoring = new AtomicBoolean(false);
@@ -32,12 +38,8 @@ public class LogcatMonitor {
         }
 
         try {
-            String [] command = new String[] { "logcat", "--pid=" + processId,
-                        "'*:I'", "'*:E'", "'*:W'", "'*:D'",
-                        "-v", "time",
-                        "-s", "AndroidRuntime", "-s", "ClojureApp", };
             // Monitor by process ID - include Debug level for application logs
-            logcatProcess = Runtime.getRuntime().exec(command);
+            logcatProcess = Runtime.getRuntime().exec(buildCommand(processId, false));
 
             isMonitoring.set(true);
 
@@ -49,9 +51,7 @@ public class LogcatMonitor {
                     String line;
 
                     while (isMonitoring.get() && (line = reader.readLine()) != null) {
-                        synchronized (logBuffer) {
-                            logBuffer.append(line).append("\n");
-                        }
+                        logBuffer.append(line);
 
                         if (callback != null) {
                             callback.onNewLog(line);
@@ -69,6 +69,44 @@ public class LogcatMonitor {
         }
     }
 
+    /**
+     * Reads whatever logcat still holds for a process, typically one that has
+     * already died, and returns it. Blocks until logcat has dumped its buffer.
+     */
+    public String dumpProcessLogs(int processId) {
+        Process dumpProcess = null;
+        try {
+            dumpProcess = Runtime.getRuntime().exec(buildCommand(processId, true));
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(dumpProcess.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    logBuffer.append(line);
+                }
+            }
+            dumpProcess.waitFor(1, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            Log.e(TAG, "Error dumping logcat for process " + processId, e);
+        } finally {
+            if (dumpProcess != null && dumpProcess.isAlive()) {
+                dumpProcess.destroyForcibly();
+            }
+        }
+        return getCollectedLogs();
+    }
+
+    private static String[] buildCommand(int processId, boolean dump) {
+        List<String> command = new ArrayList<>(Arrays.asList("logcat", "--pid=" + processId,
+                "'*:I'", "'*:E'", "'*:W'", "'*:D'",
+                "-v", "time",
+                "-s", "AndroidRuntime", "-s", "ClojureApp"));
+        if (dump) {
+            // Dump the buffer and exit instead of following it
+            command.add(1, "-d");
+        }
+        return command.toArray(new String[0]);
+    }
+
     public void stopMonitoring() {
         if (isMonitoring.compareAndSet(true, false)) {
             // Kill the logcat process first to unblock the reader
@@ -97,15 +135,12 @@ public class LogcatMonitor {
     }
 
     public String getCollectedLogs() {
-        synchronized (logBuffer) {
-            return logBuffer.toString();
-        }
+        return logBuffer.getContents();
     }
 
+    // Must not be called while monitoring
     public void clearLogs() {
-        synchronized (logBuffer) {
-            logBuffer.setLength(0);
-        }
+        logBuffer.clear();
     }
 
     public void shutdown() {
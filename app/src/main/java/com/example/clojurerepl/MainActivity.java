@@ -232,6 +232,7 @@ public class MainActivity extends AppCompatActivity {
                         });
                     }
                 },
+                null, // no live result events needed
                 code,
                 UUID.randomUUID().toString(),
                 0,
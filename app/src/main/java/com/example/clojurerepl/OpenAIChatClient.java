@@ -39,6 +39,7 @@ import java.util.UUID;
  */
 public class OpenAIChatClient extends LLMClient {
     private static final String TAG = "OpenAIChatClient";
+    static final String API_BASE_URL = "https://api.openai.com/v1";
     private String modelName = null;
 
     // Track the current request for cancellation
@@ -64,6 +65,12 @@ public class OpenAIChatClient extends LLMClient {
         return modelName;
     }
 
+    @Override
+    protected int getContextWindowTokens() {
+        ModelProperties props = getModelProperties(modelName);
+        return props != null ? props.maxInputTokens : 0;
+    }
+
     @Override
     public LLMClientFactory.LLMType getType() {
         return LLMClientFactory.LLMType.OPENAI;
@@ -125,14 +132,15 @@ public class OpenAIChatClient extends LLMClient {
             return models;
         }
 
+        HttpURLConnection connection = null;
         try {
-            URL url = new URL("https://api.openai.com/v1/models");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            URL url = new URL(API_BASE_URL + "/models");
+            LLMRequestScheduler.acquire(LLMClientFactory.LLMType.OPENAI, apiKey, 0,
+                    LLMRequestScheduler.Priority.BACKGROUND, null);
+            connection = LLMHttpClient.open(url, 10000); // 10 seconds timeout
             connection.setRequestMethod("GET");
             connection.setRequestProperty("Authorization", "Bearer " + apiKey);
             connection.setRequestProperty("Content-Type", "application/json");
-            connection.setConnectTimeout(10000); // 10 seconds timeout
-            connection.setReadTimeout(10000);
 
             int responseCode = connection.getResponseCode();
             if (responseCode == HttpURLConnection.HTTP_OK) {
@@ -178,6 +186,8 @@ public class OpenAIChatClient extends LLMClient {
             }
         } catch (Exception e) {
             Log.e(TAG, "Error fetching OpenAI models", e);
+        } finally {
+            LLMHttpClient.release(connection);
         }
 
         // If API query fails, throw an error
@@ -316,6 +326,12 @@ public class OpenAIChatClient extends LLMClient {
             maxOutputTokens = 16384;
             status = "Current";
         }
+        // GPT-4.1 series
+        else if (modelName.startsWith("gpt-4.1")) {
+            maxInputTokens = 1047576;
+            maxOutputTokens = 32768;
+            status = "Current";
+        }
         // GPT-4o series
         else if (modelName.startsWith("gpt-4o")) {
             maxInputTokens = 128000;
@@ -411,7 +427,7 @@ public class OpenAIChatClient extends LLMClient {
 
     @Override
     protected CancellableCompletableFuture<AssistantResponse> sendMessages(ChatSession session,
-            MessageFilter messageFilter) {
+            MessageFilter messageFilter, LLMRequestScheduler.Priority priority) {
         Log.d(TAG, "Sending " + session.getMessages().size() + " messages in session: " + session.getSessionId());
 
         // Cancel any existing request
@@ -454,7 +470,8 @@ public class OpenAIChatClient extends LLMClient {
                     return;
                 }
 
-                OpenAICompletion completion = callOpenAIAPI(messagesToSend, future);
+                OpenAICompletion completion = callProvider(session.getSystemPrompt(), messagesToSend, priority, future,
+                        attempt -> callOpenAIAPI(messagesToSend, future));
 
                 // Check if cancelled after API call
                 if (future.isCancelled()) {
@@ -565,8 +582,10 @@ public class OpenAIChatClient extends LLMClient {
             boolean omitTemperature) {
         ensureModelIsSet();
         Log.d(TAG, "=== Calling OpenAI API with " + messages.size() + " messages ===");
+        messages = manageContext(messages);
 
         try {
+            StreamingRequestBody body = new StreamingRequestBody();
             JSONObject requestBody = new JSONObject();
             requestBody.put("model", modelName);
             if (!omitTemperature) {
@@ -614,8 +633,23 @@ public class OpenAIChatClient extends LLMClient {
                 Log.d(TAG, "Skipping response_format for messages with images (vision models may not support it)");
             }
 
-            JSONArray messagesArray = new JSONArray();
+            // OpenAI caches the longest previously seen prompt prefix
+            // automatically. System messages go first so the prefix that
+            // never changes is as long as possible.
+            List<Message> orderedMessages = new ArrayList<>();
+            for (Message msg : messages) {
+                if (MessageRole.SYSTEM.equals(msg.role)) {
+                    orderedMessages.add(msg);
+                }
+            }
             for (Message msg : messages) {
+                if (!MessageRole.SYSTEM.equals(msg.role)) {
+                    orderedMessages.add(msg);
+                }
+            }
+
+            JSONArray messagesArray = new JSONArray();
+            for (Message msg : orderedMessages) {
                 JSONObject msgObj = new JSONObject();
                 // OpenAI API expects "system"/"developer", "user", and "assistant":
                 String openaiRole;
@@ -674,17 +708,16 @@ public class OpenAIChatClient extends LLMClient {
                             Log.d(TAG, "Processing image " + (imgIndex + 1) + "/" + validImages.size() + ": " +
                                     imageFile.getAbsolutePath() + ", size: " + imageFile.length() + " bytes");
 
-                            String base64Image = encodeImageToBase64(imageFile);
+                            String imageData = body.addImage(imageFile);
                             JSONObject imageContent = new JSONObject();
                             imageContent.put("type", "image_url");
                             JSONObject imageUrl = new JSONObject();
-                            imageUrl.put("url", "data:" + mimeType + ";base64," + base64Image);
+                            imageUrl.put("url", "data:" + mimeType + ";base64," + imageData);
                             imageContent.put("image_url", imageUrl);
                             contentArray.put(imageContent);
 
                             Log.d(TAG, "Added image " + (imgIndex + 1) + "/" + validImages.size() +
                                     ", text length: " + (msg.content != null ? msg.content.length() : 0) +
-                                    ", image base64 length: " + base64Image.length() +
                                     ", MIME type: " + mimeType);
                         } catch (IOException e) {
                             Log.e(TAG, "Failed to encode image " + (imgIndex + 1) + " for message: " +
@@ -706,8 +739,17 @@ public class OpenAIChatClient extends LLMClient {
                 messagesArray.put(msgObj);
             }
             requestBody.put("messages", messagesArray);
+            // Routes the requests of a session to the same cache
+            requestBody.put("prompt_cache_key", chatSession.getSessionId());
+
+            StreamListener streamListener = getStreamListener();
+            if (streamListener != null) {
+                requestBody.put("stream", true);
+                // The last chunk then carries the token usage
+                requestBody.put("stream_options", new JSONObject().put("include_usage", true));
+            }
 
-            return callOpenAIAPI(requestBody.toString(), future);
+            return callOpenAIAPI(requestBody.toString(), body, streamListener, future);
         } catch (Exception e) {
             // Check if this is a cancellation exception, which is expected behavior
             if (e instanceof CancellationException ||
@@ -721,7 +763,8 @@ public class OpenAIChatClient extends LLMClient {
         }
     }
 
-    private OpenAICompletion callOpenAIAPI(String requestBody, CancellableCompletableFuture<AssistantResponse> future) {
+    private OpenAICompletion callOpenAIAPI(String requestBody, StreamingRequestBody body,
+            StreamListener streamListener, CancellableCompletableFuture<AssistantResponse> future) {
         ensureModelIsSet();
         Log.d(TAG, "=== Calling OpenAI API ===");
         Log.d(TAG, "Request length: " + requestBody.length());
@@ -733,6 +776,7 @@ public class OpenAIChatClient extends LLMClient {
         Log.d(TAG, "║ STOP OPENAI API REQUEST ║");
         Log.d(TAG, "╚═════════════════════════╝");
 
+        HttpURLConnection connection = null;
         try {
             // Check for cancellation before setting up connection
             if (future.isCancelled()) {
@@ -740,8 +784,8 @@ public class OpenAIChatClient extends LLMClient {
                 throw new CancellationException("Request was cancelled");
             }
 
-            URL url = new URL("https://api.openai.com/v1/chat/completions");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            URL url = new URL(API_BASE_URL + "/chat/completions");
+            connection = LLMHttpClient.open(url, 0);
             connection.setRequestMethod("POST");
             connection.setRequestProperty("Content-Type", "application/json");
             connection.setRequestProperty("Authorization",
@@ -754,9 +798,11 @@ public class OpenAIChatClient extends LLMClient {
                 throw new CancellationException("Request was cancelled");
             }
 
+            long requestStartTime = System.currentTimeMillis();
+            // Chunked, so the connection does not buffer the body to measure it
+            connection.setChunkedStreamingMode(0);
             try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
+                body.writeTo(requestBody, os);
             }
 
             // Check for cancellation after writing request
@@ -772,7 +818,9 @@ public class OpenAIChatClient extends LLMClient {
             }
 
             int responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
+            if (responseCode == HttpURLConnection.HTTP_OK && streamListener != null) {
+                return readOpenAIStream(connection, future, streamListener, requestStartTime);
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
                 try (BufferedReader br = new BufferedReader(
                         new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
                     StringBuilder response = new StringBuilder();
@@ -800,6 +848,7 @@ public class OpenAIChatClient extends LLMClient {
 
                     // Parse JSON to extract the content
                     JSONObject jsonObject = new JSONObject(jsonResponse);
+                    recordUsage(jsonObject.optJSONObject("usage"));
                     JSONArray choices = jsonObject.getJSONArray("choices");
                     if (choices.length() > 0) {
                         JSONObject choice = choices.getJSONObject(0);
@@ -824,7 +873,8 @@ public class OpenAIChatClient extends LLMClient {
                     }
                     String errorResponse = response.toString();
                     Log.e(TAG, "OpenAI API error response: " + errorResponse);
-                    throw new RuntimeException("OpenAI API error: " + responseCode + " - " + errorResponse);
+                    throw LLMRetryPolicy.httpError(connection, responseCode,
+                            "OpenAI API error: " + responseCode + " - " + errorResponse, errorResponse);
                 }
             }
         } catch (Exception e) {
@@ -837,7 +887,66 @@ public class OpenAIChatClient extends LLMClient {
 
             Log.e(TAG, "Error calling OpenAI API", e);
             throw new RuntimeException("Failed to call OpenAI API", e);
+        } finally {
+            LLMHttpClient.release(connection);
+        }
+    }
+
+    /**
+     * Records the prompt cache usage of a response. prompt_tokens includes
+     * the cached tokens.
+     */
+    private void recordUsage(JSONObject usage) {
+        if (usage == null) {
+            return;
+        }
+        JSONObject details = usage.optJSONObject("prompt_tokens_details");
+        long cached = details != null ? details.optLong("cached_tokens", 0) : 0;
+        recordPromptCacheUsage(usage.optLong("prompt_tokens", 0), cached, 0);
+    }
+
+    /**
+     * Reads a streamed chat completion. Each chunk carries a content delta in
+     * choices[0].delta; the last one has the finish reason.
+     */
+    private OpenAICompletion readOpenAIStream(HttpURLConnection connection,
+            CancellableCompletableFuture<AssistantResponse> future, StreamListener listener,
+            long requestStartTime) throws Exception {
+        StreamAccumulator accumulator = new StreamAccumulator(TAG, listener, requestStartTime);
+        String[] finishReason = { "" };
+
+        readServerSentEvents(connection.getInputStream(), future, (event, data) -> {
+            if ("[DONE]".equals(data.trim())) {
+                return false;
+            }
+            JSONObject chunk = new JSONObject(data);
+            if (chunk.has("error")) {
+                throw new RuntimeException("OpenAI API stream error: "
+                        + chunk.getJSONObject("error").optString("message", data));
+            }
+            recordUsage(chunk.optJSONObject("usage"));
+            JSONArray choices = chunk.optJSONArray("choices");
+            if (choices != null && choices.length() > 0) {
+                JSONObject choice = choices.getJSONObject(0);
+                JSONObject delta = choice.optJSONObject("delta");
+                if (delta != null && !delta.isNull("content")) {
+                    accumulator.append(delta.optString("content", ""));
+                }
+                if (!choice.isNull("finish_reason")) {
+                    finishReason[0] = choice.optString("finish_reason", "");
+                }
+            }
+            return true;
+        });
+
+        String content = accumulator.getText();
+        boolean truncated = "length".equalsIgnoreCase(finishReason[0]);
+        Log.d(TAG, "Streamed response complete, length: " + content.length() + ", finish reason: "
+                + finishReason[0] + ", time to first token: " + accumulator.getTimeToFirstTokenMs() + "ms");
+        if (truncated && content.trim().isEmpty()) {
+            content = "Response was truncated due to token limit. Please continue.";
         }
+        return new OpenAICompletion(content, truncated);
     }
 
     private static final class OpenAICompletion {
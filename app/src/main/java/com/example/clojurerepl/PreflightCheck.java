@@ -0,0 +1,428 @@
+package com.example.clojurerepl;
+
+import android.util.Log;
+
+import clojure.lang.Compiler;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentVector;
+import clojure.lang.ISeq;
+import clojure.lang.Keyword;
+import clojure.lang.LineNumberingPushbackReader;
+import clojure.lang.LispReader;
+import clojure.lang.Namespace;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+import clojure.lang.Var;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks a program in the designer process before it is run, so errors that
+ * show before any code runs skip the render process launch and Clojure
+ * startup there. The code is read with LispReader, which catches unbalanced
+ * brackets, unterminated strings and other reader errors. Nothing is
+ * evaluated, and read-time evaluation (#=) is disabled.
+ *
+ * With analysis enabled, the call sites of the forms read are also checked
+ * against a snapshot of the user namespace: calls to names that are neither
+ * defined by the program, bound locally nor referred, and calls to fixed
+ * arity functions with the wrong number of arguments. The analysis only
+ * reports what it is sure about and is off by default, see
+ * setAnalysisEnabled().
+ *
+ * The first check initializes Clojure in this process, see warmUp().
+ */
+public class PreflightCheck {
+    private static final String TAG = "PreflightCheck";
+    private static final Object EOF = new Object();
+    private static final int MAX_PROBLEMS = 5;
+    private static final Keyword LINE = Keyword.intern("line");
+    private static final Keyword ARGLISTS = Keyword.intern("arglists");
+
+    // Names the render process defines before it runs a program
+    private static final Set<String> RUNTIME_NAMES = new HashSet<>(Arrays.asList(
+            "*context*", "*content-layout*", "*cache-dir*", "android-log", "track-thread",
+            "register-sensor-listener", "post-main", "this", "&"));
+    // Forms whose direct child lists start with a method or function name
+    private static final Set<String> METHOD_FORMS = new HashSet<>(Arrays.asList(
+            "proxy", "reify", "deftype", "defrecord", "defprotocol", "definterface", "extend-type",
+            "extend-protocol", "letfn", ".."));
+    // Forms that rearrange the arguments of their direct child lists
+    private static final Set<String> THREADING_FORMS = new HashSet<>(Arrays.asList(
+            "->", "->>", "some->", "some->>", "cond->", "cond->>", "as->", "doto"));
+    // Forms whose arguments are not code
+    private static final Set<String> DATA_FORMS = new HashSet<>(Arrays.asList(
+            "quote", "comment", "ns", "import", "require", "use", "case", "defmacro"));
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+    // Only accessed on the executor
+    private static boolean initialized = false;
+    private static volatile boolean analysisEnabled = false;
+
+    private PreflightCheck() {
+    }
+
+    public static void setAnalysisEnabled(boolean enabled) {
+        analysisEnabled = enabled;
+    }
+
+    public static boolean isAnalysisEnabled() {
+        return analysisEnabled;
+    }
+
+    /**
+     * Initializes Clojure in the background, so the first check does not
+     * wait for it.
+     */
+    public static void warmUp() {
+        executor.execute(() -> {
+            try {
+                ensureInitialized();
+            } catch (Throwable t) {
+                Log.w(TAG, "Cannot initialize Clojure", t);
+            }
+        });
+    }
+
+    /**
+     * Checks code in the background.
+     *
+     * @return A future with the error description, or null if the check
+     *         found no problem or could not run
+     */
+    public static CompletableFuture<String> check(String code) {
+        return check(code, analysisEnabled);
+    }
+
+    /**
+     * Like check(), but only reads the code, whether analysis is enabled or
+     * not. For judging responses, where a heuristic must not reject one.
+     */
+    public static CompletableFuture<String> checkReadable(String code) {
+        return check(code, false);
+    }
+
+    private static CompletableFuture<String> check(String code, boolean analyze) {
+        return CompletableFuture.supplyAsync(() -> {
+            long startTime = System.currentTimeMillis();
+            try {
+                ensureInitialized();
+                String error = checkNow(code, analyze);
+                Log.d(TAG, "Checked " + code.length() + " chars in " + (System.currentTimeMillis() - startTime)
+                        + "ms: " + (error == null ? "no problems" : error));
+                return error;
+            } catch (Throwable t) {
+                // The render process will report whatever is wrong
+                Log.w(TAG, "Pre-flight check failed to run", t);
+                return null;
+            }
+        }, executor);
+    }
+
+    private static void ensureInitialized() {
+        if (initialized) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        System.setProperty("clojure.spec.skip-macros", "true");
+        System.setProperty("clojure.spec.compile-asserts", "false");
+        RT.init();
+        initialized = true;
+        Log.d(TAG, "Clojure initialized in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    private static String checkNow(String code, boolean analyze) {
+        Namespace userNS = Namespace.findOrCreate(Symbol.intern("user"));
+        List<Object> forms = new ArrayList<>();
+        LineNumberingPushbackReader reader = new LineNumberingPushbackReader(new StringReader(code));
+        Var.pushThreadBindings(RT.map(RT.CURRENT_NS, userNS, RT.READEVAL, RT.F));
+        try {
+            while (true) {
+                Object form = LispReader.read(reader, false, EOF, false);
+                if (form == EOF) {
+                    break;
+                }
+                forms.add(form);
+            }
+        } catch (LispReader.ReaderException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            return "Reader error at line " + e.line + ", column " + e.column + ": " + cause.getMessage();
+        } catch (Exception e) {
+            return "Reader error at line " + reader.getLineNumber() + ": " + e.getMessage();
+        } finally {
+            Var.popThreadBindings();
+        }
+
+        if (!analyze) {
+            return null;
+        }
+        List<String> problems = new Analysis(userNS, forms).run();
+        return problems.isEmpty() ? null : String.join("\n", problems);
+    }
+
+    /**
+     * Call site analysis of a program's forms.
+     */
+    private static class Analysis {
+        private final Namespace ns;
+        private final List<Object> forms;
+        // Names the program defines or binds anywhere; scopes are not
+        // tracked, so a name bound in one place is known everywhere
+        private final Set<String> known = new HashSet<>(RUNTIME_NAMES);
+        // The names of known that are bound locally, which may shadow
+        // functions of the same name
+        private final Set<String> locals = new HashSet<>();
+        // Names of program macros, whose arguments may be any syntax
+        private final Set<String> macros = new HashSet<>();
+        // Accepted argument counts of program functions: fixed counts, and
+        // the minimum count of a variadic arity as its negative minus one
+        private final Map<String, List<Integer>> arities = new HashMap<>();
+        private final List<String> problems = new ArrayList<>();
+
+        Analysis(Namespace ns, List<Object> forms) {
+            this.ns = ns;
+            this.forms = forms;
+        }
+
+        List<String> run() {
+            for (Object form : forms) {
+                collectNames(form);
+            }
+            for (Object form : forms) {
+                checkForm(form, null, -1);
+            }
+            return problems;
+        }
+
+        private void collectNames(Object form) {
+            if (form instanceof ISeq) {
+                ISeq seq = (ISeq) form;
+                String head = name(seq.first());
+                List<Object> items = toList(seq);
+                if (head != null && items.size() > 1) {
+                    if (head.equals("declare")) {
+                        for (Object item : items.subList(1, items.size())) {
+                            if (item instanceof Symbol) {
+                                known.add(((Symbol) item).getName());
+                            }
+                        }
+                    } else if (head.startsWith("def") && items.get(1) instanceof Symbol) {
+                        String defined = ((Symbol) items.get(1)).getName();
+                        known.add(defined);
+                        if (head.equals("defrecord") || head.equals("deftype")) {
+                            known.add("->" + defined);
+                            known.add("map->" + defined);
+                        } else if (head.equals("defmacro")) {
+                            macros.add(defined);
+                        } else if (head.equals("defn") || head.equals("defn-")) {
+                            arities.put(defined, arities(items));
+                        }
+                    } else if ((head.equals("fn") || head.equals("fn*")) && items.get(1) instanceof Symbol) {
+                        addSymbol(items.get(1));
+                    } else if (head.equals("catch") && items.size() > 2) {
+                        addSymbol(items.get(2));
+                    } else if (head.equals("as->") && items.size() > 2) {
+                        addSymbol(items.get(2));
+                    }
+                    if (METHOD_FORMS.contains(head)) {
+                        // letfn binds its functions in a vector
+                        Object methods = head.equals("letfn") ? items.get(1) : seq;
+                        if (methods instanceof java.util.Collection) {
+                            for (Object item : (java.util.Collection<?>) methods) {
+                                if (item instanceof ISeq) {
+                                    addSymbol(((ISeq) item).first());
+                                }
+                            }
+                        }
+                    }
+                }
+                for (Object item : items) {
+                    collectNames(item);
+                }
+            } else if (form instanceof IPersistentVector) {
+                // Every symbol in a vector counts as bound: this covers
+                // parameters and let-like bindings, including destructuring,
+                // at the price of treating names in vector literals as bound
+                IPersistentVector vector = (IPersistentVector) form;
+                for (int i = 0; i < vector.count(); i++) {
+                    Object item = vector.nth(i);
+                    if (item instanceof Symbol) {
+                        addSymbol(item);
+                    } else {
+                        collectNames(item);
+                    }
+                }
+            } else if (form instanceof IPersistentMap) {
+                // Destructuring maps, such as {:keys [a b]} or {a :a}
+                for (ISeq s = RT.seq(form); s != null; s = s.next()) {
+                    Map.Entry<?, ?> entry = (Map.Entry<?, ?>) s.first();
+                    addSymbol(entry.getKey());
+                    collectNames(entry.getKey());
+                    collectNames(entry.getValue());
+                }
+            } else if (form instanceof java.util.Collection) {
+                for (Object item : (java.util.Collection<?>) form) {
+                    collectNames(item);
+                }
+            }
+        }
+
+        private void addSymbol(Object form) {
+            if (form instanceof Symbol) {
+                known.add(((Symbol) form).getName());
+                locals.add(((Symbol) form).getName());
+            }
+        }
+
+        /**
+         * Checks the call sites in form.
+         *
+         * @param parent Head of the enclosing list, or null
+         * @param line   Line of the enclosing list
+         */
+        private void checkForm(Object form, String parent, int line) {
+            if (problems.size() >= MAX_PROBLEMS) {
+                return;
+            }
+            if (form instanceof ISeq) {
+                ISeq seq = (ISeq) form;
+                Object lineValue = RT.get(RT.meta(form), LINE);
+                if (lineValue instanceof Number) {
+                    line = ((Number) lineValue).intValue();
+                }
+                List<Object> items = toList(seq);
+                String head = null;
+                if (seq.first() instanceof Symbol && ((Symbol) seq.first()).getNamespace() == null) {
+                    head = ((Symbol) seq.first()).getName();
+                }
+                if (head != null && (DATA_FORMS.contains(head) || macros.contains(head))) {
+                    return;
+                }
+                if (head != null && !METHOD_FORMS.contains(parent != null ? parent : "")) {
+                    checkCall(head, items.size() - 1, THREADING_FORMS.contains(parent != null ? parent : ""),
+                            line);
+                }
+                for (Object item : items) {
+                    checkForm(item, head, line);
+                }
+            } else if (form instanceof IPersistentMap) {
+                for (ISeq s = RT.seq(form); s != null; s = s.next()) {
+                    Map.Entry<?, ?> entry = (Map.Entry<?, ?>) s.first();
+                    checkForm(entry.getKey(), null, line);
+                    checkForm(entry.getValue(), null, line);
+                }
+            } else if (form instanceof java.util.Collection) {
+                for (Object item : (java.util.Collection<?>) form) {
+                    // letfn binds functions in a vector
+                    checkForm(item, "letfn".equals(parent) ? parent : null, line);
+                }
+            }
+        }
+
+        private void checkCall(String name, int args, boolean threaded, int line) {
+            // Interop: (.method obj), (Class. args), (Class$Inner. args)
+            if (name.startsWith(".") || name.endsWith(".") || Compiler.specials.containsKey(Symbol.intern(name))) {
+                return;
+            }
+            String at = line > 0 ? " (line " + line + ")" : "";
+            if (known.contains(name)) {
+                if (!threaded && !locals.contains(name) && arities.containsKey(name)
+                        && !accepts(arities.get(name), args)) {
+                    problems.add("Wrong number of args (" + args + ") passed to: " + name + at);
+                }
+                return;
+            }
+            Object mapping = ns.getMapping(Symbol.intern(name));
+            if (mapping == null) {
+                problems.add("Unable to resolve symbol: " + name + " in this context" + at);
+                return;
+            }
+            if (threaded || !(mapping instanceof Var)) {
+                return;
+            }
+            Var var = (Var) mapping;
+            if (var.isMacro()) {
+                return;
+            }
+            Object arglists = RT.get(var.meta(), ARGLISTS);
+            if (arglists == null) {
+                return;
+            }
+            List<Integer> accepted = new ArrayList<>();
+            for (ISeq s = RT.seq(arglists); s != null; s = s.next()) {
+                if (!(s.first() instanceof IPersistentVector)) {
+                    return;
+                }
+                accepted.add(arity((IPersistentVector) s.first()));
+            }
+            if (!accepted.isEmpty() && !accepts(accepted, args)) {
+                problems.add("Wrong number of args (" + args + ") passed to: clojure.core/" + name + at);
+            }
+        }
+
+        /**
+         * Returns the arities of a defn form, or an empty list if they are
+         * not plain.
+         */
+        private static List<Integer> arities(List<Object> defn) {
+            List<Integer> accepted = new ArrayList<>();
+            for (Object item : defn.subList(2, defn.size())) {
+                if (item instanceof IPersistentVector) {
+                    // Single arity; anything after is the body
+                    accepted.add(arity((IPersistentVector) item));
+                    return accepted;
+                }
+                if (item instanceof ISeq && ((ISeq) item).first() instanceof IPersistentVector) {
+                    accepted.add(arity((IPersistentVector) ((ISeq) item).first()));
+                }
+            }
+            return accepted;
+        }
+
+        private static int arity(IPersistentVector params) {
+            for (int i = 0; i < params.count(); i++) {
+                Object param = params.nth(i);
+                if (param instanceof Symbol && "&".equals(((Symbol) param).getName())) {
+                    return -i - 1;
+                }
+            }
+            return params.count();
+        }
+
+        private static boolean accepts(List<Integer> accepted, int args) {
+            if (accepted.isEmpty()) {
+                return true;
+            }
+            for (int arity : accepted) {
+                if (arity >= 0 ? args == arity : args >= -arity - 1) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String name(Object form) {
+            return form instanceof Symbol && ((Symbol) form).getNamespace() == null
+                    ? ((Symbol) form).getName()
+                    : null;
+        }
+
+        private static List<Object> toList(ISeq seq) {
+            List<Object> items = new ArrayList<>();
+            for (ISeq s = seq; s != null; s = s.next()) {
+                items.add(s.first());
+            }
+            return items;
+        }
+    }
+}
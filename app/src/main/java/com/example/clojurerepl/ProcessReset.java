@@ -0,0 +1,434 @@
+package com.example.clojurerepl;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.ViewGroup;
+import clojure.lang.AFn;
+import clojure.lang.DynamicClassLoader;
+import clojure.lang.IFn;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentSet;
+import clojure.lang.LockingTransaction;
+import clojure.lang.MultiFn;
+import clojure.lang.Namespace;
+import clojure.lang.RT;
+import clojure.lang.Ref;
+import clojure.lang.Symbol;
+import clojure.lang.Var;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Returns the Clojure runtime of a render process to the state it was in
+ * before the first program ran, so the next program can run in the same
+ * process without paying for RT.init and loading clojure.core again.
+ *
+ * A baseline is captured once per process, right before the first program
+ * is evaluated. Tearing down a program then
+ *
+ * - stops the threads and sensor listeners it registered through the
+ *   track-thread and register-sensor-listener helpers, and any other thread
+ *   still running its code
+ * - drops the main thread callbacks it posted through the post-main helper
+ * - removes namespaces it created, unmaps the vars and classes it added and
+ *   restores the roots and metadata of the vars it redefined, which also
+ *   undoes extend on baseline protocols
+ * - restores the method and prefer tables of baseline multimethods it
+ *   added methods to
+ * - forgets the classes it defined and resets the compiler's id counter, so
+ *   the next program gets the same class names as in a fresh process and can
+ *   use the DEX cache
+ *
+ * Anything that cannot be undone makes teardown fail; the caller is expected
+ * to fall back to killing the process. That includes main thread callbacks
+ * of the program posted other than through post-main, which are found in a
+ * dump of the main looper's queue.
+ */
+public class ProcessReset {
+    private static final String TAG = "ProcessReset";
+    private static final long THREAD_JOIN_MS = 500;
+    // Code compiled from the program's source string, see ExecutionWatchdog
+    private static final String PROGRAM_SOURCE_FILE = "NO_SOURCE_FILE";
+    // Classes named in Message.toString, as printed by Looper.dump
+    private static final Pattern MESSAGE_CLASS = Pattern.compile("(?:callback|target)=([\\w.$]+)");
+
+    private static class SensorRegistration {
+        final SensorManager sensorManager;
+        final SensorEventListener listener;
+
+        SensorRegistration(SensorManager sensorManager, SensorEventListener listener) {
+            this.sensorManager = sensorManager;
+            this.listener = listener;
+        }
+    }
+
+    // Baseline, captured once
+    private final Set<Namespace> baselineNamespaces = new HashSet<>();
+    private final Map<Namespace, Map<Symbol, Object>> baselineMappings = new HashMap<>();
+    private final Map<Var, Object> baselineRoots = new HashMap<>();
+    private final Map<Var, IPersistentMap> baselineMeta = new HashMap<>();
+    private final Map<MultiFn, IPersistentMap> baselineMethodTables = new HashMap<>();
+    private final Map<MultiFn, IPersistentMap> baselinePreferTables = new HashMap<>();
+    private final Set<String> baselineClasses = new HashSet<>();
+    private final Set<Thread> baselineThreads = new HashSet<>();
+    private Object baselineLoadedLibs;
+    private int baselineId;
+    private boolean hasBaseline = false;
+
+    // Registered by the program through the helpers
+    private final List<Thread> trackedThreads = new ArrayList<>();
+    private final List<SensorRegistration> sensorRegistrations = new ArrayList<>();
+    // Posts the callbacks of post-main, all with the same token
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Object callbackToken = new Object();
+
+    private ProcessReset() {
+    }
+
+    /**
+     * Interns the helpers without recording a baseline, for a process that is
+     * not reused. teardown() always fails on the result.
+     */
+    public static ProcessReset installHelpers() {
+        ProcessReset reset = new ProcessReset();
+        reset.internHelpers();
+        return reset;
+    }
+
+    /**
+     * Interns the helpers and records the current runtime state. Must be
+     * called on the main thread after the Clojure environment is set up and
+     * before the first program is evaluated.
+     */
+    public static ProcessReset captureBaseline() {
+        ProcessReset reset = new ProcessReset();
+        reset.internHelpers();
+
+        for (Object ns : RT.seqToArray(Namespace.all())) {
+            Namespace namespace = (Namespace) ns;
+            reset.baselineNamespaces.add(namespace);
+            Map<Symbol, Object> mappings = new HashMap<>();
+            for (Object entry : namespace.getMappings()) {
+                Map.Entry<?, ?> mapping = (Map.Entry<?, ?>) entry;
+                Symbol sym = (Symbol) mapping.getKey();
+                Object value = mapping.getValue();
+                mappings.put(sym, value);
+                // Vars interned in this namespace, not referred ones
+                if (value instanceof Var && ((Var) value).ns == namespace) {
+                    Var var = (Var) value;
+                    reset.baselineRoots.put(var, var.getRawRoot());
+                    reset.baselineMeta.put(var, var.meta());
+                    if (var.getRawRoot() instanceof MultiFn) {
+                        MultiFn multiFn = (MultiFn) var.getRawRoot();
+                        reset.baselineMethodTables.put(multiFn, multiFn.getMethodTable());
+                        reset.baselinePreferTables.put(multiFn, multiFn.getPreferTable());
+                    }
+                }
+            }
+            reset.baselineMappings.put(namespace, mappings);
+        }
+
+        reset.baselineLoadedLibs = ((Ref) RT.var("clojure.core", "*loaded-libs*").deref()).deref();
+        reset.baselineThreads.addAll(Thread.getAllStackTraces().keySet());
+        try {
+            reset.baselineClasses.addAll(getStaticClassCache().keySet());
+            reset.baselineId = getIdCounter().get();
+        } catch (ReflectiveOperationException e) {
+            // Teardown will fail and the process will be restarted instead
+            Log.e(TAG, "Cannot read compiler state", e);
+            reset.baselineId = -1;
+        }
+        reset.hasBaseline = true;
+        Log.d(TAG, "Baseline: " + reset.baselineNamespaces.size() + " namespaces, "
+                + reset.baselineRoots.size() + " vars, " + reset.baselineMethodTables.size() + " multimethods, "
+                + reset.baselineClasses.size() + " classes");
+        return reset;
+    }
+
+    // (track-thread thread), (register-sensor-listener listener sensor rate)
+    // and (post-main f delay-ms)
+    private void internHelpers() {
+        Var.intern(RT.CLOJURE_NS, Symbol.intern("track-thread"), new AFn() {
+            @Override
+            public Object invoke(Object thread) {
+                synchronized (trackedThreads) {
+                    trackedThreads.add((Thread) thread);
+                }
+                return thread;
+            }
+        });
+        Var.intern(RT.CLOJURE_NS, Symbol.intern("register-sensor-listener"), new AFn() {
+            @Override
+            public Object invoke(Object listener, Object sensor, Object rate) {
+                Context context = (Context) RT.var("clojure.core", "*context*").deref();
+                SensorManager sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+                boolean registered = sensorManager.registerListener((SensorEventListener) listener,
+                        (Sensor) sensor, ((Number) rate).intValue());
+                if (registered) {
+                    synchronized (sensorRegistrations) {
+                        sensorRegistrations.add(new SensorRegistration(sensorManager,
+                                (SensorEventListener) listener));
+                    }
+                }
+                return registered;
+            }
+        });
+        Var.intern(RT.CLOJURE_NS, Symbol.intern("post-main"), new AFn() {
+            @Override
+            public Object invoke(Object f, Object delayMs) {
+                return mainHandler.postAtTime((Runnable) f, callbackToken,
+                        SystemClock.uptimeMillis() + ((Number) delayMs).longValue());
+            }
+        });
+    }
+
+    /**
+     * Undoes the effects of the program that just ran. Must be called on the
+     * main thread once the activity running it has been destroyed.
+     *
+     * @return true if the process can run the next program, false if it has
+     *         to be restarted
+     */
+    public boolean teardown(ViewGroup contentLayout) {
+        long startTime = System.currentTimeMillis();
+        if (!hasBaseline) {
+            Log.w(TAG, "No baseline to return to");
+            return false;
+        }
+        try {
+            if (contentLayout != null) {
+                contentLayout.removeAllViews();
+            }
+            unregisterSensorListeners();
+            if (!stopProgramThreads()) {
+                return false;
+            }
+            removeMainThreadCallbacks();
+            if (hasUntrackedMainThreadCallbacks()) {
+                return false;
+            }
+            resetNamespaces();
+            resetMultiFns();
+            resetCompilerState();
+            Log.d(TAG, "Teardown completed in " + (System.currentTimeMillis() - startTime) + "ms");
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Teardown failed", e);
+            return false;
+        }
+    }
+
+    private void unregisterSensorListeners() {
+        synchronized (sensorRegistrations) {
+            for (SensorRegistration registration : sensorRegistrations) {
+                registration.sensorManager.unregisterListener(registration.listener);
+            }
+            Log.d(TAG, "Unregistered " + sensorRegistrations.size() + " sensor listeners");
+            sensorRegistrations.clear();
+        }
+    }
+
+    private boolean stopProgramThreads() throws InterruptedException {
+        List<Thread> toStop = new ArrayList<>();
+        synchronized (trackedThreads) {
+            toStop.addAll(trackedThreads);
+            trackedThreads.clear();
+        }
+        for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+            Thread thread = entry.getKey();
+            if (thread == Thread.currentThread() || toStop.contains(thread)) {
+                continue;
+            }
+            if (runsProgramCode(entry.getValue())) {
+                toStop.add(thread);
+            } else if (!baselineThreads.contains(thread) && holdsScheduledWork(entry.getValue())) {
+                // Timers and scheduled executors may hold program tasks we
+                // have no way to cancel
+                Log.w(TAG, "Thread \"" + thread.getName() + "\" may hold scheduled program tasks");
+                return false;
+            }
+        }
+
+        for (Thread thread : toStop) {
+            thread.interrupt();
+        }
+        for (Thread thread : toStop) {
+            thread.join(THREAD_JOIN_MS);
+            if (thread.isAlive()) {
+                Log.w(TAG, "Thread \"" + thread.getName() + "\" did not stop");
+                return false;
+            }
+        }
+        Log.d(TAG, "Stopped " + toStop.size() + " program threads");
+        return true;
+    }
+
+    private static boolean runsProgramCode(StackTraceElement[] stack) {
+        for (StackTraceElement frame : stack) {
+            if (PROGRAM_SOURCE_FILE.equals(frame.getFileName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean holdsScheduledWork(StackTraceElement[] stack) {
+        for (StackTraceElement frame : stack) {
+            String className = frame.getClassName();
+            if (className.equals("java.util.TimerThread")
+                    || className.startsWith("java.util.concurrent.ScheduledThreadPoolExecutor")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Drops callbacks the program posted through post-main, e.g. animation
+    // loops, which would otherwise outlive it
+    private void removeMainThreadCallbacks() {
+        mainHandler.removeCallbacksAndMessages(callbackToken);
+        Log.d(TAG, "Removed main thread callbacks");
+    }
+
+    // Whether a message still queued on the main thread runs code of, or is
+    // sent to a handler of, the program, e.g. one it posted with View.post.
+    // Must be called before the program's classes are forgotten.
+    private boolean hasUntrackedMainThreadCallbacks() throws ReflectiveOperationException {
+        Set<String> programClasses = new HashSet<>(getStaticClassCache().keySet());
+        programClasses.removeAll(baselineClasses);
+        if (programClasses.isEmpty()) {
+            return false;
+        }
+
+        StringBuilder dump = new StringBuilder();
+        Looper.getMainLooper().dump(line -> dump.append(line).append('\n'), "");
+        Matcher matcher = MESSAGE_CLASS.matcher(dump);
+        while (matcher.find()) {
+            if (programClasses.contains(matcher.group(1))) {
+                Log.w(TAG, "Main thread message of the program is still queued: " + matcher.group(1));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void resetNamespaces() throws Exception {
+        for (Object ns : RT.seqToArray(Namespace.all())) {
+            Namespace namespace = (Namespace) ns;
+            if (!baselineNamespaces.contains(namespace)) {
+                // Libraries loaded from the classpath can't be loaded again,
+                // since their __init classes have already been initialized
+                if (!isClasspathLib(namespace.getName())) {
+                    Namespace.remove(namespace.getName());
+                    Log.d(TAG, "Removed namespace " + namespace.getName());
+                }
+                continue;
+            }
+
+            Map<Symbol, Object> mappings = baselineMappings.get(namespace);
+            for (Object entry : namespace.getMappings()) {
+                Map.Entry<?, ?> mapping = (Map.Entry<?, ?>) entry;
+                Symbol sym = (Symbol) mapping.getKey();
+                Object baselineValue = mappings.get(sym);
+                if (baselineValue == mapping.getValue()) {
+                    continue;
+                }
+                namespace.unmap(sym);
+                if (baselineValue instanceof Var) {
+                    namespace.refer(sym, (Var) baselineValue);
+                } else if (baselineValue instanceof Class) {
+                    namespace.importClass(sym, (Class<?>) baselineValue);
+                }
+            }
+        }
+
+        for (Map.Entry<Var, Object> entry : baselineRoots.entrySet()) {
+            Var var = entry.getKey();
+            if (var.getRawRoot() != entry.getValue()) {
+                var.bindRoot(entry.getValue());
+            }
+            IPersistentMap meta = baselineMeta.get(var);
+            if (var.meta() != meta) {
+                var.resetMeta(meta);
+            }
+        }
+        // Don't keep the destroyed activity reachable until the next run
+        RT.var("clojure.core", "*context*").bindRoot(null);
+        RT.var("clojure.core", "*content-layout*").bindRoot(null);
+
+        Ref loadedLibs = (Ref) RT.var("clojure.core", "*loaded-libs*").deref();
+        LockingTransaction.runInTransaction(() -> loadedLibs.set(baselineLoadedLibs));
+    }
+
+    // defmethod and prefer-method change a multimethod in place, so
+    // restoring the var root does not undo them
+    private void resetMultiFns() {
+        int restored = 0;
+        for (Map.Entry<MultiFn, IPersistentMap> entry : baselineMethodTables.entrySet()) {
+            MultiFn multiFn = entry.getKey();
+            IPersistentMap preferTable = baselinePreferTables.get(multiFn);
+            if (multiFn.getMethodTable() == entry.getValue() && multiFn.getPreferTable() == preferTable) {
+                continue;
+            }
+            multiFn.reset();
+            for (Object method : RT.seqToArray(RT.seq(entry.getValue()))) {
+                Map.Entry<?, ?> mapping = (Map.Entry<?, ?>) method;
+                multiFn.addMethod(mapping.getKey(), (IFn) mapping.getValue());
+            }
+            for (Object prefer : RT.seqToArray(RT.seq(preferTable))) {
+                Map.Entry<?, ?> mapping = (Map.Entry<?, ?>) prefer;
+                for (Object other : RT.seqToArray(RT.seq((IPersistentSet) mapping.getValue()))) {
+                    multiFn.preferMethod(mapping.getKey(), other);
+                }
+            }
+            restored++;
+        }
+        Log.d(TAG, "Restored " + restored + " multimethods");
+    }
+
+    private static boolean isClasspathLib(Symbol name) {
+        String path = name.getName().replace('-', '_').replace('.', '/');
+        ClassLoader loader = RT.class.getClassLoader();
+        return loader.getResource(path + "__init.class") != null || loader.getResource(path + ".clj") != null;
+    }
+
+    private void resetCompilerState() throws ReflectiveOperationException {
+        if (baselineId < 0) {
+            throw new IllegalStateException("No baseline for the compiler id counter");
+        }
+        Map<String, Class<?>> classCache = getStaticClassCache();
+        synchronized (classCache) {
+            classCache.keySet().retainAll(baselineClasses);
+        }
+        getIdCounter().set(baselineId);
+    }
+
+    // See patches/0002-Patch-DynamicClassLoader.patch
+    @SuppressWarnings("unchecked")
+    private static Map<String, Class<?>> getStaticClassCache() throws ReflectiveOperationException {
+        Field field = DynamicClassLoader.class.getDeclaredField("staticClassCache");
+        field.setAccessible(true);
+        return (Map<String, Class<?>>) field.get(null);
+    }
+
+    // Source of the numeric suffixes of generated class names
+    private static AtomicInteger getIdCounter() throws ReflectiveOperationException {
+        Field field = RT.class.getDeclaredField("id");
+        field.setAccessible(true);
+        return (AtomicInteger) field.get(null);
+    }
+}
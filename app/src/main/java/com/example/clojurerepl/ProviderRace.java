@@ -0,0 +1,469 @@
+package com.example.clojurerepl;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.clojurerepl.auth.ApiKeyManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends a request to the session's model and to the configured racers, other
+ * provider/model pairs, at the same time. The first response that parses and
+ * whose code reads (PreflightCheck.checkReadable()) wins; the other requests
+ * are cancelled.
+ *
+ * Racers are configured with setRacers() and apply to all sessions. For
+ * tuning the set, every race is logged with the time of each entrant, and
+ * races, wins and the mean time of valid responses are kept per provider/model
+ * pair, see getStats().
+ *
+ * Only the session's client streams, racers are sent non-streaming requests.
+ *
+ * sendForCandidates() keeps more than one valid response, so auto-iteration
+ * can run them side by side in render process slots, see CandidateRunner.
+ */
+public class ProviderRace {
+    private static final String TAG = "ProviderRace";
+    private static final String PREFS_NAME = "ProviderRacePrefs";
+    private static final String KEY_RACERS = "racers";
+    private static final String KEY_STATS_PREFIX = "stats_";
+
+    /**
+     * A provider/model pair.
+     */
+    public static class Racer {
+        public final LLMClientFactory.LLMType type;
+        public final String model;
+
+        public Racer(LLMClientFactory.LLMType type, String model) {
+            this.type = type;
+            this.model = model;
+        }
+
+        /**
+         * Parses a key(), returns null if it is malformed.
+         */
+        public static Racer parse(String key) {
+            int slash = key.indexOf('/');
+            if (slash <= 0) {
+                return null;
+            }
+            try {
+                return new Racer(LLMClientFactory.LLMType.valueOf(key.substring(0, slash)), key.substring(slash + 1));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        public String key() {
+            return type.name() + "/" + model;
+        }
+
+        @Override
+        public String toString() {
+            return key();
+        }
+    }
+
+    /**
+     * Accumulated results of a provider/model pair.
+     */
+    public static class Stats {
+        public final int races;
+        public final int wins;
+        // Responses that were valid, and their total time
+        public final int validResponses;
+        public final long validTimeMs;
+
+        Stats(int races, int wins, int validResponses, long validTimeMs) {
+            this.races = races;
+            this.wins = wins;
+            this.validResponses = validResponses;
+            this.validTimeMs = validTimeMs;
+        }
+
+        /**
+         * @return The mean time of valid responses, or -1 if there were none
+         */
+        public long getMeanTimeMs() {
+            return validResponses > 0 ? validTimeMs / validResponses : -1;
+        }
+
+        @Override
+        public String toString() {
+            long mean = getMeanTimeMs();
+            return wins + "/" + races + " wins" + (mean >= 0 ? ", " + mean + "ms mean" : "");
+        }
+    }
+
+    // How one entrant of a race did
+    private static class Entry {
+        final Racer racer;
+        final LLMClient client;
+        long timeMs = -1;
+        String outcome = "pending";
+        boolean valid = false;
+
+        Entry(Racer racer, LLMClient client) {
+            this.racer = racer;
+            this.client = client;
+        }
+    }
+
+    private final Context context;
+    private final LLMClient primary;
+    private final LLMClient.ChatSession chatSession;
+    // Racer clients by key, created on their first race
+    private final Map<String, LLMClient> clients = new LinkedHashMap<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private List<Entry> currentEntries = new ArrayList<>();
+
+    public ProviderRace(Context context, LLMClient primary, LLMClient.ChatSession chatSession) {
+        this.context = context.getApplicationContext();
+        this.primary = primary;
+        this.chatSession = chatSession;
+    }
+
+    public static List<Racer> getRacers(Context context) {
+        Set<String> keys = getPrefs(context).getStringSet(KEY_RACERS, new HashSet<>());
+        List<Racer> racers = new ArrayList<>();
+        for (String key : keys) {
+            Racer racer = Racer.parse(key);
+            if (racer != null) {
+                racers.add(racer);
+            }
+        }
+        return racers;
+    }
+
+    public static void setRacers(Context context, List<Racer> racers) {
+        Set<String> keys = new HashSet<>();
+        for (Racer racer : racers) {
+            keys.add(racer.key());
+        }
+        getPrefs(context).edit().putStringSet(KEY_RACERS, keys).apply();
+        Log.d(TAG, "Racers: " + keys);
+    }
+
+    /**
+     * Returns the accumulated results of a provider/model pair, or null if
+     * it never raced.
+     */
+    public static Stats getStats(Context context, Racer racer) {
+        String json = getPrefs(context).getString(KEY_STATS_PREFIX + racer.key(), null);
+        if (json == null) {
+            return null;
+        }
+        try {
+            JSONObject stats = new JSONObject(json);
+            return new Stats(stats.optInt("races"), stats.optInt("wins"), stats.optInt("validResponses"),
+                    stats.optLong("validTimeMs"));
+        } catch (JSONException e) {
+            Log.w(TAG, "Invalid stats of " + racer, e);
+            return null;
+        }
+    }
+
+    /**
+     * Whether a request would be raced, i.e. whether another provider/model
+     * pair with an API key is configured.
+     */
+    public boolean isRacing() {
+        return !getRacerEntries().isEmpty();
+    }
+
+    /**
+     * Races the messages. Completes with the first valid response or, if no
+     * response is valid, with the session model's response, or exceptionally
+     * if it failed too.
+     */
+    public LLMClient.CancellableCompletableFuture<LLMClient.AssistantResponse> send(
+            LLMClient.ChatSession session, LLMClient.MessageFilter messageFilter,
+            LLMRequestScheduler.Priority priority) {
+        LLMClient.CancellableCompletableFuture<List<LLMClient.AssistantResponse>> race =
+                race(session, messageFilter, priority, 1, 0);
+        LLMClient.CancellableCompletableFuture<LLMClient.AssistantResponse> result =
+                new LLMClient.CancellableCompletableFuture<>();
+        race.whenComplete((responses, throwable) -> {
+            if (throwable != null) {
+                result.completeExceptionally(throwable);
+            } else {
+                result.complete(responses.get(0));
+            }
+        });
+        result.whenComplete((response, throwable) -> {
+            if (result.isCancelled()) {
+                race.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Races the messages for up to maxCandidates valid responses, for running
+     * them as candidates, see CandidateRunner. Once the first valid response
+     * is in, the others get windowMs to come in before they are cancelled.
+     * Completes with the valid responses in the order they came in or, if
+     * none is valid, with the session model's response alone, or
+     * exceptionally if it failed too.
+     */
+    public LLMClient.CancellableCompletableFuture<List<LLMClient.AssistantResponse>> sendForCandidates(
+            LLMClient.ChatSession session, LLMClient.MessageFilter messageFilter,
+            LLMRequestScheduler.Priority priority, int maxCandidates, long windowMs) {
+        return race(session, messageFilter, priority, maxCandidates, windowMs);
+    }
+
+    private LLMClient.CancellableCompletableFuture<List<LLMClient.AssistantResponse>> race(
+            LLMClient.ChatSession session, LLMClient.MessageFilter messageFilter,
+            LLMRequestScheduler.Priority priority, int maxValid, long windowMs) {
+        List<Entry> entries = new ArrayList<>();
+        entries.add(new Entry(new Racer(primary.getType(), primary.getModel()), primary));
+        entries.addAll(getRacerEntries());
+        synchronized (this) {
+            currentEntries = entries;
+        }
+        Log.d(TAG, "Racing " + entries.size() + " models for up to " + maxValid + " valid responses: "
+                + describe(entries));
+
+        LLMClient.CancellableCompletableFuture<List<LLMClient.AssistantResponse>> result =
+                new LLMClient.CancellableCompletableFuture<>();
+        long startTime = System.currentTimeMillis();
+        // Valid responses in the order they came in
+        List<LLMClient.AssistantResponse> valid = new ArrayList<>();
+        // Set once the race is decided, later responses are not taken
+        boolean[] decided = { false };
+        // The session model's outcome, used when no response is valid
+        LLMClient.AssistantResponse[] primaryResponse = new LLMClient.AssistantResponse[1];
+        Throwable[] primaryError = new Throwable[1];
+        int[] pending = { entries.size() };
+
+        for (Entry entry : entries) {
+            // Racers are extra requests, the session's own comes first
+            LLMRequestScheduler.Priority entryPriority = entry.client == primary ? priority
+                    : LLMRequestScheduler.Priority.BACKGROUND;
+            entry.client.sendMessages(session, messageFilter, entryPriority).whenComplete((response, throwable) -> {
+                synchronized (entries) {
+                    if (entry.timeMs < 0) {
+                        entry.timeMs = System.currentTimeMillis() - startTime;
+                    }
+                }
+                // Validation reads the code off the HTTP thread. The rest runs
+                // async too, so callbacks of the result do not hold up the
+                // pre-flight check's executor.
+                CompletableFuture<String> validation = throwable != null
+                        ? CompletableFuture.completedFuture(describe(throwable)) : validate(response);
+                validation.thenAcceptAsync(rejection -> {
+                    boolean first = false;
+                    boolean full = false;
+                    boolean last;
+                    synchronized (entries) {
+                        if (entry.client == primary) {
+                            primaryResponse[0] = response;
+                            primaryError[0] = throwable;
+                        }
+                        if (rejection == null) {
+                            entry.valid = true;
+                            if (!decided[0] && !result.isDone()) {
+                                first = valid.isEmpty();
+                                entry.outcome = first ? "won" : "valid, candidate";
+                                valid.add(response);
+                                full = valid.size() >= maxValid;
+                            } else {
+                                entry.outcome = "valid, late";
+                            }
+                        } else if (!"cancelled".equals(entry.outcome)) {
+                            entry.outcome = rejection;
+                        }
+                        pending[0]--;
+                        last = pending[0] == 0;
+                    }
+
+                    if (full) {
+                        finish(entries, valid, decided, result, entry.timeMs);
+                    } else if (first) {
+                        // Give the others a moment to come in as candidates
+                        final long firstTimeMs = entry.timeMs;
+                        mainHandler.postDelayed(() -> finish(entries, valid, decided, result, firstTimeMs + windowMs),
+                                windowMs);
+                    }
+                    if (last) {
+                        if (!result.isDone()) {
+                            boolean anyValid;
+                            synchronized (entries) {
+                                anyValid = !valid.isEmpty();
+                            }
+                            if (anyValid) {
+                                finish(entries, valid, decided, result, entry.timeMs);
+                            } else if (primaryResponse[0] != null) {
+                                List<LLMClient.AssistantResponse> fallback = new ArrayList<>();
+                                fallback.add(primaryResponse[0]);
+                                result.complete(fallback);
+                            } else {
+                                result.completeExceptionally(primaryError[0] != null ? primaryError[0]
+                                        : new IllegalStateException("No response"));
+                            }
+                        }
+                        record(entries);
+                    }
+                });
+            });
+        }
+
+        result.whenComplete((responses, throwable) -> {
+            if (result.isCancelled()) {
+                cancel();
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Cancels the requests of the current race.
+     *
+     * @return true if a request was cancelled
+     */
+    public boolean cancel() {
+        List<Entry> entries;
+        synchronized (this) {
+            entries = currentEntries;
+        }
+        boolean cancelled = false;
+        for (Entry entry : entries) {
+            cancelled = entry.client.cancelCurrentRequest() || cancelled;
+        }
+        return cancelled;
+    }
+
+    private List<Entry> getRacerEntries() {
+        List<Entry> entries = new ArrayList<>();
+        ApiKeyManager apiKeyManager = ApiKeyManager.getInstance(context);
+        String primaryKey = new Racer(primary.getType(), primary.getModel()).key();
+        for (Racer racer : getRacers(context)) {
+            if (racer.key().equals(primaryKey) || !apiKeyManager.hasApiKey(racer.type)) {
+                continue;
+            }
+            LLMClient client;
+            synchronized (clients) {
+                client = clients.get(racer.key());
+                if (client == null) {
+                    client = LLMClientFactory.createClient(context, racer.type, racer.model, chatSession);
+                    clients.put(racer.key(), client);
+                }
+            }
+            entries.add(new Entry(racer, client));
+        }
+        return entries;
+    }
+
+    /**
+     * Returns a future with why a response does not count, or null if it is
+     * valid. Only the reader part of the pre-flight check applies; the
+     * analysis is heuristic and must not reject a response.
+     */
+    private static CompletableFuture<String> validate(LLMClient.AssistantResponse response) {
+        LLMClient.CodeExtractionResult extraction = response.getCodeExtractionResult();
+        if (extraction == null || !extraction.success) {
+            return CompletableFuture.completedFuture("unparsable");
+        }
+        if (response.wasTruncatedByTokenLimit()) {
+            return CompletableFuture.completedFuture("truncated");
+        }
+        String code = response.getExtractedCode();
+        if (code == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return PreflightCheck.checkReadable(code).thenApply(error -> error != null ? "code does not read" : null);
+    }
+
+    /**
+     * Completes the race with the valid responses so far, if it is not done
+     * yet, and cancels the requests still pending.
+     */
+    private static void finish(List<Entry> entries, List<LLMClient.AssistantResponse> valid, boolean[] decided,
+            LLMClient.CancellableCompletableFuture<List<LLMClient.AssistantResponse>> result, long timeMs) {
+        List<LLMClient.AssistantResponse> responses;
+        synchronized (entries) {
+            if (decided[0] || result.isDone()) {
+                return;
+            }
+            decided[0] = true;
+            responses = new ArrayList<>(valid);
+        }
+        result.complete(responses);
+        for (Entry entry : entries) {
+            synchronized (entries) {
+                if (entry.timeMs >= 0) {
+                    continue;
+                }
+                // Lost at the time the race was decided
+                entry.timeMs = timeMs;
+                entry.outcome = "cancelled";
+            }
+            entry.client.cancelCurrentRequest();
+        }
+    }
+
+    private void record(List<Entry> entries) {
+        Log.d(TAG, "Race finished: " + describe(entries));
+        synchronized (ProviderRace.class) {
+            SharedPreferences.Editor editor = getPrefs(context).edit();
+            for (Entry entry : entries) {
+                Stats stats = getStats(context, entry.racer);
+                if (stats == null) {
+                    stats = new Stats(0, 0, 0, 0);
+                }
+                try {
+                    JSONObject json = new JSONObject();
+                    json.put("races", stats.races + 1);
+                    json.put("wins", stats.wins + ("won".equals(entry.outcome) ? 1 : 0));
+                    json.put("validResponses", stats.validResponses + (entry.valid ? 1 : 0));
+                    json.put("validTimeMs", stats.validTimeMs + (entry.valid ? entry.timeMs : 0));
+                    editor.putString(KEY_STATS_PREFIX + entry.racer.key(), json.toString());
+                } catch (JSONException e) {
+                    Log.w(TAG, "Cannot record stats of " + entry.racer, e);
+                }
+            }
+            editor.commit();
+        }
+    }
+
+    private static String describe(List<Entry> entries) {
+        StringBuilder sb = new StringBuilder();
+        synchronized (entries) {
+            for (Entry entry : entries) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(entry.racer);
+                if (entry.timeMs >= 0) {
+                    sb.append(" ").append(entry.outcome).append(" after ").append(entry.timeMs).append("ms");
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String describe(Throwable throwable) {
+        Throwable cause = throwable.getCause() != null ? throwable.getCause() : throwable;
+        return cause instanceof CancellationException ? "cancelled"
+                : "failed: " + cause.getMessage();
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
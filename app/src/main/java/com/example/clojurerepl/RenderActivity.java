@@ -1,10 +1,6 @@
 package com.example.clojurerepl;
 
-import android.content.BroadcastReceiver;
-import android.content.ComponentName;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
@@ -17,6 +13,7 @@ import clojure.lang.Var;
 import clojure.lang.DynamicClassLoader;
 import android.util.Log;
 import clojure.lang.Symbol;
+import clojure.lang.Keyword;
 import android.graphics.Color;
 import android.graphics.Typeface;
 import android.widget.TextView;
@@ -32,6 +29,7 @@ import java.util.List;
 import java.util.HashSet;
 import java.util.Set;
 import clojure.lang.LineNumberingPushbackReader;
+import com.example.clojurerepl.pipeline.ClojureStartup;
 import android.app.ActivityManager;
 import android.content.Context;
 import java.security.MessageDigest;
@@ -46,16 +44,25 @@ import android.view.ViewParent;
 import android.view.MotionEvent;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import java.util.ArrayList;
 import android.view.ViewGroup;
 import java.lang.reflect.Field;
 import android.os.Build;
+import android.os.Messenger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RenderActivity extends AppCompatActivity {
     private static final String TAG = "ClojureRender";
     private static final String CLOJURE_APP_CACHE_DIR = "clojure_app_cache";
+    // Number of render process log lines kept by the launching activity
+    private static final int PROCESS_LOG_CAPACITY = 2000;
     // Define EOF object for detecting end of input
     private static final Object EOF = new Object();
+    // Number of extra render processes (:render_1 .. :render_N) for running
+    // candidates in parallel; slot 0 is the regular :render_activity process
+    public static final int MAX_SLOTS = 3;
 
     // inputs
     public static final String EXTRA_LAUNCHING_ACTIVITY = "launching_activity";
@@ -66,12 +73,25 @@ public class RenderActivity extends AppCompatActivity {
     public static final String EXTRA_ENABLE_SCREENSHOTS = "enable_screenshots";
     public static final String EXTRA_PID_FILE = "pid_file";
     public static final String EXTRA_AUTO_RETURN_ON_ERROR = "auto_return_on_error";
+    public static final String EXTRA_RESULT_CHANNEL = "result_channel";
+    // When positive, finish this many ms after the program has been evaluated
+    // instead of waiting for the back button (used by batch runs)
+    public static final String EXTRA_AUTO_EXIT_MS = "auto_exit_ms";
+    // Render process slot, see MAX_SLOTS. Programs in slots above 0 run as
+    // candidates: errors finish the activity without returning to the parent
+    // until the slot is promoted with EXTRA_PROMOTE.
+    public static final String EXTRA_SLOT = "slot";
+    public static final String EXTRA_PROMOTE = "promote";
+    // Keep the render process after the program exits and reset the Clojure
+    // runtime for the next program instead, see ProcessReset
+    public static final String EXTRA_REUSE_PROCESS = "reuse_process";
 
     // results
     public static final String EXTRA_RESULT_SCREENSHOT_PATHS = "result_screenshot_paths";
     public static final String EXTRA_RESULT_ERROR = "result_error";
     public static final String EXTRA_RESULT_TIMINGS = "result_timings";
     public static final String EXTRA_RESULT_AUTO_RETURN_ON_ERROR = "result_return_on_error";
+    public static final String EXTRA_RESULT_VIEW_HIERARCHY = "result_view_hierarchy";
     // these are copies of EXTRA_SESSION_ID, EXTRA_MESSAGE_INDEX,
     // EXTRA_ITERATION that we pass back to the caller upon return
     public static final String EXTRA_RESULT_SESSION_ID  = "result_session_id";
@@ -79,10 +99,6 @@ public class RenderActivity extends AppCompatActivity {
     public static final String EXTRA_RESULT_ITERATION = "result_iteration";
 
     private LinearLayout contentLayout;
-    private Var contextVar;
-    private Var contentLayoutVar;
-    private Var cacheDirVar;
-    private Var nsVar;
     private DynamicClassLoader clojureClassLoader;
     private long activityStartTime;
     private TextView timingView;
@@ -92,6 +108,13 @@ public class RenderActivity extends AppCompatActivity {
     private String code;
     private String codeHash;
 
+    // Streams timings, errors, screenshots and metrics to the launching activity
+    private RenderResultChannel.Sender resultChannel = new RenderResultChannel.Sender(null);
+    // Captures program output in-process and streams it over resultChannel
+    private RenderLogCapture logCapture;
+    // Kills the process with an error when the program exceeds its time budgets
+    private ExecutionWatchdog watchdog;
+
     // Add fields for session ID and iteration count
     private String sessionId;
     private int messageIndex;
@@ -103,8 +126,8 @@ public class RenderActivity extends AppCompatActivity {
     // Add flag for controlling error handling behavior
     private boolean returnOnError = false;
 
-    // Add a field to track screenshots
-    private List<File> capturedScreenshots = new ArrayList<>();
+    // Tracks the screenshots kept for this run, dropping near-duplicate frames
+    private ScreenshotManager screenshotManager;
     // Add a field to track result of Clojure compilation and execution
     private String clojureStatus = null;
 
@@ -118,6 +141,45 @@ public class RenderActivity extends AppCompatActivity {
     // Add this field to track the launching activity
     private String parentActivity;
 
+    // Render process slot, and whether this is a candidate that has not been
+    // promoted yet
+    private int slot = 0;
+    private boolean isCandidate = false;
+
+    // Whether this run keeps the process for the next one
+    private boolean reuseProcess = false;
+    // Runtime state before the first program of this process ran; only set
+    // in processes that are reused
+    private static ProcessReset processReset;
+    // Launcher side: whether new runs ask for process reuse
+    private static volatile boolean processReuseEnabled = false;
+
+    // One subclass per parallel slot, each declared with its own process and
+    // task in the manifest
+    public static class Slot1 extends RenderActivity {
+    }
+
+    public static class Slot2 extends RenderActivity {
+    }
+
+    public static class Slot3 extends RenderActivity {
+    }
+
+    public static Class<? extends RenderActivity> getSlotActivityClass(int slot) {
+        switch (slot) {
+            case 0:
+                return RenderActivity.class;
+            case 1:
+                return Slot1.class;
+            case 2:
+                return Slot2.class;
+            case 3:
+                return Slot3.class;
+            default:
+                throw new IllegalArgumentException("No render slot " + slot);
+        }
+    }
+
     private Class<?> getParentActivityClass() {
         assert parentActivity != null;
         Log.d(TAG, "RenderActivity launched by: " + parentActivity);
@@ -242,67 +304,96 @@ public class RenderActivity extends AppCompatActivity {
         public void onExit(String logcat);
     };
 
+    /**
+     * Makes subsequent launches keep the render process alive between runs.
+     * The process is still restarted whenever the previous program cannot be
+     * torn down cleanly.
+     */
+    public static void setProcessReuseEnabled(boolean enabled) {
+        processReuseEnabled = enabled;
+    }
+
+    public static boolean isProcessReuseEnabled() {
+        return processReuseEnabled;
+    }
+
     public static boolean launch(Context context, Class<?> launchingActivity,
-            ExitCallback cb,
+            ExitCallback cb, RenderResultChannel.Listener listener,
             String code, String sessionId, int messageIndex, int iteration,
             boolean enableScreenshots, boolean returnOnError) {
-        try {
-            LogcatMonitor logcatMonitor = new LogcatMonitor();
-
-            BroadcastReceiver pidReceiver = new BroadcastReceiver() {
-                @Override
-                public void onReceive(Context context, Intent intent) {
-                    int pid = intent.getIntExtra("pid", -1);
-                    Log.d(TAG, "Received PID from RenderActivity: " + pid + ", starting LogcatMonitor.");
-                    logcatMonitor.startMonitoring(pid);
-                }
-            };
-
-            context.registerReceiver(pidReceiver,
-                    new IntentFilter("com.example.clojurerepl.ACTION_REMOTE_PID"),
-                    Context.RECEIVER_NOT_EXPORTED);
+        return launch(context, launchingActivity, cb, listener, code, sessionId, messageIndex, iteration,
+                enableScreenshots, returnOnError, 0);
+    }
 
-            ServiceConnection remoteConnection = new ServiceConnection() {
-                IBinder.DeathRecipient deathRecipient;
+    /**
+     * Same as above, but the render process exits on its own autoExitMs after
+     * evaluating the program if autoExitMs is positive.
+     */
+    public static boolean launch(Context context, Class<?> launchingActivity,
+            ExitCallback cb, RenderResultChannel.Listener listener,
+            String code, String sessionId, int messageIndex, int iteration,
+            boolean enableScreenshots, boolean returnOnError, long autoExitMs) {
+        return launch(context, launchingActivity, cb, listener, code, sessionId, messageIndex, iteration,
+                enableScreenshots, returnOnError, autoExitMs, 0);
+    }
 
+    /**
+     * Same as above, in the given render process slot. Slots run
+     * concurrently, one program per slot at a time.
+     */
+    public static boolean launch(Context context, Class<?> launchingActivity,
+            ExitCallback cb, RenderResultChannel.Listener listener,
+            String code, String sessionId, int messageIndex, int iteration,
+            boolean enableScreenshots, boolean returnOnError, long autoExitMs, int slot) {
+        try {
+            // Output captured inside the render process and streamed to us
+            LogRingBuffer processLogs = new LogRingBuffer(PROCESS_LOG_CAPACITY);
+            AtomicBoolean cleanExit = new AtomicBoolean(false);
+            AtomicBoolean exitReported = new AtomicBoolean(false);
+            boolean reuseProcess = processReuseEnabled;
+            AtomicInteger processPid = new AtomicInteger(-1);
+
+            // The render process announces itself on the result channel with
+            // its PID and a binder we link to, so we learn when it exits.
+            RenderResultChannel.Listener processListener = new RenderResultChannel.Listener() {
                 @Override
-                public void onServiceConnected(ComponentName name, IBinder service) {
-                    deathRecipient = new IBinder.DeathRecipient() {
-                        @Override
-                        public void binderDied() {
-                            logcatMonitor.stopMonitoring();
-                            String logcatOutput = logcatMonitor.getCollectedLogs().trim();
-                            logcatMonitor.shutdown();
-
-                            // pidReceiver is already unregistered here when the
-                            // activity crashes rather than exits gracefully.
-                            try {
-                                context.unregisterReceiver(pidReceiver);
-                            } catch (java.lang.IllegalArgumentException e) {
-                                // ignore
-                            }
+                public void onStarted(int pid, IBinder liveness) {
+                    Log.d(TAG, "Received PID from RenderActivity: " + pid);
+                    processPid.set(pid);
 
-                            Log.d(TAG, "Received process logcat of length: " + logcatOutput.length());
-                            cb.onExit(logcatOutput);
-                        }
-                    };
+                    // Run after the log and exit events that are already
+                    // queued on the main thread.
+                    IBinder.DeathRecipient deathRecipient = () -> new Handler(Looper.getMainLooper()).post(
+                            () -> reportExit(pid, processLogs, !cleanExit.get(), exitReported, cb));
 
                     try {
-                        service.linkToDeath(deathRecipient, 0);
+                        liveness.linkToDeath(deathRecipient, 0);
                     } catch (RemoteException e) {
-                        Log.e(TAG, "ServiceConnection: failed to link to death.");
+                        // The process is already gone
+                        Log.e(TAG, "Result channel: failed to link to death.");
+                        deathRecipient.binderDied();
                     }
                 }
 
                 @Override
-                public void onServiceDisconnected(ComponentName name) {
-                    // empty
+                public void onLog(String lines) {
+                    for (String line : lines.split("\n")) {
+                        processLogs.append(line);
+                    }
+                }
+
+                @Override
+                public void onExiting() {
+                    cleanExit.set(true);
+                    // A reused process stays alive, so this is the end of the run
+                    if (reuseProcess) {
+                        reportExit(processPid.get(), processLogs, false, exitReported, cb);
+                    }
                 }
             };
-            Intent serviceIntent = new Intent(context, RenderActivityWatchdogService.class);
-            context.bindService(serviceIntent, remoteConnection, Context.BIND_AUTO_CREATE);
+            Messenger resultChannel = RenderResultChannel.createReceiver(processListener, listener);
 
-            Intent launchIntent = new Intent(context, RenderActivity.class);
+            Intent launchIntent = new Intent(context, getSlotActivityClass(slot));
             launchIntent.putExtra(RenderActivity.EXTRA_CODE, code);
             launchIntent.putExtra(RenderActivity.EXTRA_SESSION_ID, sessionId);
             launchIntent.putExtra(RenderActivity.EXTRA_MESSAGE_INDEX, messageIndex);
@@ -310,6 +401,10 @@ public class RenderActivity extends AppCompatActivity {
             launchIntent.putExtra(RenderActivity.EXTRA_ENABLE_SCREENSHOTS, enableScreenshots);
             launchIntent.putExtra(RenderActivity.EXTRA_AUTO_RETURN_ON_ERROR, returnOnError);
             launchIntent.putExtra(RenderActivity.EXTRA_LAUNCHING_ACTIVITY, launchingActivity.getName());
+            launchIntent.putExtra(RenderActivity.EXTRA_RESULT_CHANNEL, resultChannel);
+            launchIntent.putExtra(RenderActivity.EXTRA_AUTO_EXIT_MS, autoExitMs);
+            launchIntent.putExtra(RenderActivity.EXTRA_SLOT, slot);
+            launchIntent.putExtra(RenderActivity.EXTRA_REUSE_PROCESS, reuseProcess);
             context.startActivity(launchIntent);
         } catch (Exception e) {
             Log.e(TAG, "Error launching render activity and getting PID", e);
@@ -319,6 +414,50 @@ public class RenderActivity extends AppCompatActivity {
         return true;
     }
 
+    // Hands the output of a finished run to the exit callback, once
+    private static void reportExit(int pid, LogRingBuffer processLogs, boolean crashed,
+            AtomicBoolean exitReported, ExitCallback cb) {
+        if (exitReported.getAndSet(true)) {
+            return;
+        }
+        String capturedLogs = processLogs.getContents();
+
+        new Thread(() -> {
+            String logOutput = capturedLogs;
+            // Native crashes and runtime aborts never reach the in-process
+            // capture, so fall back to logcat for them.
+            if (crashed) {
+                Log.d(TAG, "Render process " + pid + " died without a clean exit, reading logcat");
+                LogcatMonitor logcatMonitor = new LogcatMonitor();
+                logOutput += logcatMonitor.dumpProcessLogs(pid);
+                logcatMonitor.shutdown();
+            }
+
+            logOutput = logOutput.trim();
+            Log.d(TAG, "Received process logs of length: " + logOutput.length());
+            cb.onExit(logOutput);
+        }).start();
+    }
+
+    /**
+     * Brings the candidate running in the given slot to the front and lets it
+     * return results and errors to its parent like a regular run.
+     */
+    public static void promote(Context context, int slot) {
+        Intent intent = new Intent(context, getSlotActivityClass(slot));
+        intent.putExtra(EXTRA_PROMOTE, true);
+        context.startActivity(intent);
+    }
+
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        if (intent.getBooleanExtra(EXTRA_PROMOTE, false)) {
+            Log.d(TAG, "Candidate in slot " + slot + " promoted");
+            isCandidate = false;
+        }
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         try {
@@ -331,6 +470,9 @@ public class RenderActivity extends AppCompatActivity {
             // is communicated via onNewIntent().
             Thread.setDefaultUncaughtExceptionHandler((thread, throwable) -> {
                 Log.e(TAG, "RenderActivity crashed", throwable);
+                if (logCapture != null) {
+                    logCapture.captureThrowable(thread, throwable);
+                }
                 Toast.makeText(this, "RenderActivity crashed", Toast.LENGTH_LONG).show();
 
                 if (parentActivity != null) {
@@ -361,10 +503,14 @@ public class RenderActivity extends AppCompatActivity {
             activityStartTime = System.currentTimeMillis();
             int pid = android.os.Process.myPid();
             Log.d(TAG, "RenderActivity onCreate started in process: " + pid);
-            Intent pidIntent = new Intent("com.example.clojurerepl.ACTION_REMOTE_PID");
-            pidIntent.putExtra("pid", pid);
-            pidIntent.setPackage(getPackageName());
-            sendBroadcast(pidIntent);
+            resultChannel = new RenderResultChannel.Sender(getIntent().getParcelableExtra(EXTRA_RESULT_CHANNEL));
+            resultChannel.sendStarted(pid);
+            logCapture = new RenderLogCapture(resultChannel);
+            logCapture.installSystemStreams();
+            watchdog = new ExecutionWatchdog(ExecutionWatchdog.Budgets.fromIntent(getIntent()),
+                    this::onWatchdogTimeout);
+            watchdog.start();
+            getWindow().getDecorView().getViewTreeObserver().addOnDrawListener(() -> watchdog.onFirstFrame());
 
             // Add timing view at the top
             timingView = new TextView(this);
@@ -408,6 +554,13 @@ public class RenderActivity extends AppCompatActivity {
                 returnOnError = intent.getBooleanExtra(EXTRA_AUTO_RETURN_ON_ERROR, false);
                 Log.d(TAG, "Return on error enabled: " + returnOnError);
 
+                slot = intent.getIntExtra(EXTRA_SLOT, 0);
+                isCandidate = slot > 0;
+                Log.d(TAG, "Render slot: " + slot);
+
+                reuseProcess = intent.getBooleanExtra(EXTRA_REUSE_PROCESS, false);
+                Log.d(TAG, "Reuse process: " + reuseProcess + (processReset != null ? " (reused)" : ""));
+
                 // Store code in class member instead of local variable
                 code = intent.getStringExtra(EXTRA_CODE);
                 Log.d(TAG, "Received intent with code: " + (code != null ? "length=" + code.length() : "null"));
@@ -419,9 +572,7 @@ public class RenderActivity extends AppCompatActivity {
                     long rtStartTime = System.currentTimeMillis();
                     // Initialize RT before any Clojure operations
                     Log.d(TAG, "Initializing RT");
-                    System.setProperty("clojure.spec.skip-macros", "true");
-                    System.setProperty("clojure.spec.compile-asserts", "false");
-                    RT.init();
+                    ClojureStartup.initRuntime();
                     long rtTime = System.currentTimeMillis() - rtStartTime;
                     Log.d(TAG, "RT initialized successfully in " + rtTime + "ms");
                     updateTimings("RT init", rtTime);
@@ -447,6 +598,14 @@ public class RenderActivity extends AppCompatActivity {
                     Log.d(TAG, "Clojure environment setup complete in " + envTime + "ms");
                     updateTimings("Env init", envTime);
 
+                    // The first program of a reusable process records what
+                    // the runtime looked like before it ran. Other processes
+                    // only get the helpers.
+                    if (processReset == null) {
+                        processReset = reuseProcess ? ProcessReset.captureBaseline()
+                                : ProcessReset.installHelpers();
+                    }
+
                     Log.d(TAG, "About to render code");
                     renderCode();
                 } else {
@@ -468,7 +627,6 @@ public class RenderActivity extends AppCompatActivity {
                         new Handler().postDelayed(() -> {
                             File screenshot = takeScreenshot();
                             if (screenshot != null) {
-                                capturedScreenshots.add(screenshot);
                                 Log.d(TAG, "Touch DOWN screenshot captured: " + screenshot.getAbsolutePath());
                             }
                         }, 100); // Short delay on down event
@@ -480,6 +638,17 @@ public class RenderActivity extends AppCompatActivity {
             // After your current touch listener setup, add:
             setupScreenshotForClickableViews(contentLayout);
             observeViewHierarchyChanges(contentLayout);
+
+            long autoExitMs = getIntent().getLongExtra(EXTRA_AUTO_EXIT_MS, 0);
+            if (autoExitMs > 0) {
+                Log.d(TAG, "Auto exit in " + autoExitMs + "ms");
+                new Handler(Looper.getMainLooper()).postDelayed(() -> {
+                    if (!isDestroyed) {
+                        captureViewHierarchy();
+                        finish();
+                    }
+                }, autoExitMs);
+            }
         } catch (Throwable t) {
             Log.e(TAG, "Fatal error in RenderActivity onCreate", t);
             Toast.makeText(this, "Fatal error: " + t.getMessage(), Toast.LENGTH_LONG).show();
@@ -487,6 +656,7 @@ public class RenderActivity extends AppCompatActivity {
     }
 
     private void updateTimings(String stage, long timeMs) {
+        resultChannel.sendTiming(stage, timeMs);
         runOnUiThread(() -> {
             String entry = String.format("%s: %dms\n", stage, timeMs);
             timingData.append(entry);
@@ -517,6 +687,9 @@ public class RenderActivity extends AppCompatActivity {
             }
 
             // Add all screenshot paths to intent
+            List<File> capturedScreenshots = screenshotManager != null
+                    ? screenshotManager.getKeptScreenshots()
+                    : new ArrayList<>();
             if (!capturedScreenshots.isEmpty()) {
                 String[] screenshotPaths = new String[capturedScreenshots.size()];
                 for (int i = 0; i < capturedScreenshots.size(); i++) {
@@ -532,6 +705,12 @@ public class RenderActivity extends AppCompatActivity {
                 parentIntent.putExtra(EXTRA_RESULT_AUTO_RETURN_ON_ERROR, false);
             }
 
+            // Add a compact dump of the final layout
+            String viewHierarchy = captureViewHierarchy();
+            if (viewHierarchy != null) {
+                parentIntent.putExtra(EXTRA_RESULT_VIEW_HIERARCHY, viewHierarchy);
+            }
+
             parentIntent.putExtra(EXTRA_RESULT_SESSION_ID, sessionId);
             parentIntent.putExtra(EXTRA_RESULT_MESSAGE_INDEX, messageIndex);
             parentIntent.putExtra(EXTRA_RESULT_ITERATION, iteration);
@@ -586,25 +765,25 @@ public class RenderActivity extends AppCompatActivity {
                 bitmap = compositeGLSurfaceViews(bitmap, rootView, glSurfaceViews);
             }
 
-            // Use ScreenshotManager to save the bitmap
-            ScreenshotManager screenshotManager = new ScreenshotManager(this);
-            // New filename format: session_[id]_iter_[num]_[timestamp].png
-            String fileName = "session_" +
-                    (sessionId != null ? sessionId : "unknown") +
-                    "_iter_" +
-                    iteration +
-                    "_" +
-                    System.currentTimeMillis() +
-                    ".png";
-            File screenshot = screenshotManager.saveScreenshot(bitmap, fileName);
+            // Use ScreenshotManager to save the bitmap unless it duplicates the
+            // previously kept frame
+            if (screenshotManager == null) {
+                screenshotManager = new ScreenshotManager(this);
+            }
+            // Filename format: session_[id]_iter_[num]_[timestamp].png, with
+            // _slot_[slot] before the timestamp for candidates
+            String fileName = ScreenshotManager.getFileName(sessionId, iteration, slot,
+                    System.currentTimeMillis());
+            File screenshot = screenshotManager.saveDistinctScreenshot(bitmap, fileName);
+            lastScreenshotTime = currentTime;
 
             // Verify the file was created
             if (screenshot != null && screenshot.exists()) {
-                lastScreenshotTime = currentTime;
                 Log.d(TAG, "Screenshot saved successfully: " + screenshot.getAbsolutePath() +
                         " size: " + screenshot.length() + " bytes");
+                resultChannel.sendScreenshot(screenshot.getAbsolutePath());
             } else {
-                Log.e(TAG, "Screenshot file was not created");
+                Log.d(TAG, "Screenshot was not kept");
             }
 
             return screenshot;
@@ -614,6 +793,24 @@ public class RenderActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Dump the content layout as compact text for the LLM. This is only done
+     * when the run returns to the designer, never while the program starts.
+     */
+    private String captureViewHierarchy() {
+        if (contentLayout == null) {
+            return null;
+        }
+        long startTime = System.currentTimeMillis();
+        String snapshot = ViewHierarchySnapshot.capture(contentLayout, ViewHierarchySnapshot.MAX_SNAPSHOT_CHARS);
+        Log.d(TAG, "Captured view hierarchy in " + (System.currentTimeMillis() - startTime) + "ms, length: "
+                + (snapshot != null ? snapshot.length() : 0));
+        if (snapshot != null) {
+            resultChannel.sendViewHierarchy(snapshot);
+        }
+        return snapshot;
+    }
+
     /**
      * Recursively find all GLSurfaceView instances in the view hierarchy
      */
@@ -776,10 +973,8 @@ public class RenderActivity extends AppCompatActivity {
     private void setupClojureClassLoader() {
         try {
             // Create a custom class loader that can handle dynamic classes
-            clojureClassLoader = new DynamicClassLoader(getClass().getClassLoader());
-
-            // Set the context class loader
-            Thread.currentThread().setContextClassLoader(clojureClassLoader);
+            // and make it the context class loader
+            clojureClassLoader = ClojureStartup.createClassLoader(getClass().getClassLoader());
         } catch (Exception e) {
             Log.e(TAG, "Error setting up class loader", e);
             throw new RuntimeException(e);
@@ -788,20 +983,12 @@ public class RenderActivity extends AppCompatActivity {
 
     private void setupClojureVars() {
         try {
-            // Initialize Clojure API functions
-            nsVar = RT.var("clojure.core", "*ns*");
-            contextVar = RT.var("clojure.core", "*context*");
-            contentLayoutVar = RT.var("clojure.core", "*content-layout*");
-            cacheDirVar = RT.var("clojure.core", "*cache-dir*");
-
-            contextVar.setDynamic(true);
-            contentLayoutVar.setDynamic(true);
-            cacheDirVar.setDynamic(true);
-
             // Bind these vars permanently, using the UI-safe wrapper for contentLayout
-            contextVar.bindRoot(this);
-            contentLayoutVar.bindRoot(new UiSafeViewGroup(contentLayout));
-            cacheDirVar.bindRoot(getAppCacheDir().getAbsolutePath());
+            ClojureStartup.setupVars(this, new UiSafeViewGroup(contentLayout),
+                    getAppCacheDir().getAbsolutePath());
+
+            // Route *out*, *err* and android-log into the in-process log capture
+            logCapture.installClojureBindings();
 
             Log.d(TAG, "Clojure vars initialized");
         } catch (Exception e) {
@@ -812,21 +999,8 @@ public class RenderActivity extends AppCompatActivity {
 
     private void initializeClojureEnvironment() {
         try {
-            // Create and switch to user namespace
-            Object userNS = RT.var("clojure.core", "find-ns").invoke(RT.var("clojure.core", "symbol").invoke("user"));
-            if (userNS == null) {
-                // Create the namespace if it doesn't exist
-                userNS = RT.var("clojure.core", "create-ns").invoke(RT.var("clojure.core", "symbol").invoke("user"));
-            }
-
-            // Switch to user namespace and set it up
-            Var.pushThreadBindings(RT.map(nsVar, userNS));
-            try {
-                // Refer all clojure.core functions
-                RT.var("clojure.core", "refer").invoke(RT.var("clojure.core", "symbol").invoke("clojure.core"));
-            } finally {
-                Var.popThreadBindings();
-            }
+            // Create the user namespace and refer all clojure.core functions
+            ClojureStartup.initEnvironment();
 
             Log.d(TAG, "Clojure environment initialized");
         } catch (Exception e) {
@@ -838,7 +1012,7 @@ public class RenderActivity extends AppCompatActivity {
     private void renderCode() {
         Log.d(TAG, "Starting renderCode with code length: " + code.length());
 
-        BytecodeCache bytecodeCache = BytecodeCache.getInstance(this, codeHash);
+        BytecodeCache bytecodeCache = BytecodeCache.getInstance(this, codeHash, slot);
 
         ClassLoader classLoader = clojureClassLoader;
 
@@ -875,7 +1049,6 @@ public class RenderActivity extends AppCompatActivity {
         new Handler().postDelayed(() -> {
             File screenshot = takeScreenshot();
             if (screenshot != null) {
-                capturedScreenshots.add(screenshot);
                 Log.d(TAG, "Initial screenshot captured: " + screenshot.getAbsolutePath());
             }
         }, 500); // Slight delay to allow UI to render fully
@@ -905,11 +1078,14 @@ public class RenderActivity extends AppCompatActivity {
 
             try {
                 Log.d(TAG, "Starting evaluation");
+                watchdog.onEvalStarted();
                 while (!isDestroyed) {
+                    int lineBeforeForm = pushbackReader.getLineNumber();
                     Object form = LispReader.read(pushbackReader, false, EOF, false);
                     if (form == EOF) {
                         break;
                     }
+                    watchdog.onFormStarted(getFormLine(form, lineBeforeForm), form);
                     Log.d(TAG, "Evaluating form: " + form);
                     lastResult = Compiler.eval(form);
                     if (lastResult != null) {
@@ -927,9 +1103,12 @@ public class RenderActivity extends AppCompatActivity {
                 if (hasMainFunction) {
                     try {
                         Log.d(TAG, "Code has -main function, trying to invoke it directly");
-                        Object mainFn = RT.var("clojure.core", "-main").deref();
+                        Var mainVar = RT.var("clojure.core", "-main");
+                        Object mainFn = mainVar.deref();
                         if (mainFn instanceof IFn) {
                             Log.d(TAG, "Found -main function, invoking it");
+                            // A timeout from here on is in -main, not in the last form read
+                            watchdog.onFormStarted(getFormLine(mainVar, -1), "(-main)");
                             lastResult = ((IFn) mainFn).invoke();
                             Log.d(TAG, "Successfully called -main function, result: " + lastResult);
                         } else {
@@ -961,6 +1140,9 @@ public class RenderActivity extends AppCompatActivity {
                     Log.d(TAG,
                             "Generated manifest for " + generatedClasses.size() + " classes for hash: " + codeHash);
                 }
+                resultChannel.sendMetric("Generated classes", delegate.getGeneratedClasses().size());
+                resultChannel.sendMetric("Cached DEX classes", bytecodeCache.getClassCount());
+                resultChannel.sendMetric("Memoized DEX classes", delegate.getMemoHits());
             } catch (Exception e) {
                 Log.d(TAG, "Clojure compilation error (expected during iteration process)", e);
                 lastResult = "Error: " + e.getMessage();
@@ -968,6 +1150,8 @@ public class RenderActivity extends AppCompatActivity {
                 // Capture the full error information including "Caused by" details
                 String fullErrorMessage = formatFullErrorMessage(e);
                 handleError(fullErrorMessage, false);
+            } finally {
+                watchdog.onEvalFinished();
             }
         } catch (Exception e) {
             Log.e(TAG, "Error setting up Clojure environment", e);
@@ -981,6 +1165,25 @@ public class RenderActivity extends AppCompatActivity {
         }
     }
 
+    // The reader records the start line of list forms in their metadata
+    private static int getFormLine(Object form, int fallback) {
+        Object line = RT.get(RT.meta(form), Keyword.intern("line"));
+        return line instanceof Number ? ((Number) line).intValue() : fallback;
+    }
+
+    /**
+     * Called on the watchdog thread when the program exceeds a budget. The
+     * main thread may be stuck, so report the error and kill the process from
+     * here.
+     */
+    private void onWatchdogTimeout(String report) {
+        Log.e(TAG, report);
+        handleError(report, true);
+        logCapture.shutdown();
+        Log.d(TAG, "Killing render process after watchdog timeout: " + android.os.Process.myPid());
+        android.os.Process.killProcess(android.os.Process.myPid());
+    }
+
     /**
      * Handle an error based on the returnOnError flag
      * 
@@ -988,8 +1191,13 @@ public class RenderActivity extends AppCompatActivity {
      */
     private void handleError(String errorMessage, boolean forceExit) {
         clojureStatus = errorMessage;
+        resultChannel.sendError(errorMessage);
 
-        if (forceExit || returnOnError) {
+        if ((forceExit || returnOnError) && isCandidate) {
+            // The launcher learns about the failed candidate from the result
+            // channel; don't interrupt the parent with it
+            finish();
+        } else if (forceExit || returnOnError) {
             // Return to calling activity with error
             Class<?> parentActivityClass = getParentActivityClass();
             if (parentActivityClass != null) {
@@ -1000,6 +1208,13 @@ public class RenderActivity extends AppCompatActivity {
                 intent.putExtra(EXTRA_RESULT_SESSION_ID, sessionId);
                 intent.putExtra(EXTRA_RESULT_MESSAGE_INDEX, messageIndex);
                 intent.putExtra(EXTRA_RESULT_ITERATION, iteration);
+                // The hierarchy can only be walked safely from the UI thread
+                if (Thread.currentThread() == android.os.Looper.getMainLooper().getThread()) {
+                    String viewHierarchy = captureViewHierarchy();
+                    if (viewHierarchy != null) {
+                        intent.putExtra(EXTRA_RESULT_VIEW_HIERARCHY, viewHierarchy);
+                    }
+                }
                 startActivity(intent);
                 finish();
             }
@@ -1150,6 +1365,25 @@ public class RenderActivity extends AppCompatActivity {
 
         Log.d(TAG, "RenderActivity destroyed");
 
+        if (watchdog != null) {
+            watchdog.stop();
+        }
+
+        // Reset the runtime for the next program; restart the process if that
+        // is not possible
+        boolean keepProcess = reuseProcess && processReset != null && processReset.teardown(contentLayout);
+
+        // Send the remaining output and tell the launcher this exit is expected
+        if (logCapture != null) {
+            logCapture.shutdown();
+        }
+        resultChannel.sendExiting();
+
+        if (keepProcess) {
+            Log.d(TAG, "Keeping render process for the next program: " + android.os.Process.myPid());
+            return;
+        }
+
         // Only kill if we're coming from back button press
         Log.d(TAG, "Killing render process: " + android.os.Process.myPid());
         android.os.Process.killProcess(android.os.Process.myPid());
@@ -1225,7 +1459,6 @@ public class RenderActivity extends AppCompatActivity {
                         new Handler().postDelayed(() -> {
                             File screenshot = takeScreenshot();
                             if (screenshot != null) {
-                                capturedScreenshots.add(screenshot);
                                 Log.d(TAG, "Button press screenshot: " + screenshot.getAbsolutePath());
                             }
                         }, 100);
@@ -1247,7 +1480,6 @@ public class RenderActivity extends AppCompatActivity {
                         new Handler().postDelayed(() -> {
                             File screenshot = takeScreenshot();
                             if (screenshot != null) {
-                                capturedScreenshots.add(screenshot);
                                 Log.d(TAG, "GLSurfaceView touch screenshot: " + screenshot.getAbsolutePath());
                             }
                         }, 100);
@@ -0,0 +1,231 @@
+package com.example.clojurerepl;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import clojure.lang.AFn;
+import clojure.lang.Named;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+import clojure.lang.Var;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Captures the output of the program running in the render process without
+ * going through logcat: System.out/System.err, Clojure's *out*/*err*,
+ * uncaught exceptions, and calls to the android-log helper. Lines are kept in
+ * a bounded ring and streamed to the launching activity in batches over the
+ * result channel.
+ */
+public class RenderLogCapture {
+    private static final String TAG = "RenderLogCapture";
+    // Tag used by generated programs, see prompt.txt
+    private static final String APP_LOG_TAG = "ClojureApp";
+    private static final int BUFFER_CAPACITY = 2000;
+    private static final long FLUSH_INTERVAL_MS = 250;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    // Appends are serialized on buffer, since LogRingBuffer takes a single
+    // producer at a time
+    private final LogRingBuffer buffer = new LogRingBuffer(BUFFER_CAPACITY);
+    private final RenderResultChannel.Sender channel;
+    private final HandlerThread flushThread = new HandlerThread("RenderLogFlush");
+    private final Handler flushHandler;
+    // Sequence number of the first line not yet sent; only used by flush()
+    private long sentSequence = 0;
+
+    private final Runnable periodicFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+            flushHandler.postDelayed(this, FLUSH_INTERVAL_MS);
+        }
+    };
+
+    public RenderLogCapture(RenderResultChannel.Sender channel) {
+        this.channel = channel;
+        flushThread.start();
+        flushHandler = new Handler(flushThread.getLooper());
+        flushHandler.postDelayed(periodicFlush, FLUSH_INTERVAL_MS);
+    }
+
+    /**
+     * Redirects System.out and System.err. Output is still forwarded to logcat
+     * under the usual System.out/System.err tags.
+     */
+    public void installSystemStreams() {
+        System.setOut(new PrintStream(new LineOutputStream(Log.INFO, "System.out"), true));
+        System.setErr(new PrintStream(new LineOutputStream(Log.WARN, "System.err"), true));
+    }
+
+    /**
+     * Rebinds the roots of *out* and *err* and interns the android-log helper
+     * into clojure.core. Must be called after RT is initialized.
+     */
+    public void installClojureBindings() {
+        RT.OUT.bindRoot(new PrintWriter(new OutputStreamWriter(
+                new LineOutputStream(Log.INFO, APP_LOG_TAG), StandardCharsets.UTF_8), true));
+        RT.ERR.bindRoot(new PrintWriter(new OutputStreamWriter(
+                new LineOutputStream(Log.WARN, APP_LOG_TAG), StandardCharsets.UTF_8), true));
+
+        // (android-log :i TAG "message") or (android-log TAG "message")
+        Var.intern(RT.CLOJURE_NS, Symbol.intern("android-log"), new AFn() {
+            @Override
+            public Object invoke(Object tag, Object message) {
+                return invoke("i", tag, message);
+            }
+
+            @Override
+            public Object invoke(Object level, Object tag, Object message) {
+                String levelName = level instanceof Named ? ((Named) level).getName() : String.valueOf(level);
+                log(toPriority(levelName), String.valueOf(tag), String.valueOf(message));
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Writes a line to logcat and to the captured log.
+     */
+    public void log(int priority, String tag, String message) {
+        Log.println(priority, tag, message);
+        capture(priority, tag, message);
+    }
+
+    /**
+     * Records an uncaught exception with its stack trace and sends it right
+     * away, since the process is about to die.
+     */
+    public void captureThrowable(Thread thread, Throwable throwable) {
+        StringWriter trace = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(trace));
+        capture(Log.ERROR, "AndroidRuntime", "FATAL EXCEPTION: " + thread.getName());
+        for (String line : trace.toString().split("\n")) {
+            capture(Log.ERROR, "AndroidRuntime", line);
+        }
+        flush();
+    }
+
+    /**
+     * Sends all lines captured since the previous flush as one event.
+     */
+    public synchronized void flush() {
+        synchronized (buffer) {
+            // Report repeats counted so far instead of holding them back
+            buffer.closeRun();
+        }
+        List<String> lines = new ArrayList<>();
+        sentSequence = buffer.readSince(sentSequence, lines);
+        if (!lines.isEmpty()) {
+            channel.sendLog(String.join("\n", lines));
+        }
+    }
+
+    /**
+     * Returns the lines still held in the ring.
+     */
+    public String getCapturedLogs() {
+        return buffer.getContents();
+    }
+
+    public void shutdown() {
+        flushHandler.removeCallbacks(periodicFlush);
+        flush();
+        flushThread.quitSafely();
+    }
+
+    private void capture(int priority, String tag, String message) {
+        // Same shape as "logcat -v time" output
+        String line = LocalTime.now().format(TIME_FORMAT) + " " + priorityLetter(priority) + "/" + tag + ": "
+                + message;
+        synchronized (buffer) {
+            buffer.append(line);
+        }
+    }
+
+    private static int toPriority(String level) {
+        switch (level.toLowerCase()) {
+            case "v":
+            case "verbose":
+                return Log.VERBOSE;
+            case "d":
+            case "debug":
+                return Log.DEBUG;
+            case "w":
+            case "warn":
+                return Log.WARN;
+            case "e":
+            case "error":
+                return Log.ERROR;
+            default:
+                return Log.INFO;
+        }
+    }
+
+    private static char priorityLetter(int priority) {
+        switch (priority) {
+            case Log.VERBOSE:
+                return 'V';
+            case Log.DEBUG:
+                return 'D';
+            case Log.WARN:
+                return 'W';
+            case Log.ERROR:
+                return 'E';
+            default:
+                return 'I';
+        }
+    }
+
+    /**
+     * Splits written bytes into lines, forwarding each to logcat and the
+     * captured log.
+     */
+    private class LineOutputStream extends OutputStream {
+        private final int priority;
+        private final String tag;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        LineOutputStream(int priority, String tag) {
+            this.priority = priority;
+            this.tag = tag;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if (b == '\n') {
+                emitLine();
+            } else {
+                line.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                write(bytes[i]);
+            }
+        }
+
+        @Override
+        public synchronized void flush() {
+            // Partial lines stay buffered until their newline arrives
+        }
+
+        private void emitLine() {
+            String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+            line.reset();
+            log(priority, tag, text);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.clojurerepl;
+
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Messenger-based channel that streams structured events from the render
+ * process to the activity that launched it, while the program is running.
+ *
+ * The launching side creates a receiver with {@link #createReceiver} and
+ * passes it to RenderActivity in the launch intent. The render process sends
+ * events through a {@link Sender}. The first event, MSG_STARTED, carries the
+ * render process PID and a binder owned by the render process so the
+ * launching side can detect when the process dies.
+ */
+public class RenderResultChannel {
+    private static final String TAG = "RenderResultChannel";
+
+    public static final int MSG_STARTED = 1;
+    public static final int MSG_TIMING = 2;
+    public static final int MSG_ERROR = 3;
+    public static final int MSG_SCREENSHOT = 4;
+    public static final int MSG_LOG = 5;
+    public static final int MSG_METRIC = 6;
+    public static final int MSG_VIEW_HIERARCHY = 7;
+    public static final int MSG_EXITING = 8;
+
+    private static final String KEY_PID = "pid";
+    private static final String KEY_LIVENESS = "liveness";
+    private static final String KEY_STAGE = "stage";
+    private static final String KEY_TIME_MS = "time_ms";
+    private static final String KEY_ERROR = "error";
+    private static final String KEY_PATH = "path";
+    private static final String KEY_LINE = "line";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_VALUE = "value";
+    private static final String KEY_VIEW_HIERARCHY = "view_hierarchy";
+
+    /**
+     * Receives render events on the main thread. Override only the events of
+     * interest.
+     */
+    public interface Listener {
+        default void onStarted(int pid, IBinder liveness) {
+        }
+
+        default void onTiming(String stage, long timeMs) {
+        }
+
+        default void onError(String error) {
+        }
+
+        default void onScreenshot(String path) {
+        }
+
+        default void onLog(String line) {
+        }
+
+        default void onMetric(String name, long value) {
+        }
+
+        default void onViewHierarchy(String viewHierarchy) {
+        }
+
+        default void onExiting() {
+        }
+    }
+
+    /**
+     * Creates the receiving end of the channel. Events are dispatched to each
+     * non-null listener, in order, on the main thread.
+     */
+    public static Messenger createReceiver(Listener... listeners) {
+        Handler handler = new Handler(Looper.getMainLooper(), msg -> {
+            boolean handled = false;
+            for (Listener listener : listeners) {
+                if (listener != null) {
+                    handled = dispatch(msg, listener);
+                }
+            }
+            return handled;
+        });
+        return new Messenger(handler);
+    }
+
+    private static boolean dispatch(Message msg, Listener listener) {
+        Bundle data = msg.getData();
+        switch (msg.what) {
+            case MSG_STARTED:
+                listener.onStarted(data.getInt(KEY_PID, -1), data.getBinder(KEY_LIVENESS));
+                break;
+            case MSG_TIMING:
+                listener.onTiming(data.getString(KEY_STAGE), data.getLong(KEY_TIME_MS));
+                break;
+            case MSG_ERROR:
+                listener.onError(data.getString(KEY_ERROR));
+                break;
+            case MSG_SCREENSHOT:
+                listener.onScreenshot(data.getString(KEY_PATH));
+                break;
+            case MSG_LOG:
+                listener.onLog(data.getString(KEY_LINE));
+                break;
+            case MSG_METRIC:
+                listener.onMetric(data.getString(KEY_NAME), data.getLong(KEY_VALUE));
+                break;
+            case MSG_VIEW_HIERARCHY:
+                listener.onViewHierarchy(data.getString(KEY_VIEW_HIERARCHY));
+                break;
+            case MSG_EXITING:
+                listener.onExiting();
+                break;
+            default:
+                Log.w(TAG, "Unknown render event: " + msg.what);
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sending end of the channel, used in the render process. All methods are
+     * safe to call from any thread and are no-ops if there is no receiver.
+     */
+    public static class Sender {
+        private final Messenger target;
+        // Held for the lifetime of the render process; the receiver links to
+        // its death.
+        private final Binder liveness = new Binder();
+
+        public Sender(Messenger target) {
+            this.target = target;
+        }
+
+        public void sendStarted(int pid) {
+            Bundle data = new Bundle();
+            data.putInt(KEY_PID, pid);
+            data.putBinder(KEY_LIVENESS, liveness);
+            send(MSG_STARTED, data);
+        }
+
+        public void sendTiming(String stage, long timeMs) {
+            Bundle data = new Bundle();
+            data.putString(KEY_STAGE, stage);
+            data.putLong(KEY_TIME_MS, timeMs);
+            send(MSG_TIMING, data);
+        }
+
+        public void sendError(String error) {
+            Bundle data = new Bundle();
+            data.putString(KEY_ERROR, error);
+            send(MSG_ERROR, data);
+        }
+
+        public void sendScreenshot(String path) {
+            Bundle data = new Bundle();
+            data.putString(KEY_PATH, path);
+            send(MSG_SCREENSHOT, data);
+        }
+
+        public void sendLog(String line) {
+            Bundle data = new Bundle();
+            data.putString(KEY_LINE, line);
+            send(MSG_LOG, data);
+        }
+
+        public void sendMetric(String name, long value) {
+            Bundle data = new Bundle();
+            data.putString(KEY_NAME, name);
+            data.putLong(KEY_VALUE, value);
+            send(MSG_METRIC, data);
+        }
+
+        public void sendViewHierarchy(String viewHierarchy) {
+            Bundle data = new Bundle();
+            data.putString(KEY_VIEW_HIERARCHY, viewHierarchy);
+            send(MSG_VIEW_HIERARCHY, data);
+        }
+
+        /**
+         * Announces that the process is about to exit normally. A process that
+         * dies without sending this is treated as crashed.
+         */
+        public void sendExiting() {
+            send(MSG_EXITING, new Bundle());
+        }
+
+        private void send(int what, Bundle data) {
+            if (target == null) {
+                return;
+            }
+            Message msg = Message.obtain(null, what);
+            msg.setData(data);
+            try {
+                target.send(msg);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Failed to send render event " + what + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,562 @@
+package com.example.clojurerepl;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local stand-in for the Claude, OpenAI and Gemini APIs that answers with
+ * recorded responses from the ReplayIndex. While it runs, LLMHttpClient
+ * redirects the providers' base URLs to it, so the real clients run
+ * unchanged: request building, the connection pool, the retry policy and
+ * scheduler, and the parsing of plain and streamed responses. This makes
+ * the whole path measurable offline.
+ *
+ * It serves plain HTTP/1.1 with keep-alive on the loopback interface and
+ * implements what the clients use: messages, chat completions,
+ * generateContent and streamGenerateContent, and the model lists. Context
+ * caches are refused, so Gemini sends full requests. Responses are paced like
+ * ReplayLLMClient's. The clients still need an API key, any will do, and the
+ * LLMRequestScheduler still applies the providers' rate limits.
+ */
+public final class ReplayHttpServer {
+    private static final String TAG = "ReplayHttpServer";
+    private static final String CLAUDE_PATH = "/claude";
+    private static final String OPENAI_PATH = "/openai";
+    private static final String GEMINI_PATH = "/gemini";
+
+    private static ServerSocket serverSocket;
+    private static ExecutorService executor;
+    private static Context appContext;
+
+    private ReplayHttpServer() {
+    }
+
+    /**
+     * Starts the server and redirects the providers to it.
+     *
+     * @return The port it listens on
+     */
+    public static synchronized int start(Context context) throws IOException {
+        if (serverSocket != null) {
+            return serverSocket.getLocalPort();
+        }
+        appContext = context.getApplicationContext();
+        // Picks up recordings pushed since the last start
+        ReplayIndex.invalidate();
+        ServerSocket socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        serverSocket = socket;
+        executor = Executors.newCachedThreadPool();
+        ExecutorService connections = executor;
+        connections.execute(() -> {
+            while (!socket.isClosed()) {
+                try {
+                    Socket client = socket.accept();
+                    connections.execute(() -> serve(client));
+                } catch (IOException e) {
+                    if (!socket.isClosed()) {
+                        Log.w(TAG, "Cannot accept a connection", e);
+                    }
+                }
+            }
+        });
+
+        String base = "http://127.0.0.1:" + socket.getLocalPort();
+        LLMHttpClient.redirect(ClaudeLLMClient.API_BASE_URL, base + CLAUDE_PATH);
+        LLMHttpClient.redirect(OpenAIChatClient.API_BASE_URL, base + OPENAI_PATH);
+        LLMHttpClient.redirect(GeminiLLMClient.API_BASE_URL, base + GEMINI_PATH);
+        Log.d(TAG, "Serving recorded responses on " + base);
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Stops the server and sends requests to the providers again.
+     */
+    public static synchronized void stop() {
+        if (serverSocket == null) {
+            return;
+        }
+        LLMHttpClient.redirect(ClaudeLLMClient.API_BASE_URL, null);
+        LLMHttpClient.redirect(OpenAIChatClient.API_BASE_URL, null);
+        LLMHttpClient.redirect(GeminiLLMClient.API_BASE_URL, null);
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot close the server socket", e);
+        }
+        executor.shutdownNow();
+        serverSocket = null;
+        executor = null;
+        Log.d(TAG, "Stopped");
+    }
+
+    public static synchronized boolean isRunning() {
+        return serverSocket != null;
+    }
+
+    // A parsed request
+    private static class Request {
+        String method;
+        String path;
+        final Map<String, String> headers = new HashMap<>();
+        byte[] body;
+    }
+
+    private static void serve(Socket socket) {
+        try (Socket client = socket;
+                InputStream in = new BufferedInputStream(client.getInputStream());
+                OutputStream out = new BufferedOutputStream(client.getOutputStream())) {
+            // Keep-alive: requests follow each other on the connection
+            Request request;
+            while ((request = readRequest(in)) != null) {
+                long startTime = System.currentTimeMillis();
+                int status = handle(request, out);
+                out.flush();
+                Log.d(TAG, request.method + " " + request.path + " -> " + status + " in "
+                        + (System.currentTimeMillis() - startTime) + "ms");
+                if ("close".equalsIgnoreCase(request.headers.get("connection"))) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Connection closed: " + e.getMessage());
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error serving a request", e);
+        }
+    }
+
+    private static int handle(Request request, OutputStream out) throws IOException {
+        String path = request.path;
+        int query = path.indexOf('?');
+        String route = query >= 0 ? path.substring(0, query) : path;
+        try {
+            if ("HEAD".equals(request.method)) {
+                // Connection pre-warming
+                writeHead(out, 204, null, 0);
+                return 204;
+            }
+            if (route.equals(CLAUDE_PATH + "/models")) {
+                return sendJson(out, 200, models(LLMClientFactory.LLMType.CLAUDE, "claude-replay", "data",
+                        model -> new JSONObject().put("id", model).put("type", "model")));
+            } else if (route.equals(OPENAI_PATH + "/models")) {
+                return sendJson(out, 200, models(LLMClientFactory.LLMType.OPENAI, "gpt-replay", "data",
+                        model -> new JSONObject().put("id", model).put("object", "model")));
+            } else if (route.equals(GEMINI_PATH + "/models")) {
+                return sendJson(out, 200, models(LLMClientFactory.LLMType.GEMINI, "gemini-replay", "models",
+                        model -> new JSONObject().put("name", "models/" + model)
+                                .put("supportedGenerationMethods",
+                                        new JSONArray().put("generateContent").put("streamGenerateContent"))));
+            } else if (route.equals(CLAUDE_PATH + "/messages") && "POST".equals(request.method)) {
+                return claude(new JSONObject(new String(request.body, StandardCharsets.UTF_8)), out);
+            } else if (route.equals(OPENAI_PATH + "/chat/completions") && "POST".equals(request.method)) {
+                return openAI(new JSONObject(new String(request.body, StandardCharsets.UTF_8)), out);
+            } else if (route.startsWith(GEMINI_PATH + "/models/") && "POST".equals(request.method)) {
+                String target = route.substring((GEMINI_PATH + "/models/").length());
+                int colon = target.indexOf(':');
+                return gemini(target.substring(0, colon >= 0 ? colon : target.length()),
+                        target.endsWith(":streamGenerateContent"),
+                        new JSONObject(new String(request.body, StandardCharsets.UTF_8)), out);
+            } else if (route.startsWith(GEMINI_PATH + "/cachedContents")) {
+                return sendError(out, 400, "FAILED_PRECONDITION", "Context caching is not available in the replay stand-in");
+            }
+            return sendError(out, 404, "not_found_error", "No such endpoint: " + request.method + " " + route);
+        } catch (JSONException e) {
+            return sendError(out, 400, "invalid_request_error", "Invalid request: " + e.getMessage());
+        }
+    }
+
+    private interface ModelJson {
+        JSONObject toJson(String model) throws JSONException;
+    }
+
+    private static JSONObject models(LLMClientFactory.LLMType type, String fallback, String field, ModelJson json)
+            throws JSONException {
+        List<String> models = ReplayIndex.getInstance(appContext).getModels(type);
+        if (models.isEmpty()) {
+            models.add(fallback);
+        }
+        JSONArray array = new JSONArray();
+        for (String model : models) {
+            array.put(json.toJson(model));
+        }
+        return new JSONObject().put(field, array);
+    }
+
+    /**
+     * Returns the recorded response to a request with these user messages,
+     * or null if there are no recordings.
+     */
+    private static String lookup(LLMClientFactory.LLMType type, List<String> userTexts) {
+        ReplayIndex.Match match = ReplayIndex.getInstance(appContext).lookup(userTexts);
+        if (match == null) {
+            return null;
+        }
+        Log.d(TAG, type + " request, replaying turn of " + match.recording + " (" + match.kind + " match)");
+        return match.turn.response;
+    }
+
+    private static int claude(JSONObject body, OutputStream out) throws JSONException, IOException {
+        List<String> userTexts = new ArrayList<>();
+        JSONArray messages = body.optJSONArray("messages");
+        for (int i = 0; messages != null && i < messages.length(); i++) {
+            JSONObject message = messages.getJSONObject(i);
+            if ("user".equals(message.optString("role"))) {
+                userTexts.add(getText(message.opt("content"), "type"));
+            }
+        }
+        String response = lookup(LLMClientFactory.LLMType.CLAUDE, userTexts);
+        if (response == null) {
+            return sendError(out, 404, "not_found_error", "No recordings to replay");
+        }
+        String model = body.optString("model");
+        int inputTokens = estimate(LLMClientFactory.LLMType.CLAUDE, userTexts);
+        int outputTokens = estimate(LLMClientFactory.LLMType.CLAUDE, response);
+
+        ReplayLLMClient.pause(ReplayLLMClient.getFirstTokenLatencyMs(), () -> false);
+        if (!body.optBoolean("stream", false)) {
+            return sendJson(out, 200, new JSONObject()
+                    .put("id", "msg_replay")
+                    .put("type", "message")
+                    .put("role", "assistant")
+                    .put("model", model)
+                    .put("content", new JSONArray().put(new JSONObject().put("type", "text").put("text", response)))
+                    .put("stop_reason", "end_turn")
+                    .put("usage", new JSONObject().put("input_tokens", inputTokens)
+                            .put("output_tokens", outputTokens)));
+        }
+
+        startStream(out);
+        writeEvent(out, "message_start", new JSONObject().put("type", "message_start")
+                .put("message", new JSONObject().put("id", "msg_replay").put("type", "message")
+                        .put("role", "assistant").put("model", model).put("content", new JSONArray())
+                        .put("usage", new JSONObject().put("input_tokens", inputTokens).put("output_tokens", 0))));
+        writeEvent(out, "content_block_start", new JSONObject().put("type", "content_block_start").put("index", 0)
+                .put("content_block", new JSONObject().put("type", "text").put("text", "")));
+        String[] chunks = ReplayLLMClient.chunk(response);
+        for (int i = 0; i < chunks.length; i++) {
+            if (i > 0) {
+                ReplayLLMClient.pause(ReplayLLMClient.getChunkIntervalMs(), () -> false);
+            }
+            writeEvent(out, "content_block_delta", new JSONObject().put("type", "content_block_delta")
+                    .put("index", 0)
+                    .put("delta", new JSONObject().put("type", "text_delta").put("text", chunks[i])));
+        }
+        writeEvent(out, "content_block_stop", new JSONObject().put("type", "content_block_stop").put("index", 0));
+        writeEvent(out, "message_delta", new JSONObject().put("type", "message_delta")
+                .put("delta", new JSONObject().put("stop_reason", "end_turn"))
+                .put("usage", new JSONObject().put("output_tokens", outputTokens)));
+        writeEvent(out, "message_stop", new JSONObject().put("type", "message_stop"));
+        endStream(out);
+        return 200;
+    }
+
+    private static int openAI(JSONObject body, OutputStream out) throws JSONException, IOException {
+        List<String> userTexts = new ArrayList<>();
+        JSONArray messages = body.optJSONArray("messages");
+        for (int i = 0; messages != null && i < messages.length(); i++) {
+            JSONObject message = messages.getJSONObject(i);
+            if ("user".equals(message.optString("role"))) {
+                userTexts.add(getText(message.opt("content"), "type"));
+            }
+        }
+        String response = lookup(LLMClientFactory.LLMType.OPENAI, userTexts);
+        if (response == null) {
+            return sendError(out, 404, "not_found_error", "No recordings to replay");
+        }
+        String model = body.optString("model");
+        int inputTokens = estimate(LLMClientFactory.LLMType.OPENAI, userTexts);
+        int outputTokens = estimate(LLMClientFactory.LLMType.OPENAI, response);
+        JSONObject usage = new JSONObject().put("prompt_tokens", inputTokens)
+                .put("completion_tokens", outputTokens).put("total_tokens", inputTokens + outputTokens);
+
+        ReplayLLMClient.pause(ReplayLLMClient.getFirstTokenLatencyMs(), () -> false);
+        if (!body.optBoolean("stream", false)) {
+            return sendJson(out, 200, new JSONObject()
+                    .put("id", "chatcmpl-replay")
+                    .put("object", "chat.completion")
+                    .put("model", model)
+                    .put("choices", new JSONArray().put(new JSONObject().put("index", 0)
+                            .put("message", new JSONObject().put("role", "assistant").put("content", response))
+                            .put("finish_reason", "stop")))
+                    .put("usage", usage));
+        }
+
+        startStream(out);
+        String[] chunks = ReplayLLMClient.chunk(response);
+        for (int i = 0; i < chunks.length; i++) {
+            if (i > 0) {
+                ReplayLLMClient.pause(ReplayLLMClient.getChunkIntervalMs(), () -> false);
+            }
+            writeData(out, openAIChunk(model, new JSONObject().put("content", chunks[i]), null).toString());
+        }
+        writeData(out, openAIChunk(model, new JSONObject(), "stop").toString());
+        // Requested with stream_options.include_usage
+        writeData(out, new JSONObject().put("id", "chatcmpl-replay").put("object", "chat.completion.chunk")
+                .put("model", model).put("choices", new JSONArray()).put("usage", usage).toString());
+        writeData(out, "[DONE]");
+        endStream(out);
+        return 200;
+    }
+
+    private static JSONObject openAIChunk(String model, JSONObject delta, String finishReason) throws JSONException {
+        JSONObject choice = new JSONObject().put("index", 0).put("delta", delta)
+                .put("finish_reason", finishReason != null ? finishReason : JSONObject.NULL);
+        return new JSONObject().put("id", "chatcmpl-replay").put("object", "chat.completion.chunk")
+                .put("model", model).put("choices", new JSONArray().put(choice));
+    }
+
+    private static int gemini(String model, boolean stream, JSONObject body, OutputStream out)
+            throws JSONException, IOException {
+        List<String> userTexts = new ArrayList<>();
+        JSONArray contents = body.optJSONArray("contents");
+        for (int i = 0; contents != null && i < contents.length(); i++) {
+            JSONObject content = contents.getJSONObject(i);
+            if ("user".equals(content.optString("role"))) {
+                userTexts.add(getText(content.optJSONArray("parts"), null));
+            }
+        }
+        String response = lookup(LLMClientFactory.LLMType.GEMINI, userTexts);
+        if (response == null) {
+            return sendError(out, 404, "NOT_FOUND", "No recordings to replay");
+        }
+        int inputTokens = estimate(LLMClientFactory.LLMType.GEMINI, userTexts);
+        int outputTokens = estimate(LLMClientFactory.LLMType.GEMINI, response);
+        JSONObject usage = new JSONObject().put("promptTokenCount", inputTokens)
+                .put("candidatesTokenCount", outputTokens).put("totalTokenCount", inputTokens + outputTokens);
+
+        ReplayLLMClient.pause(ReplayLLMClient.getFirstTokenLatencyMs(), () -> false);
+        if (!stream) {
+            return sendJson(out, 200, geminiChunk(model, response, true).put("usageMetadata", usage));
+        }
+
+        startStream(out);
+        String[] chunks = ReplayLLMClient.chunk(response);
+        for (int i = 0; i < chunks.length; i++) {
+            if (i > 0) {
+                ReplayLLMClient.pause(ReplayLLMClient.getChunkIntervalMs(), () -> false);
+            }
+            boolean last = i == chunks.length - 1;
+            JSONObject chunk = geminiChunk(model, chunks[i], last);
+            if (last) {
+                chunk.put("usageMetadata", usage);
+            }
+            writeData(out, chunk.toString());
+        }
+        endStream(out);
+        return 200;
+    }
+
+    private static JSONObject geminiChunk(String model, String text, boolean finished) throws JSONException {
+        JSONObject candidate = new JSONObject().put("index", 0).put("content", new JSONObject()
+                .put("role", "model").put("parts", new JSONArray().put(new JSONObject().put("text", text))));
+        if (finished) {
+            candidate.put("finishReason", "STOP");
+        }
+        return new JSONObject().put("candidates", new JSONArray().put(candidate)).put("modelVersion", model);
+    }
+
+    /**
+     * Returns the text of message content: a string, or an array of parts
+     * whose text is joined. Parts are typed by typeField if it is not null.
+     */
+    private static String getText(Object content, String typeField) {
+        if (content instanceof String) {
+            return (String) content;
+        }
+        StringBuilder text = new StringBuilder();
+        if (content instanceof JSONArray) {
+            JSONArray parts = (JSONArray) content;
+            for (int i = 0; i < parts.length(); i++) {
+                JSONObject part = parts.optJSONObject(i);
+                if (part != null && part.has("text")
+                        && (typeField == null || "text".equals(part.optString(typeField)))) {
+                    text.append(part.optString("text"));
+                }
+            }
+        }
+        return text.toString();
+    }
+
+    private static int estimate(LLMClientFactory.LLMType type, List<String> texts) {
+        int tokens = 0;
+        for (String text : texts) {
+            tokens += estimate(type, text);
+        }
+        return tokens;
+    }
+
+    private static int estimate(LLMClientFactory.LLMType type, String text) {
+        return ContextManager.TokenEstimator.forType(type).estimateText(text);
+    }
+
+    private static Request readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.isEmpty()) {
+            return null;
+        }
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("Malformed request line: " + requestLine);
+        }
+        Request request = new Request();
+        request.method = parts[0];
+        request.path = parts[1];
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                request.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                        line.substring(colon + 1).trim());
+            }
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if ("chunked".equalsIgnoreCase(request.headers.get("transfer-encoding"))) {
+            // The clients stream request bodies in chunks
+            while (true) {
+                String sizeLine = readLine(in);
+                if (sizeLine == null) {
+                    throw new IOException("Truncated chunked body");
+                }
+                int semicolon = sizeLine.indexOf(';');
+                int size = Integer.parseInt((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+                if (size == 0) {
+                    // Trailers, up to the empty line
+                    while ((line = readLine(in)) != null && !line.isEmpty()) {
+                        // Ignored
+                    }
+                    break;
+                }
+                copy(in, body, size);
+                readLine(in);
+            }
+        } else if (request.headers.containsKey("content-length")) {
+            copy(in, body, Integer.parseInt(request.headers.get("content-length")));
+        }
+        request.body = body.toByteArray();
+        return request;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    private static void copy(InputStream in, ByteArrayOutputStream out, int count) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (count > 0) {
+            int read = in.read(buffer, 0, Math.min(buffer.length, count));
+            if (read == -1) {
+                throw new IOException("Truncated body");
+            }
+            out.write(buffer, 0, read);
+            count -= read;
+        }
+    }
+
+    private static void writeHead(OutputStream out, int status, String contentType, long contentLength)
+            throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+        if (contentType != null) {
+            head.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        if (contentLength >= 0) {
+            head.append("Content-Length: ").append(contentLength).append("\r\n");
+        } else {
+            head.append("Transfer-Encoding: chunked\r\n");
+        }
+        head.append("Connection: keep-alive\r\n\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static int sendJson(OutputStream out, int status, JSONObject json) throws IOException {
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        writeHead(out, status, "application/json; charset=utf-8", body.length);
+        out.write(body);
+        return status;
+    }
+
+    /**
+     * Sends an error in the shape of the providers' errors: an "error"
+     * object with a type or status and a message.
+     */
+    private static int sendError(OutputStream out, int status, String type, String message) throws IOException {
+        try {
+            return sendJson(out, status, new JSONObject().put("error", new JSONObject().put("code", status)
+                    .put("type", type).put("status", type).put("message", message)));
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void startStream(OutputStream out) throws IOException {
+        writeHead(out, 200, "text/event-stream", -1);
+        out.flush();
+    }
+
+    private static void writeEvent(OutputStream out, String event, JSONObject data) throws IOException {
+        writeChunk(out, "event: " + event + "\ndata: " + data + "\n\n");
+    }
+
+    private static void writeData(OutputStream out, String data) throws IOException {
+        writeChunk(out, "data: " + data + "\n\n");
+    }
+
+    private static void writeChunk(OutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.write((Integer.toHexString(bytes.length) + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.write(bytes);
+        out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+        // Each event goes out on its own, as from the providers
+        out.flush();
+    }
+
+    private static void endStream(OutputStream out) throws IOException {
+        out.write("0\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 204:
+                return "No Content";
+            case 400:
+                return "Bad Request";
+            case 404:
+                return "Not Found";
+            default:
+                return "Status";
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package com.example.clojurerepl;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.example.clojurerepl.session.DesignSession;
+import com.example.clojurerepl.session.SessionManager;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Recorded conversations, indexed for replay by ReplayLLMClient and
+ * ReplayHttpServer. Recordings are read from the chat histories the export
+ * scripts write (*.chat_history.txt, e.g. the examples/), exported or saved
+ * session JSON (*.json) in the replay directory, see getReplayDir(), and the
+ * app's own saved sessions.
+ *
+ * A request is matched by its user messages, in this order:
+ *
+ * 1. The same user messages, i.e. a fingerprint of all of them
+ * 2. A recording with the same first user message, the app description, at
+ *    the same turn
+ * 3. A recording picked by a hash of the first user message, at the same
+ *    turn
+ *
+ * Turns past the end of a recording get its last response. Matching is
+ * deterministic, so a replayed design loop gets the same responses each run.
+ */
+public class ReplayIndex {
+    private static final String TAG = "ReplayIndex";
+    private static final String REPLAY_DIR = "replay";
+    private static final String CHAT_HISTORY_SUFFIX = ".chat_history.txt";
+    private static final String SEPARATOR = "---------------------------------------------------------------";
+    private static final String INDENT = "    ";
+
+    /**
+     * A recorded response and the user messages it answered.
+     */
+    public static class Turn {
+        public final List<String> userTexts;
+        public final String response;
+        // Provider and model that wrote the response, null if unknown
+        public final String provider;
+        public final String model;
+
+        Turn(List<String> userTexts, String response, String provider, String model) {
+            this.userTexts = userTexts;
+            this.response = response;
+            this.provider = provider;
+            this.model = model;
+        }
+    }
+
+    public static class Recording {
+        public final String name;
+        public final List<Turn> turns;
+
+        Recording(String name, List<Turn> turns) {
+            this.name = name;
+            this.turns = turns;
+        }
+
+        /**
+         * Returns the response to the n-th user message, or the last one
+         * before it.
+         */
+        Turn getTurn(int userMessages) {
+            Turn match = turns.get(0);
+            for (Turn turn : turns) {
+                if (turn.userTexts.size() > userMessages) {
+                    break;
+                }
+                match = turn;
+            }
+            return match;
+        }
+    }
+
+    /**
+     * A response found for a request, and how it was found.
+     */
+    public static class Match {
+        public final Turn turn;
+        public final String recording;
+        // "exact", "description" or "fallback"
+        public final String kind;
+
+        Match(Turn turn, String recording, String kind) {
+            this.turn = turn;
+            this.recording = recording;
+            this.kind = kind;
+        }
+    }
+
+    private static ReplayIndex instance;
+
+    private final List<Recording> recordings = new ArrayList<>();
+    private final Map<String, Match> byFingerprint = new HashMap<>();
+    private final Map<String, Recording> byDescription = new HashMap<>();
+
+    private ReplayIndex() {
+    }
+
+    /**
+     * Returns the index, reading the recordings on the first call.
+     */
+    public static synchronized ReplayIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = load(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Drops the index, so the next getInstance() reads the recordings again.
+     */
+    public static synchronized void invalidate() {
+        instance = null;
+    }
+
+    /**
+     * The directory recordings are read from, e.g. pushed there with
+     * push-replay-recordings.sh.
+     */
+    public static File getReplayDir(Context context) {
+        File base = context.getExternalFilesDir(null);
+        return new File(base != null ? base : context.getFilesDir(), REPLAY_DIR);
+    }
+
+    public int size() {
+        return recordings.size();
+    }
+
+    /**
+     * Finds the response to a request with these user messages, or returns
+     * null if there are no recordings.
+     */
+    public Match lookup(List<String> userTexts) {
+        if (recordings.isEmpty()) {
+            return null;
+        }
+        Match exact = byFingerprint.get(fingerprint(userTexts));
+        if (exact != null) {
+            return exact;
+        }
+        String description = userTexts.isEmpty() ? "" : normalize(userTexts.get(0));
+        Recording recording = byDescription.get(description);
+        String kind = "description";
+        if (recording == null) {
+            recording = recordings.get(Math.floorMod(description.hashCode(), recordings.size()));
+            kind = "fallback";
+        }
+        return new Match(recording.getTurn(userTexts.size()), recording.name, kind);
+    }
+
+    /**
+     * Returns the models that wrote the recorded responses of a provider.
+     */
+    public List<String> getModels(LLMClientFactory.LLMType provider) {
+        Set<String> models = new LinkedHashSet<>();
+        for (Recording recording : recordings) {
+            for (Turn turn : recording.turns) {
+                if (provider.name().equals(turn.provider) && turn.model != null) {
+                    models.add(turn.model);
+                }
+            }
+        }
+        return new ArrayList<>(models);
+    }
+
+    /**
+     * Returns the user message texts of a request.
+     */
+    public static List<String> getUserTexts(List<LLMClient.Message> messages) {
+        List<String> userTexts = new ArrayList<>();
+        for (LLMClient.Message message : messages) {
+            if (message.role == LLMClient.MessageRole.USER) {
+                userTexts.add(message.content);
+            }
+        }
+        return userTexts;
+    }
+
+    private static ReplayIndex load(Context context) {
+        long startTime = System.currentTimeMillis();
+        ReplayIndex index = new ReplayIndex();
+
+        File[] files = getReplayDir(context).listFiles();
+        if (files != null) {
+            // Sorted, so the fallback picks the same recording on every device
+            Arrays.sort(files);
+            for (File file : files) {
+                try {
+                    String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+                    if (file.getName().endsWith(CHAT_HISTORY_SUFFIX)) {
+                        index.add(parseChatHistory(file.getName(), text));
+                    } else if (file.getName().endsWith(".json")) {
+                        index.add(parseSessionJson(file.getName(), new JSONObject(text)));
+                    }
+                } catch (IOException | JSONException e) {
+                    Log.w(TAG, "Cannot read recording " + file.getName(), e);
+                }
+            }
+        }
+
+        List<DesignSession> sessions = new ArrayList<>(SessionManager.getInstance(context).getAllSessions());
+        Collections.sort(sessions, (a, b) -> a.getId().compareTo(b.getId()));
+        for (DesignSession session : sessions) {
+            index.add(fromMessages("session " + session.getId(), session.getChatHistory()));
+        }
+
+        Log.d(TAG, "Indexed " + index.recordings.size() + " recordings with " + index.byFingerprint.size()
+                + " responses in " + (System.currentTimeMillis() - startTime) + "ms");
+        return index;
+    }
+
+    private void add(Recording recording) {
+        if (recording == null || recording.turns.isEmpty()) {
+            return;
+        }
+        recordings.add(recording);
+        for (Turn turn : recording.turns) {
+            // The first recording of a conversation wins
+            String key = fingerprint(turn.userTexts);
+            if (!byFingerprint.containsKey(key)) {
+                byFingerprint.put(key, new Match(turn, recording.name, "exact"));
+            }
+        }
+        List<String> firstTexts = recording.turns.get(0).userTexts;
+        String description = firstTexts.isEmpty() ? "" : normalize(firstTexts.get(0));
+        if (!byDescription.containsKey(description)) {
+            byDescription.put(description, recording);
+        }
+    }
+
+    /**
+     * Parses the format of export_session.sh: a header, then messages
+     * separated by lines of dashes, each a role line such as
+     * "🧠 ASSISTANT (GEMINI/gemini-2.5-pro):" and its content indented by
+     * four spaces. Older exports name roles as the API does, e.g. "[model]:".
+     */
+    static Recording parseChatHistory(String name, String text) {
+        List<Turn> turns = new ArrayList<>();
+        List<String> userTexts = new ArrayList<>();
+        String role = null;
+        String provider = null;
+        String model = null;
+        StringBuilder content = new StringBuilder();
+
+        for (String line : (text + "\n" + SEPARATOR).split("\n", -1)) {
+            if (line.equals(SEPARATOR)) {
+                if (role != null) {
+                    String message = content.toString().trim();
+                    if (role.equals("USER")) {
+                        userTexts.add(message);
+                    } else if (role.equals("ASSISTANT") && !userTexts.isEmpty()) {
+                        turns.add(new Turn(new ArrayList<>(userTexts), message, provider, model));
+                    }
+                }
+                role = null;
+                provider = null;
+                model = null;
+                content.setLength(0);
+            } else if (line.startsWith(INDENT) || line.isEmpty()) {
+                if (role != null) {
+                    content.append(line.startsWith(INDENT) ? line.substring(INDENT.length()) : line).append('\n');
+                }
+            } else if (line.contains("USER:") || line.equals("[user]:")) {
+                role = "USER";
+            } else if (line.contains("ASSISTANT") || line.equals("[assistant]:") || line.equals("[model]:")) {
+                role = "ASSISTANT";
+                int open = line.indexOf('(');
+                int slash = line.indexOf('/', open + 1);
+                int close = line.lastIndexOf(')');
+                if (open >= 0 && slash > open && close > slash) {
+                    provider = line.substring(open + 1, slash);
+                    model = line.substring(slash + 1, close);
+                }
+            } else if (line.contains("SYSTEM:")) {
+                role = "SYSTEM";
+            }
+        }
+        return new Recording(name, turns);
+    }
+
+    /**
+     * Parses a session as DesignSession.toJson() writes it, the format of
+     * the saved sessions and of session.json in an export.
+     */
+    static Recording parseSessionJson(String name, JSONObject json) throws JSONException {
+        List<Turn> turns = new ArrayList<>();
+        List<String> userTexts = new ArrayList<>();
+        JSONArray messages = json.optJSONArray("chatHistory");
+        for (int i = 0; messages != null && i < messages.length(); i++) {
+            JSONObject message = messages.getJSONObject(i);
+            String role = message.optString("role");
+            String content = message.optString("content", "");
+            if (role.equals(LLMClient.MessageRole.USER.getApiValue())) {
+                userTexts.add(content);
+            } else if (role.equals(LLMClient.MessageRole.ASSISTANT.getApiValue()) && !userTexts.isEmpty()) {
+                turns.add(new Turn(new ArrayList<>(userTexts), content, message.optString("modelProvider", null),
+                        message.optString("modelName", null)));
+            }
+        }
+        return new Recording(name, turns);
+    }
+
+    private static Recording fromMessages(String name, List<LLMClient.Message> messages) {
+        List<Turn> turns = new ArrayList<>();
+        List<String> userTexts = new ArrayList<>();
+        for (LLMClient.Message message : messages) {
+            if (message.role == LLMClient.MessageRole.USER) {
+                userTexts.add(message.content);
+            } else if (message instanceof LLMClient.AssistantResponse && !userTexts.isEmpty()) {
+                LLMClient.AssistantResponse response = (LLMClient.AssistantResponse) message;
+                turns.add(new Turn(new ArrayList<>(userTexts), response.content,
+                        response.getModelProvider() != null ? response.getModelProvider().name() : null,
+                        response.getModelName()));
+            }
+        }
+        return new Recording(name, turns);
+    }
+
+    /**
+     * Whitespace differs between the recording formats, e.g. the chat
+     * history trims content, so it is collapsed before comparing.
+     */
+    private static String normalize(String text) {
+        return text == null ? "" : text.trim().replaceAll("\\s+", " ");
+    }
+
+    private static String fingerprint(List<String> userTexts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String text : userTexts) {
+                digest.update(normalize(text).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.clojurerepl;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Answers with recorded responses from the ReplayIndex instead of calling a
+ * provider, for load tests and benchmarks of the design loop without a
+ * network or an API key. Responses arrive after a configurable latency and,
+ * when streaming, in chunks at a configurable pace, see setPacing().
+ *
+ * To run the real clients against recordings instead, including their
+ * request building, parsing and networking, see ReplayHttpServer.
+ */
+public class ReplayLLMClient extends LLMClient {
+    private static final String TAG = "ReplayLLMClient";
+    public static final String MODEL = "replay";
+
+    // Pacing of replayed responses, shared with ReplayHttpServer
+    private static volatile long firstTokenLatencyMs = 800;
+    private static volatile int chunkChars = 48;
+    private static volatile long chunkIntervalMs = 25;
+
+    private final AtomicReference<CancellableCompletableFuture<AssistantResponse>> currentRequest = new AtomicReference<>();
+
+    public ReplayLLMClient(Context context, ChatSession chatSession) {
+        super(context, chatSession);
+        Log.d(TAG, "Created new ReplayLLMClient");
+    }
+
+    /**
+     * Sets how replayed responses are paced.
+     *
+     * @param firstTokenLatencyMs Time before the first chunk, or before the
+     *                            whole response when not streaming
+     * @param chunkChars          Characters per streamed chunk
+     * @param chunkIntervalMs     Time between streamed chunks
+     */
+    public static void setPacing(long firstTokenLatencyMs, int chunkChars, long chunkIntervalMs) {
+        if (firstTokenLatencyMs < 0 || chunkChars < 1 || chunkIntervalMs < 0) {
+            throw new IllegalArgumentException("Invalid pacing: " + firstTokenLatencyMs + "ms, " + chunkChars
+                    + " chars per " + chunkIntervalMs + "ms");
+        }
+        ReplayLLMClient.firstTokenLatencyMs = firstTokenLatencyMs;
+        ReplayLLMClient.chunkChars = chunkChars;
+        ReplayLLMClient.chunkIntervalMs = chunkIntervalMs;
+        Log.d(TAG, "Pacing: " + firstTokenLatencyMs + "ms to first token, " + chunkChars + " chars per "
+                + chunkIntervalMs + "ms");
+    }
+
+    public static long getFirstTokenLatencyMs() {
+        return firstTokenLatencyMs;
+    }
+
+    public static int getChunkChars() {
+        return chunkChars;
+    }
+
+    public static long getChunkIntervalMs() {
+        return chunkIntervalMs;
+    }
+
+    /**
+     * Splits a response into streamed chunks.
+     */
+    static String[] chunk(String text) {
+        int size = chunkChars;
+        String[] chunks = new String[Math.max(1, (text.length() + size - 1) / size)];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = text.substring(Math.min(i * size, text.length()), Math.min((i + 1) * size, text.length()));
+        }
+        return chunks;
+    }
+
+    /**
+     * Sleeps for a pacing delay, or throws a CancellationException once
+     * isCancelled says so.
+     */
+    static void pause(long delayMs, BooleanSupplier isCancelled) {
+        long end = System.currentTimeMillis() + delayMs;
+        try {
+            long remaining;
+            while ((remaining = end - System.currentTimeMillis()) > 0) {
+                if (isCancelled.getAsBoolean()) {
+                    throw new CancellationException("Request was cancelled");
+                }
+                Thread.sleep(Math.min(remaining, 50));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted");
+        }
+        if (isCancelled.getAsBoolean()) {
+            throw new CancellationException("Request was cancelled");
+        }
+    }
+
+    @Override
+    protected CancellableCompletableFuture<AssistantResponse> sendMessages(ChatSession session,
+            MessageFilter messageFilter, LLMRequestScheduler.Priority priority) {
+        Log.d(TAG, "Sending " + session.getMessages().size() + " messages in replay session: "
+                + session.getSessionId());
+
+        cancelCurrentRequest();
+        final List<Message> messagesToSend = filterMessages(session, messageFilter);
+        CancellableCompletableFuture<AssistantResponse> future = new CancellableCompletableFuture<>();
+        currentRequest.set(future);
+
+        CompletableFuture.runAsync(() -> {
+            try {
+                long requestStartTime = System.currentTimeMillis();
+                ReplayIndex.Match match = ReplayIndex.getInstance(context)
+                        .lookup(ReplayIndex.getUserTexts(messagesToSend));
+                if (match == null) {
+                    throw new IllegalStateException("No recordings to replay. Push chat histories to "
+                            + ReplayIndex.getReplayDir(context) + " or save a session first.");
+                }
+                Log.d(TAG, "Replaying turn of " + match.recording + " (" + match.kind + " match)");
+
+                pause(firstTokenLatencyMs, future::isCancelled);
+                String content;
+                StreamListener streamListener = getStreamListener();
+                if (streamListener != null) {
+                    StreamAccumulator accumulator = new StreamAccumulator(TAG, streamListener, requestStartTime);
+                    String[] chunks = chunk(match.turn.response);
+                    for (int i = 0; i < chunks.length; i++) {
+                        if (i > 0) {
+                            pause(chunkIntervalMs, future::isCancelled);
+                        }
+                        accumulator.append(chunks[i]);
+                    }
+                    content = accumulator.getText();
+                } else {
+                    content = match.turn.response;
+                }
+
+                future.complete(new AssistantResponse(content, getType(), getModel()));
+            } catch (CancellationException e) {
+                Log.d(TAG, "Replay was cancelled - this is expected behavior");
+            } catch (Exception e) {
+                Log.e(TAG, "Error in replay session", e);
+                if (!future.isCancelled()) {
+                    future.completeExceptionally(new RuntimeException("Failed to replay a response", e));
+                }
+            } finally {
+                currentRequest.compareAndSet(future, null);
+            }
+        });
+
+        return future;
+    }
+
+    @Override
+    public boolean clearApiKey() {
+        // No API key
+        return true;
+    }
+
+    @Override
+    public boolean cancelCurrentRequest() {
+        CancellableCompletableFuture<AssistantResponse> request = currentRequest.get();
+        if (request != null && !request.isCancelledOrCompleted()) {
+            Log.d(TAG, "Cancelling current replay");
+            boolean cancelled = request.cancel(true);
+            currentRequest.set(null);
+            return cancelled;
+        }
+        return false;
+    }
+
+    @Override
+    public LLMClientFactory.LLMType getType() {
+        return LLMClientFactory.LLMType.REPLAY;
+    }
+
+    @Override
+    public String getModel() {
+        return MODEL;
+    }
+}
@@ -2,18 +2,31 @@ package com.example.clojurerepl;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Color;
 import android.util.Log;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ScreenshotManager {
     private static final String TAG = "ScreenshotManager";
     private static final String SCREENSHOT_DIR = "screenshots";
 
+    // Frames whose difference hashes are at most this many bits apart are
+    // considered visually identical.
+    private static final int DUPLICATE_HASH_DISTANCE = 2;
+    // Maximum number of screenshots kept for a single run
+    public static final int MAX_SCREENSHOTS_PER_RUN = 12;
+
     private final Context context;
 
+    // Screenshots kept for the current run, in capture order, with their hashes
+    private final List<File> keptScreenshots = new ArrayList<>();
+    private final List<Long> keptHashes = new ArrayList<>();
+
     public ScreenshotManager(Context context) {
         this.context = context.getApplicationContext();
     }
@@ -41,4 +54,138 @@ public class ScreenshotManager {
             return null;
         }
     }
+
+    /**
+     * Saves the bitmap only if it differs visually from the previously kept
+     * frame. Once more than MAX_SCREENSHOTS_PER_RUN frames are kept, the frame
+     * most similar to its neighbours is deleted.
+     *
+     * @return the saved file, or null if the frame was dropped or not saved
+     */
+    public synchronized File saveDistinctScreenshot(Bitmap bitmap, String fileName) {
+        long hash = computeDifferenceHash(bitmap);
+
+        if (!keptHashes.isEmpty()) {
+            long previousHash = keptHashes.get(keptHashes.size() - 1);
+            int distance = Long.bitCount(hash ^ previousHash);
+            if (distance <= DUPLICATE_HASH_DISTANCE) {
+                Log.d(TAG, "Dropping screenshot " + fileName + ", identical to previous frame (distance "
+                        + distance + ")");
+                return null;
+            }
+        }
+
+        File screenshotFile = saveScreenshot(bitmap, fileName);
+        if (screenshotFile == null) {
+            return null;
+        }
+
+        keptScreenshots.add(screenshotFile);
+        keptHashes.add(hash);
+
+        if (keptScreenshots.size() > MAX_SCREENSHOTS_PER_RUN) {
+            evictLeastDistinctScreenshot();
+        }
+
+        return keptScreenshots.contains(screenshotFile) ? screenshotFile : null;
+    }
+
+    /**
+     * Returns the screenshots kept for the current run, in capture order.
+     */
+    public synchronized List<File> getKeptScreenshots() {
+        return new ArrayList<>(keptScreenshots);
+    }
+
+    // Removes the frame whose nearest neighbour is the closest match. The first
+    // frame (initial render) is always kept.
+    private void evictLeastDistinctScreenshot() {
+        int evictIndex = -1;
+        int smallestDistance = Integer.MAX_VALUE;
+        for (int i = 1; i < keptHashes.size(); i++) {
+            int distance = Long.bitCount(keptHashes.get(i) ^ keptHashes.get(i - 1));
+            if (i + 1 < keptHashes.size()) {
+                distance = Math.min(distance, Long.bitCount(keptHashes.get(i) ^ keptHashes.get(i + 1)));
+            }
+            if (distance < smallestDistance) {
+                smallestDistance = distance;
+                evictIndex = i;
+            }
+        }
+
+        if (evictIndex < 0) {
+            return;
+        }
+
+        File evicted = keptScreenshots.remove(evictIndex);
+        keptHashes.remove(evictIndex);
+        if (!evicted.delete()) {
+            Log.w(TAG, "Failed to delete evicted screenshot: " + evicted.getAbsolutePath());
+        }
+        Log.d(TAG, "Evicted screenshot " + evicted.getName() + " (distance " + smallestDistance
+                + "), keeping " + keptScreenshots.size());
+    }
+
+    /**
+     * Returns the file name of a screenshot taken at the given time. Programs
+     * in render slots above 0 are candidates, see CandidateRunner, and their
+     * screenshots carry the slot so the ones of losing candidates can be
+     * deleted with deleteSlotScreenshots.
+     */
+    public static String getFileName(String sessionId, int iteration, int slot, long timeMs) {
+        return "session_" + (sessionId != null ? sessionId : "unknown") +
+                "_iter_" + iteration +
+                (slot > 0 ? "_slot_" + slot : "") +
+                "_" + timeMs + ".png";
+    }
+
+    /**
+     * Deletes the screenshots the program in the given slot took for the
+     * iteration.
+     */
+    public static void deleteSlotScreenshots(Context context, String sessionId, int iteration, int slot) {
+        File screenshotDir = new File(context.getCacheDir(), SCREENSHOT_DIR);
+        String prefix = "session_" + sessionId + "_iter_" + iteration + "_slot_" + slot + "_";
+        File[] files = screenshotDir.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(".png"));
+        if (files == null) {
+            return;
+        }
+        int deleted = 0;
+        for (File file : files) {
+            if (file.delete()) {
+                deleted++;
+            } else {
+                Log.w(TAG, "Failed to delete screenshot: " + file.getAbsolutePath());
+            }
+        }
+        if (deleted > 0) {
+            Log.d(TAG, "Deleted " + deleted + " screenshots of slot " + slot + ", iteration " + iteration);
+        }
+    }
+
+    /**
+     * Computes a 64-bit difference hash (dHash) of the bitmap: the image is
+     * scaled to 9x8 grayscale and each bit records whether a pixel is brighter
+     * than its right neighbour.
+     */
+    public static long computeDifferenceHash(Bitmap bitmap) {
+        Bitmap small = Bitmap.createScaledBitmap(bitmap, 9, 8, true);
+        long hash = 0;
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                hash <<= 1;
+                if (luminance(small.getPixel(x, y)) > luminance(small.getPixel(x + 1, y))) {
+                    hash |= 1;
+                }
+            }
+        }
+        if (small != bitmap) {
+            small.recycle();
+        }
+        return hash;
+    }
+
+    private static int luminance(int color) {
+        return (Color.red(color) * 299 + Color.green(color) * 587 + Color.blue(color) * 114) / 1000;
+    }
 }
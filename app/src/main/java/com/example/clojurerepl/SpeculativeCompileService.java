@@ -0,0 +1,223 @@
+package com.example.clojurerepl;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.IBinder;
+import android.util.Log;
+
+import clojure.lang.Compiler;
+import clojure.lang.DynamicClassLoader;
+import clojure.lang.ISeq;
+import clojure.lang.LineNumberingPushbackReader;
+import clojure.lang.LispReader;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+import clojure.lang.Var;
+
+import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Compiles the leading top-level forms of a program while the LLM is still
+ * writing the rest, so their classes are already dexed when the program is
+ * run. Runs in its own process (:speculative), fed by SpeculativeCompiler.
+ *
+ * Generated class names come from a process-wide counter, so the classes of
+ * a form only match the ones a render process generates if every form before
+ * it was evaluated the same way in a fresh process. This service therefore
+ * starts from the same state as RenderActivity, evaluates the forms in
+ * program order, and stops at the first form it may not evaluate, such as one
+ * with side effects. The reader draws from the same counter (for #() args and
+ * foo# gensyms), so the counter is put back after re-reading forms that were
+ * already evaluated. Only definitions are evaluated; nothing is run. The DEX
+ * of each class lands in the shared memo (see DexMemo), where the render
+ * process finds it by the class bytes.
+ *
+ * One process serves one response; SpeculativeCompiler stops the service,
+ * which kills the process, before the next one.
+ */
+public class SpeculativeCompileService extends Service {
+    private static final String TAG = "SpeculativeCompile";
+    private static final Object EOF = new Object();
+    // Hash directory of the scratch cache the classes are dexed into
+    private static final String SCRATCH_HASH = "speculative";
+
+    public static final String EXTRA_CODE = "code";
+
+    // Forms that only define things. Evaluating them runs no program code.
+    private static final Set<String> DEFINING_FORMS = new HashSet<>(Arrays.asList(
+            "ns", "require", "import", "declare", "defn", "defn-", "defmacro",
+            "defprotocol", "defrecord", "deftype", "definterface"));
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    // Latest code not yet taken by the worker
+    private final AtomicReference<String> pendingCode = new AtomicReference<>();
+
+    // Only accessed on the worker thread
+    private boolean initialized = false;
+    private boolean stopped = false;
+    private String evaluatedCode = "";
+    private int evaluatedForms = 0;
+    // Id counter after the last evaluated form
+    private int evaluatedId;
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        String code = intent != null ? intent.getStringExtra(EXTRA_CODE) : null;
+        if (code != null && pendingCode.getAndSet(code) == null) {
+            executor.execute(() -> {
+                String latest = pendingCode.getAndSet(null);
+                if (latest != null) {
+                    speculate(latest);
+                }
+            });
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        Log.d(TAG, "Stopped after " + evaluatedForms + " forms, killing process");
+        // The Clojure state is specific to the response, don't keep it around
+        android.os.Process.killProcess(android.os.Process.myPid());
+    }
+
+    private void speculate(String code) {
+        if (stopped) {
+            return;
+        }
+        if (!code.startsWith(evaluatedCode)) {
+            Log.d(TAG, "Code no longer extends the evaluated forms, stopping");
+            stopped = true;
+            return;
+        }
+
+        try {
+            if (!initialized) {
+                initialize();
+                evaluatedId = getIdCounter().get();
+                initialized = true;
+            }
+        } catch (Throwable t) {
+            Log.e(TAG, "Error initializing Clojure", t);
+            stopped = true;
+            return;
+        }
+
+        // Read the whole code again so forms get the same line and column
+        // metadata as in the render process; both end up in the bytecode.
+        LineNumberingPushbackReader reader = new LineNumberingPushbackReader(new StringReader(code));
+        Var.pushThreadBindings(RT.map(
+                RT.var("clojure.core", "*context*"), this,
+                RT.var("clojure.core", "*content-layout*"), null));
+        try {
+            AtomicInteger idCounter = getIdCounter();
+            int index = 0;
+            while (true) {
+                if (index == evaluatedForms) {
+                    // Undo the ids taken by reading the evaluated forms again
+                    idCounter.set(evaluatedId);
+                }
+                Object form = LispReader.read(reader, false, EOF, false);
+                if (form == EOF) {
+                    break;
+                }
+                if (index++ < evaluatedForms) {
+                    continue;
+                }
+                if (!isDefiningForm(form)) {
+                    Log.d(TAG, "Stopping at form " + index + ", it may have side effects");
+                    stopped = true;
+                    break;
+                }
+                long startTime = System.currentTimeMillis();
+                Compiler.eval(form);
+                evaluatedForms++;
+                evaluatedId = idCounter.get();
+                Log.d(TAG, "Compiled form " + index + " in " + (System.currentTimeMillis() - startTime) + "ms");
+            }
+            evaluatedCode = code;
+        } catch (Throwable t) {
+            // The render process will report the error when the program runs
+            Log.d(TAG, "Stopping at a form that does not compile: " + t.getMessage());
+            stopped = true;
+        } finally {
+            Var.popThreadBindings();
+        }
+    }
+
+    /**
+     * Sets up the same Clojure state RenderActivity has before it evaluates a
+     * program. Vars only the program's runtime uses are left unbound.
+     */
+    private void initialize() throws ReflectiveOperationException {
+        long startTime = System.currentTimeMillis();
+        System.setProperty("clojure.spec.skip-macros", "true");
+        System.setProperty("clojure.spec.compile-asserts", "false");
+        RT.init();
+
+        DynamicClassLoader classLoader = new DynamicClassLoader(getClass().getClassLoader());
+        Thread.currentThread().setContextClassLoader(classLoader);
+
+        for (String name : new String[] { "*context*", "*content-layout*", "*cache-dir*" }) {
+            RT.var("clojure.core", name).setDynamic(true);
+        }
+        for (String name : new String[] { "android-log", "track-thread", "register-sensor-listener",
+                "post-main" }) {
+            Var.intern(RT.CLOJURE_NS, Symbol.intern(name));
+        }
+
+        Object userNS = RT.var("clojure.core", "find-ns").invoke(RT.var("clojure.core", "symbol").invoke("user"));
+        if (userNS == null) {
+            userNS = RT.var("clojure.core", "create-ns").invoke(RT.var("clojure.core", "symbol").invoke("user"));
+        }
+        Var.pushThreadBindings(RT.map(RT.var("clojure.core", "*ns*"), userNS));
+        try {
+            RT.var("clojure.core", "refer").invoke(RT.var("clojure.core", "symbol").invoke("clojure.core"));
+        } finally {
+            Var.popThreadBindings();
+        }
+
+        BytecodeCache.pruneDexMemo(this);
+        BytecodeCache scratchCache = BytecodeCache.getInstance(this, SCRATCH_HASH, 0);
+        // Left over from the previous speculative process
+        scratchCache.clearCacheForHash(SCRATCH_HASH);
+        AndroidClassLoaderDelegate delegate = new AndroidClassLoaderDelegate(getApplicationContext(),
+                classLoader, scratchCache, false, SCRATCH_HASH);
+        // See patches/0002-Patch-DynamicClassLoader.patch
+        Field delegateField = DynamicClassLoader.class.getDeclaredField("androidDelegate");
+        delegateField.setAccessible(true);
+        delegateField.set(null, delegate);
+
+        Log.d(TAG, "Clojure initialized in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    // Source of the numeric suffixes of generated class names, see ProcessReset
+    private static AtomicInteger getIdCounter() throws ReflectiveOperationException {
+        Field field = RT.class.getDeclaredField("id");
+        field.setAccessible(true);
+        return (AtomicInteger) field.get(null);
+    }
+
+    private static boolean isDefiningForm(Object form) {
+        if (!(form instanceof ISeq)) {
+            return false;
+        }
+        Object head = ((ISeq) form).first();
+        return head instanceof Symbol && ((Symbol) head).getNamespace() == null
+                && DEFINING_FORMS.contains(((Symbol) head).getName());
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.clojurerepl;
+
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * Follows the code of a streamed response and hands every prefix of
+ * complete top-level forms to SpeculativeCompileService, which compiles them
+ * ahead of the run. A form is complete once its brackets balance, not
+ * counting brackets in strings, comments and character literals.
+ *
+ * Feed it the code field's deltas, e.g. from a StreamingJsonExtractor.
+ */
+public class SpeculativeCompiler {
+    private static final String TAG = "SpeculativeCompiler";
+
+    private final Context context;
+
+    // All fields below are guarded by this
+    private final StringBuilder code = new StringBuilder();
+    private boolean active = false;
+    private boolean started = false;
+    private int scanned = 0;
+    private int depth = 0;
+    private boolean inString = false;
+    private boolean stringEscape = false;
+    private boolean inComment = false;
+    private boolean charLiteral = false;
+    // End of the last complete top-level form, and of the last one sent
+    private int formsEnd = 0;
+    private int sentEnd = 0;
+
+    public SpeculativeCompiler(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Starts following a new response. Compilation state of the previous
+     * response is discarded.
+     */
+    public synchronized void start() {
+        stop();
+        code.setLength(0);
+        scanned = 0;
+        depth = 0;
+        inString = false;
+        stringEscape = false;
+        inComment = false;
+        charLiteral = false;
+        formsEnd = 0;
+        sentEnd = 0;
+        active = true;
+    }
+
+    /**
+     * Stops the service and its process.
+     */
+    public synchronized void stop() {
+        active = false;
+        if (started) {
+            context.stopService(new Intent(context, SpeculativeCompileService.class));
+            started = false;
+        }
+    }
+
+    public synchronized void onCodeDelta(String delta) {
+        if (!active) {
+            return;
+        }
+        code.append(delta);
+        scan();
+        if (formsEnd > sentEnd) {
+            sentEnd = formsEnd;
+            send(code.substring(0, formsEnd));
+        }
+    }
+
+    private void scan() {
+        for (; scanned < code.length(); scanned++) {
+            char c = code.charAt(scanned);
+            if (inComment) {
+                inComment = c != '\n';
+            } else if (charLiteral) {
+                // \( and \" are characters, not syntax
+                charLiteral = false;
+            } else if (inString) {
+                if (stringEscape) {
+                    stringEscape = false;
+                } else if (c == '\\') {
+                    stringEscape = true;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == ';') {
+                inComment = true;
+            } else if (c == '\\') {
+                charLiteral = true;
+            } else if (c == '"') {
+                // Also covers regex literals, #"..."
+                inString = true;
+            } else if (c == '(' || c == '[' || c == '{') {
+                depth++;
+            } else if ((c == ')' || c == ']' || c == '}') && depth > 0) {
+                depth--;
+                if (depth == 0) {
+                    formsEnd = scanned + 1;
+                }
+            }
+        }
+    }
+
+    private void send(String forms) {
+        Intent intent = new Intent(context, SpeculativeCompileService.class);
+        intent.putExtra(SpeculativeCompileService.EXTRA_CODE, forms);
+        try {
+            context.startService(intent);
+            started = true;
+        } catch (IllegalStateException e) {
+            // Background service starts are not allowed when the app is not
+            // in the foreground; speculation is only an optimization
+            Log.d(TAG, "Cannot start speculative compilation: " + e.getMessage());
+            active = false;
+        }
+    }
+}
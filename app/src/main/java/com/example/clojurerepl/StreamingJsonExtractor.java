@@ -0,0 +1,529 @@
+package com.example.clojurerepl;
+
+import android.util.Log;
+
+/**
+ * Incremental parser for the {"reasoning": "...", "code": "..."} response
+ * format. Characters are consumed once, as they arrive, by a state machine
+ * over the top-level JSON object, so feeding a streamed response costs
+ * O(length) in total instead of re-running LLMClient.extractJsonResponse on
+ * every chunk.
+ *
+ * String values of "reasoning" and "code" are unescaped while reading and
+ * reported to the listener as deltas, at most one per field per chunk. Text
+ * before the opening brace (such as a ```json fence) and everything after the
+ * closing brace is ignored, as in extractJsonResponse, and getResult returns
+ * the same CodeExtractionResult for the same full text.
+ *
+ * A "patch" value, see CodePatcher, is read too but only shows up in
+ * getResult.
+ *
+ * Can be set directly as an LLMClient stream listener.
+ */
+public class StreamingJsonExtractor implements LLMClient.StreamListener {
+    private static final String TAG = "StreamingJsonExtractor";
+    public static final String FIELD_REASONING = "reasoning";
+    public static final String FIELD_CODE = "code";
+    // Read for getResult only, see CodePatcher
+    private static final String FIELD_PATCH = "patch";
+    // Longest literal we need to recognize is "null"
+    private static final int MAX_LITERAL_CHARS = 8;
+
+    public interface Listener {
+        default void onReasoningDelta(String delta) {
+        }
+
+        default void onCodeDelta(String delta) {
+        }
+
+        /**
+         * Called when the closing quote of a field's string value was read.
+         *
+         * @param field FIELD_REASONING or FIELD_CODE
+         */
+        default void onFieldComplete(String field) {
+        }
+
+        /**
+         * Called when the response restarts, see LLMClient.StreamListener.
+         */
+        default void onReset() {
+        }
+    }
+
+    private enum State {
+        BEFORE_OBJECT,
+        EXPECT_KEY,
+        IN_KEY,
+        EXPECT_COLON,
+        EXPECT_VALUE,
+        IN_STRING_VALUE,
+        IN_OTHER_VALUE,
+        AFTER_VALUE,
+        DONE,
+        ERROR
+    }
+
+    private final Listener listener;
+
+    // All fields below are guarded by this
+    private State state;
+    private long received;
+    private final StringBuilder textBeforeObject = new StringBuilder();
+    private final StringBuilder key = new StringBuilder();
+    private String currentKey;
+
+    // Field values; null while the field is absent or null
+    private StringBuilder reasoning;
+    private StringBuilder code;
+    private StringBuilder patch;
+    private boolean reasoningClosed;
+    private boolean codeClosed;
+    // The field the current string value is read into, null for other keys
+    private StringBuilder target;
+
+    // String escape state, shared by keys and values
+    private boolean escaped;
+    private int unicodeDigitsLeft;
+    private int unicodeValue;
+
+    // Non-string values (objects, arrays, numbers, literals)
+    private int otherDepth;
+    private boolean otherInString;
+    private boolean otherEscaped;
+    private final StringBuilder literal = new StringBuilder();
+
+    private String errorMessage;
+    private boolean typeError;
+
+    // Deltas of the chunk being consumed
+    private final StringBuilder reasoningDelta = new StringBuilder();
+    private final StringBuilder codeDelta = new StringBuilder();
+    private String reasoningCompletedInChunk;
+    private String codeCompletedInChunk;
+
+    public StreamingJsonExtractor(Listener listener) {
+        this.listener = listener;
+        reset();
+    }
+
+    /**
+     * Discards everything consumed so far.
+     */
+    public synchronized void reset() {
+        state = State.BEFORE_OBJECT;
+        received = 0;
+        textBeforeObject.setLength(0);
+        key.setLength(0);
+        currentKey = null;
+        reasoning = null;
+        code = null;
+        patch = null;
+        reasoningClosed = false;
+        codeClosed = false;
+        target = null;
+        escaped = false;
+        unicodeDigitsLeft = 0;
+        otherDepth = 0;
+        otherInString = false;
+        otherEscaped = false;
+        literal.setLength(0);
+        errorMessage = null;
+        typeError = false;
+    }
+
+    @Override
+    public void onTextDelta(String delta) {
+        append(delta);
+    }
+
+    @Override
+    public void onStreamReset() {
+        reset();
+        if (listener != null) {
+            listener.onReset();
+        }
+    }
+
+    /**
+     * Consumes the next chunk of the response and reports the resulting
+     * deltas to the listener, on the calling thread.
+     */
+    public void append(CharSequence chunk) {
+        String reasoningOut;
+        String codeOut;
+        String reasoningDone;
+        String codeDone;
+        synchronized (this) {
+            received += chunk.length();
+            for (int i = 0; i < chunk.length() && state != State.ERROR; i++) {
+                consume(chunk.charAt(i));
+            }
+            reasoningOut = drain(reasoningDelta);
+            codeOut = drain(codeDelta);
+            reasoningDone = reasoningCompletedInChunk;
+            codeDone = codeCompletedInChunk;
+            reasoningCompletedInChunk = null;
+            codeCompletedInChunk = null;
+        }
+
+        if (listener == null) {
+            return;
+        }
+        if (reasoningOut != null) {
+            listener.onReasoningDelta(reasoningOut);
+        }
+        if (reasoningDone != null) {
+            listener.onFieldComplete(reasoningDone);
+        }
+        if (codeOut != null) {
+            listener.onCodeDelta(codeOut);
+        }
+        if (codeDone != null) {
+            listener.onFieldComplete(codeDone);
+        }
+    }
+
+    public synchronized String getReasoning() {
+        return reasoning != null ? reasoning.toString() : null;
+    }
+
+    public synchronized String getCode() {
+        return code != null ? code.toString() : null;
+    }
+
+    /**
+     * @return true once the closing quote of the code value was read
+     */
+    public synchronized boolean isCodeComplete() {
+        return codeClosed;
+    }
+
+    public synchronized boolean isReasoningComplete() {
+        return reasoningClosed;
+    }
+
+    /**
+     * Builds the extraction result for everything consumed so far, with the
+     * same rules as LLMClient.extractJsonResponse.
+     *
+     * @param isPartial Whether the response was truncated; an unterminated
+     *                  field is then reported as incomplete
+     */
+    public synchronized LLMClient.CodeExtractionResult getResult(boolean isPartial) {
+        if (received == 0) {
+            return LLMClient.CodeExtractionResult.success("", null, "", "", true, true);
+        }
+        if (state == State.BEFORE_OBJECT) {
+            return LLMClient.CodeExtractionResult.failure(
+                    "Response does not contain valid JSON. Expected JSON object with 'reasoning' and/or 'code' fields. Response must start with { and contain only JSON.");
+        }
+        if (state == State.ERROR && (typeError || !isPartial || (reasoning == null && code == null))) {
+            return LLMClient.CodeExtractionResult.failure(
+                    typeError ? errorMessage : "Failed to parse JSON response: " + errorMessage);
+        }
+        if (state == State.IN_OTHER_VALUE && otherDepth == 0 && (!isPartial || isCompleteLiteral())) {
+            // The response ended right after a literal such as null. In a
+            // truncated response, a cut-off one counts as absent.
+            LLMClient.CodeExtractionResult literalError = checkLiteral();
+            if (literalError != null) {
+                return literalError;
+            }
+        }
+        // A patch only counts in a complete response
+        String patchText = patch != null && !isPartial && patch.toString().trim().length() > 0
+                ? patch.toString() : null;
+        if (reasoning == null && code == null && patchText == null) {
+            return LLMClient.CodeExtractionResult
+                    .failure("JSON response must contain at least one of 'reasoning', 'code' or 'patch' fields");
+        }
+
+        return LLMClient.CodeExtractionResult.success(
+                code != null ? code.toString() : "",
+                reasoning != null ? reasoning.toString() : null,
+                patchText,
+                getTextBeforeObject(),
+                "",
+                !isPartial || reasoning == null || reasoningClosed,
+                !isPartial || code == null || codeClosed);
+    }
+
+    private void consume(char c) {
+        switch (state) {
+            case BEFORE_OBJECT:
+                if (c == '{') {
+                    state = State.EXPECT_KEY;
+                } else {
+                    textBeforeObject.append(c);
+                }
+                break;
+            case EXPECT_KEY:
+                if (c == '"') {
+                    key.setLength(0);
+                    state = State.IN_KEY;
+                } else if (c == '}') {
+                    state = State.DONE;
+                } else if (!isWhitespace(c)) {
+                    fail("Expected a key or '}' but found '" + c + "'");
+                }
+                break;
+            case IN_KEY:
+                if (readStringChar(c, key, null)) {
+                    currentKey = key.toString();
+                    state = State.EXPECT_COLON;
+                }
+                break;
+            case EXPECT_COLON:
+                if (c == ':') {
+                    state = State.EXPECT_VALUE;
+                } else if (!isWhitespace(c)) {
+                    fail("Expected ':' after key \"" + currentKey + "\"");
+                }
+                break;
+            case EXPECT_VALUE:
+                if (isWhitespace(c)) {
+                    break;
+                }
+                startValue(c == '"');
+                if (c == '"') {
+                    state = State.IN_STRING_VALUE;
+                } else {
+                    otherDepth = c == '{' || c == '[' ? 1 : 0;
+                    otherInString = false;
+                    otherEscaped = false;
+                    literal.setLength(0);
+                    if (otherDepth == 0) {
+                        literal.append(c);
+                    }
+                    state = State.IN_OTHER_VALUE;
+                }
+                break;
+            case IN_STRING_VALUE:
+                StringBuilder delta = target == null || target == patch ? null
+                        : target == reasoning ? reasoningDelta : codeDelta;
+                if (readStringChar(c, target, delta)) {
+                    if (target == reasoning && reasoning != null) {
+                        reasoningClosed = true;
+                        reasoningCompletedInChunk = FIELD_REASONING;
+                    } else if (target == code && code != null) {
+                        codeClosed = true;
+                        codeCompletedInChunk = FIELD_CODE;
+                    }
+                    target = null;
+                    state = State.AFTER_VALUE;
+                }
+                break;
+            case IN_OTHER_VALUE:
+                consumeOtherValue(c);
+                break;
+            case AFTER_VALUE:
+                afterValue(c);
+                break;
+            case DONE:
+            case ERROR:
+                // Trailing text such as a closing fence is ignored
+                break;
+        }
+    }
+
+    // Clears the field a new value of the current key is read into. Later
+    // duplicates of a key replace earlier ones, as in JSONObject.
+    private void startValue(boolean isString) {
+        target = null;
+        if (FIELD_REASONING.equals(currentKey)) {
+            reasoning = isString ? new StringBuilder() : null;
+            reasoningClosed = false;
+            target = reasoning;
+        } else if (FIELD_CODE.equals(currentKey)) {
+            code = isString ? new StringBuilder() : null;
+            codeClosed = false;
+            target = code;
+        } else if (FIELD_PATCH.equals(currentKey)) {
+            patch = isString ? new StringBuilder() : null;
+            target = patch;
+        }
+    }
+
+    private void consumeOtherValue(char c) {
+        if (otherInString) {
+            if (otherEscaped) {
+                otherEscaped = false;
+            } else if (c == '\\') {
+                otherEscaped = true;
+            } else if (c == '"') {
+                otherInString = false;
+            }
+            return;
+        }
+        if (otherDepth > 0) {
+            if (c == '"') {
+                otherInString = true;
+            } else if (c == '{' || c == '[') {
+                otherDepth++;
+            } else if (c == '}' || c == ']') {
+                otherDepth--;
+                if (otherDepth == 0) {
+                    endOtherValue();
+                }
+            }
+            return;
+        }
+        // A number or literal ends at the first structural character
+        if (c == ',' || c == '}' || isWhitespace(c)) {
+            endOtherValue();
+            if (state == State.AFTER_VALUE) {
+                afterValue(c);
+            }
+        } else if (literal.length() < MAX_LITERAL_CHARS) {
+            literal.append(c);
+        }
+    }
+
+    private void endOtherValue() {
+        state = State.AFTER_VALUE;
+        LLMClient.CodeExtractionResult literalError = checkLiteral();
+        if (literalError != null) {
+            state = State.ERROR;
+            errorMessage = literalError.errorMessage;
+            typeError = true;
+        }
+    }
+
+    // Only null is accepted in place of a string for the known fields
+    private LLMClient.CodeExtractionResult checkLiteral() {
+        boolean isNull = otherDepth == 0 && "null".contentEquals(literal);
+        if (isNull) {
+            return null;
+        }
+        if (FIELD_REASONING.equals(currentKey)) {
+            return LLMClient.CodeExtractionResult
+                    .failure("Invalid JSON structure: 'reasoning' field must be a string or null");
+        } else if (FIELD_CODE.equals(currentKey)) {
+            return LLMClient.CodeExtractionResult
+                    .failure("Invalid JSON structure: 'code' field must be a string or null");
+        }
+        return null;
+    }
+
+    private boolean isCompleteLiteral() {
+        String text = literal.toString();
+        return text.equals("true") || text.equals("false") || text.equals("null")
+                || text.matches("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?");
+    }
+
+    private void afterValue(char c) {
+        if (c == ',') {
+            state = State.EXPECT_KEY;
+        } else if (c == '}') {
+            state = State.DONE;
+        } else if (!isWhitespace(c)) {
+            fail("Expected ',' or '}' after the value of \"" + currentKey + "\"");
+        }
+    }
+
+    /**
+     * Reads one character of a JSON string, unescaping into out and delta.
+     * Either may be null to discard the text.
+     *
+     * @return true if c was the closing quote
+     */
+    private boolean readStringChar(char c, StringBuilder out, StringBuilder delta) {
+        if (unicodeDigitsLeft > 0) {
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                fail("Invalid \\u escape");
+                return false;
+            }
+            unicodeValue = unicodeValue * 16 + digit;
+            if (--unicodeDigitsLeft == 0) {
+                // Surrogate pairs arrive as two escapes and are appended in order
+                appendChar((char) unicodeValue, out, delta);
+            }
+            return false;
+        }
+        if (escaped) {
+            escaped = false;
+            switch (c) {
+                case 'b':
+                    appendChar('\b', out, delta);
+                    break;
+                case 'f':
+                    appendChar('\f', out, delta);
+                    break;
+                case 'n':
+                    appendChar('\n', out, delta);
+                    break;
+                case 'r':
+                    appendChar('\r', out, delta);
+                    break;
+                case 't':
+                    appendChar('\t', out, delta);
+                    break;
+                case 'u':
+                    unicodeDigitsLeft = 4;
+                    unicodeValue = 0;
+                    break;
+                default:
+                    // \" \\ \/ and, leniently like JSONTokener, anything else
+                    appendChar(c, out, delta);
+                    break;
+            }
+            return false;
+        }
+        if (c == '\\') {
+            escaped = true;
+            return false;
+        }
+        if (c == '"') {
+            return true;
+        }
+        appendChar(c, out, delta);
+        return false;
+    }
+
+    private static void appendChar(char c, StringBuilder out, StringBuilder delta) {
+        if (out != null) {
+            out.append(c);
+            if (delta != null) {
+                delta.append(c);
+            }
+        }
+    }
+
+    private void fail(String message) {
+        Log.w(TAG, "Invalid JSON after " + received + " characters: " + message);
+        state = State.ERROR;
+        errorMessage = message;
+    }
+
+    // Text before the opening brace, without a leading code fence line
+    private String getTextBeforeObject() {
+        String text = textBeforeObject.toString().trim();
+        if (text.startsWith("```")) {
+            int firstNewline = text.indexOf('\n');
+            if (firstNewline != -1) {
+                text = text.substring(firstNewline + 1);
+            } else {
+                int fenceEnd = 3;
+                while (fenceEnd < text.length() && Character.isLetterOrDigit(text.charAt(fenceEnd))) {
+                    fenceEnd++;
+                }
+                text = text.substring(fenceEnd);
+            }
+        }
+        return text.trim();
+    }
+
+    private static String drain(StringBuilder delta) {
+        if (delta.length() == 0) {
+            return null;
+        }
+        String text = delta.toString();
+        delta.setLength(0);
+        return text;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+}
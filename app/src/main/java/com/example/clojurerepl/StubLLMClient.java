@@ -19,7 +19,8 @@ public class StubLLMClient extends LLMClient {
     }
 
     @Override
-    protected CancellableCompletableFuture<AssistantResponse> sendMessages(ChatSession session, MessageFilter messageFilter) {
+    protected CancellableCompletableFuture<AssistantResponse> sendMessages(ChatSession session, MessageFilter messageFilter,
+            LLMRequestScheduler.Priority priority) {
         Log.d(TAG, "Sending " + session.getMessages().size() + " messages in stub session: " + session.getSessionId());
 
         // Filter messages if filter is provided
@@ -0,0 +1,137 @@
+package com.example.clojurerepl;
+
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.opengl.GLSurfaceView;
+import android.util.Log;
+import android.view.SurfaceView;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+/**
+ * Produces a compact, indented text dump of a view hierarchy: class, bounds,
+ * visibility, text, colors and GL surfaces. It is sent to the LLM as a cheap
+ * alternative (or complement) to screenshots.
+ */
+public class ViewHierarchySnapshot {
+    private static final String TAG = "ViewHierarchySnapshot";
+
+    // Maximum size of a snapshot in characters
+    public static final int MAX_SNAPSHOT_CHARS = 4000;
+    private static final int MAX_TEXT_CHARS = 40;
+    private static final int MAX_DEPTH = 20;
+
+    private final StringBuilder out = new StringBuilder();
+    private final int maxChars;
+    private int truncatedViews = 0;
+
+    private ViewHierarchySnapshot(int maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * Dumps the hierarchy rooted at the given view. Must be called on the UI
+     * thread.
+     *
+     * @param root     The root of the hierarchy to dump
+     * @param maxChars Size cap; views beyond it are counted but not listed
+     * @return The snapshot text, or null if the hierarchy could not be walked
+     */
+    public static String capture(View root, int maxChars) {
+        if (root == null) {
+            return null;
+        }
+        ViewHierarchySnapshot snapshot = new ViewHierarchySnapshot(maxChars);
+        try {
+            snapshot.walk(root, 0);
+        } catch (Exception e) {
+            Log.e(TAG, "Error walking view hierarchy", e);
+            return null;
+        }
+        if (snapshot.truncatedViews > 0) {
+            snapshot.out.append("... ").append(snapshot.truncatedViews).append(" more views omitted\n");
+        }
+        return snapshot.out.toString();
+    }
+
+    private void walk(View view, int depth) {
+        if (out.length() >= maxChars || depth > MAX_DEPTH) {
+            truncatedViews++;
+        } else {
+            appendView(view, depth);
+        }
+
+        // Children of GONE views are not laid out, so there is nothing useful to
+        // report about them.
+        if (view instanceof ViewGroup && view.getVisibility() != View.GONE) {
+            ViewGroup group = (ViewGroup) view;
+            for (int i = 0; i < group.getChildCount(); i++) {
+                walk(group.getChildAt(i), depth + 1);
+            }
+        }
+    }
+
+    private void appendView(View view, int depth) {
+        for (int i = 0; i < depth; i++) {
+            out.append("  ");
+        }
+        out.append(describeClass(view.getClass()));
+
+        int[] location = new int[2];
+        view.getLocationInWindow(location);
+        out.append(" [").append(location[0]).append(',').append(location[1])
+                .append(' ').append(view.getWidth()).append('x').append(view.getHeight()).append(']');
+
+        if (view.getVisibility() == View.INVISIBLE) {
+            out.append(" invisible");
+        } else if (view.getVisibility() == View.GONE) {
+            out.append(" gone");
+        }
+
+        if (view instanceof TextView) {
+            TextView textView = (TextView) view;
+            CharSequence text = textView.getText();
+            if (text != null && text.length() > 0) {
+                String value = text.toString().replace('\n', ' ');
+                if (value.length() > MAX_TEXT_CHARS) {
+                    value = value.substring(0, MAX_TEXT_CHARS) + "...";
+                }
+                out.append(" \"").append(value).append('"');
+            }
+            out.append(" color=").append(formatColor(textView.getCurrentTextColor()));
+            out.append(" size=").append(Math.round(textView.getTextSize()));
+        }
+
+        Drawable background = view.getBackground();
+        if (background instanceof ColorDrawable) {
+            out.append(" bg=").append(formatColor(((ColorDrawable) background).getColor()));
+        }
+
+        if (view instanceof GLSurfaceView) {
+            out.append(" gl-surface");
+        } else if (view instanceof SurfaceView) {
+            out.append(" surface");
+        }
+
+        if (view.isClickable()) {
+            out.append(" clickable");
+        }
+        out.append('\n');
+    }
+
+    // Clojure proxies have generated class names; report the Android class
+    // they extend instead.
+    private static String describeClass(Class<?> clazz) {
+        String name = clazz.getName();
+        if (name.contains("proxy$")) {
+            Class<?> superclass = clazz.getSuperclass();
+            return (superclass != null ? superclass.getSimpleName() : "View") + "(proxy)";
+        }
+        return clazz.getSimpleName();
+    }
+
+    private static String formatColor(int color) {
+        return String.format("#%08X", color);
+    }
+}
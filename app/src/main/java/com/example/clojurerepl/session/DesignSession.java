@@ -40,6 +40,7 @@ public class DesignSession {
     private String llmModel;
     private LLMClient.ChatSession chatSession;
     private String lastLogcat;
+    private String lastViewHierarchy;
     private String lastErrorFeedback;
     private boolean hasError;
     // screenshotSets and screenshotSetIterations are not serialized to/from
@@ -183,6 +184,14 @@ public class DesignSession {
         this.lastLogcat = lastLogcat;
     }
 
+    public synchronized String getLastViewHierarchy() {
+        return lastViewHierarchy;
+    }
+
+    public synchronized void setLastViewHierarchy(String lastViewHierarchy) {
+        this.lastViewHierarchy = lastViewHierarchy;
+    }
+
     /**
      * Gets all screenshot sets associated with this session.
      *
@@ -458,10 +467,12 @@ public class DesignSession {
         }
 
         // Pattern to match screenshot files:
-        // session_{sessionId}_iter_{iteration}_{timestamp}.png
+        // session_{sessionId}_iter_{iteration}_{timestamp}.png, with
+        // _slot_{slot} before the timestamp if the run was a candidate. The
+        // screenshots of losing candidates are deleted, see CandidateRunner.
         String sessionIdStr = this.id.toString();
         Pattern screenshotPattern = Pattern
-                .compile("session_" + Pattern.quote(sessionIdStr) + "_iter_(\\d+)_\\d+\\.png");
+                .compile("session_" + Pattern.quote(sessionIdStr) + "_iter_(\\d+)(?:_slot_\\d+)?_\\d+\\.png");
 
         // Map to group screenshots by iteration number
         Map<Integer, List<String>> iterationScreenshots = new HashMap<>();
@@ -648,6 +659,10 @@ public class DesignSession {
             json.put("lastLogcat", lastLogcat);
         }
 
+        if (lastViewHierarchy != null) {
+            json.put("lastViewHierarchy", lastViewHierarchy);
+        }
+
         // Note: Screenshot sets are no longer saved to JSON.
         // They will be reconstructed from the filesystem during deserialization
         // based on the session ID and iteration numbers in the screenshot filenames.
@@ -965,6 +980,10 @@ public class DesignSession {
             session.lastLogcat = json.getString("lastLogcat");
         }
 
+        if (json.has("lastViewHierarchy")) {
+            session.lastViewHierarchy = json.getString("lastViewHierarchy");
+        }
+
         // Reconstruct screenshot sets from filesystem instead of loading from JSON
         session.reconstructScreenshotSetsFromFilesystem(context);
 
@@ -2,6 +2,7 @@ package com.example.clojurerepl.session;
 
 import android.content.Context;
 import android.util.Log;
+import com.example.clojurerepl.ImageEncodeCache;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -234,6 +235,9 @@ public class SessionManager {
                 Log.d(TAG, "Deleted " + filesDeleted + " screenshot files for session: " + sessionId);
             }
 
+            // Images encoded for LLM requests are only reused within the session
+            ImageEncodeCache.clearSession(context, sessionId.toString());
+
             // Delete the session file
             File sessionFile = getSessionFile(sessionId);
             if (sessionFile.exists()) {
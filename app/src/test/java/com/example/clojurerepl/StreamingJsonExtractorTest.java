@@ -0,0 +1,262 @@
+package com.example.clojurerepl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that StreamingJsonExtractor gives the same CodeExtractionResult as
+ * LLMClient.extractJsonResponse for the same text, however the text is split
+ * into deltas, and that the deltas it reports add up to the fields.
+ *
+ * Responses are generated from a fixed seed; a failure names the seed and
+ * the response so it can be reproduced.
+ */
+public class StreamingJsonExtractorTest {
+    private static final long SEED = 0x5eedL;
+    private static final int RANDOM_RESPONSES = 300;
+    private static final int SPLITS_PER_RESPONSE = 20;
+
+    // Characters that need care in JSON strings, in fences or in the parser
+    private static final String[] PIECES = {
+            "a", "Z", "0", " ", "  ", "\n", "\r\n", "\t", "\"", "\\", "/", "{", "}", "[", "]", ",", ":",
+            "```", "(defn -main [] (println \"hi\"))", "\u00e9", "\u00a0", "\u2028", "\ud83d\ude00", "\ud834\udd1e",
+            "\b", "\f", "\u0001", "null", "\\u0041", "\"code\": \"", "\"reasoning\":" };
+
+    private static class Recorder implements StreamingJsonExtractor.Listener {
+        final StringBuilder reasoning = new StringBuilder();
+        final StringBuilder code = new StringBuilder();
+        final List<String> completed = new ArrayList<>();
+
+        @Override
+        public void onReasoningDelta(String delta) {
+            reasoning.append(delta);
+        }
+
+        @Override
+        public void onCodeDelta(String delta) {
+            code.append(delta);
+        }
+
+        @Override
+        public void onFieldComplete(String field) {
+            completed.add(field);
+        }
+    }
+
+    @Test
+    public void handWrittenResponses() {
+        String[] responses = {
+                "{\"reasoning\": \"Draw a circle\", \"code\": \"(defn -main [] nil)\"}",
+                "{\"code\": \"(str \\\"a\\\\b\\\" \\\"tab\\there\\\")\\n\"}",
+                "{\"reasoning\": \"\\u00e9t\\u00E9 \\ud83d\\ude00 \\/ \\b\\f\\r\", \"code\": \"x\"}",
+                "{\"reasoning\": \"raw \ud83d\ude00 and \u2028\", \"code\": \"(println \\\"\ud834\udd1e\\\")\"}",
+                "```json\n{\"reasoning\": \"fenced\", \"code\": \"(+ 1 2)\"}\n```",
+                "```json{\"reasoning\": \"fence without newline\", \"code\": \"1\"}```",
+                "Here is the program:\n{\"reasoning\": \"r\", \"code\": \"c\"}\nLet me know if it works.",
+                "{\"reasoning\": null, \"code\": \"only code\"}",
+                "{\"reasoning\": \"only reasoning\", \"code\": null}",
+                "{\"notes\": {\"a\": [1, \"}\\\"]\", {\"b\": null}]}, \"code\": \"after nested\", \"n\": -1.5e3}",
+                "{\"reasoning\": \"small change\", \"patch\": \"<<<<<<< SEARCH\\n(+ 1 2)\\n=======\\n(+ 1 3)\\n>>>>>>> REPLACE\"}",
+                "{\"patch\": \"  \"}",
+                "{\"reasoning\": \"\", \"code\": \"\"}",
+                "{\"reasoning\": 42, \"code\": \"x\"}",
+                "{\"code\": [\"not\", \"a string\"]}",
+                "{\"other\": true}",
+                "{}",
+                "no json at all",
+                "",
+        };
+        for (String response : responses) {
+            checkAllSplits(response);
+            checkAllTruncations(response);
+        }
+    }
+
+    @Test
+    public void randomResponsesSplitAnywhere() {
+        Random random = new Random(SEED);
+        for (int i = 0; i < RANDOM_RESPONSES; i++) {
+            String response = randomResponse(random);
+            for (int j = 0; j < SPLITS_PER_RESPONSE; j++) {
+                check(response, randomSplit(response, random), false, "seed " + SEED + ", response " + i);
+            }
+        }
+    }
+
+    @Test
+    public void randomResponsesTruncatedAnywhere() {
+        Random random = new Random(SEED + 1);
+        for (int i = 0; i < RANDOM_RESPONSES; i++) {
+            String response = randomResponse(random);
+            for (int j = 0; j < SPLITS_PER_RESPONSE; j++) {
+                String prefix = response.substring(0, random.nextInt(response.length() + 1));
+                check(prefix, randomSplit(prefix, random), true, "seed " + SEED + ", response " + i);
+            }
+        }
+    }
+
+    private static void checkAllSplits(String response) {
+        // One delta, every single split point and single characters
+        check(response, split(response, new int[0]), false, "whole");
+        for (int at = 1; at < response.length(); at++) {
+            check(response, split(response, new int[] { at }), false, "split at " + at);
+        }
+        List<String> chars = new ArrayList<>();
+        for (int i = 0; i < response.length(); i++) {
+            chars.add(response.substring(i, i + 1));
+        }
+        check(response, chars, false, "one char per delta");
+    }
+
+    private static void checkAllTruncations(String response) {
+        for (int length = 0; length <= response.length(); length++) {
+            String prefix = response.substring(0, length);
+            check(prefix, split(prefix, new int[0]), true, "truncated at " + length);
+        }
+    }
+
+    private static void check(String response, List<String> deltas, boolean isPartial, String description) {
+        String message = description + (isPartial ? ", partial" : "") + ": " + quote(response) + " as "
+                + deltas.size() + " deltas";
+        Recorder recorder = new Recorder();
+        StreamingJsonExtractor extractor = new StreamingJsonExtractor(recorder);
+        for (String delta : deltas) {
+            extractor.append(delta);
+        }
+
+        LLMClient.CodeExtractionResult expected = LLMClient.extractJsonResponse(response, isPartial);
+        LLMClient.CodeExtractionResult actual = extractor.getResult(isPartial);
+        assertEquals(message, describe(expected), describe(actual));
+
+        // The deltas add up to the fields read so far
+        String reasoning = extractor.getReasoning();
+        String code = extractor.getCode();
+        assertEquals(message, reasoning != null ? reasoning : "", recorder.reasoning.toString());
+        assertEquals(message, code != null ? code : "", recorder.code.toString());
+        if (extractor.isCodeComplete()) {
+            assertTrue(message, recorder.completed.contains(StreamingJsonExtractor.FIELD_CODE));
+        }
+        if (extractor.isReasoningComplete()) {
+            assertTrue(message, recorder.completed.contains(StreamingJsonExtractor.FIELD_REASONING));
+        }
+    }
+
+    // Results are compared as text so a failure shows all fields at once.
+    // Failure messages only have to agree on whether they are failures.
+    private static String describe(LLMClient.CodeExtractionResult result) {
+        if (!result.success) {
+            return "failure";
+        }
+        return "code=" + quote(result.code) + ", codeComplete=" + result.codeComplete
+                + ", reasoning=" + quote(result.reasoning) + ", reasoningComplete=" + result.reasoningComplete
+                + ", patch=" + quote(result.patch)
+                + ", before=" + quote(result.textBeforeCode) + ", after=" + quote(result.textAfterCode);
+    }
+
+    private static String randomResponse(Random random) {
+        StringBuilder json = new StringBuilder("{");
+        List<String> members = new ArrayList<>();
+        if (random.nextInt(5) > 0) {
+            members.add("\"reasoning\": " + randomValue(random));
+        }
+        if (random.nextInt(5) > 0) {
+            members.add("\"code\": " + randomValue(random));
+        }
+        if (random.nextInt(6) == 0) {
+            members.add(random.nextInt(members.size() + 1), "\"patch\": " + randomValue(random));
+        }
+        if (random.nextInt(4) == 0) {
+            members.add(random.nextInt(members.size() + 1),
+                    "\"extra\": " + (random.nextBoolean() ? "{\"k\": [1, " + encode(randomText(random), random) + "]}"
+                            : "true"));
+        }
+        for (int i = 0; i < members.size(); i++) {
+            json.append(i > 0 ? "," + whitespace(random) : whitespace(random)).append(members.get(i));
+        }
+        json.append(whitespace(random)).append('}');
+
+        switch (random.nextInt(4)) {
+            case 0:
+                return "```json\n" + json + "\n```";
+            case 1:
+                return "Here you go:\n" + json + "\nThat should fix it.";
+            default:
+                return json.toString();
+        }
+    }
+
+    private static String randomValue(Random random) {
+        return random.nextInt(8) == 0 ? "null" : encode(randomText(random), random);
+    }
+
+    private static String randomText(Random random) {
+        StringBuilder text = new StringBuilder();
+        int pieces = random.nextInt(12);
+        for (int i = 0; i < pieces; i++) {
+            text.append(PIECES[random.nextInt(PIECES.length)]);
+        }
+        return text.toString();
+    }
+
+    // JSON string literal, with some characters escaped as \\uXXXX at random,
+    // including either half of a surrogate pair
+    private static String encode(String text, Random random) {
+        String quoted = JSONObject.quote(text);
+        StringBuilder out = new StringBuilder("\"");
+        String inner = quoted.substring(1, quoted.length() - 1);
+        for (int i = 0; i < inner.length(); i++) {
+            char c = inner.charAt(i);
+            if (c == '\\') {
+                // Keep existing escapes as they are
+                out.append(c).append(inner.charAt(++i));
+                if (inner.charAt(i) == 'u') {
+                    out.append(inner, i + 1, i + 5);
+                    i += 4;
+                }
+            } else if (random.nextInt(6) == 0) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"').toString();
+    }
+
+    private static String whitespace(Random random) {
+        return new String[] { "", " ", "\n  ", "\t" }[random.nextInt(4)];
+    }
+
+    private static List<String> randomSplit(String text, Random random) {
+        int count = text.isEmpty() ? 0 : random.nextInt(Math.min(text.length(), 12));
+        int[] points = new int[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = 1 + random.nextInt(Math.max(1, text.length() - 1));
+        }
+        java.util.Arrays.sort(points);
+        return split(text, points);
+    }
+
+    private static List<String> split(String text, int[] points) {
+        List<String> deltas = new ArrayList<>();
+        int start = 0;
+        for (int point : points) {
+            if (point > start && point < text.length()) {
+                deltas.add(text.substring(start, point));
+                start = point;
+            }
+        }
+        deltas.add(text.substring(start));
+        return deltas;
+    }
+
+    private static String quote(String text) {
+        return text == null ? "null" : JSONObject.quote(text);
+    }
+}
@@ -0,0 +1,107 @@
+#!/bin/bash
+
+# Runs programs headlessly on the connected device and pulls the timing report.
+# Usage: ./batch-run.sh [--sessions] [--screenshots] [--timeout-ms N]
+#                       [--baseline FILE [--threshold-percent N] [--update-baseline]]
+#                       [dir-with-clj-files]
+#
+# By default every .clj file in examples/ is pushed to the device and run.
+# With --sessions, the latest code of every saved design session is run instead.
+# With --baseline, phase timings are compared against FILE and the script exits
+# with status 1 if any phase regressed by more than the threshold (default 20%).
+# --update-baseline rewrites FILE from this run instead.
+
+ANDROID_PKG="com.example.clojurerepl"
+DEVICE_FILES_DIR="/sdcard/Android/data/$ANDROID_PKG/files"
+DEVICE_PROGRAM_DIR="$DEVICE_FILES_DIR/batch_programs"
+DEVICE_REPORT_DIR="$DEVICE_FILES_DIR/batch_reports"
+DEVICE_BASELINE="$DEVICE_FILES_DIR/startup_baseline.json"
+OUTPUT_DIR="batch_reports"
+
+sessions=false
+screenshots=false
+timeout_ms=30000
+program_dir="examples"
+baseline=""
+threshold_percent=20
+update_baseline=false
+
+while [ "$#" -gt 0 ]; do
+    case "$1" in
+        --sessions) sessions=true ;;
+        --screenshots) screenshots=true ;;
+        --timeout-ms) shift; timeout_ms="$1" ;;
+        --baseline) shift; baseline="$1" ;;
+        --threshold-percent) shift; threshold_percent="$1" ;;
+        --update-baseline) update_baseline=true ;;
+        *) program_dir="$1" ;;
+    esac
+    shift
+done
+
+if ! adb devices | grep -q "device$"; then
+    echo "ERROR: No Android device connected."
+    exit 1
+fi
+
+if [ "$sessions" = false ]; then
+    echo "Pushing programs from $program_dir..."
+    adb shell "rm -rf $DEVICE_PROGRAM_DIR && mkdir -p $DEVICE_PROGRAM_DIR"
+    for file in "$program_dir"/*.clj; do
+        adb push "$file" "$DEVICE_PROGRAM_DIR/" > /dev/null
+    done
+fi
+
+baseline_args=()
+if [ -n "$baseline" ]; then
+    adb shell "rm -f $DEVICE_BASELINE"
+    if [ -f "$baseline" ]; then
+        adb push "$baseline" "$DEVICE_BASELINE" > /dev/null
+    elif [ "$update_baseline" = false ]; then
+        echo "ERROR: Baseline $baseline not found; create it with --update-baseline"
+        exit 1
+    fi
+    baseline_args=(--es baseline "$DEVICE_BASELINE"
+        --ei threshold_percent "$threshold_percent"
+        --ez update_baseline "$update_baseline")
+fi
+
+before=$(adb shell "ls $DEVICE_REPORT_DIR/*.json 2>/dev/null" | tr -d '\r')
+
+echo "Starting batch run..."
+adb shell am start -n "$ANDROID_PKG/.BatchRunActivity" \
+    --ez sessions "$sessions" \
+    --ez screenshots "$screenshots" \
+    --el timeout_ms "$timeout_ms" \
+    "${baseline_args[@]}"
+
+# Wait for a new report to appear
+while true; do
+    sleep 5
+    after=$(adb shell "ls $DEVICE_REPORT_DIR/*.json 2>/dev/null" | tr -d '\r')
+    report=$(comm -13 <(echo "$before" | sort) <(echo "$after" | sort) | tail -n 1)
+    if [ -n "$report" ]; then
+        break
+    fi
+    echo "Waiting for batch to finish..."
+done
+
+mkdir -p "$OUTPUT_DIR"
+adb pull "$report" "$OUTPUT_DIR/" > /dev/null
+adb pull "${report%.json}.csv" "$OUTPUT_DIR/" > /dev/null
+local_report="$OUTPUT_DIR/$(basename "$report")"
+echo "Report saved to ${local_report%.json}.{csv,json}"
+
+if [ -n "$baseline" ]; then
+    if [ "$update_baseline" = true ]; then
+        adb pull "$DEVICE_BASELINE" "$baseline" > /dev/null
+        echo "Baseline updated: $baseline"
+    else
+        regressions=$(grep -o '"regressionCount": *[0-9]*' "$local_report" | grep -o '[0-9]*$')
+        if [ "${regressions:-0}" -gt 0 ]; then
+            echo "FAILED: $regressions phase regression(s) against $baseline, see $local_report"
+            exit 1
+        fi
+        echo "No regressions against $baseline"
+    fi
+fi
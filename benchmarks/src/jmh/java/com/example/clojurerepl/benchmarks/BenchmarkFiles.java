@@ -0,0 +1,21 @@
+package com.example.clojurerepl.benchmarks;
+
+import java.io.File;
+
+final class BenchmarkFiles {
+    private BenchmarkFiles() {
+    }
+
+    static void deleteRecursive(File fileOrDir) {
+        if (fileOrDir == null) {
+            return;
+        }
+        File[] children = fileOrDir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        fileOrDir.delete();
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.clojurerepl.benchmarks;
+
+import com.example.clojurerepl.pipeline.DexCacheStore;
+import com.example.clojurerepl.pipeline.DexPipeline;
+import com.example.clojurerepl.pipeline.JvmStandInDexLoader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The DEX cache paths RenderActivity takes: a miss runs every class through
+ * DexPipeline and writes the manifest; a hit validates the manifest and reads
+ * the DEX files back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DexCacheBenchmark {
+    // "all", or a comma-separated list of example file names
+    @Param({ "all" })
+    public String programs;
+
+    private List<ExampleCorpus.Program> corpus;
+    private ClassLoader baseLoader;
+    private File warmCacheDir;
+    private File missRoot;
+    private int run;
+
+    @Setup(Level.Trial)
+    public void populateCache() throws IOException {
+        corpus = ExampleCorpus.load(programs);
+        baseLoader = DexCacheBenchmark.class.getClassLoader();
+        warmCacheDir = Files.createTempDirectory("dex-cache-bench").toFile();
+        for (ExampleCorpus.Program program : corpus) {
+            runPipeline(program, warmCacheDir);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteCache() {
+        BenchmarkFiles.deleteRecursive(warmCacheDir);
+    }
+
+    @Setup(Level.Iteration)
+    public void createMissRoot() throws IOException {
+        missRoot = Files.createTempDirectory("dex-cache-miss").toFile();
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteMissRoot() {
+        BenchmarkFiles.deleteRecursive(missRoot);
+    }
+
+    @Benchmark
+    public int cacheMiss() {
+        File cacheDir = new File(missRoot, Integer.toString(run++));
+        int count = 0;
+        for (ExampleCorpus.Program program : corpus) {
+            count += runPipeline(program, cacheDir);
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int cacheHit() {
+        int count = 0;
+        for (ExampleCorpus.Program program : corpus) {
+            DexCacheStore store = new DexCacheStore(warmCacheDir, program.codeHash);
+            if (store.hasDexCache(program.codeHash)) {
+                ByteBuffer[] buffers = store.loadDexCaches(program.codeHash);
+                count += buffers != null ? buffers.length : 0;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int manifestValidation() {
+        int valid = 0;
+        for (ExampleCorpus.Program program : corpus) {
+            DexCacheStore store = new DexCacheStore(warmCacheDir, program.codeHash);
+            if (store.validateManifest(program.codeHash) == null) {
+                valid++;
+            }
+        }
+        return valid;
+    }
+
+    private int runPipeline(ExampleCorpus.Program program, File cacheDir) {
+        // DexPipeline looks classes up in, and installs its loader as, the
+        // context class loader
+        Thread.currentThread().setContextClassLoader(baseLoader);
+        DexCacheStore store = new DexCacheStore(cacheDir, program.codeHash);
+        DexPipeline pipeline = new DexPipeline(baseLoader, store, new JvmStandInDexLoader(), false);
+        for (Map.Entry<String, byte[]> entry : program.classes.entrySet()) {
+            pipeline.defineClass(entry.getKey(), entry.getValue());
+        }
+        store.generateManifest(program.codeHash, pipeline.getGeneratedClasses());
+        Thread.currentThread().setContextClassLoader(baseLoader);
+        return pipeline.getGeneratedClasses().size();
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.clojurerepl.benchmarks;
+
+import com.example.clojurerepl.pipeline.DexCompiler;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Per-class dexing, as RenderActivity does today (one D8 run per generated
+ * class), versus one D8 run per program.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DexingBenchmark {
+    // "all", or a comma-separated list of example file names
+    @Param({ "all" })
+    public String programs;
+
+    private List<ExampleCorpus.Program> corpus;
+    private File outputRoot;
+    private int run;
+
+    @Setup(Level.Trial)
+    public void loadCorpus() throws IOException {
+        corpus = ExampleCorpus.load(programs);
+    }
+
+    @Setup(Level.Iteration)
+    public void createOutputRoot() throws IOException {
+        outputRoot = Files.createTempDirectory("dexing-bench").toFile();
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteOutputRoot() {
+        BenchmarkFiles.deleteRecursive(outputRoot);
+    }
+
+    @Benchmark
+    public int perClass() throws Exception {
+        File runDir = new File(outputRoot, Integer.toString(run++));
+        int count = 0;
+        for (ExampleCorpus.Program program : corpus) {
+            for (Map.Entry<String, byte[]> entry : program.classes.entrySet()) {
+                File classDir = new File(runDir, program.codeHash + "/" + entry.getKey());
+                classDir.mkdirs();
+                DexCompiler.compileClass(entry.getValue(), classDir);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int batched() throws Exception {
+        File runDir = new File(outputRoot, Integer.toString(run++));
+        int count = 0;
+        for (ExampleCorpus.Program program : corpus) {
+            if (program.classes.isEmpty()) {
+                continue;
+            }
+            File programDir = new File(runDir, program.codeHash);
+            programDir.mkdirs();
+            DexCompiler.compileClasses(program.classes.values(), programDir);
+            count += program.classes.size();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.clojurerepl.benchmarks;
+
+import clojure.lang.Compiler;
+import clojure.lang.DynamicClassLoader;
+import clojure.lang.LineNumberingPushbackReader;
+import clojure.lang.LispReader;
+import clojure.lang.Namespace;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+import clojure.lang.Var;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles the programs in examples/ on the host JVM and records the class
+ * bytes the Clojure compiler generates for each, in definition order. These
+ * are the inputs the render process hands to the DEX pipeline.
+ *
+ * Top-level forms that call into Android fail on the host (the SDK stubs
+ * throw); such failures are counted and skipped, so the recorded classes are
+ * the ones generated before and around them.
+ */
+public final class ExampleCorpus {
+    private static final Object EOF = new Object();
+
+    public static final class Program {
+        public final String name;
+        public final String codeHash;
+        public final Map<String, byte[]> classes;
+        public final int failedForms;
+
+        Program(String name, String codeHash, Map<String, byte[]> classes, int failedForms) {
+            this.name = name;
+            this.codeHash = codeHash;
+            this.classes = Collections.unmodifiableMap(classes);
+            this.failedForms = failedForms;
+        }
+    }
+
+    private static List<Program> programs;
+
+    private ExampleCorpus() {
+    }
+
+    /**
+     * Returns the compiled programs, filtered by name. "all" selects every
+     * program; otherwise a comma-separated list of file names is expected.
+     */
+    public static synchronized List<Program> load(String selection) throws IOException {
+        if (programs == null) {
+            programs = compileAll(new File(System.getProperty("examples.dir", "examples")));
+        }
+        if ("all".equals(selection)) {
+            return programs;
+        }
+        Set<String> names = new HashSet<>(Arrays.asList(selection.split(",")));
+        List<Program> selected = new ArrayList<>();
+        for (Program program : programs) {
+            if (names.contains(program.name)) {
+                selected.add(program);
+            }
+        }
+        if (selected.isEmpty()) {
+            throw new IllegalArgumentException("No example programs match: " + selection);
+        }
+        return selected;
+    }
+
+    private static List<Program> compileAll(File examplesDir) throws IOException {
+        File[] files = examplesDir.listFiles((dir, name) -> name.endsWith(".clj"));
+        if (files == null || files.length == 0) {
+            throw new IOException("No .clj files in " + examplesDir.getAbsolutePath());
+        }
+        Arrays.sort(files);
+
+        RT.init();
+        // Vars RenderActivity binds for every program
+        for (String name : new String[] { "*context*", "*content-layout*", "*cache-dir*" }) {
+            Var.intern(RT.CLOJURE_NS, Symbol.intern(name), null).setDynamic(true);
+        }
+
+        List<Program> compiled = new ArrayList<>();
+        int totalClasses = 0;
+        for (File file : files) {
+            String code = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            Program program = compile(file.getName(), code);
+            totalClasses += program.classes.size();
+            compiled.add(program);
+        }
+        System.err.println("Compiled " + compiled.size() + " example programs into " + totalClasses + " classes");
+        return compiled;
+    }
+
+    private static Program compile(String name, String code) {
+        RecordingClassLoader loader = new RecordingClassLoader(ExampleCorpus.class.getClassLoader());
+        Namespace userNs = Namespace.findOrCreate(Symbol.intern("user"));
+        Var.pushThreadBindings(RT.mapUniqueKeys(
+                Compiler.LOADER, loader,
+                RT.CURRENT_NS, userNs));
+        int failedForms = 0;
+        try {
+            RT.var("clojure.core", "refer").invoke(Symbol.intern("clojure.core"));
+            loader.classes.clear();
+
+            LineNumberingPushbackReader reader = new LineNumberingPushbackReader(new StringReader(code));
+            while (true) {
+                Object form;
+                try {
+                    form = LispReader.read(reader, false, EOF, false);
+                } catch (Exception e) {
+                    failedForms++;
+                    break;
+                }
+                if (form == EOF) {
+                    break;
+                }
+                try {
+                    Compiler.eval(form);
+                } catch (Throwable t) {
+                    failedForms++;
+                }
+            }
+        } finally {
+            Var.popThreadBindings();
+        }
+        return new Program(name, codeHash(code), new LinkedHashMap<>(loader.classes), failedForms);
+    }
+
+    private static String codeHash(String code) {
+        try {
+            byte[] hash = java.security.MessageDigest.getInstance("SHA-256")
+                    .digest(code.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (java.security.NoSuchAlgorithmException e) {
+            return Integer.toHexString(code.hashCode());
+        }
+    }
+
+    private static class RecordingClassLoader extends DynamicClassLoader {
+        final Map<String, byte[]> classes = new LinkedHashMap<>();
+
+        RecordingClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        public Class defineClass(String name, byte[] bytes, Object srcForm) {
+            classes.put(name, bytes);
+            return super.defineClass(name, bytes, srcForm);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.example.clojurerepl.benchmarks;
+
+import clojure.lang.Compiler;
+import clojure.lang.DynamicClassLoader;
+import clojure.lang.LineNumberingPushbackReader;
+import clojure.lang.LispReader;
+import clojure.lang.RT;
+import clojure.lang.Var;
+import com.example.clojurerepl.pipeline.ClojureStartup;
+import com.example.clojurerepl.pipeline.DexCacheStore;
+import com.example.clojurerepl.pipeline.DexMemo;
+import com.example.clojurerepl.pipeline.DexPipeline;
+import com.example.clojurerepl.pipeline.JvmStandInDexLoader;
+import com.example.clojurerepl.pipeline.StartupBaseline;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a program through the startup phases of RenderActivity on the host
+ * JVM: "RT init", "ClassLoader", "Vars setup", "Env init" (all ClojureStartup,
+ * the code RenderActivity runs) and "Eval". Every
+ * class the compiler generates goes through the same patched
+ * DynamicClassLoader delegate and DexPipeline as on the device, with D8 and a
+ * DEX cache, and JvmStandInDexLoader as the final loading step.
+ *
+ * Like the render process, each program runs in its own JVM, see
+ * runForked(), with an empty DEX cache and DEX memo, so every run is a cold
+ * start. Forms that call into Android fail on the host (the SDK stubs throw);
+ * a run with failing forms gets status "failed forms", which keeps it out of
+ * the baseline, since it did not time the whole program. -main is not invoked.
+ */
+public final class StartupHarness {
+    private static final Object EOF = new Object();
+    // Prefix of the lines the forked JVM reports on; programs may print too
+    private static final String REPORT_PREFIX = "##startup ";
+    public static final String STATUS_FAILED_FORMS = "failed forms";
+
+    /**
+     * What was observed while running one program.
+     */
+    public static final class Result implements StartupBaseline.Result {
+        final String name;
+        final Map<String, Long> timings = new LinkedHashMap<>();
+        final Map<String, Long> metrics = new LinkedHashMap<>();
+        String status = StartupBaseline.STATUS_OK;
+        String error;
+
+        Result(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getStatus() {
+            return status;
+        }
+
+        @Override
+        public Map<String, Long> getTimings() {
+            return timings;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + status + " " + timings + " " + metrics + (error != null ? " " + error : "");
+        }
+    }
+
+    /**
+     * Handed to the patched DynamicClassLoader, which calls defineClass()
+     * reflectively, like AndroidClassLoaderDelegate in the app.
+     */
+    public static final class PipelineDelegate {
+        private final DexPipeline pipeline;
+
+        PipelineDelegate(DexPipeline pipeline) {
+            this.pipeline = pipeline;
+        }
+
+        public Class<?> defineClass(String name, byte[] bytes) {
+            return pipeline.defineClass(name, bytes);
+        }
+    }
+
+    private StartupHarness() {
+    }
+
+    /**
+     * Returns the .clj files in dir, sorted, filtered by name. "all" selects
+     * every program; otherwise a comma-separated list of file names.
+     */
+    public static List<File> listPrograms(File dir, String selection) throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".clj"));
+        if (files == null || files.length == 0) {
+            throw new IOException("No .clj files in " + dir.getAbsolutePath());
+        }
+        Arrays.sort(files);
+        if ("all".equals(selection)) {
+            return Arrays.asList(files);
+        }
+        List<String> names = Arrays.asList(selection.split(","));
+        List<File> selected = new ArrayList<>();
+        for (File file : files) {
+            if (names.contains(file.getName())) {
+                selected.add(file);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Runs the program in a new JVM with the given classpath and a fresh work
+     * directory, and collects what it reports.
+     */
+    public static Result runForked(File program, String classpath, long timeoutMs)
+            throws IOException, InterruptedException {
+        Result result = new Result(program.getName());
+        File workDir = Files.createTempDirectory("startup").toFile();
+        String java = new File(System.getProperty("java.home"), "bin/java").getAbsolutePath();
+        Process process = new ProcessBuilder(java, "-cp", classpath, StartupHarness.class.getName(),
+                program.getAbsolutePath(), workDir.getAbsolutePath())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        List<String> lines = new ArrayList<>();
+        Thread reader = new Thread(() -> {
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith(REPORT_PREFIX)) {
+                        synchronized (lines) {
+                            lines.add(line.substring(REPORT_PREFIX.length()));
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // The process was killed
+            }
+        });
+        reader.start();
+        try {
+            if (!process.waitFor(timeoutMs, TimeUnit.MILLISECONDS)) {
+                process.destroyForcibly().waitFor();
+                result.status = "timeout";
+            } else if (process.exitValue() != 0) {
+                result.status = "error";
+            }
+            reader.join();
+        } finally {
+            deleteRecursive(workDir);
+        }
+
+        synchronized (lines) {
+            for (String line : lines) {
+                String[] parts = line.split("\t", 3);
+                if (parts[0].equals("timing") && parts.length == 3) {
+                    result.timings.put(parts[1], Long.parseLong(parts[2]));
+                } else if (parts[0].equals("metric") && parts.length == 3) {
+                    result.metrics.put(parts[1], Long.parseLong(parts[2]));
+                } else if (parts[0].equals("error") && parts.length >= 2) {
+                    result.error = parts[1];
+                }
+            }
+        }
+        Long failedForms = result.metrics.get("Failed forms");
+        if (StartupBaseline.STATUS_OK.equals(result.status) && failedForms != null && failedForms > 0) {
+            result.status = STATUS_FAILED_FORMS;
+        }
+        return result;
+    }
+
+    /**
+     * Entry point of the forked JVM: program file, work directory.
+     */
+    public static void main(String[] args) throws Exception {
+        File programFile = new File(args[0]);
+        File workDir = new File(args[1]);
+        String code = new String(Files.readAllBytes(programFile.toPath()), StandardCharsets.UTF_8);
+        try {
+            run(code, workDir);
+        } catch (Throwable t) {
+            report("error", String.valueOf(t).replace('\n', ' '));
+            System.out.flush();
+            System.exit(1);
+        }
+        System.out.flush();
+        // Programs may have started threads
+        System.exit(0);
+    }
+
+    private static void run(String code, File workDir) throws Exception {
+        long rtStartTime = System.currentTimeMillis();
+        ClojureStartup.initRuntime();
+        reportTiming("RT init", rtStartTime);
+
+        long classLoaderStartTime = System.currentTimeMillis();
+        DynamicClassLoader clojureClassLoader = ClojureStartup.createClassLoader(
+                StartupHarness.class.getClassLoader());
+        reportTiming("ClassLoader", classLoaderStartTime);
+
+        long varsStartTime = System.currentTimeMillis();
+        // There is no activity or layout on the host
+        ClojureStartup.setupVars(null, null, new File(workDir, "app_cache").getAbsolutePath());
+        reportTiming("Vars setup", varsStartTime);
+
+        long envStartTime = System.currentTimeMillis();
+        ClojureStartup.initEnvironment();
+        reportTiming("Env init", envStartTime);
+
+        // The same class definition path as RenderActivity.renderCode()
+        String codeHash = codeHash(code);
+        DexCacheStore cacheStore = new DexCacheStore(new File(workDir, "clojure_bytecode"), codeHash);
+        DexPipeline pipeline = new DexPipeline(clojureClassLoader, cacheStore, new JvmStandInDexLoader(), false);
+        pipeline.setDexMemo(new DexMemo(new File(workDir, "dex_memo")));
+        // The patched DynamicClassLoader only uses the delegate on Android
+        Field isAndroid = DynamicClassLoader.class.getDeclaredField("isAndroid");
+        isAndroid.setAccessible(true);
+        isAndroid.set(null, true);
+        DynamicClassLoader.setAndroidDelegate(new PipelineDelegate(pipeline));
+
+        int failedForms = 0;
+        Var.pushThreadBindings(RT.map(
+                RT.var("clojure.core", "*context*"), null,
+                RT.var("clojure.core", "*content-layout*"), null));
+        try {
+            long evalStartTime = System.currentTimeMillis();
+            LineNumberingPushbackReader reader = new LineNumberingPushbackReader(new StringReader(code));
+            while (true) {
+                Object form = LispReader.read(reader, false, EOF, false);
+                if (form == EOF) {
+                    break;
+                }
+                try {
+                    Compiler.eval(form);
+                } catch (Throwable t) {
+                    failedForms++;
+                }
+            }
+            reportTiming("Eval", evalStartTime);
+        } finally {
+            Var.popThreadBindings();
+        }
+
+        report("metric", "Generated classes\t" + pipeline.getGeneratedClasses().size());
+        report("metric", "Memoized DEX classes\t" + pipeline.getMemoHits());
+        report("metric", "Failed forms\t" + failedForms);
+    }
+
+    private static void reportTiming(String phase, long startTime) {
+        report("timing", phase + "\t" + (System.currentTimeMillis() - startTime));
+    }
+
+    private static void report(String kind, String value) {
+        System.out.println(REPORT_PREFIX + kind + "\t" + value);
+    }
+
+    private static void deleteRecursive(File fileOrDir) {
+        File[] children = fileOrDir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        fileOrDir.delete();
+    }
+
+    private static String codeHash(String code) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(code.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(code.hashCode());
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.clojurerepl.benchmarks;
+
+import static org.junit.Assert.assertTrue;
+
+import com.example.clojurerepl.pipeline.StartupBaseline;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Runs examples/ through the RenderActivity startup phases on the host JVM,
+ * see StartupHarness, and fails when a phase regressed against the baseline
+ * file beyond the threshold, or when a program that passed in the baseline
+ * now fails, times out or has failing forms. Run with
+ * ./gradlew :benchmarks:startupTest; the task passes the system properties
+ * below.
+ *
+ * - startup.baseline: the baseline file
+ * - startup.updateBaseline: rewrite the baseline from this run instead
+ * - startup.thresholdPercent, startup.minDeltaMs: see StartupBaseline
+ * - startup.programs: "all" or a comma-separated list of file names
+ */
+public class StartupPhaseTest {
+    private static final long TIMEOUT_MS = 120000;
+
+    @Test
+    public void startupPhasesStayWithinBaseline() throws Exception {
+        File examplesDir = new File(System.getProperty("examples.dir", "examples"));
+        String classpath = System.getProperty("startup.classpath", System.getProperty("java.class.path"));
+        File baselineFile = new File(System.getProperty("startup.baseline", "startup-baseline.json"));
+        int thresholdPercent = Integer.getInteger("startup.thresholdPercent",
+                StartupBaseline.DEFAULT_THRESHOLD_PERCENT);
+        long minDeltaMs = Long.getLong("startup.minDeltaMs", StartupBaseline.DEFAULT_MIN_DELTA_MS);
+
+        List<StartupHarness.Result> results = new ArrayList<>();
+        for (File program : StartupHarness.listPrograms(examplesDir, System.getProperty("startup.programs", "all"))) {
+            StartupHarness.Result result = StartupHarness.runForked(program, classpath, TIMEOUT_MS);
+            System.out.println(result);
+            results.add(result);
+        }
+
+        if (Boolean.getBoolean("startup.updateBaseline")) {
+            StartupBaseline.fromResults(results).write(baselineFile);
+            System.out.println("Baseline updated: " + baselineFile.getAbsolutePath());
+            return;
+        }
+        StartupBaseline baseline = StartupBaseline.load(baselineFile);
+        Assume.assumeFalse("No baseline at " + baselineFile.getAbsolutePath() + "; record one with -PupdateBaseline",
+                baseline.isEmpty());
+        List<String> regressions = baseline.findRegressions(results, thresholdPercent, minDeltaMs);
+        assertTrue("Startup phases regressed by more than " + thresholdPercent + "%:\n"
+                + String.join("\n", regressions), regressions.isEmpty());
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.clojurerepl.pipeline;
+
+import clojure.lang.DynamicClassLoader;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+import clojure.lang.Var;
+
+/**
+ * The startup phases of a render process before it evaluates a program:
+ * "RT init", "ClassLoader", "Vars setup" and "Env init". RenderActivity runs
+ * them on the device and StartupHarness on the host JVM, so both time the
+ * same code.
+ */
+public final class ClojureStartup {
+    private ClojureStartup() {
+    }
+
+    /**
+     * Loads clojure.core, with spec checks of macros off.
+     */
+    public static void initRuntime() {
+        System.setProperty("clojure.spec.skip-macros", "true");
+        System.setProperty("clojure.spec.compile-asserts", "false");
+        RT.init();
+    }
+
+    /**
+     * Creates the class loader of the program's classes and makes it the
+     * context class loader of the current thread.
+     */
+    public static DynamicClassLoader createClassLoader(ClassLoader parent) {
+        DynamicClassLoader classLoader = new DynamicClassLoader(parent);
+        Thread.currentThread().setContextClassLoader(classLoader);
+        return classLoader;
+    }
+
+    /**
+     * Makes *context*, *content-layout* and *cache-dir* dynamic and binds
+     * their roots.
+     */
+    public static void setupVars(Object context, Object contentLayout, String cacheDir) {
+        Var contextVar = RT.var("clojure.core", "*context*");
+        Var contentLayoutVar = RT.var("clojure.core", "*content-layout*");
+        Var cacheDirVar = RT.var("clojure.core", "*cache-dir*");
+
+        contextVar.setDynamic(true);
+        contentLayoutVar.setDynamic(true);
+        cacheDirVar.setDynamic(true);
+
+        contextVar.bindRoot(context);
+        contentLayoutVar.bindRoot(contentLayout);
+        cacheDirVar.bindRoot(cacheDir);
+    }
+
+    /**
+     * Creates the user namespace, if needed, and refers clojure.core in it.
+     */
+    public static void initEnvironment() {
+        Object userNS = RT.var("clojure.core", "find-ns").invoke(Symbol.intern("user"));
+        if (userNS == null) {
+            userNS = RT.var("clojure.core", "create-ns").invoke(Symbol.intern("user"));
+        }
+        Var.pushThreadBindings(RT.map(RT.var("clojure.core", "*ns*"), userNS));
+        try {
+            RT.var("clojure.core", "refer").invoke(Symbol.intern("clojure.core"));
+        } finally {
+            Var.popThreadBindings();
+        }
+    }
+}
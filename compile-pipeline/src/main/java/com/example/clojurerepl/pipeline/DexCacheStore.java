@@ -0,0 +1,271 @@
+package com.example.clojurerepl.pipeline;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * On-disk DEX cache for the classes generated by one program. The layout is
+ *
+ * cacheDir/codeHash/classes.manifest
+ * cacheDir/codeHash/className/classes.dex
+ *
+ * The manifest lists the generated classes and is written once a program has
+ * been evaluated completely; a cache without a matching manifest is invalid.
+ */
+public class DexCacheStore {
+    private static final String TAG = "BytecodeCache";
+    private static final String MANIFEST_FILENAME = "classes.manifest";
+
+    private final File cacheDir;
+    private final String codeHash;
+
+    public DexCacheStore(File cacheDir, String codeHash) {
+        this.cacheDir = cacheDir;
+        this.codeHash = codeHash;
+        if (!cacheDir.exists()) {
+            cacheDir.mkdirs();
+        }
+    }
+
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    public File createPathToDexFile(String className) {
+        File hashDir = new File(cacheDir, codeHash);
+        File classDir = new File(hashDir, className);
+        File dexFile = new File(classDir, DexCompiler.DEX_FILENAME);
+
+        if (dexFile.exists()) {
+            throw new IllegalStateException("DEX file already exists at: " + dexFile.getAbsolutePath());
+        }
+
+        if (!classDir.exists()) {
+            classDir.mkdirs();
+        }
+        return classDir;
+    }
+
+    /**
+     * Checks that the manifest and the class directories of the given hash
+     * match exactly.
+     *
+     * @return null if the cache is valid, otherwise the reason it is not
+     */
+    public String validateManifest(String codeHash) {
+        File hashDir = new File(cacheDir, codeHash);
+        File manifestFile = new File(hashDir, MANIFEST_FILENAME);
+        if (!manifestFile.exists()) {
+            return "Hash directory '" + hashDir.getAbsolutePath() + "' exists but no manifest file found for: "
+                    + codeHash;
+        }
+        // Read manifest file and verify all classes exist
+        try {
+            Set<String> manifestClasses = new HashSet<>();
+            try (BufferedReader reader = new BufferedReader(new FileReader(manifestFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    manifestClasses.add(line.trim());
+                }
+            }
+
+            // Get actual class directories
+            Set<String> actualClasses = new HashSet<>();
+            File[] classDirs = hashDir.listFiles(File::isDirectory);
+            if (classDirs != null) {
+                for (File classDir : classDirs) {
+                    // Verify each class directory has exactly one file - DEX_FILENAME
+                    File[] files = classDir.listFiles();
+                    if (files == null || files.length != 1
+                            || !files[0].getName().equals(DexCompiler.DEX_FILENAME)) {
+                        return "Class directory " + classDir.getName() + " does not contain exactly one "
+                                + DexCompiler.DEX_FILENAME + " file";
+                    }
+                    actualClasses.add(classDir.getName());
+                }
+            }
+
+            // Verify manifest classes exist in directory
+            for (String className : manifestClasses) {
+                if (!actualClasses.contains(className)) {
+                    return "Class " + className + " in manifest but missing from directory";
+                }
+            }
+
+            // Verify directory classes exist in manifest
+            for (String className : actualClasses) {
+                if (!manifestClasses.contains(className)) {
+                    return "Class " + className + " in directory but missing from manifest";
+                }
+            }
+        } catch (IOException e) {
+            PipelineLog.e(TAG, "Error reading manifest file", e);
+            return "Error reading manifest file: " + e.getMessage();
+        }
+        return null;
+    }
+
+    // Check if a DEX cache exists for this code hash
+    public boolean hasDexCache(String codeHash) {
+        File hashDir = new File(cacheDir, codeHash);
+        if (hashDir.exists() && hashDir.isDirectory()) {
+            String problem = validateManifest(codeHash);
+            if (problem == null) {
+                return true;
+            }
+            PipelineLog.w(TAG, problem);
+
+            // Clear the cache for this hash and return false. This way we will
+            // force a re-generation of the cache.
+            clearCacheForHash(codeHash);
+            return false;
+        }
+        PipelineLog.d(TAG, "Hash directory '" + hashDir.getAbsolutePath() + "' does not exist for: " + codeHash);
+        return false;
+    }
+
+    // Load DEX from cache
+    public ByteBuffer[] loadDexCaches(String codeHash) {
+        File hashDir = new File(cacheDir, codeHash);
+        if (hashDir.exists() && hashDir.isDirectory()) {
+            File[] classDirs = hashDir.listFiles(File::isDirectory);
+            if (classDirs != null && classDirs.length > 0) {
+                List<ByteBuffer> bufferList = new ArrayList<>();
+
+                for (File classDir : classDirs) {
+                    File dexFile = new File(classDir, DexCompiler.DEX_FILENAME);
+                    if (dexFile.exists()) {
+                        try (FileInputStream fis = new FileInputStream(dexFile)) {
+                            byte[] buffer = new byte[(int) dexFile.length()];
+                            fis.read(buffer);
+
+                            ByteBuffer byteBuffer = ByteBuffer.allocateDirect(buffer.length);
+                            byteBuffer.put(buffer);
+                            byteBuffer.rewind();
+
+                            bufferList.add(byteBuffer);
+                            PipelineLog.d(TAG, "Loaded DEX file for class " + classDir.getName() +
+                                    ", size: " + buffer.length);
+                        } catch (IOException e) {
+                            PipelineLog.e(TAG, "Error loading DEX file: " + dexFile.getAbsolutePath(), e);
+                        }
+                    }
+                }
+
+                if (!bufferList.isEmpty()) {
+                    return bufferList.toArray(new ByteBuffer[0]);
+                }
+            }
+        }
+
+        PipelineLog.e(TAG, "No DEX files found for hash: " + codeHash, null);
+        return null;
+    }
+
+    // Generate a manifest file for the given code hash and a list of generated
+    // classes
+    public void generateManifest(String codeHash, List<String> generatedClasses) {
+        // The path is cacheDir/codeHash/classes.manifest
+        PipelineLog.d(TAG, "Generating manifest for code hash: " + codeHash);
+        File hashDir = new File(cacheDir, codeHash);
+        File manifestFile = new File(hashDir, MANIFEST_FILENAME);
+        try (FileOutputStream fos = new FileOutputStream(manifestFile)) {
+            for (String className : generatedClasses) {
+                fos.write((className + "\n").getBytes());
+            }
+        } catch (IOException e) {
+            PipelineLog.e(TAG, "Error writing manifest file: " + manifestFile.getAbsolutePath(), e);
+        }
+    }
+
+    // Helper method to recursively delete directories
+    private static boolean deleteRecursive(File fileOrDir) {
+        if (fileOrDir.isDirectory()) {
+            File[] children = fileOrDir.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    deleteRecursive(child);
+                }
+            }
+        }
+        return fileOrDir.delete();
+    }
+
+    // Clear all cache files
+    public void clearCache() {
+        int count = 0;
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (deleteRecursive(file)) {
+                    count++;
+                }
+            }
+        }
+        PipelineLog.d(TAG, "Cleared " + count + " entries from cache");
+    }
+
+    // Add a method to clear the cache for a specific hash
+    public void clearCacheForHash(String codeHash) {
+        PipelineLog.d(TAG, "Clearing cache for hash: " + codeHash);
+
+        File hashDir = new File(cacheDir, codeHash);
+        if (hashDir.exists() && hashDir.isDirectory()) {
+            if (deleteRecursive(hashDir)) {
+                PipelineLog.d(TAG, "Deleted hash directory: " + hashDir.getPath());
+            }
+        }
+    }
+
+    public int getClassCount() {
+        // Check if cache directory exists
+        File hashDir = new File(cacheDir, codeHash);
+        if (!hashDir.exists()) {
+            return 0;
+        }
+
+        // Count class directories (each containing a .dex file)
+        File[] classDirs = hashDir.listFiles(File::isDirectory);
+        return classDirs != null ? classDirs.length : 0;
+    }
+
+    public long getCacheSize() {
+        File hashDir = new File(cacheDir, codeHash);
+        if (!hashDir.exists()) {
+            return 0L;
+        }
+
+        long totalSize = 0;
+        // Calculate size by summing up all files in all subdirectories
+        File[] classDirs = hashDir.listFiles(File::isDirectory);
+        if (classDirs != null) {
+            for (File classDir : classDirs) {
+                File[] files = classDir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (file.isFile()) {
+                            totalSize += file.length();
+                        }
+                    }
+                }
+            }
+        }
+
+        // Add manifest file size if it exists
+        File manifestFile = new File(hashDir, MANIFEST_FILENAME);
+        if (manifestFile.exists()) {
+            totalSize += manifestFile.length();
+        }
+
+        return totalSize;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.clojurerepl.pipeline;
+
+import com.android.tools.r8.CompilationFailedException;
+import com.android.tools.r8.CompilationMode;
+import com.android.tools.r8.D8;
+import com.android.tools.r8.D8Command;
+import com.android.tools.r8.OutputMode;
+import com.android.tools.r8.origin.Origin;
+import java.io.File;
+import java.util.Collection;
+
+/**
+ * Converts JVM class bytes to DEX with D8.
+ */
+public final class DexCompiler {
+    // This name must not change. It's the output of the D8 tool and the name
+    // the cache looks for.
+    public static final String DEX_FILENAME = "classes.dex";
+
+    private DexCompiler() {
+    }
+
+    /**
+     * Dexes a single class into outputDir/classes.dex.
+     */
+    public static void compileClass(byte[] classBytes, File outputDir) throws CompilationFailedException {
+        D8.run(newBuilder(outputDir)
+                .addClassProgramData(classBytes, Origin.unknown())
+                .build());
+    }
+
+    /**
+     * Dexes several classes in one D8 run. Output goes to
+     * outputDir/classes.dex (and classes2.dex... if the method limit is hit).
+     */
+    public static void compileClasses(Collection<byte[]> classes, File outputDir)
+            throws CompilationFailedException {
+        D8Command.Builder builder = newBuilder(outputDir);
+        for (byte[] classBytes : classes) {
+            builder.addClassProgramData(classBytes, Origin.unknown());
+        }
+        D8.run(builder.build());
+    }
+
+    private static D8Command.Builder newBuilder(File outputDir) {
+        return D8Command.builder()
+                .setMode(CompilationMode.DEBUG)
+                .setOutput(outputDir.toPath(), OutputMode.DexIndexed)
+                .setEnableDesugaring(false);
+    }
+}
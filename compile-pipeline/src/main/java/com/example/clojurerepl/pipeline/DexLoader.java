@@ -0,0 +1,21 @@
+package com.example.clojurerepl.pipeline;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Final step of the pipeline: makes a freshly dexed class loadable. On
+ * Android this builds an InMemoryDexClassLoader over the DEX buffers; on a
+ * plain JVM, where DEX cannot be loaded, {@link JvmStandInDexLoader} defines
+ * the original class bytes instead.
+ */
+public interface DexLoader {
+    /**
+     * @param className  The class that was just dexed
+     * @param classBytes Its JVM bytecode
+     * @param dexBuffers Every DEX produced so far, newest last
+     * @param parent     Parent of the returned loader
+     * @return A loader from which className can be loaded
+     */
+    ClassLoader load(String className, byte[] classBytes, List<ByteBuffer> dexBuffers, ClassLoader parent);
+}
@@ -0,0 +1,119 @@
+package com.example.clojurerepl.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Content-addressed store of dexed classes, shared by all programs and
+ * processes. Entries are keyed by a hash of the JVM class bytes, so a class
+ * the Clojure compiler generates again with identical bytes (same form, same
+ * generated name) is copied instead of run through D8. The layout is
+ *
+ * memoDir/sha256OfClassBytes.dex
+ *
+ * Entries are written to a temporary file and renamed into place, so
+ * processes filling the memo concurrently never see a partial entry.
+ */
+public class DexMemo {
+    private static final String TAG = "DexMemo";
+    private static final String SUFFIX = ".dex";
+
+    private final File memoDir;
+
+    public DexMemo(File memoDir) {
+        this.memoDir = memoDir;
+        if (!memoDir.exists()) {
+            memoDir.mkdirs();
+        }
+    }
+
+    /**
+     * Copies the memoized DEX of the class to outputDir/classes.dex.
+     *
+     * @return false if the class is not in the memo
+     */
+    public boolean copyTo(byte[] classBytes, File outputDir) {
+        File entry = new File(memoDir, key(classBytes) + SUFFIX);
+        if (!entry.exists()) {
+            return false;
+        }
+        try {
+            Files.copy(entry.toPath(), new File(outputDir, DexCompiler.DEX_FILENAME).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            // Pruning removes the least recently used entries first
+            entry.setLastModified(System.currentTimeMillis());
+            return true;
+        } catch (IOException e) {
+            PipelineLog.e(TAG, "Error copying memoized DEX " + entry.getName(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Adds the DEX D8 produced for the class.
+     */
+    public void put(byte[] classBytes, File dexFile) {
+        File entry = new File(memoDir, key(classBytes) + SUFFIX);
+        if (entry.exists()) {
+            return;
+        }
+        try {
+            File temp = File.createTempFile("memo", ".tmp", memoDir);
+            Files.copy(dexFile.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            if (!temp.renameTo(entry)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            PipelineLog.e(TAG, "Error memoizing DEX " + dexFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Deletes every entry, e.g. so the next run starts cold.
+     */
+    public void clear() {
+        File[] entries = memoDir.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (entries == null) {
+            return;
+        }
+        for (File entry : entries) {
+            entry.delete();
+        }
+        PipelineLog.d(TAG, "Cleared " + entries.length + " entries");
+    }
+
+    /**
+     * Deletes the least recently used entries beyond maxEntries.
+     */
+    public void prune(int maxEntries) {
+        File[] entries = memoDir.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (entries == null || entries.length <= maxEntries) {
+            return;
+        }
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        int toDelete = entries.length - maxEntries;
+        for (int i = 0; i < toDelete; i++) {
+            entries[i].delete();
+        }
+        PipelineLog.d(TAG, "Pruned " + toDelete + " entries, " + maxEntries + " left");
+    }
+
+    static String key(byte[] classBytes) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(classBytes);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.clojurerepl.pipeline;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns classes generated by the Clojure compiler into loadable classes:
+ * bytecode is dexed by D8 straight into the DEX cache, and the resulting DEX
+ * is handed to a {@link DexLoader}. Has no Android dependencies, so it can be
+ * driven from a plain JVM.
+ */
+public class DexPipeline {
+    private static final String TAG = "ClojureREPLClassCallback";
+
+    private final ClassLoader parent;
+    private final DexCacheStore cacheStore;
+    private final DexLoader dexLoader;
+    private final boolean hasCompleteCache;
+
+    private final List<ByteBuffer> dexBuffers = new ArrayList<>();
+    private ClassLoader currentLoader;
+    private final List<String> generatedClasses = new ArrayList<>();
+    private DexMemo dexMemo;
+    private int memoHits = 0;
+
+    public DexPipeline(ClassLoader parent, DexCacheStore cacheStore, DexLoader dexLoader,
+            boolean hasCompleteCache) {
+        this.parent = parent;
+        this.cacheStore = cacheStore;
+        this.dexLoader = dexLoader;
+        this.hasCompleteCache = hasCompleteCache;
+        this.currentLoader = parent;
+    }
+
+    /**
+     * Reuses DEX from the memo for classes whose bytes were dexed before, and
+     * adds the classes dexed here to it.
+     */
+    public void setDexMemo(DexMemo dexMemo) {
+        this.dexMemo = dexMemo;
+    }
+
+    public Class<?> defineClass(String name, byte[] bytes) {
+        ClassLoader contextLoader = Thread.currentThread().getContextClassLoader();
+
+        try {
+            // First check if the class is already defined in current classloader
+            try {
+                Class<?> existing = contextLoader.loadClass(name);
+                if (existing != null) {
+                    PipelineLog.d(TAG, "Found class in current loader: " + name);
+                    return existing;
+                }
+            } catch (ClassNotFoundException ignored) {
+                if (hasCompleteCache) {
+                    PipelineLog.w(TAG, "Class not found in current loader (type " +
+                            contextLoader.getClass().getName() + "): " + name);
+                }
+                // Expected - will proceed with defining the class if we do not have a
+                // complete cache already.
+            }
+
+            // Convert JVM bytecode to DEX using D8, directly into the cache
+            File dexPath = cacheStore.createPathToDexFile(name);
+            if (dexMemo != null && dexMemo.copyTo(bytes, dexPath)) {
+                memoHits++;
+            } else {
+                DexCompiler.compileClass(bytes, dexPath);
+                if (dexMemo != null) {
+                    dexMemo.put(bytes, new File(dexPath, DexCompiler.DEX_FILENAME));
+                }
+            }
+
+            // Read the generated DEX file
+            byte[] dexBytes = Files.readAllBytes(new File(dexPath, DexCompiler.DEX_FILENAME).toPath());
+
+            // Save the class name. We will use the list of generated classes in the
+            // .manifest file later.
+            generatedClasses.add(name);
+
+            PipelineLog.d(TAG, "Captured DEX for class: " + name + ", size: " +
+                    dexBytes.length + " bytes (total classes: " +
+                    generatedClasses.size() + ")");
+
+            // Create a ByteBuffer containing the DEX bytes
+            ByteBuffer buffer = ByteBuffer.allocate(dexBytes.length);
+            buffer.put(dexBytes);
+            buffer.position(0);
+
+            // Update class loader with new DEX
+            dexBuffers.add(buffer);
+            currentLoader = dexLoader.load(name, bytes, dexBuffers, parent);
+            Thread.currentThread().setContextClassLoader(currentLoader);
+
+            // Load the class from the updated loader
+            Class<?> clazz = currentLoader.loadClass(name);
+
+            PipelineLog.d(TAG, "Successfully defined class: " + name);
+
+            return clazz;
+        } catch (Exception e) {
+            PipelineLog.e(TAG, "Error defining class: " + name, e);
+            throw new RuntimeException("Failed to define class: " + name, e);
+        }
+    }
+
+    public List<String> getGeneratedClasses() {
+        return generatedClasses;
+    }
+
+    /**
+     * @return The number of generated classes whose DEX came from the memo
+     */
+    public int getMemoHits() {
+        return memoHits;
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.clojurerepl.pipeline;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * DexLoader for running the pipeline on a plain JVM. The DEX output is
+ * ignored and the JVM bytecode is defined in a single child loader, so the
+ * cost measured for this step is the JVM's, not ART's.
+ */
+public class JvmStandInDexLoader implements DexLoader {
+    private StandInClassLoader loader;
+
+    @Override
+    public ClassLoader load(String className, byte[] classBytes, List<ByteBuffer> dexBuffers, ClassLoader parent) {
+        if (loader == null || loader.getParent() != parent) {
+            loader = new StandInClassLoader(parent);
+        }
+        loader.define(className, classBytes);
+        return loader;
+    }
+
+    private static class StandInClassLoader extends ClassLoader {
+        StandInClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        void define(String name, byte[] bytes) {
+            defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
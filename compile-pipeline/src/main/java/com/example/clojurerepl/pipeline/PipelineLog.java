@@ -0,0 +1,56 @@
+package com.example.clojurerepl.pipeline;
+
+/**
+ * Logging for the pipeline classes, which cannot use android.util.Log since
+ * they also run on a plain JVM. The app installs a sink that forwards to
+ * logcat; the default sink prints warnings and errors to System.err.
+ */
+public final class PipelineLog {
+    public interface Sink {
+        void d(String tag, String message);
+
+        void w(String tag, String message);
+
+        void e(String tag, String message, Throwable throwable);
+    }
+
+    private static final Sink STDERR_SINK = new Sink() {
+        @Override
+        public void d(String tag, String message) {
+        }
+
+        @Override
+        public void w(String tag, String message) {
+            System.err.println("W/" + tag + ": " + message);
+        }
+
+        @Override
+        public void e(String tag, String message, Throwable throwable) {
+            System.err.println("E/" + tag + ": " + message);
+            if (throwable != null) {
+                throwable.printStackTrace();
+            }
+        }
+    };
+
+    private static volatile Sink sink = STDERR_SINK;
+
+    private PipelineLog() {
+    }
+
+    public static void setSink(Sink newSink) {
+        sink = newSink != null ? newSink : STDERR_SINK;
+    }
+
+    static void d(String tag, String message) {
+        sink.d(tag, message);
+    }
+
+    static void w(String tag, String message) {
+        sink.w(tag, message);
+    }
+
+    static void e(String tag, String message, Throwable throwable) {
+        sink.e(tag, message, throwable);
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.clojurerepl.pipeline;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recorded startup phase timings ("RT init", "ClassLoader", "Vars setup",
+ * "Env init", "Eval") per program, used to flag regressions in batch runs.
+ * A phase regresses when it is slower than its baseline by more than both
+ * the relative threshold and the absolute minimum delta; the latter keeps
+ * noise in phases of a few milliseconds from being reported.
+ *
+ * Timings are only comparable when the caches are in the same state, so
+ * both runners that use this start every program cold: the on-device
+ * BatchRunner clears the program's DEX cache and the DEX memo first, and the
+ * host StartupPhaseTest runs each program in a fresh JVM with empty caches.
+ *
+ * File format:
+ * { "programs": { "analog_clock.clj": { "RT init": 850, "Eval": 420, ... } } }
+ *
+ * Uses org.json, which Android provides; JVM users add it themselves.
+ */
+public class StartupBaseline {
+    private static final String TAG = "StartupBaseline";
+
+    public static final String STATUS_OK = "ok";
+
+    public static final int DEFAULT_THRESHOLD_PERCENT = 20;
+    public static final long DEFAULT_MIN_DELTA_MS = 25;
+
+    /**
+     * The outcome of running one program.
+     */
+    public interface Result {
+        String getName();
+
+        /**
+         * @return STATUS_OK if the program ran without errors
+         */
+        String getStatus();
+
+        /**
+         * @return Phase timings in ms, in the order they were reported
+         */
+        Map<String, Long> getTimings();
+    }
+
+    // Program name -> phase -> time in ms
+    private final Map<String, Map<String, Long>> programs = new LinkedHashMap<>();
+
+    /**
+     * Loads a baseline file, or returns an empty baseline if it does not exist
+     * or cannot be parsed.
+     */
+    public static StartupBaseline load(File file) {
+        StartupBaseline baseline = new StartupBaseline();
+        if (!file.exists()) {
+            PipelineLog.d(TAG, "No baseline at " + file.getAbsolutePath());
+            return baseline;
+        }
+        try {
+            String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            JSONObject programsJson = new JSONObject(json).getJSONObject("programs");
+            Iterator<String> names = programsJson.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                JSONObject phasesJson = programsJson.getJSONObject(name);
+                Map<String, Long> phases = new LinkedHashMap<>();
+                Iterator<String> phaseNames = phasesJson.keys();
+                while (phaseNames.hasNext()) {
+                    String phase = phaseNames.next();
+                    phases.put(phase, phasesJson.getLong(phase));
+                }
+                baseline.programs.put(name, phases);
+            }
+            PipelineLog.d(TAG, "Loaded baseline for " + baseline.programs.size() + " programs");
+        } catch (IOException | JSONException e) {
+            PipelineLog.e(TAG, "Error reading baseline " + file.getAbsolutePath(), e);
+        }
+        return baseline;
+    }
+
+    /**
+     * Builds a baseline from the successful programs of a batch run.
+     */
+    public static StartupBaseline fromResults(List<? extends Result> results) {
+        StartupBaseline baseline = new StartupBaseline();
+        for (Result result : results) {
+            if (STATUS_OK.equals(result.getStatus()) && !result.getTimings().isEmpty()) {
+                baseline.programs.put(result.getName(), new LinkedHashMap<>(result.getTimings()));
+            }
+        }
+        return baseline;
+    }
+
+    public boolean isEmpty() {
+        return programs.isEmpty();
+    }
+
+    /**
+     * Compares the results against this baseline.
+     *
+     * @return One line per regressed phase; empty if there are none
+     */
+    public List<String> findRegressions(List<? extends Result> results, int thresholdPercent, long minDeltaMs) {
+        List<String> regressions = new ArrayList<>();
+        for (Result result : results) {
+            Map<String, Long> baselinePhases = programs.get(result.getName());
+            if (baselinePhases == null) {
+                continue;
+            }
+            if (!STATUS_OK.equals(result.getStatus())) {
+                regressions.add(result.getName() + ": " + result.getStatus() + " (passed in baseline)");
+                continue;
+            }
+            for (Map.Entry<String, Long> phase : baselinePhases.entrySet()) {
+                Long current = result.getTimings().get(phase.getKey());
+                if (current == null) {
+                    continue;
+                }
+                long baselineMs = phase.getValue();
+                long delta = current - baselineMs;
+                if (delta > minDeltaMs && delta * 100 > baselineMs * thresholdPercent) {
+                    regressions.add(String.format("%s: %s %dms -> %dms (+%d%%)", result.getName(), phase.getKey(),
+                            baselineMs, current, baselineMs > 0 ? delta * 100 / baselineMs : 100));
+                }
+            }
+        }
+        return regressions;
+    }
+
+    public void write(File file) throws IOException {
+        try {
+            Map<String, Object> programsJson = new LinkedHashMap<>();
+            for (Map.Entry<String, Map<String, Long>> entry : programs.entrySet()) {
+                programsJson.put(entry.getKey(), new JSONObject(entry.getValue()));
+            }
+            JSONObject json = new JSONObject();
+            json.put("programs", new JSONObject(programsJson));
+            try (FileWriter writer = new FileWriter(file)) {
+                writer.write(json.toString(2));
+            }
+        } catch (JSONException e) {
+            throw new IOException("Error serializing baseline", e);
+        }
+    }
+}
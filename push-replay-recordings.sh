@@ -0,0 +1,24 @@
+#!/bin/bash
+
+# Pushes chat histories to the device for the replay LLM backend, see
+# ReplayIndex. Defaults to every examples/*.chat_history.txt; session JSON
+# files can be pushed too.
+
+dir="/sdcard/Android/data/com.example.clojurerepl/files/replay"
+
+if [ "$#" -gt 0 ]; then
+    files=("$@")
+else
+    files=(examples/*.chat_history.txt)
+fi
+
+adb shell mkdir -p "$dir"
+for file in "${files[@]}"; do
+    if [ ! -f "$file" ]; then
+        echo "File not found: $file"
+        exit 1
+    fi
+    echo "Pushing ${file}"
+    adb push "$file" "$dir/" > /dev/null
+done
+echo "Done pushing ${#files[@]} recordings. They are re-indexed when REPLAY is selected or the stand-in starts."